@@ -40,6 +40,16 @@ public interface ElasticPersistence {
             "select reservation_id from reservations where group_id = ?";
     String GET_RESERVATION_FROM_COSCHED =
             "select reservation_id from reservations where cosched_id = ?";
+    // whole rows, completed by selectRowsFromIds with a column to match
+    String SELECT_INSTANCES = "select elastic_id, manager_id, " +
+            "reservation_id, sshkey from instances where ";
+    String SELECT_RESERVATIONS = "select reservation_id, group_id, " +
+            "cosched_id from reservations where ";
+    String INSTANCE_ELASTIC_ID = "elastic_id";
+    String INSTANCE_MANAGER_ID = "manager_id";
+    String RESERVATION_ID = "reservation_id";
+    String RESERVATION_GROUP_ID = "group_id";
+    String RESERVATION_COSCHED_ID = "cosched_id";
     // a little silly
     String GET_RESERVATION =
             "select reservation_id from reservations where reservation_id = ?";
@@ -65,6 +75,14 @@ public interface ElasticPersistence {
 
     String selectIdFromId(String query, String id);
 
+    /**
+     * @param select SELECT_INSTANCES or SELECT_RESERVATIONS
+     * @param column column the ids are matched against
+     * @param ids ids to look up, unknown ids are ignored
+     * @return all matching rows, each with the selected columns in order
+     */
+    List<String[]> selectRowsFromIds(String select, String column, String[] ids);
+
     List<SSHKey> getSSHKeys(String owner) throws Exception;
 
     SSHKey getSSHKey(String owner, String keyname) throws Exception;
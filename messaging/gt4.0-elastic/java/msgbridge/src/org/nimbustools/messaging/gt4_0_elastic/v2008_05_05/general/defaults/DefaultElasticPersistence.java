@@ -72,6 +72,10 @@ public class DefaultElasticPersistence implements ElasticPersistence {
             "select version from schema_version limit 1";
 
 
+    // ids per "in (...)" query, well under sqlite's limit on parameters
+    private static final int IDS_PER_QUERY = 100;
+
+
     private final DataSource dataSource;
 
     public DefaultElasticPersistence(Resource dbResource) throws IOException {
@@ -268,6 +272,76 @@ public class DefaultElasticPersistence implements ElasticPersistence {
         }
     }
 
+    public List<String[]> selectRowsFromIds(String select,
+                                            String column,
+                                            String[] ids) {
+        if (select == null) {
+            throw new IllegalArgumentException("select may not be null");
+        }
+        if (column == null) {
+            throw new IllegalArgumentException("column may not be null");
+        }
+        if (ids == null) {
+            throw new IllegalArgumentException("ids may not be null");
+        }
+
+        final List<String[]> rows = new ArrayList<String[]>(ids.length);
+        if (ids.length == 0) {
+            return rows;
+        }
+
+        Connection c = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs;
+
+        try {
+            c = dataSource.getConnection();
+
+            for (int start = 0; start < ids.length; start += IDS_PER_QUERY) {
+                final int count = Math.min(IDS_PER_QUERY, ids.length - start);
+
+                final StringBuilder query = new StringBuilder(select);
+                query.append(column).append(" in (");
+                for (int i = 0; i < count; i++) {
+                    query.append(i == 0 ? "?" : ",?");
+                }
+                query.append(')');
+
+                pstmt = c.prepareStatement(query.toString());
+                for (int i = 0; i < count; i++) {
+                    pstmt.setString(i + 1, ids[start + i]);
+                }
+                rs = pstmt.executeQuery();
+
+                final int columns = rs.getMetaData().getColumnCount();
+                while (rs.next()) {
+                    final String[] row = new String[columns];
+                    for (int i = 0; i < columns; i++) {
+                        row[i] = rs.getString(i + 1);
+                    }
+                    rows.add(row);
+                }
+                pstmt.close();
+                pstmt = null;
+            }
+            return rows;
+        } catch (SQLException e) {
+            logger.error("", e);
+            return rows;
+        } finally {
+            try {
+                if (pstmt != null) {
+                    pstmt.close();
+                }
+                if (c != null) {
+                    returnConnection(c);
+                }
+            } catch (SQLException sql) {
+                logger.error("SQLException in finally cleanup", sql);
+            }
+        }
+    }
+
     public List<SSHKey> getSSHKeys(String owner) throws Exception {
         if (owner == null) {
             throw new IllegalArgumentException("owner may not be null");
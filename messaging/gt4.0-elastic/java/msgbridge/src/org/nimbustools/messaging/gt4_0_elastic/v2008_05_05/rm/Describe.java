@@ -16,9 +16,12 @@
 
 package org.nimbustools.messaging.gt4_0_elastic.v2008_05_05.rm;
 
+import org.nimbustools.api.repr.Caller;
 import org.nimbustools.api.repr.CannotTranslateException;
 import org.nimbustools.api.repr.vm.VM;
 import org.nimbustools.api.repr.vm.VMFile;
+import org.nimbustools.api.services.rm.ManageException;
+import org.nimbustools.api.services.rm.Manager;
 import org.nimbustools.messaging.gt4_0_elastic.generated.v2010_08_31.DescribeInstancesResponseType;
 import org.nimbustools.messaging.gt4_0_elastic.generated.v2010_08_31.DescribeInstancesType;
 import org.nimbustools.messaging.gt4_0_elastic.generated.v2010_08_31.PlacementRequestType;
@@ -38,6 +41,16 @@ public interface Describe {
                                         describeInstancesRequestMsg)             
             throws CannotTranslateException;
 
+    /**
+     * Fetches only the caller's VMs that the query IDs refer to, instead of
+     * every VM the caller owns.  Unknown IDs and VMs owned by someone else
+     * are left out.
+     */
+    public VM[] findQueryVMs(String[] instanceIDs,
+                             Caller caller,
+                             Manager manager)
+            throws CannotTranslateException, ManageException;
+
     public InstanceStateType getState(VM vm) throws CannotTranslateException;
 
     public String getReason(VM vm) throws CannotTranslateException;
@@ -157,6 +157,15 @@ public interface IDMappings {
      */
     public String instanceToManager(String elasticInstanceID);
 
+    /**
+     * Returns manager IDs for many elastic instance IDs at once
+     *
+     * @param elasticInstanceIDs elastic instance IDs, entries may be null
+     * @return Manager instance IDs in the same order, null where the entry
+     *         was null or unknown
+     */
+    public String[] instancesToManager(String[] elasticInstanceIDs);
+
 
     // -------------------------------------------------------------------------
     // ELASTIC RESERVATION --> MANAGER GROUP
@@ -214,6 +223,15 @@ public interface IDMappings {
      */
     public String managerInstanceToElasticInstance(String managerInstanceID);
 
+    /**
+     * Returns elastic IDs for many manager instance IDs at once
+     *
+     * @param managerInstanceIDs manager instance IDs, entries may be null
+     * @return elastic instance IDs in the same order, null where the entry
+     *         was null or unknown
+     */
+    public String[] managerInstancesToElasticInstances(String[] managerInstanceIDs);
+
 
     // -------------------------------------------------------------------------
     // MANAGER INSTANCE --> ELASTIC RESERVATION
@@ -246,6 +264,15 @@ public interface IDMappings {
      */
     public String managerGroupToElasticReservation(String managerGroupID);
 
+    /**
+     * Returns elastic reservation IDs for many manager group IDs at once
+     *
+     * @param managerGroupIDs manager group IDs, entries may be null
+     * @return elastic reservation IDs in the same order, null where the
+     *         entry was null or unknown
+     */
+    public String[] managerGroupsToElasticReservations(String[] managerGroupIDs);
+
 
     // -------------------------------------------------------------------------
     // MANAGER COSCHED --> RESERVATION
@@ -221,7 +221,13 @@ public class ServiceRMImpl extends UnimplementedOperations
         final Caller caller = this.container.getCaller();
         try {
             final String[] instanceIDs = this.describe.findQueryIDs(req);
-            final VM[] vms = this.manager.getAllByCaller(caller);
+            final VM[] vms;
+            if (instanceIDs.length == 0) {
+                vms = this.manager.getAllByCaller(caller);
+            } else {
+                vms = this.describe.findQueryVMs(instanceIDs, caller,
+                                                 this.manager);
+            }
             final String ownerID = this.container.getOwnerID(caller);
             return this.describe.translate(vms, instanceIDs, ownerID);
         } catch (ManageException e) {
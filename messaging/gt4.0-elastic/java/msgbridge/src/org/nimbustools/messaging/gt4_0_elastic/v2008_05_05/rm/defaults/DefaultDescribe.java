@@ -18,6 +18,7 @@ package org.nimbustools.messaging.gt4_0_elastic.v2008_05_05.rm.defaults;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.nimbustools.api.repr.Caller;
 import org.nimbustools.api.repr.CannotTranslateException;
 import org.nimbustools.api.repr.vm.VM;
 import org.nimbustools.api.repr.vm.NIC;
@@ -25,6 +26,9 @@ import org.nimbustools.api.repr.vm.VMFile;
 import org.nimbustools.api.repr.vm.State;
 import org.nimbustools.api.repr.vm.ResourceAllocation;
 import org.nimbustools.api.repr.vm.Schedule;
+import org.nimbustools.api.services.rm.DoesNotExistException;
+import org.nimbustools.api.services.rm.ManageException;
+import org.nimbustools.api.services.rm.Manager;
 import org.nimbustools.messaging.gt4_0_elastic.generated.v2010_08_31.*;
 import org.nimbustools.messaging.gt4_0_elastic.v2008_05_05.general.Validity;
 import org.nimbustools.messaging.gt4_0_elastic.v2008_05_05.general.Networks;
@@ -40,6 +44,7 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
@@ -140,13 +145,7 @@ public class DefaultDescribe implements Describe {
         boolean scopedQuery = false;
         if (instanceIDs != null && instanceIDs.length > 0) {
             scopedQuery = true;
-            for (int i = 0; i < instanceIDs.length; i++) {
-                final String instanceID = instanceIDs[i];
-                if (!this.validity.isValidInstanceID(instanceID)) {
-                    throw new CannotTranslateException(
-                            "invalid instance ID in query: " + instanceID);
-                }
-            }
+            this.checkInstanceIDs(instanceIDs);
         }
 
         final DescribeInstancesResponseType response =
@@ -200,6 +199,66 @@ public class DefaultDescribe implements Describe {
         return (String[]) instanceIDs.toArray(new String[instanceIDs.size()]);
     }
 
+    public VM[] findQueryVMs(String[] instanceIDs,
+                             Caller caller,
+                             Manager manager)
+            throws CannotTranslateException, ManageException {
+
+        if (instanceIDs == null || instanceIDs.length == 0) {
+            throw new CannotTranslateException(
+                    "instanceIDs is empty or missing");
+        }
+        if (caller == null || caller.getIdentity() == null) {
+            throw new CannotTranslateException("caller identity is missing");
+        }
+        if (manager == null) {
+            throw new IllegalArgumentException("manager may not be null");
+        }
+
+        this.checkInstanceIDs(instanceIDs);
+
+        // duplicates in the query are described once
+        final Set mgrIDs = new LinkedHashSet();
+        final String[] translated = this.ids.instancesToManager(instanceIDs);
+        for (int i = 0; i < translated.length; i++) {
+            if (translated[i] != null) {
+                mgrIDs.add(translated[i]);
+            }
+        }
+
+        final List vms = new ArrayList(mgrIDs.size());
+        final Iterator iter = mgrIDs.iterator();
+        while (iter.hasNext()) {
+            final VM vm;
+            try {
+                vm = manager.getInstance((String) iter.next());
+            } catch (DoesNotExistException e) {
+                continue; // *** GOTO NEXT ID ***
+            }
+
+            // getAllByCaller only returns what the caller created
+            final Caller creator = vm == null ? null : vm.getCreator();
+            if (creator != null &&
+                    caller.getIdentity().equals(creator.getIdentity())) {
+                vms.add(vm);
+            }
+        }
+
+        return (VM[]) vms.toArray(new VM[vms.size()]);
+    }
+
+    protected void checkInstanceIDs(String[] instanceIDs)
+            throws CannotTranslateException {
+
+        for (int i = 0; i < instanceIDs.length; i++) {
+            final String instanceID = instanceIDs[i];
+            if (!this.validity.isValidInstanceID(instanceID)) {
+                throw new CannotTranslateException(
+                        "invalid instance ID in query: " + instanceID);
+            }
+        }
+    }
+
 
     // -------------------------------------------------------------------------
     // GET RESERVATIONS
@@ -239,11 +298,14 @@ public class DefaultDescribe implements Describe {
                     "instanceIDs is empty or missing");
         }
 
-        // translate the requests elastic IDs into manager instance IDs
-        final String[] mgrIDs = new String[instanceIDs.length];
-        for (int i = 0; i < instanceIDs.length; i++) {
-            // arg and result may be null, ignoring invalid or unknown
-            mgrIDs[i] = this.ids.instanceToManager(instanceIDs[i]);
+        // translate the requests elastic IDs into manager instance IDs,
+        // result may be null, ignoring invalid or unknown
+        final String[] translated = this.ids.instancesToManager(instanceIDs);
+        final Set mgrIDs = new HashSet(translated.length * 2);
+        for (int i = 0; i < translated.length; i++) {
+            if (translated[i] != null) {
+                mgrIDs.add(translated[i]);
+            }
         }
 
         // add the VMs of interest
@@ -255,12 +317,8 @@ public class DefaultDescribe implements Describe {
                         "null VM in query response");
                 continue; // *** GOTO NEXT VM ***
             }
-            for (int j = 0; j < mgrIDs.length; j++) {
-                final String id = mgrIDs[j];
-                if (id != null && id.equals(vm.getID())) {
-                    newVMs.add(vm);
-                    break;
-                }
+            if (mgrIDs.contains(vm.getID())) {
+                newVMs.add(vm);
             }
         }
 
@@ -629,6 +687,8 @@ public class DefaultDescribe implements Describe {
         final Set seenKeys = new HashSet();
         final Hashtable dict = new Hashtable();
 
+        this.preloadIDs(vms);
+
         for (int i = 0; i < vms.length; i++) {
 
             final VM vm = vms[i];
@@ -676,6 +736,29 @@ public class DefaultDescribe implements Describe {
         return dict;
     }
 
+    // Looks up the mappings for the whole result set in bulk so that the
+    // per-VM calls below and in getOneReservation find them in memory
+    private void preloadIDs(VM[] vms) {
+
+        final List vmIDs = new ArrayList(vms.length);
+        final Set groupIDs = new HashSet();
+        for (int i = 0; i < vms.length; i++) {
+            if (vms[i] != null) {
+                vmIDs.add(vms[i].getID());
+                if (vms[i].getGroupID() != null) {
+                    groupIDs.add(vms[i].getGroupID());
+                }
+            }
+        }
+
+        this.ids.managerInstancesToElasticInstances(
+                (String[]) vmIDs.toArray(new String[vmIDs.size()]));
+        if (!groupIDs.isEmpty()) {
+            this.ids.managerGroupsToElasticReservations(
+                    (String[]) groupIDs.toArray(new String[groupIDs.size()]));
+        }
+    }
+
     private void _newNoGroupID(VM vm, Set seenKeys, Hashtable dict)
             throws CannotTranslateException {
 
@@ -20,7 +20,12 @@ import org.apache.commons.logging.LogFactory;
 import org.nimbustools.messaging.gt4_0_elastic.v2008_05_05.general.ElasticPersistence;
 import org.nimbustools.messaging.gt4_0_elastic.v2008_05_05.rm.IDMappings;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class DefaultIDMgmt implements IDMappings {
 
@@ -35,6 +40,8 @@ public class DefaultIDMgmt implements IDMappings {
                             {'0', '1', '2', '3', '4', '5', '6', '7',
                              '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
 
+    public static final int DEFAULT_MAX_CACHED_MAPPINGS = 100000;
+
 
     // -------------------------------------------------------------------------
     // INSTANCE VARIABLES
@@ -45,6 +52,23 @@ public class DefaultIDMgmt implements IDMappings {
     private final Random random = new Random();
     private final ElasticPersistence persistence;
 
+    // Rows are never updated or deleted once inserted, so any row that was
+    // read or written is kept here and lookups do not go to the database
+    // again.  Reads never wait on the creation monitor ('this'), IDs that
+    // are not found are looked up again next time.
+    private final Map<String,InstanceMapping> instancesByElastic =
+            new ConcurrentHashMap<String,InstanceMapping>();
+    private final Map<String,InstanceMapping> instancesByManager =
+            new ConcurrentHashMap<String,InstanceMapping>();
+    private final Map<String,ReservationMapping> reservationsByID =
+            new ConcurrentHashMap<String,ReservationMapping>();
+    private final Map<String,ReservationMapping> reservationsByGroup =
+            new ConcurrentHashMap<String,ReservationMapping>();
+    private final Map<String,ReservationMapping> reservationsByCosched =
+            new ConcurrentHashMap<String,ReservationMapping>();
+
+    private volatile int maxCachedMappings = DEFAULT_MAX_CACHED_MAPPINGS;
+
 
     // -------------------------------------------------------------------------
     // CONSTRUCTOR
@@ -54,6 +78,28 @@ public class DefaultIDMgmt implements IDMappings {
         this.persistence = persistence;
     }
 
+
+    // -------------------------------------------------------------------------
+    // SET
+    // -------------------------------------------------------------------------
+
+    /**
+     * @param maxCachedMappings when more instance or reservation rows than
+     *        this are in memory, they are all dropped and read again as needed
+     */
+    public void setMaxCachedMappings(int maxCachedMappings) {
+        if (maxCachedMappings < 1) {
+            throw new IllegalArgumentException(
+                    "maxCachedMappings must be at least 1");
+        }
+        this.maxCachedMappings = maxCachedMappings;
+    }
+
+
+    // -------------------------------------------------------------------------
+    // NEW ELASTIC IDs
+    // -------------------------------------------------------------------------
+
     /**
      * Returns new, unique instance elastic ID for the instance ID
      *
@@ -76,7 +122,8 @@ public class DefaultIDMgmt implements IDMappings {
         final String id = this.newUniqueInstanceID();
 
         persistence.insertInstance(id, managerInstanceID, elasticReservationID, sshkeyUsed);
-
+        this.cacheInstance(new InstanceMapping(id, managerInstanceID,
+                                               elasticReservationID, sshkeyUsed));
         return id;
     }
 
@@ -97,7 +144,10 @@ public class DefaultIDMgmt implements IDMappings {
         final String id = this.newUniqueInstanceID();
         final String resid = this.newUniqueReservationID();
         persistence.insertReservation(resid, null, null);
+        this.cacheReservation(new ReservationMapping(resid, null, null));
         persistence.insertInstance(id, managerInstanceID, resid, sshkeyUsed);
+        this.cacheInstance(new InstanceMapping(id, managerInstanceID,
+                                               resid, sshkeyUsed));
         return resid;
     }
 
@@ -114,6 +164,7 @@ public class DefaultIDMgmt implements IDMappings {
         }
         final String resid = this.newUniqueReservationID();
         persistence.insertReservation(resid, managerGroupID, null);
+        this.cacheReservation(new ReservationMapping(resid, managerGroupID, null));
 
         return resid;
     }
@@ -131,54 +182,89 @@ public class DefaultIDMgmt implements IDMappings {
         }
         final String resid = this.newUniqueReservationID();
         persistence.insertReservation(resid, null, managerCoschedID);
+        this.cacheReservation(new ReservationMapping(resid, null, managerCoschedID));
 
         return resid;
     }
 
-   // -------------------------------------------------------------------------
+    // -------------------------------------------------------------------------
     // GET-OR-NEW ELASTIC IDs
     // -------------------------------------------------------------------------
 
-    public synchronized String getOrNewInstanceID(String managerInstanceID,
-                                             String elasticReservationID,
-                                             String sshkeyUsed) throws Exception {
-        if (!this.isElasticInstanceID(managerInstanceID)) {
-            return this.newInstanceID(managerInstanceID, elasticReservationID, sshkeyUsed);
+    // Almost every call is for an ID that is already mapped, those are
+    // answered without waiting on the creation monitor.  The check is
+    // repeated while holding it before anything new is created.
+
+    public String getOrNewInstanceID(String managerInstanceID,
+                                     String elasticReservationID,
+                                     String sshkeyUsed) throws Exception {
+
+        final String known = this.managerInstanceToElasticInstance(managerInstanceID);
+        if (known != null) {
+            return known; // *** EARLY RETURN ***
+        }
+
+        synchronized (this) {
+            if (!this.isElasticInstanceID(managerInstanceID)) {
+                return this.newInstanceID(managerInstanceID, elasticReservationID, sshkeyUsed);
+            }
+            return this.managerInstanceToElasticInstance(managerInstanceID);
         }
-        return this.managerInstanceToElasticInstance(managerInstanceID);
     }
 
-    public synchronized String getOrNewInstanceReservationID(String managerInstanceID,
-                                                             String sshkeyUsed)
+    public String getOrNewInstanceReservationID(String managerInstanceID,
+                                                String sshkeyUsed)
             throws Exception {
 
-        if (!this.isElasticInstanceID(managerInstanceID)) {
-            this.newGrouplessInstanceID(managerInstanceID, sshkeyUsed);
+        final String known = this.managerInstanceToElasticReservation(managerInstanceID);
+        if (known != null) {
+            return known; // *** EARLY RETURN ***
+        }
+
+        synchronized (this) {
+            if (!this.isElasticInstanceID(managerInstanceID)) {
+                this.newGrouplessInstanceID(managerInstanceID, sshkeyUsed);
+            }
+            return this.managerInstanceToElasticReservation(managerInstanceID);
         }
-        return this.managerInstanceToElasticReservation(managerInstanceID);
     }
 
-    public synchronized String getOrNewGroupReservationID(String managerGroupID)
+    public String getOrNewGroupReservationID(String managerGroupID)
             throws Exception {
-        if (this.isElasticReservationIDGroup(managerGroupID)) {
-            return this.managerGroupToElasticReservation(managerGroupID);
-        } else {
-            return this.newGroupReservationID(managerGroupID);
+
+        final String known = this.managerGroupToElasticReservation(managerGroupID);
+        if (known != null) {
+            return known; // *** EARLY RETURN ***
+        }
+
+        synchronized (this) {
+            if (this.isElasticReservationIDGroup(managerGroupID)) {
+                return this.managerGroupToElasticReservation(managerGroupID);
+            } else {
+                return this.newGroupReservationID(managerGroupID);
+            }
         }
     }
 
-    public synchronized String getOrNewCoschedReservationID(String managerCoschedID)
+    public String getOrNewCoschedReservationID(String managerCoschedID)
             throws Exception {
-        if (this.isElasticReservationIDCosched(managerCoschedID)) {
-            return this.managerCoschedToElasticReservation(managerCoschedID);
-        } else {
-            return this.newCoschedReservationID(managerCoschedID);
+
+        final String known = this.managerCoschedToElasticReservation(managerCoschedID);
+        if (known != null) {
+            return known; // *** EARLY RETURN ***
+        }
+
+        synchronized (this) {
+            if (this.isElasticReservationIDCosched(managerCoschedID)) {
+                return this.managerCoschedToElasticReservation(managerCoschedID);
+            } else {
+                return this.newCoschedReservationID(managerCoschedID);
+            }
         }
     }
 
-    public synchronized String checkInstanceAndReservation(
-                                            String managerInstanceID,
-                                            String elasticReservationID)
+    public String checkInstanceAndReservation(String managerInstanceID,
+                                              String elasticReservationID)
             throws Exception {
 
         if (!this.isCoschedReservationID(elasticReservationID)
@@ -187,14 +273,10 @@ public class DefaultIDMgmt implements IDMappings {
                     "elastic reservation ID '" + elasticReservationID + "'");
         }
 
-        if (this.isElasticInstanceID(managerInstanceID)) {
-            // nothing to do
-            return this.managerInstanceToElasticInstance(managerInstanceID);
-        }
-
-        return this.newInstanceID(managerInstanceID,
-                                  elasticReservationID,
-                                  null);
+        // nothing to do if it is already mapped
+        return this.getOrNewInstanceID(managerInstanceID,
+                                       elasticReservationID,
+                                       null);
     }
 
     /**
@@ -215,9 +297,31 @@ public class DefaultIDMgmt implements IDMappings {
         if (elasticInstanceID == null) {
             throw new IllegalArgumentException("elasticInstanceID may not be null");
         }
-        return persistence.selectIdFromId(
-                ElasticPersistence.GET_MANAGER_FROM_ELASTIC_INSTANCE,
-                elasticInstanceID);
+        final InstanceMapping mapping = this.instanceBy(
+                ElasticPersistence.INSTANCE_ELASTIC_ID, elasticInstanceID);
+        return mapping == null ? null : mapping.managerID;
+    }
+
+    /**
+     * Returns manager IDs for many elastic instance IDs at once
+     *
+     * @param elasticInstanceIDs elastic instance IDs, entries may be null
+     * @return Manager instance IDs in the same order, null where the entry
+     *         was null or unknown
+     */
+    public String[] instancesToManager(String[] elasticInstanceIDs) {
+        if (elasticInstanceIDs == null) {
+            throw new IllegalArgumentException("elasticInstanceIDs may not be null");
+        }
+        final InstanceMapping[] mappings = this.instancesBy(
+                ElasticPersistence.INSTANCE_ELASTIC_ID, elasticInstanceIDs);
+        final String[] mgrIDs = new String[mappings.length];
+        for (int i = 0; i < mappings.length; i++) {
+            if (mappings[i] != null) {
+                mgrIDs[i] = mappings[i].managerID;
+            }
+        }
+        return mgrIDs;
     }
 
     /**
@@ -238,9 +342,9 @@ public class DefaultIDMgmt implements IDMappings {
         if (elasticReservationID == null) {
             throw new IllegalArgumentException("elasticReservationID may not be null");
         }
-        return persistence.selectIdFromId(
-                ElasticPersistence.GET_GROUP_FROM_ELASTIC_RESERVATION,
-                elasticReservationID);
+        final ReservationMapping mapping = this.reservationBy(
+                ElasticPersistence.RESERVATION_ID, elasticReservationID);
+        return mapping == null ? null : mapping.groupID;
     }
 
     /**
@@ -261,9 +365,9 @@ public class DefaultIDMgmt implements IDMappings {
         if (elasticReservationID == null) {
             throw new IllegalArgumentException("elasticReservationID may not be null");
         }
-        return persistence.selectIdFromId(
-                ElasticPersistence.GET_COSCHED_FROM_ELASTIC_RESERVATION,
-                elasticReservationID);
+        final ReservationMapping mapping = this.reservationBy(
+                ElasticPersistence.RESERVATION_ID, elasticReservationID);
+        return mapping == null ? null : mapping.coschedID;
     }
 
     /**
@@ -284,9 +388,31 @@ public class DefaultIDMgmt implements IDMappings {
         if (managerInstanceID == null) {
             throw new IllegalArgumentException("managerInstanceID may not be null");
         }
-        return persistence.selectIdFromId(
-                ElasticPersistence.GET_ELASTIC_FROM_MANAGER_INSTANCE,
-                managerInstanceID);
+        final InstanceMapping mapping = this.instanceBy(
+                ElasticPersistence.INSTANCE_MANAGER_ID, managerInstanceID);
+        return mapping == null ? null : mapping.elasticID;
+    }
+
+    /**
+     * Returns elastic IDs for many manager instance IDs at once
+     *
+     * @param managerInstanceIDs manager instance IDs, entries may be null
+     * @return elastic instance IDs in the same order, null where the entry
+     *         was null or unknown
+     */
+    public String[] managerInstancesToElasticInstances(String[] managerInstanceIDs) {
+        if (managerInstanceIDs == null) {
+            throw new IllegalArgumentException("managerInstanceIDs may not be null");
+        }
+        final InstanceMapping[] mappings = this.instancesBy(
+                ElasticPersistence.INSTANCE_MANAGER_ID, managerInstanceIDs);
+        final String[] elasticIDs = new String[mappings.length];
+        for (int i = 0; i < mappings.length; i++) {
+            if (mappings[i] != null) {
+                elasticIDs[i] = mappings[i].elasticID;
+            }
+        }
+        return elasticIDs;
     }
 
     /**
@@ -299,9 +425,9 @@ public class DefaultIDMgmt implements IDMappings {
         if (managerInstanceID == null) {
             throw new IllegalArgumentException("managerInstanceID may not be null");
         }
-        return persistence.selectIdFromId(
-                ElasticPersistence.GET_RESERVATION_FROM_MANAGER_INSTANCE,
-                managerInstanceID);
+        final InstanceMapping mapping = this.instanceBy(
+                ElasticPersistence.INSTANCE_MANAGER_ID, managerInstanceID);
+        return mapping == null ? null : mapping.reservationID;
     }
 
     /**
@@ -322,9 +448,31 @@ public class DefaultIDMgmt implements IDMappings {
         if (managerGroupID == null) {
             throw new IllegalArgumentException("managerGroupID may not be null");
         }
-        return persistence.selectIdFromId(
-                ElasticPersistence.GET_RESERVATION_FROM_GROUP,
-                managerGroupID);
+        final ReservationMapping mapping = this.reservationBy(
+                ElasticPersistence.RESERVATION_GROUP_ID, managerGroupID);
+        return mapping == null ? null : mapping.reservationID;
+    }
+
+    /**
+     * Returns elastic reservation IDs for many manager group IDs at once
+     *
+     * @param managerGroupIDs manager group IDs, entries may be null
+     * @return elastic reservation IDs in the same order, null where the
+     *         entry was null or unknown
+     */
+    public String[] managerGroupsToElasticReservations(String[] managerGroupIDs) {
+        if (managerGroupIDs == null) {
+            throw new IllegalArgumentException("managerGroupIDs may not be null");
+        }
+        final ReservationMapping[] mappings = this.reservationsBy(
+                ElasticPersistence.RESERVATION_GROUP_ID, managerGroupIDs);
+        final String[] resIDs = new String[mappings.length];
+        for (int i = 0; i < mappings.length; i++) {
+            if (mappings[i] != null) {
+                resIDs[i] = mappings[i].reservationID;
+            }
+        }
+        return resIDs;
     }
 
     /**
@@ -345,9 +493,9 @@ public class DefaultIDMgmt implements IDMappings {
         if (managerCoschedID == null) {
             throw new IllegalArgumentException("managerCoschedID may not be null");
         }
-        return persistence.selectIdFromId(
-                ElasticPersistence.GET_RESERVATION_FROM_COSCHED,
-                managerCoschedID);
+        final ReservationMapping mapping = this.reservationBy(
+                ElasticPersistence.RESERVATION_COSCHED_ID, managerCoschedID);
+        return mapping == null ? null : mapping.reservationID;
     }
 
     /**
@@ -359,9 +507,183 @@ public class DefaultIDMgmt implements IDMappings {
         if (elasticID == null) {
             throw new IllegalArgumentException("elasticID may not be null");
         }
-        return persistence.selectIdFromId(
-                ElasticPersistence.GET_SSHKEY_FROM_ELASTIC_INSTANCE,
-                elasticID);
+        final InstanceMapping mapping = this.instanceBy(
+                ElasticPersistence.INSTANCE_ELASTIC_ID, elasticID);
+        return mapping == null ? null : mapping.sshkey;
+    }
+
+
+    // -------------------------------------------------------------------------
+    // MAPPING CACHE
+    // -------------------------------------------------------------------------
+
+    private InstanceMapping instanceBy(String column, String id) {
+        return this.instancesBy(column, new String[]{id})[0];
+    }
+
+    // column is INSTANCE_ELASTIC_ID or INSTANCE_MANAGER_ID, one database
+    // query (per chunk) for all of the ids that are not in memory yet
+    private InstanceMapping[] instancesBy(String column, String[] ids) {
+
+        final boolean byElastic =
+                ElasticPersistence.INSTANCE_ELASTIC_ID.equals(column);
+        final Map<String,InstanceMapping> cache =
+                byElastic ? this.instancesByElastic : this.instancesByManager;
+
+        final InstanceMapping[] found = new InstanceMapping[ids.length];
+        final List<String> missing = new ArrayList<String>();
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] != null) {
+                found[i] = cache.get(ids[i]);
+                if (found[i] == null) {
+                    missing.add(ids[i]);
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            return found; // *** EARLY RETURN ***
+        }
+
+        final List<String[]> rows = this.persistence.selectRowsFromIds(
+                ElasticPersistence.SELECT_INSTANCES, column,
+                missing.toArray(new String[missing.size()]));
+
+        final Map<String,InstanceMapping> loaded =
+                new HashMap<String,InstanceMapping>(rows.size() * 2);
+        for (String[] row : rows) {
+            final InstanceMapping mapping =
+                    new InstanceMapping(row[0], row[1], row[2], row[3]);
+            this.cacheInstance(mapping);
+            loaded.put(byElastic ? mapping.elasticID : mapping.managerID,
+                       mapping);
+        }
+        for (int i = 0; i < ids.length; i++) {
+            if (found[i] == null && ids[i] != null) {
+                found[i] = loaded.get(ids[i]);
+            }
+        }
+        return found;
+    }
+
+    private ReservationMapping reservationBy(String column, String id) {
+        return this.reservationsBy(column, new String[]{id})[0];
+    }
+
+    // column is RESERVATION_ID, RESERVATION_GROUP_ID or RESERVATION_COSCHED_ID
+    private ReservationMapping[] reservationsBy(String column, String[] ids) {
+
+        final Map<String,ReservationMapping> cache;
+        if (ElasticPersistence.RESERVATION_GROUP_ID.equals(column)) {
+            cache = this.reservationsByGroup;
+        } else if (ElasticPersistence.RESERVATION_COSCHED_ID.equals(column)) {
+            cache = this.reservationsByCosched;
+        } else {
+            cache = this.reservationsByID;
+        }
+
+        final ReservationMapping[] found = new ReservationMapping[ids.length];
+        final List<String> missing = new ArrayList<String>();
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] != null) {
+                found[i] = cache.get(ids[i]);
+                if (found[i] == null) {
+                    missing.add(ids[i]);
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            return found; // *** EARLY RETURN ***
+        }
+
+        final List<String[]> rows = this.persistence.selectRowsFromIds(
+                ElasticPersistence.SELECT_RESERVATIONS, column,
+                missing.toArray(new String[missing.size()]));
+
+        // like the single-ID queries, the first row wins if there are several
+        final Map<String,ReservationMapping> loaded =
+                new HashMap<String,ReservationMapping>(rows.size() * 2);
+        for (String[] row : rows) {
+            final ReservationMapping mapping =
+                    new ReservationMapping(row[0], row[1], row[2]);
+            this.cacheReservation(mapping);
+
+            final String key;
+            if (cache == this.reservationsByGroup) {
+                key = mapping.groupID;
+            } else if (cache == this.reservationsByCosched) {
+                key = mapping.coschedID;
+            } else {
+                key = mapping.reservationID;
+            }
+            if (!loaded.containsKey(key)) {
+                loaded.put(key, mapping);
+            }
+        }
+        for (int i = 0; i < ids.length; i++) {
+            if (found[i] == null && ids[i] != null) {
+                found[i] = loaded.get(ids[i]);
+            }
+        }
+        return found;
+    }
+
+    private void cacheInstance(InstanceMapping mapping) {
+        this.checkCacheSize(this.instancesByElastic.size());
+        this.instancesByElastic.put(mapping.elasticID, mapping);
+        this.instancesByManager.put(mapping.managerID, mapping);
+    }
+
+    private void cacheReservation(ReservationMapping mapping) {
+        this.checkCacheSize(this.reservationsByID.size());
+        this.reservationsByID.put(mapping.reservationID, mapping);
+        if (mapping.groupID != null &&
+                !this.reservationsByGroup.containsKey(mapping.groupID)) {
+            this.reservationsByGroup.put(mapping.groupID, mapping);
+        }
+        if (mapping.coschedID != null &&
+                !this.reservationsByCosched.containsKey(mapping.coschedID)) {
+            this.reservationsByCosched.put(mapping.coschedID, mapping);
+        }
+    }
+
+    // everything is in the database, start over rather than grow forever
+    private void checkCacheSize(int size) {
+        if (size >= this.maxCachedMappings) {
+            logger.debug("Dropping " + size + " cached elastic ID mappings");
+            this.instancesByElastic.clear();
+            this.instancesByManager.clear();
+            this.reservationsByID.clear();
+            this.reservationsByGroup.clear();
+            this.reservationsByCosched.clear();
+        }
+    }
+
+    private static class InstanceMapping {
+        final String elasticID;
+        final String managerID;
+        final String reservationID;
+        final String sshkey;
+
+        InstanceMapping(String elasticID, String managerID,
+                        String reservationID, String sshkey) {
+            this.elasticID = elasticID;
+            this.managerID = managerID;
+            this.reservationID = reservationID;
+            this.sshkey = sshkey;
+        }
+    }
+
+    private static class ReservationMapping {
+        final String reservationID;
+        final String groupID;
+        final String coschedID;
+
+        ReservationMapping(String reservationID, String groupID,
+                           String coschedID) {
+            this.reservationID = reservationID;
+            this.groupID = groupID;
+            this.coschedID = coschedID;
+        }
     }
 
 
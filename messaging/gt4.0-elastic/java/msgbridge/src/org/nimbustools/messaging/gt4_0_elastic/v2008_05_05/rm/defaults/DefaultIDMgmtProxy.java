@@ -138,6 +138,10 @@ public class DefaultIDMgmtProxy implements IDMappings,
         return this.getReal().instanceToManager(elasticInstanceID);
     }
 
+    public String[] instancesToManager(String[] elasticInstanceIDs) {
+        return this.getReal().instancesToManager(elasticInstanceIDs);
+    }
+
     public boolean isManagerGroupID(String elasticKey) {
         return this.getReal().isManagerGroupID(elasticKey);
     }
@@ -162,6 +166,10 @@ public class DefaultIDMgmtProxy implements IDMappings,
         return this.getReal().managerInstanceToElasticInstance(managerInstanceID);
     }
 
+    public String[] managerInstancesToElasticInstances(String[] managerInstanceIDs) {
+        return this.getReal().managerInstancesToElasticInstances(managerInstanceIDs);
+    }
+
     public String managerInstanceToElasticReservation(String managerInstanceID) {
         return this.getReal().managerInstanceToElasticReservation(managerInstanceID);
     }
@@ -174,6 +182,10 @@ public class DefaultIDMgmtProxy implements IDMappings,
         return this.getReal().managerGroupToElasticReservation(managerGroupID);
     }
 
+    public String[] managerGroupsToElasticReservations(String[] managerGroupIDs) {
+        return this.getReal().managerGroupsToElasticReservations(managerGroupIDs);
+    }
+
     public boolean isElasticReservationIDCosched(String managerKey) {
         return this.getReal().isElasticReservationIDCosched(managerKey);
     }
@@ -35,8 +35,6 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.lang.annotation.Annotation;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.lang.reflect.Type;
 import java.util.List;
 
@@ -47,19 +45,16 @@ public class AxisBodyWriter implements MessageBodyWriter<Object> {
     private static final Log logger =
             LogFactory.getLog(AxisBodyWriter.class.getName());
 
-    private static final String GET_TYPE_DESC = "getTypeDesc";
     private static final String TYPE_SUFFIX = "Type";
 
     @Context
     MessageContext messageContext;
 
 
-    // this is a travesty
-
     public boolean isWriteable(Class<?> aClass, Type type,
                                Annotation[] annotations, MediaType mediaType) {
 
-        return getTypeDescVerySlowly(aClass) != null;
+        return StaxBeanWriter.getTypeDesc(aClass) != null;
     }
 
     public long getSize(Object o, Class aClass, Type type,
@@ -72,24 +67,10 @@ public class AxisBodyWriter implements MessageBodyWriter<Object> {
                         MultivaluedMap multivaluedMap,
                         OutputStream outputStream)
             throws IOException, WebApplicationException {
-        final TypeDesc typeDesc = getTypeDescVerySlowly(aClass);
-
-        final QName qName = typeDesc.getXmlType();
 
-        if (qName == null) {
-            throw new WebApplicationException(500);
-        }
-
-        String name = qName.getLocalPart();
-        // responses should not have 'Type' on end of element name. ugly.
-        if (name.endsWith(TYPE_SUFFIX)) {
-            name = name.substring(0, name.length() - TYPE_SUFFIX.length());
-        }
-
-        String namespace = getNamespaceUriFromContext();
-        if (namespace == null) {
-            namespace = qName.getNamespaceURI();
-        }
+        final QName qName = getXmlType(aClass);
+        final String name = getElementName(qName);
+        final String namespace = getNamespace(qName);
 
         final OutputStreamWriter writer =
                 new OutputStreamWriter(outputStream);
@@ -116,6 +97,34 @@ public class AxisBodyWriter implements MessageBodyWriter<Object> {
         writer.close();
     }
 
+    protected static QName getXmlType(Class aClass)
+            throws WebApplicationException {
+
+        final TypeDesc typeDesc = StaxBeanWriter.getTypeDesc(aClass);
+        final QName qName = typeDesc == null ? null : typeDesc.getXmlType();
+        if (qName == null) {
+            throw new WebApplicationException(500);
+        }
+        return qName;
+    }
+
+    protected static String getElementName(QName qName) {
+        final String name = qName.getLocalPart();
+        // responses should not have 'Type' on end of element name. ugly.
+        if (name.endsWith(TYPE_SUFFIX)) {
+            return name.substring(0, name.length() - TYPE_SUFFIX.length());
+        }
+        return name;
+    }
+
+    protected String getNamespace(QName qName) {
+        final String namespace = getNamespaceUriFromContext();
+        if (namespace == null) {
+            return qName.getNamespaceURI();
+        }
+        return namespace;
+    }
+
     private String getNamespaceUriFromContext() {
         if (this.messageContext != null) {
 
@@ -134,23 +143,6 @@ public class AxisBodyWriter implements MessageBodyWriter<Object> {
         }
         return null;
     }
-
-    private static TypeDesc getTypeDescVerySlowly(Class aClass) {
-        try {
-
-            final Method method = aClass.getMethod(GET_TYPE_DESC);
-            return (TypeDesc) method.invoke(null);
-        } catch (IllegalAccessException e) {
-            return null;
-        } catch (NoSuchMethodException e) {
-            return null;
-        } catch (InvocationTargetException e) {
-            return null;
-        } catch (ClassCastException e) {
-            return null;
-        }
-    }
-
 }
 
 class CleanSerializationContext extends SerializationContext {
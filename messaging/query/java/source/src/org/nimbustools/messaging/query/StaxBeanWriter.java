@@ -0,0 +1,440 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.nimbustools.messaging.query;
+
+import org.apache.axis.description.ElementDesc;
+import org.apache.axis.description.FieldDesc;
+import org.apache.axis.description.TypeDesc;
+import org.apache.axis.encoding.AnyContentType;
+import org.apache.axis.encoding.MixedContentType;
+import org.apache.axis.encoding.SimpleType;
+import org.apache.axis.utils.BeanPropertyDescriptor;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Writes Axis generated beans as XML straight to a stream with StAX, the
+ * same elements in the same order that the Axis BeanSerializer writes
+ * through CleanSerializationContext (no xsi:type, nil elements left out,
+ * empty element namespaces replaced by the response namespace) but without
+ * building a MessageElement tree or pretty-printing.
+ *
+ * The TypeDesc of each class and how to write each of its fields are looked
+ * up once and cached.  Classes this can not write like Axis would (XML
+ * attributes, any/mixed content, field types it does not know) are reported
+ * by isWritable so the caller can fall back to Axis.
+ */
+public class StaxBeanWriter {
+
+    private static final String GET_TYPE_DESC = "getTypeDesc";
+
+    // same as AxisBodyWriter writes
+    private static final byte[] XML_DECLARATION;
+    static {
+        try {
+            XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                    .getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static final XMLOutputFactory outputFactory =
+            XMLOutputFactory.newInstance();
+
+    // class -> TypeDesc, or NO_TYPE_DESC
+    private static final Map<Class, Object> typeDescs =
+            new ConcurrentHashMap<Class, Object>();
+    private static final Object NO_TYPE_DESC = new Object();
+
+    // class -> BeanInfo, or UNSUPPORTED
+    private static final Map<Class, BeanInfo> beans =
+            new ConcurrentHashMap<Class, BeanInfo>();
+    private static final BeanInfo UNSUPPORTED = new BeanInfo(null);
+
+
+    /**
+     * Cached replacement for calling getTypeDesc reflectively every time.
+     *
+     * @param aClass class
+     * @return the class's TypeDesc or null if it has none
+     */
+    public static TypeDesc getTypeDesc(Class aClass) {
+        Object typeDesc = typeDescs.get(aClass);
+        if (typeDesc == null) {
+            typeDesc = lookupTypeDesc(aClass);
+            if (typeDesc == null) {
+                typeDesc = NO_TYPE_DESC;
+            }
+            typeDescs.put(aClass, typeDesc);
+        }
+        return typeDesc == NO_TYPE_DESC ? null : (TypeDesc) typeDesc;
+    }
+
+    private static TypeDesc lookupTypeDesc(Class aClass) {
+        try {
+            final Method method = aClass.getMethod(GET_TYPE_DESC);
+            return (TypeDesc) method.invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param aClass class
+     * @return true if instances (and everything they contain) can be written
+     */
+    public static boolean isWritable(Class aClass) {
+        return getBeanInfo(aClass) != UNSUPPORTED;
+    }
+
+    /**
+     * Writes the document: XML declaration, then the object as an element
+     * with the given name in the given (default) namespace.
+     *
+     * @param object bean, isWritable must be true for its class
+     * @param name element name
+     * @param namespace namespace
+     * @param out stream, flushed but not closed
+     * @throws IOException problem writing or with the object
+     */
+    public static void write(Object object, String name, String namespace,
+                             OutputStream out) throws IOException {
+
+        if (object == null) {
+            throw new IllegalArgumentException("object may not be null");
+        }
+        final BeanInfo info = getBeanInfo(object.getClass());
+        if (info == UNSUPPORTED) {
+            throw new IllegalArgumentException(object.getClass().getName() +
+                    " can not be written with StAX");
+        }
+
+        out.write(XML_DECLARATION);
+        try {
+            final XMLStreamWriter writer =
+                    outputFactory.createXMLStreamWriter(out, "UTF-8");
+            final Context context = new Context(writer);
+
+            writer.setDefaultNamespace(namespace);
+            writer.writeStartElement(namespace, name);
+            writer.writeDefaultNamespace(namespace);
+            writeFields(info, object, context);
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.flush();
+            writer.close();
+
+        } catch (XMLStreamException e) {
+            final IOException ioe = new IOException(e.getMessage());
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+
+
+    // -------------------------------------------------------------------------
+    // WRITE
+    // -------------------------------------------------------------------------
+
+    private static void writeFields(BeanInfo info, Object bean, Context context)
+            throws IOException, XMLStreamException {
+
+        for (Property property : info.properties) {
+            final Object value;
+            try {
+                value = property.descriptor.get(bean);
+            } catch (Exception e) {
+                final IOException ioe = new IOException("could not read '" +
+                        property.name + "' of " + bean.getClass().getName());
+                ioe.initCause(e);
+                throw ioe;
+            }
+
+            if (value == null) {
+                // CleanSerializationContext does not send nulls
+                continue;
+            }
+
+            if (property.repeated) {
+                final int length = Array.getLength(value);
+                for (int i = 0; i < length; i++) {
+                    final Object item = Array.get(value, i);
+                    if (item != null) {
+                        writeElement(property, item, context);
+                    }
+                }
+            } else {
+                writeElement(property, value, context);
+            }
+        }
+    }
+
+    private static void writeElement(Property property,
+                                     Object value,
+                                     Context context)
+            throws IOException, XMLStreamException {
+
+        final XMLStreamWriter writer = context.writer;
+        writer.writeStartElement(property.name);
+
+        if (property.kind == Kind.BEAN) {
+            BeanInfo info = property.bean;
+            if (value.getClass() != property.type) {
+                info = getBeanInfo(value.getClass());
+                if (info == UNSUPPORTED) {
+                    throw new IOException(value.getClass().getName() +
+                            " can not be written with StAX");
+                }
+            }
+            writeFields(info, value, context);
+        } else {
+            writer.writeCharacters(context.format(property.kind, value));
+        }
+
+        writer.writeEndElement();
+    }
+
+    private static class Context {
+
+        final XMLStreamWriter writer;
+        private SimpleDateFormat zulu;
+
+        Context(XMLStreamWriter writer) {
+            this.writer = writer;
+        }
+
+        String format(Kind kind, Object value) {
+            switch (kind) {
+                case STRING:
+                    return (String) value;
+                case DOUBLE:
+                    return formatDouble((Number) value);
+                case CALENDAR:
+                    return this.formatDate(((Calendar) value).getTime());
+                case DATE:
+                    return this.formatDate((Date) value);
+                default:
+                    return value.toString();
+            }
+        }
+
+        // CalendarSerializer
+        private String formatDate(Date date) {
+            if (this.zulu == null) {
+                this.zulu = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+                this.zulu.setTimeZone(TimeZone.getTimeZone("GMT"));
+            }
+            return this.zulu.format(date);
+        }
+
+        // SimpleSerializer
+        private static String formatDouble(Number number) {
+            final double d = number.doubleValue();
+            if (Double.isNaN(d)) {
+                return "NaN";
+            } else if (d == Double.POSITIVE_INFINITY) {
+                return "INF";
+            } else if (d == Double.NEGATIVE_INFINITY) {
+                return "-INF";
+            }
+            return number.toString();
+        }
+    }
+
+
+    // -------------------------------------------------------------------------
+    // TYPE METADATA
+    // -------------------------------------------------------------------------
+
+    private enum Kind { STRING, DOUBLE, CALENDAR, DATE, OTHER_SIMPLE, BEAN }
+
+    private static class Property {
+        String name;
+        BeanPropertyDescriptor descriptor;
+        Class type;
+        Kind kind;
+        BeanInfo bean;
+        boolean repeated;
+    }
+
+    private static class BeanInfo {
+        Property[] properties;
+
+        BeanInfo(Property[] properties) {
+            this.properties = properties;
+        }
+    }
+
+    private static BeanInfo getBeanInfo(Class aClass) {
+        BeanInfo info = beans.get(aClass);
+        if (info == null) {
+            synchronized (beans) {
+                info = beans.get(aClass);
+                if (info == null) {
+                    final Map<Class, BeanInfo> building =
+                            new HashMap<Class, BeanInfo>();
+                    info = buildBeanInfo(aClass, building);
+                    if (info == UNSUPPORTED) {
+                        // the others built on the way are looked at again
+                        // on their own when needed
+                        beans.put(aClass, UNSUPPORTED);
+                    } else {
+                        beans.putAll(building);
+                    }
+                }
+            }
+        }
+        return info;
+    }
+
+    /**
+     * Types nested in this one are built (into the same map) first.  A type
+     * that refers back to one still being built gets that one's unfinished
+     * BeanInfo, if that ends up unsupported so does the whole graph.
+     */
+    private static BeanInfo buildBeanInfo(Class aClass,
+                                          Map<Class, BeanInfo> building) {
+
+        BeanInfo info = beans.get(aClass);
+        if (info == null) {
+            info = building.get(aClass);
+        }
+        if (info != null) {
+            return info;
+        }
+
+        final TypeDesc typeDesc = getTypeDesc(aClass);
+        if (typeDesc == null
+                || typeDesc.hasAttributes()
+                || aClass.getSuperclass() != Object.class
+                || SimpleType.class.isAssignableFrom(aClass)
+                || AnyContentType.class.isAssignableFrom(aClass)
+                || MixedContentType.class.isAssignableFrom(aClass)) {
+            return UNSUPPORTED;
+        }
+
+        final Map descriptors = typeDesc.getPropertyDescriptorMap();
+        final FieldDesc[] fields = typeDesc.getFields();
+        final int numFields = fields == null ? 0 : fields.length;
+
+        // every bean property must be a described element or it would be
+        // written under a made up name
+        int numReadable = 0;
+        for (Object o : descriptors.values()) {
+            final BeanPropertyDescriptor descriptor = (BeanPropertyDescriptor) o;
+            if (descriptor.isReadable() && !"class".equals(descriptor.getName())) {
+                numReadable += 1;
+            }
+        }
+        if (numReadable != numFields) {
+            return UNSUPPORTED;
+        }
+
+        info = new BeanInfo(null);
+        building.put(aClass, info);
+
+        final Property[] properties = new Property[numFields];
+        for (int i = 0; i < numFields; i++) {
+            properties[i] = buildProperty(fields[i], descriptors, building);
+            if (properties[i] == null) {
+                return UNSUPPORTED;
+            }
+        }
+        info.properties = properties;
+        return info;
+    }
+
+    private static Property buildProperty(FieldDesc field,
+                                          Map descriptors,
+                                          Map<Class, BeanInfo> building) {
+
+        if (!field.isElement()) {
+            return null;
+        }
+        final ElementDesc element = (ElementDesc) field;
+
+        // there is no MessageContext, so the serialization is "encoded" and
+        // BeanSerializer only uses the local part of element names, which
+        // then end up in the response namespace
+        final BeanPropertyDescriptor descriptor =
+                (BeanPropertyDescriptor) descriptors.get(field.getFieldName());
+        if (descriptor == null || !descriptor.isReadable()) {
+            return null;
+        }
+
+        final Property property = new Property();
+        property.name = element.getXmlName().getLocalPart();
+        property.descriptor = descriptor;
+
+        // an array is written as one element per item, for an indexed
+        // property the descriptor's type already is the item type
+        Class type = descriptor.getType();
+        if (descriptor.isIndexed()) {
+            property.repeated = true;
+        } else if (type.isArray()) {
+            property.repeated = true;
+            type = type.getComponentType();
+        }
+        if (type.isArray()) {
+            return null;
+        }
+        property.type = type;
+
+        if (type == String.class) {
+            property.kind = Kind.STRING;
+        } else if (type == Double.class || type == double.class
+                || type == Float.class || type == float.class) {
+            property.kind = Kind.DOUBLE;
+        } else if (type == Calendar.class) {
+            property.kind = Kind.CALENDAR;
+        } else if (type == Date.class) {
+            property.kind = Kind.DATE;
+        } else if (type == Boolean.class || type == boolean.class
+                || type == Integer.class || type == int.class
+                || type == Long.class || type == long.class
+                || type == Short.class || type == short.class
+                || type == BigInteger.class || type == BigDecimal.class) {
+            property.kind = Kind.OTHER_SIMPLE;
+        } else if (!type.isPrimitive()) {
+            final BeanInfo nested = buildBeanInfo(type, building);
+            if (nested == UNSUPPORTED) {
+                return null;
+            }
+            property.kind = Kind.BEAN;
+            property.bean = nested;
+        } else {
+            return null;
+        }
+        return property;
+    }
+}
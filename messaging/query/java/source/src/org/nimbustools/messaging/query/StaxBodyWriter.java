@@ -0,0 +1,57 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.nimbustools.messaging.query;
+
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.Provider;
+import javax.xml.namespace.QName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+/**
+ * Writes responses the way AxisBodyWriter does but streams them with
+ * StaxBeanWriter instead of building and serializing a MessageElement.
+ * Large responses (DescribeInstances for thousands of instances) are not
+ * materialized a second time as an Axis tree and are not pretty-printed.
+ *
+ * Types StaxBeanWriter can not handle are still written by Axis.
+ */
+@Provider
+@Produces({"text/xml"})
+public class StaxBodyWriter extends AxisBodyWriter {
+
+    @Override
+    public void writeTo(Object o, Class aClass, Type type,
+                        Annotation[] annotations, MediaType mediaType,
+                        MultivaluedMap multivaluedMap,
+                        OutputStream outputStream)
+            throws IOException, WebApplicationException {
+
+        if (StaxBeanWriter.isWritable(aClass)) {
+            final QName qName = getXmlType(aClass);
+            StaxBeanWriter.write(o, getElementName(qName),
+                                 getNamespace(qName), outputStream);
+        } else {
+            super.writeTo(o, aClass, type, annotations, mediaType,
+                          multivaluedMap, outputStream);
+        }
+    }
+}
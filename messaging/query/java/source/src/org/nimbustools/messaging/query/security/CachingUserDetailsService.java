@@ -0,0 +1,335 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.nimbustools.messaging.query.security;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nimbustools.querygeneral.security.QueryUser;
+import org.nimbustools.querygeneral.security.QueryUserDetailsService;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.DataAccessException;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the users another QueryUserDetailsService found for a while so
+ * that clients polling the query interface do not cause an authz database
+ * lookup on every request.
+ *
+ * Entries expire after ttlSeconds and at most maxEntries users are kept
+ * for each lookup (the least recently used go first).  Failed lookups are
+ * not remembered, a new user is usable right away.  A changed or removed
+ * secret is noticed when its entry expires or is invalidated, the query
+ * authentication filter invalidates the entry when a signature check fails
+ * and the entry is older than minReloadSeconds.
+ */
+public class CachingUserDetailsService
+        implements QueryUserDetailsService, InitializingBean {
+
+    // -------------------------------------------------------------------------
+    // STATIC VARIABLES
+    // -------------------------------------------------------------------------
+
+    private static final Log logger =
+            LogFactory.getLog(CachingUserDetailsService.class.getName());
+
+    public static final int DEFAULT_TTL_SECONDS = 60;
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+    public static final int DEFAULT_MIN_RELOAD_SECONDS = 5;
+
+
+    // -------------------------------------------------------------------------
+    // INSTANCE VARIABLES
+    // -------------------------------------------------------------------------
+
+    private QueryUserDetailsService userDetailsService;
+    private int ttlSeconds = DEFAULT_TTL_SECONDS;
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+    private int minReloadSeconds = DEFAULT_MIN_RELOAD_SECONDS;
+
+    // keyed by access ID and by DN, both guarded by 'this'
+    private Map<String,CachedUser> byUsername;
+    private Map<String,CachedUser> byDn;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+
+    // -------------------------------------------------------------------------
+    // SET
+    // -------------------------------------------------------------------------
+
+    public QueryUserDetailsService getUserDetailsService() {
+        return this.userDetailsService;
+    }
+
+    public void setUserDetailsService(QueryUserDetailsService userDetailsService) {
+        this.userDetailsService = userDetailsService;
+    }
+
+    public int getTtlSeconds() {
+        return this.ttlSeconds;
+    }
+
+    public void setTtlSeconds(int ttlSeconds) {
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    public int getMaxEntries() {
+        return this.maxEntries;
+    }
+
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    public int getMinReloadSeconds() {
+        return this.minReloadSeconds;
+    }
+
+    public void setMinReloadSeconds(int minReloadSeconds) {
+        this.minReloadSeconds = minReloadSeconds;
+    }
+
+
+    // -------------------------------------------------------------------------
+    // IoC INIT METHOD
+    // -------------------------------------------------------------------------
+
+    public void afterPropertiesSet() throws Exception {
+        if (this.userDetailsService == null) {
+            throw new IllegalArgumentException("userDetailsService may not be null");
+        }
+        if (this.ttlSeconds < 0) {
+            throw new IllegalArgumentException("ttlSeconds may not be negative");
+        }
+        if (this.maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1");
+        }
+        if (this.minReloadSeconds < 0) {
+            throw new IllegalArgumentException(
+                    "minReloadSeconds may not be negative");
+        }
+
+        synchronized (this) {
+            this.byUsername = new LruMap(this.maxEntries);
+            this.byDn = new LruMap(this.maxEntries);
+        }
+
+        logger.debug("Caching query users for " + this.ttlSeconds +
+                " seconds, at most " + this.maxEntries + " users");
+    }
+
+
+    // -------------------------------------------------------------------------
+    // implements QueryUserDetailsService
+    // -------------------------------------------------------------------------
+
+    public QueryUser loadUserByUsername(String username)
+            throws UsernameNotFoundException, DataAccessException {
+
+        if (username == null) {
+            throw new IllegalArgumentException("username may not be null");
+        }
+
+        final QueryUser cached = this.get(this.byUsername, username);
+        if (cached != null) {
+            return cached;
+        }
+
+        final QueryUser user = this.userDetailsService.loadUserByUsername(username);
+        this.put(user);
+        return user;
+    }
+
+    public QueryUser loadUserByDn(String dn)
+            throws UsernameNotFoundException, DataAccessException {
+
+        if (dn == null) {
+            throw new IllegalArgumentException("dn may not be null");
+        }
+
+        final QueryUser cached = this.get(this.byDn, dn);
+        if (cached != null) {
+            return cached;
+        }
+
+        final QueryUser user = this.userDetailsService.loadUserByDn(dn);
+        this.put(user);
+        return user;
+    }
+
+
+    // -------------------------------------------------------------------------
+    // INVALIDATION
+    // -------------------------------------------------------------------------
+
+    /**
+     * Forget the user with this access ID, the next lookup (by access ID or
+     * by the user's DN) goes to the underlying service.
+     *
+     * @param username access ID, may not be null
+     */
+    public synchronized void invalidate(String username) {
+        if (username == null) {
+            throw new IllegalArgumentException("username may not be null");
+        }
+        final CachedUser entry = this.byUsername.remove(username);
+        if (entry != null) {
+            this.removeByDn(entry.user);
+        }
+
+        // loadUserByDn may have found a different access ID for the same DN
+        final Iterator<CachedUser> iter = this.byDn.values().iterator();
+        while (iter.hasNext()) {
+            if (username.equals(iter.next().user.getAccessID())) {
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Forget the user with this access ID only if it was loaded at least
+     * minReloadSeconds ago.  Used when a signature check fails, a client
+     * sending bad signatures causes at most one lookup per minReloadSeconds.
+     *
+     * @param username access ID, may not be null
+     * @return true if an entry was forgotten and the next lookup goes to
+     *         the underlying service, false if there was no entry or it is
+     *         too recent
+     */
+    public synchronized boolean invalidateStale(String username) {
+        if (username == null) {
+            throw new IllegalArgumentException("username may not be null");
+        }
+        final CachedUser entry = this.byUsername.get(username);
+        if (entry == null) {
+            return false; // *** EARLY RETURN ***
+        }
+        final long age = this.currentTimeMillis() - entry.loaded;
+        if (age < this.minReloadSeconds * 1000L) {
+            return false; // *** EARLY RETURN ***
+        }
+        this.invalidate(username);
+        return true;
+    }
+
+    public synchronized void invalidateAll() {
+        this.byUsername.clear();
+        this.byDn.clear();
+    }
+
+
+    // -------------------------------------------------------------------------
+    // METRICS
+    // -------------------------------------------------------------------------
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    /**
+     * @return fraction of lookups answered from the cache, 0 if there were none
+     */
+    public double getHitRate() {
+        final long h = this.hits.get();
+        final long total = h + this.misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public synchronized int getSize() {
+        return this.byUsername.size();
+    }
+
+
+    // -------------------------------------------------------------------------
+    // IMPL
+    // -------------------------------------------------------------------------
+
+    // overridden by tests
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private synchronized QueryUser get(Map<String,CachedUser> map, String key) {
+        final CachedUser entry = map.get(key);
+        if (entry != null) {
+            if (entry.expires > this.currentTimeMillis()) {
+                this.hits.incrementAndGet();
+                return entry.user;
+            }
+            map.remove(key);
+        }
+        this.misses.incrementAndGet();
+        return null;
+    }
+
+    private synchronized void put(QueryUser user) {
+        if (user == null) {
+            return;
+        }
+        final long now = this.currentTimeMillis();
+        final CachedUser entry =
+                new CachedUser(user, now, now + this.ttlSeconds * 1000L);
+
+        // an earlier entry may have a different DN for this access ID
+        final CachedUser old = this.byUsername.put(user.getAccessID(), entry);
+        if (old != null) {
+            this.removeByDn(old.user);
+        }
+        this.byDn.put(user.getDn(), entry);
+    }
+
+    private void removeByDn(QueryUser user) {
+        final CachedUser entry = this.byDn.get(user.getDn());
+        if (entry != null && entry.user == user) {
+            this.byDn.remove(user.getDn());
+        }
+    }
+
+    private static class CachedUser {
+        final QueryUser user;
+        final long loaded;
+        final long expires;
+
+        CachedUser(QueryUser user, long loaded, long expires) {
+            this.user = user;
+            this.loaded = loaded;
+            this.expires = expires;
+        }
+    }
+
+    private static class LruMap extends LinkedHashMap<String,CachedUser> {
+        private final int max;
+
+        LruMap(int max) {
+            super(16, 0.75f, true);
+            this.max = max;
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<String,CachedUser> eldest) {
+            return this.size() > this.max;
+        }
+    }
+}
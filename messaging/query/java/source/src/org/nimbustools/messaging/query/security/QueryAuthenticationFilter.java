@@ -43,8 +43,11 @@ import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.text.Collator;
 import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class QueryAuthenticationFilter extends GenericFilterBean {
 
@@ -62,6 +65,24 @@ public class QueryAuthenticationFilter extends GenericFilterBean {
     private static final String HMACSHA256 = "HmacSHA256";
     private static final String HMACSHA1 = "HmacSHA1";
 
+    // initialized Macs kept by each request thread, per algorithm and
+    // access ID.  An entry is only used for the secret it was made with
+    private static final int MACS_PER_THREAD = 16;
+
+    private final ThreadLocal<Map<String,CachedMac>> macs =
+            new ThreadLocal<Map<String,CachedMac>>() {
+                protected Map<String,CachedMac> initialValue() {
+                    return new LinkedHashMap<String,CachedMac>(16, 0.75f, true) {
+                        protected boolean removeEldestEntry(
+                                Map.Entry<String,CachedMac> eldest) {
+                            return this.size() > MACS_PER_THREAD;
+                        }
+                    };
+                }
+            };
+
+    private final AtomicLong macHits = new AtomicLong();
+    private final AtomicLong macMisses = new AtomicLong();
 
     private QueryUserDetailsService userDetailsService;
 
@@ -144,16 +165,7 @@ public class QueryAuthenticationFilter extends GenericFilterBean {
                     "Request must have timestamp or expiration, but not both");
         }
 
-        final QueryUser user;
-        try {
-        user = userDetailsService.loadUserByUsername(accessId);
-        } catch (UsernameNotFoundException e) {
-            throw new QueryException(QueryError.InvalidClientTokenId, e);
-        } catch (DataAccessException e) {
-            throw new QueryException(QueryError.InternalError,
-                    "Failed to retrieve user token for provided accessID", e);
-        }
-        final String secret = user.getSecret();
+        QueryUser user = loadUser(accessId);
 
         final String stringToSign;
         if (SIGNATURE_VERSION_2.equals(signatureVersion)) {
@@ -162,8 +174,22 @@ public class QueryAuthenticationFilter extends GenericFilterBean {
             stringToSign = getStringToSign_v1(request);
         }
 
-        final String checkSig = createSignature(stringToSign,
-                secret, signatureMethod);
+        String checkSig = createSignature(stringToSign, user, signatureMethod);
+
+        // a cached user may have an old secret, look again before failing.
+        // Only entries older than the cache's minimum reload age are looked
+        // up again, so bad signatures can not be used to hammer the database
+        if (!QueryUtils.safeStringEquals(signature, checkSig) &&
+                this.userDetailsService instanceof CachingUserDetailsService &&
+                ((CachingUserDetailsService) this.userDetailsService)
+                        .invalidateStale(accessId)) {
+
+            final QueryUser reloaded = loadUser(accessId);
+            if (!reloaded.getSecret().equals(user.getSecret())) {
+                user = reloaded;
+                checkSig = createSignature(stringToSign, user, signatureMethod);
+            }
+        }
 
         // Note that this comparison will succeed if both inputs are null.
         // (But checkSig can't be null in this implementation)
@@ -207,6 +233,17 @@ public class QueryAuthenticationFilter extends GenericFilterBean {
     }
 
 
+    private QueryUser loadUser(String accessId) {
+        try {
+            return this.userDetailsService.loadUserByUsername(accessId);
+        } catch (UsernameNotFoundException e) {
+            throw new QueryException(QueryError.InvalidClientTokenId, e);
+        } catch (DataAccessException e) {
+            throw new QueryException(QueryError.InternalError,
+                    "Failed to retrieve user token for provided accessID", e);
+        }
+    }
+
     private String getStringToSign_v1(HttpServletRequest request) {
 
         // Request must mapped to into a canonical string format. See:
@@ -297,17 +334,14 @@ public class QueryAuthenticationFilter extends GenericFilterBean {
         }
     }
 
-    private String createSignature(String s, String secretKey, String method) {
-
-        final SecretKeySpec spec = new SecretKeySpec(secretKey.getBytes(), method);
+    private String createSignature(String s, QueryUser user, String method) {
 
-        // these Macs may be expensive to create? perhaps need a caching scheme.
-        // careful though, thread safety of Mac#doFinal() is unclear..
+        // Mac is not thread safe, so each thread keeps its own initialized
+        // instances. doFinal() resets a Mac for its next use with the same key
 
         final byte[] bytes;
         try {
-            final Mac mac = Mac.getInstance(method);
-            mac.init(spec);
+            final Mac mac = getMac(user, method);
             bytes = mac.doFinal(s.getBytes("UTF-8"));
 
         } catch (NoSuchAlgorithmException e) {
@@ -326,6 +360,41 @@ public class QueryAuthenticationFilter extends GenericFilterBean {
         return new String(Base64.encodeBase64(bytes));
     }
 
+    private Mac getMac(QueryUser user, String method)
+            throws NoSuchAlgorithmException, InvalidKeyException {
+
+        // keyed by access ID so nothing is derived from the secret per
+        // request.  A cached user hands back the same secret instance, so
+        // the check against the entry's secret is usually a reference compare
+        final String key = method + ':' + user.getAccessID();
+        final String secretKey = user.getSecret();
+
+        final Map<String,CachedMac> threadMacs = this.macs.get();
+
+        final CachedMac cached = threadMacs.get(key);
+        if (cached != null && cached.secret.equals(secretKey)) {
+            this.macHits.incrementAndGet();
+            return cached.mac;
+        }
+        this.macMisses.incrementAndGet();
+
+        // new user, or the secret changed: replace the entry
+        final Mac mac = Mac.getInstance(method);
+        mac.init(new SecretKeySpec(secretKey.getBytes(), method));
+        threadMacs.put(key, new CachedMac(secretKey, mac));
+        return mac;
+    }
+
+    private static class CachedMac {
+        final String secret;
+        final Mac mac;
+
+        CachedMac(String secret, Mac mac) {
+            this.secret = secret;
+            this.mac = mac;
+        }
+    }
+
     private static String urlEncode(String s) {
         try {
 
@@ -374,6 +443,24 @@ public class QueryAuthenticationFilter extends GenericFilterBean {
         this.userDetailsService = userDetailsService;
     }
 
+    public long getMacCacheHits() {
+        return this.macHits.get();
+    }
+
+    public long getMacCacheMisses() {
+        return this.macMisses.get();
+    }
+
+    /**
+     * @return fraction of signatures computed with an already initialized
+     *         Mac, 0 if none were computed yet
+     */
+    public double getMacCacheHitRate() {
+        final long h = this.macHits.get();
+        final long total = h + this.macMisses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
     public String getAccessIdParameter() {
         return accessIdParameter;
     }
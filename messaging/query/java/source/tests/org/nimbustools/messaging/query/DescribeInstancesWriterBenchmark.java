@@ -0,0 +1,151 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.nimbustools.messaging.query;
+
+import org.nimbustools.messaging.gt4_0_elastic.generated.v2010_08_31.DescribeInstancesResponseType;
+import org.nimbustools.messaging.gt4_0_elastic.generated.v2010_08_31.GroupItemType;
+import org.nimbustools.messaging.gt4_0_elastic.generated.v2010_08_31.GroupSetType;
+import org.nimbustools.messaging.gt4_0_elastic.generated.v2010_08_31.InstanceStateType;
+import org.nimbustools.messaging.gt4_0_elastic.generated.v2010_08_31.PlacementResponseType;
+import org.nimbustools.messaging.gt4_0_elastic.generated.v2010_08_31.ReservationInfoType;
+import org.nimbustools.messaging.gt4_0_elastic.generated.v2010_08_31.ReservationSetType;
+import org.nimbustools.messaging.gt4_0_elastic.generated.v2010_08_31.RunningInstancesItemType;
+import org.nimbustools.messaging.gt4_0_elastic.generated.v2010_08_31.RunningInstancesSetType;
+
+import javax.ws.rs.ext.MessageBodyWriter;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.Calendar;
+
+/**
+ * Writes a DescribeInstances response for many instances (one reservation
+ * each, like a user who launched them one at a time) with AxisBodyWriter
+ * and with StaxBodyWriter, reporting time and memory allocated per response.
+ *
+ * Not a test, run by hand:
+ *   java org.nimbustools.messaging.query.DescribeInstancesWriterBenchmark [instances] [rounds]
+ */
+public class DescribeInstancesWriterBenchmark {
+
+    public static void main(String[] args) throws Exception {
+
+        final int instances = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        final DescribeInstancesResponseType response = makeResponse(instances);
+
+        System.out.println("DescribeInstances, " + instances + " instances, " +
+                           rounds + " rounds");
+
+        final MessageBodyWriter[] writers =
+                {new AxisBodyWriter(), new StaxBodyWriter()};
+        final String[] names = {"axis", "stax"};
+
+        for (int i = 0; i < writers.length; i++) {
+            // warm up
+            final CountingStream warmup = new CountingStream();
+            write(writers[i], response, warmup);
+            write(writers[i], response, warmup);
+
+            final long allocatedBefore = allocatedBytes();
+            final CountingStream out = new CountingStream();
+            final long start = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                write(writers[i], response, out);
+            }
+            final double ms = (System.nanoTime() - start) / 1000000.0 / rounds;
+            final long allocated = allocatedBytes() - allocatedBefore;
+
+            System.out.println(String.format(
+                    "  %-6s %10.1f ms/response %10d bytes %10s allocated/response",
+                    names[i], ms, out.count / rounds,
+                    allocatedBefore < 0 ? "n/a" :
+                            (allocated / rounds / 1048576) + " MB"));
+        }
+    }
+
+    // com.sun.management.ThreadMXBean, -1 if this JVM does not have it
+    private static long allocatedBytes() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        try {
+            final Method method =
+                    Class.forName("com.sun.management.ThreadMXBean")
+                            .getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(bean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static void write(MessageBodyWriter writer,
+                              DescribeInstancesResponseType response,
+                              OutputStream out) throws Exception {
+        writer.writeTo(response, DescribeInstancesResponseType.class,
+                       DescribeInstancesResponseType.class, null, null, null,
+                       out);
+    }
+
+    private static DescribeInstancesResponseType makeResponse(int instances) {
+
+        final ReservationInfoType[] reservations =
+                new ReservationInfoType[instances];
+        for (int i = 0; i < instances; i++) {
+
+            final RunningInstancesItemType instance = new RunningInstancesItemType();
+            instance.setInstanceId("i-" + Integer.toHexString(0x10000000 + i));
+            instance.setImageId("ami-" + (i % 50));
+            instance.setInstanceState(new InstanceStateType(16, "running"));
+            instance.setPrivateDnsName("vm-" + i + ".private.example.org");
+            instance.setDnsName("vm-" + i + ".example.org");
+            instance.setKeyName("default");
+            instance.setAmiLaunchIndex("0");
+            instance.setInstanceType("m1.small");
+            instance.setLaunchTime(Calendar.getInstance());
+            final PlacementResponseType placement = new PlacementResponseType();
+            placement.setAvailabilityZone("default");
+            instance.setPlacement(placement);
+            instance.setPrivateIpAddress("10.0." + (i / 250) + "." + (i % 250));
+            instance.setIpAddress("192.168." + (i / 250) + "." + (i % 250));
+
+            final ReservationInfoType reservation = new ReservationInfoType();
+            reservation.setReservationId("r-" + Integer.toHexString(0x20000000 + i));
+            reservation.setOwnerId("owner");
+            reservation.setGroupSet(new GroupSetType(
+                    new GroupItemType[]{new GroupItemType("default")}));
+            reservation.setInstancesSet(new RunningInstancesSetType(
+                    new RunningInstancesItemType[]{instance}));
+            reservations[i] = reservation;
+        }
+
+        return new DescribeInstancesResponseType("benchmark",
+                new ReservationSetType(reservations));
+    }
+
+    // AxisBodyWriter closes the stream it is given
+    private static class CountingStream extends OutputStream {
+        long count;
+
+        public void write(int b) {
+            this.count += 1;
+        }
+
+        public void write(byte[] b, int off, int len) {
+            this.count += len;
+        }
+    }
+}
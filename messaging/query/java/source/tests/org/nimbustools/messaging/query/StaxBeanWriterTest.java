@@ -0,0 +1,103 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.nimbustools.messaging.query;
+
+import org.nimbustools.messaging.gt4_0_elastic.generated.v2010_08_31.DescribeInstancesResponseType;
+import org.nimbustools.messaging.gt4_0_elastic.generated.v2010_08_31.GroupItemType;
+import org.nimbustools.messaging.gt4_0_elastic.generated.v2010_08_31.GroupSetType;
+import org.nimbustools.messaging.gt4_0_elastic.generated.v2010_08_31.InstanceStateType;
+import org.nimbustools.messaging.gt4_0_elastic.generated.v2010_08_31.ReservationInfoType;
+import org.nimbustools.messaging.gt4_0_elastic.generated.v2010_08_31.ReservationSetType;
+import org.nimbustools.messaging.gt4_0_elastic.generated.v2010_08_31.RunInstancesType;
+import org.nimbustools.messaging.gt4_0_elastic.generated.v2010_08_31.RunningInstancesItemType;
+import org.nimbustools.messaging.gt4_0_elastic.generated.v2010_08_31.RunningInstancesSetType;
+import org.nimbustools.messaging.gt4_0_elastic.generated.v2010_08_31.UserDataType;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import static org.testng.Assert.*;
+
+public class StaxBeanWriterTest {
+
+    private static final String NS = "http://ec2.amazonaws.com/doc/2009-08-15/";
+
+    @Test
+    public void testDescribeInstances() throws Exception {
+
+        final RunningInstancesItemType instance = new RunningInstancesItemType();
+        instance.setInstanceId("i-1");
+        instance.setImageId("ami-<1&");
+        instance.setInstanceState(new InstanceStateType(16, "running"));
+        instance.setAmiLaunchIndex("0");
+        final Calendar launch =
+                Calendar.getInstance(TimeZone.getTimeZone("America/Chicago"));
+        launch.setTimeInMillis(1280000000123L);
+        instance.setLaunchTime(launch);
+
+        final ReservationInfoType reservation = new ReservationInfoType();
+        reservation.setReservationId("r-1");
+        reservation.setOwnerId("me");
+        reservation.setGroupSet(new GroupSetType(
+                new GroupItemType[]{new GroupItemType("default")}));
+        reservation.setInstancesSet(new RunningInstancesSetType(
+                new RunningInstancesItemType[]{instance, null}));
+
+        final DescribeInstancesResponseType response =
+                new DescribeInstancesResponseType("req",
+                        new ReservationSetType(
+                                new ReservationInfoType[]{reservation}));
+
+        assertTrue(StaxBeanWriter.isWritable(DescribeInstancesResponseType.class));
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StaxBeanWriter.write(response, "DescribeInstancesResponse", NS, out);
+
+        // what AxisBodyWriter writes, without the pretty-printing
+        final String expected =
+                "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                "<DescribeInstancesResponse xmlns=\"" + NS + "\">" +
+                "<requestId>req</requestId>" +
+                "<reservationSet><item>" +
+                "<reservationId>r-1</reservationId>" +
+                "<ownerId>me</ownerId>" +
+                "<groupSet><item><groupId>default</groupId></item></groupSet>" +
+                "<instancesSet><item>" +
+                "<instanceId>i-1</instanceId>" +
+                "<imageId>ami-&lt;1&amp;</imageId>" +
+                "<instanceState><code>16</code><name>running</name></instanceState>" +
+                "<amiLaunchIndex>0</amiLaunchIndex>" +
+                "<launchTime>2010-07-24T19:33:20.123Z</launchTime>" +
+                "</item></instancesSet>" +
+                "</item></reservationSet>" +
+                "</DescribeInstancesResponse>";
+
+        assertEquals(out.toString("UTF-8"), expected);
+    }
+
+    @Test
+    public void testUnsupported() {
+        assertNull(StaxBeanWriter.getTypeDesc(String.class));
+        assertFalse(StaxBeanWriter.isWritable(String.class));
+
+        // mixed content
+        assertNotNull(StaxBeanWriter.getTypeDesc(UserDataType.class));
+        assertFalse(StaxBeanWriter.isWritable(UserDataType.class));
+        assertFalse(StaxBeanWriter.isWritable(RunInstancesType.class));
+    }
+}
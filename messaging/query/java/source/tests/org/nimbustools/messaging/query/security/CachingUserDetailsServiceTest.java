@@ -0,0 +1,175 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.nimbustools.messaging.query.security;
+
+import org.nimbustools.querygeneral.security.QueryUser;
+import org.nimbustools.querygeneral.security.QueryUserDetailsService;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import org.testng.annotations.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.testng.Assert.*;
+
+public class CachingUserDetailsServiceTest {
+
+    @Test
+    public void testCaching() throws Exception {
+
+        final FakeUsers users = new FakeUsers();
+        users.add(new QueryUser("id1", "secret1", "/CN=one"));
+        final FakeClockCache cache = newCache(users, 60, 10);
+
+        assertEquals(cache.loadUserByUsername("id1").getSecret(), "secret1");
+        assertEquals(cache.loadUserByUsername("id1").getSecret(), "secret1");
+        assertEquals(cache.loadUserByDn("/CN=one").getAccessID(), "id1");
+        assertEquals(users.lookups, 1);
+        assertEquals(cache.getHits(), 2);
+        assertEquals(cache.getMisses(), 1);
+        assertEquals(cache.getHitRate(), 2.0 / 3, 0.0001);
+
+        // a changed secret is seen once the entry expires
+        users.add(new QueryUser("id1", "secret2", "/CN=one"));
+        cache.now += 59999;
+        assertEquals(cache.loadUserByUsername("id1").getSecret(), "secret1");
+        cache.now += 1;
+        assertEquals(cache.loadUserByUsername("id1").getSecret(), "secret2");
+        assertEquals(users.lookups, 2);
+
+        // or once it is invalidated, for both kinds of lookup
+        users.add(new QueryUser("id1", "secret3", "/CN=one"));
+        cache.invalidate("id1");
+        assertEquals(cache.loadUserByDn("/CN=one").getSecret(), "secret3");
+        assertEquals(users.lookups, 3);
+
+        // found by DN, remembered by access ID too
+        assertEquals(cache.loadUserByUsername("id1").getSecret(), "secret3");
+        assertEquals(users.lookups, 3);
+    }
+
+    @Test
+    public void testMissesAndBound() throws Exception {
+
+        final FakeUsers users = new FakeUsers();
+        final FakeClockCache cache = newCache(users, 60, 2);
+
+        // unknown users are not remembered
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.loadUserByUsername("id1");
+                fail("expected UsernameNotFoundException");
+            } catch (UsernameNotFoundException e) {
+                // expected
+            }
+        }
+        assertEquals(users.lookups, 2);
+
+        users.add(new QueryUser("id1", "secret1", "/CN=one"));
+        users.add(new QueryUser("id2", "secret2", "/CN=two"));
+        users.add(new QueryUser("id3", "secret3", "/CN=three"));
+        assertNotNull(cache.loadUserByUsername("id1"));
+        assertNotNull(cache.loadUserByUsername("id2"));
+        assertNotNull(cache.loadUserByUsername("id1"));
+        assertNotNull(cache.loadUserByUsername("id3"));
+        assertEquals(cache.getSize(), 2);
+        assertEquals(users.lookups, 5);
+
+        // id2 was the least recently used
+        assertNotNull(cache.loadUserByUsername("id1"));
+        assertNotNull(cache.loadUserByUsername("id3"));
+        assertEquals(users.lookups, 5);
+        assertNotNull(cache.loadUserByUsername("id2"));
+        assertEquals(users.lookups, 6);
+
+        cache.invalidateAll();
+        assertEquals(cache.getSize(), 0);
+    }
+
+    @Test
+    public void testInvalidateStale() throws Exception {
+
+        final FakeUsers users = new FakeUsers();
+        users.add(new QueryUser("id1", "secret1", "/CN=one"));
+        final FakeClockCache cache = newCache(users, 60, 10);
+        assertEquals(cache.getMinReloadSeconds(), 5);
+
+        // nothing cached, nothing to forget
+        assertFalse(cache.invalidateStale("id1"));
+
+        assertNotNull(cache.loadUserByUsername("id1"));
+        cache.now += 4999;
+        assertFalse(cache.invalidateStale("id1"));
+        assertNotNull(cache.loadUserByDn("/CN=one"));
+        assertEquals(users.lookups, 1);
+
+        cache.now += 1;
+        assertTrue(cache.invalidateStale("id1"));
+        assertEquals(cache.getSize(), 0);
+        assertNotNull(cache.loadUserByDn("/CN=one"));
+        assertEquals(users.lookups, 2);
+
+        // the reloaded entry starts its minimum age again
+        assertFalse(cache.invalidateStale("id1"));
+    }
+
+    private static FakeClockCache newCache(QueryUserDetailsService users,
+                                           int ttlSeconds,
+                                           int maxEntries) throws Exception {
+        final FakeClockCache cache = new FakeClockCache();
+        cache.setUserDetailsService(users);
+        cache.setTtlSeconds(ttlSeconds);
+        cache.setMaxEntries(maxEntries);
+        cache.afterPropertiesSet();
+        return cache;
+    }
+
+    private static class FakeClockCache extends CachingUserDetailsService {
+        long now = 1000000;
+
+        protected long currentTimeMillis() {
+            return this.now;
+        }
+    }
+
+    private static class FakeUsers implements QueryUserDetailsService {
+        final Map<String,QueryUser> users = new HashMap<String,QueryUser>();
+        int lookups;
+
+        void add(QueryUser user) {
+            this.users.put(user.getAccessID(), user);
+        }
+
+        public QueryUser loadUserByUsername(String username) {
+            this.lookups++;
+            final QueryUser user = this.users.get(username);
+            if (user == null) {
+                throw new UsernameNotFoundException(username);
+            }
+            return user;
+        }
+
+        public QueryUser loadUserByDn(String dn) {
+            this.lookups++;
+            for (QueryUser user : this.users.values()) {
+                if (user.getDn().equals(dn)) {
+                    return user;
+                }
+            }
+            throw new UsernameNotFoundException(dn);
+        }
+    }
+}
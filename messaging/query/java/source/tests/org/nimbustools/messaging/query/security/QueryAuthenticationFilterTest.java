@@ -0,0 +1,215 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.nimbustools.messaging.query.security;
+
+import org.apache.commons.codec.binary.Base64;
+import org.nimbustools.messaging.query.QueryError;
+import org.nimbustools.messaging.query.QueryException;
+import org.nimbustools.querygeneral.security.QueryUser;
+import org.nimbustools.querygeneral.security.QueryUserDetailsService;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.testng.Assert.*;
+
+public class QueryAuthenticationFilterTest {
+
+    private static final String TIMESTAMP = "2100-01-01T00:00:00Z";
+
+    @AfterMethod
+    public void clearContext() {
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    public void testMacReuse() throws Exception {
+
+        final FakeUsers users = new FakeUsers();
+        users.add(new QueryUser("id1", "secret1", "/CN=one"));
+        users.add(new QueryUser("id2", "secret2", "/CN=two"));
+
+        final QueryAuthenticationFilter filter = new QueryAuthenticationFilter();
+        filter.setUserDetailsService(users);
+
+        assertTrue(authenticate(filter, "id1", "secret1", "HmacSHA1"));
+        assertEquals(filter.getMacCacheMisses(), 1);
+        assertEquals(filter.getMacCacheHits(), 0);
+        assertEquals(filter.getMacCacheHitRate(), 0.0, 0.0001);
+
+        // same secret and method, the initialized Mac is used again
+        assertTrue(authenticate(filter, "id1", "secret1", "HmacSHA1"));
+        assertTrue(authenticate(filter, "id1", "secret1", "HmacSHA1"));
+        assertEquals(filter.getMacCacheMisses(), 1);
+        assertEquals(filter.getMacCacheHits(), 2);
+
+        // another method or another secret needs its own
+        assertTrue(authenticate(filter, "id1", "secret1", "HmacSHA256"));
+        assertTrue(authenticate(filter, "id2", "secret2", "HmacSHA1"));
+        assertEquals(filter.getMacCacheMisses(), 3);
+        assertEquals(filter.getMacCacheHits(), 2);
+
+        // a reused Mac was reset by its last use
+        assertTrue(authenticate(filter, "id2", "secret2", "HmacSHA1"));
+        assertTrue(authenticate(filter, "id1", "secret1", "HmacSHA256"));
+        assertEquals(filter.getMacCacheMisses(), 3);
+        assertEquals(filter.getMacCacheHits(), 4);
+        assertEquals(filter.getMacCacheHitRate(), 4.0 / 7, 0.0001);
+
+        // signed with the wrong secret, checked with the cached Mac
+        try {
+            authenticate(filter, "id1", "secret2", "HmacSHA1");
+            fail("expected QueryException");
+        } catch (QueryException e) {
+            assertEquals(e.getError(), QueryError.SignatureDoesNotMatch);
+        }
+        assertEquals(filter.getMacCacheMisses(), 3);
+        assertEquals(filter.getMacCacheHits(), 5);
+    }
+
+    @Test
+    public void testChangedSecret() throws Exception {
+
+        final FakeUsers users = new FakeUsers();
+        users.add(new QueryUser("id1", "secret1", "/CN=one"));
+
+        final FakeClockCache cache = new FakeClockCache();
+        cache.setUserDetailsService(users);
+        cache.setTtlSeconds(60);
+        cache.setMinReloadSeconds(5);
+        cache.afterPropertiesSet();
+
+        final QueryAuthenticationFilter filter = new QueryAuthenticationFilter();
+        filter.setUserDetailsService(cache);
+
+        assertTrue(authenticate(filter, "id1", "secret1", "HmacSHA1"));
+        assertEquals(users.lookups, 1);
+
+        // the new secret is not looked up while the entry is recent
+        users.add(new QueryUser("id1", "secret2", "/CN=one"));
+        assertMismatch(filter, "id1", "secret2");
+        assertEquals(users.lookups, 1);
+        assertEquals(filter.getMacCacheMisses(), 1);
+
+        // after the minimum age a failed check reloads the user, and the
+        // access ID's Mac is replaced for the new secret
+        cache.now += 5000;
+        assertTrue(authenticate(filter, "id1", "secret2", "HmacSHA1"));
+        assertEquals(users.lookups, 2);
+        assertEquals(filter.getMacCacheMisses(), 2);
+
+        assertTrue(authenticate(filter, "id1", "secret2", "HmacSHA1"));
+        assertEquals(filter.getMacCacheMisses(), 2);
+
+        // the old secret fails without another lookup
+        assertMismatch(filter, "id1", "secret1");
+        assertEquals(users.lookups, 2);
+    }
+
+
+    // -------------------------------------------------------------------------
+    // HELPERS
+    // -------------------------------------------------------------------------
+
+    private static void assertMismatch(QueryAuthenticationFilter filter,
+                                       String accessId,
+                                       String secret) throws Exception {
+        try {
+            authenticate(filter, accessId, secret, "HmacSHA1");
+            fail("expected QueryException");
+        } catch (QueryException e) {
+            assertEquals(e.getError(), QueryError.SignatureDoesNotMatch);
+        }
+    }
+
+    /**
+     * Runs a version 1 signed request through the filter
+     * @return true if the request was passed along the chain
+     */
+    private static boolean authenticate(QueryAuthenticationFilter filter,
+                                        String accessId,
+                                        String secret,
+                                        String method) throws Exception {
+
+        final MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addParameter("Action", "DescribeInstances");
+        request.addParameter("AWSAccessKeyId", accessId);
+        request.addParameter("SignatureMethod", method);
+        request.addParameter("SignatureVersion", "1");
+        request.addParameter("Timestamp", TIMESTAMP);
+
+        // version 1 string to sign: names and values, case insensitive order
+        final String stringToSign = "ActionDescribeInstances" +
+                "AWSAccessKeyId" + accessId +
+                "SignatureMethod" + method +
+                "SignatureVersion1" +
+                "Timestamp" + TIMESTAMP;
+
+        final Mac mac = Mac.getInstance(method);
+        mac.init(new SecretKeySpec(secret.getBytes(), method));
+        final byte[] sig = mac.doFinal(stringToSign.getBytes("UTF-8"));
+        request.addParameter("Signature", new String(Base64.encodeBase64(sig)));
+
+        final boolean[] passed = new boolean[1];
+        filter.doFilter(request, null, new FilterChain() {
+            public void doFilter(ServletRequest request,
+                                 ServletResponse response) {
+                passed[0] = true;
+            }
+        });
+        return passed[0];
+    }
+
+    private static class FakeClockCache extends CachingUserDetailsService {
+        long now = 1000000;
+
+        protected long currentTimeMillis() {
+            return this.now;
+        }
+    }
+
+    private static class FakeUsers implements QueryUserDetailsService {
+        final Map<String,QueryUser> users = new HashMap<String,QueryUser>();
+        int lookups;
+
+        void add(QueryUser user) {
+            this.users.put(user.getAccessID(), user);
+        }
+
+        public QueryUser loadUserByUsername(String username) {
+            this.lookups++;
+            final QueryUser user = this.users.get(username);
+            if (user == null) {
+                throw new UsernameNotFoundException(username);
+            }
+            return user;
+        }
+
+        public QueryUser loadUserByDn(String dn) {
+            throw new UsernameNotFoundException(dn);
+        }
+    }
+}
@@ -16,6 +16,8 @@
 
 package org.nimbustools.metadataserver.defaults;
 
+import org.nimbustools.api.services.rm.DestructionCallback;
+import org.nimbustools.api.services.rm.DoesNotExistException;
 import org.nimbustools.api.services.rm.Manager;
 import org.nimbustools.api.services.metadata.MetadataServer;
 import org.nimbustools.api.services.metadata.MetadataServerException;
@@ -31,6 +33,11 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URI;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheManager;
@@ -66,6 +73,10 @@ public class DefaultMetadataServer implements MetadataServer {
 
     protected final Cache cache;
 
+    // seconds an entry handed over by instancesCreated stays cached, 0 means
+    // the cache configuration default (these are evicted on termination)
+    protected int createdTimeToLive = 3600;
+
     protected Properties properties;
     
     private final UUIDGenerator uuidGen;
@@ -73,6 +84,14 @@ public class DefaultMetadataServer implements MetadataServer {
     private Map<String, URL> networkContacts;
     private URL defaultContact;
 
+    // IP -> lookup in progress, concurrent misses for one IP share a lookup
+    private final ConcurrentMap<String, FutureTask<VM>> lookups =
+            new ConcurrentHashMap<String, FutureTask<VM>>();
+
+    // IDs of the instances with a destruction listener that evicts them
+    private final ConcurrentMap<String, Boolean> evictionRegistered =
+            new ConcurrentHashMap<String, Boolean>();
+
 
     // -------------------------------------------------------------------------
     // CONSTRUCTOR
@@ -117,6 +136,10 @@ public class DefaultMetadataServer implements MetadataServer {
         this.manager = manager;
     }
 
+    public void setCreatedTimeToLive(int seconds) {
+        this.createdTimeToLive = seconds;
+    }
+
     public void setLocalNets(String localNetsStr) {
         if (localNetsStr == null || localNetsStr.trim().length() == 0) {
             this.localNets = null;
@@ -488,30 +511,165 @@ public class DefaultMetadataServer implements MetadataServer {
     /**
      * The usual pattern for access is a burst of request at each VM's boot.
      *
-     * In the future this lookup should lock on IP address and not whole
-     * metadata server instance.
+     * Hits do not lock anything.  On a miss, the first caller for an IP does
+     * the lookup and any concurrent callers for the same IP wait for its
+     * result instead of querying the manager again.
      *
      * @param ip remote client's IP
      * @return VM instance, never null
      * @throws MetadataServerException problem
      * @throws MetadataServerUnauthorizedException could not associate VM
      */
-    public synchronized VM getCachedAndValidatedVM(String ip)
+    public VM getCachedAndValidatedVM(final String ip)
             throws MetadataServerException,
                    MetadataServerUnauthorizedException {
 
         final Element el = this.cache.get(ip);
-        final VM vm;
-        if (el == null) {
-            vm = this.getVM(ip);
-            this.validateVM(vm, ip);
-            this.cache.put(new Element(ip, vm));
-        } else {
-            vm = (VM) el.getObjectValue();
+        if (el != null) {
+            return (VM) el.getObjectValue();
+        }
+
+        final FutureTask<VM> lookup = new FutureTask<VM>(new Callable<VM>() {
+            public VM call() throws Exception {
+                return lookupAndCache(ip);
+            }
+        });
+
+        FutureTask<VM> inProgress = this.lookups.putIfAbsent(ip, lookup);
+        if (inProgress == null) {
+            inProgress = lookup;
+            try {
+                lookup.run();
+            } finally {
+                this.lookups.remove(ip, lookup);
+            }
+        }
+
+        try {
+            return inProgress.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            final String err = "Interrupted waiting on lookup of IP '" +
+                    ip + "'";
+            throw new MetadataServerException(err, err, e);
+        } catch (ExecutionException e) {
+            final Throwable t = e.getCause();
+            if (t instanceof MetadataServerUnauthorizedException) {
+                throw (MetadataServerUnauthorizedException) t;
+            } else if (t instanceof MetadataServerException) {
+                throw (MetadataServerException) t;
+            } else if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            } else if (t instanceof Error) {
+                throw (Error) t;
+            }
+            throw new MetadataServerException(t.getMessage(), t);
+        }
+    }
+
+    private VM lookupAndCache(String ip)
+            throws MetadataServerException,
+                   MetadataServerUnauthorizedException {
+
+        // may have been cached since the miss
+        final Element el = this.cache.get(ip);
+        if (el != null) {
+            return (VM) el.getObjectValue();
         }
+
+        final VM vm = this.getVM(ip);
+        this.validateVM(vm, ip);
+        this.cache.put(new Element(ip, vm));
+        this.registerEviction(vm);
         return vm;
     }
 
+    public void instancesCreated(VM[] vms) {
+
+        if (!this.enabled || vms == null) {
+            return; // *** EARLY RETURN ***
+        }
+
+        for (VM vm : vms) {
+            if (vm == null || vm.getNics() == null) {
+                continue;
+            }
+            for (NIC nic : vm.getNics()) {
+                if (nic == null || nic.getIpAddress() == null) {
+                    continue;
+                }
+                final String ip = nic.getIpAddress();
+                try {
+                    this.validateVM(vm, ip);
+                } catch (MetadataServerException e) {
+                    logger.debug("not caching new instance: " + e.getMessage());
+                    break;
+                }
+                final Element el = new Element(ip, vm);
+                if (this.createdTimeToLive > 0) {
+                    el.setTimeToLive(this.createdTimeToLive);
+                }
+                this.cache.put(el);
+            }
+            this.registerEviction(vm);
+        }
+    }
+
+    /*
+     * Evicts the instance's IPs from the cache when it is destroyed, entries
+     * would otherwise be served until they expire.  Registered once per
+     * instance.
+     */
+    private void registerEviction(final VM vm) {
+
+        final String id = vm.getID();
+        if (this.manager == null || id == null) {
+            return; // *** EARLY RETURN ***
+        }
+
+        if (this.evictionRegistered.putIfAbsent(id, Boolean.TRUE) != null) {
+            return; // *** EARLY RETURN ***
+        }
+
+        try {
+            this.manager.registerDestructionListener(id, Manager.INSTANCE,
+                    new DestructionCallback() {
+                        public void destroyed() {
+                            evict(vm);
+                        }
+                    });
+        } catch (DoesNotExistException e) {
+            this.evict(vm);
+        } catch (Throwable t) {
+            this.evictionRegistered.remove(id);
+            logger.warn("Could not register for destruction of instance '" +
+                    id + "', its metadata will be cached until it " +
+                    "expires: " + t.getMessage());
+        }
+    }
+
+    private void evict(VM vm) {
+
+        final String id = vm.getID();
+        this.evictionRegistered.remove(id);
+
+        final NIC[] nics = vm.getNics();
+        if (nics == null) {
+            return; // *** EARLY RETURN ***
+        }
+
+        for (NIC nic : nics) {
+            if (nic == null || nic.getIpAddress() == null) {
+                continue;
+            }
+            // the address may already belong to a new instance
+            final Element el = this.cache.getQuiet(nic.getIpAddress());
+            if (el != null && id.equals(((VM) el.getObjectValue()).getID())) {
+                this.cache.removeElement(el);
+            }
+        }
+    }
+
     /**
      * @param ipAddress remote client's IP
      * @return VM instance, never null
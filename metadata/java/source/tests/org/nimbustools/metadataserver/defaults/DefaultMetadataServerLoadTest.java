@@ -0,0 +1,405 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.nimbustools.metadataserver.defaults;
+
+import net.sf.ehcache.CacheManager;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nimbustools.api.defaults.repr.vm.DefaultNIC;
+import org.nimbustools.api.defaults.repr.vm.DefaultVM;
+import org.nimbustools.api.defaults.repr.vm.DefaultVMFile;
+import org.nimbustools.api.repr.Advertised;
+import org.nimbustools.api.repr.AsyncCreateRequest;
+import org.nimbustools.api.repr.Caller;
+import org.nimbustools.api.repr.CreateRequest;
+import org.nimbustools.api.repr.CreateResult;
+import org.nimbustools.api.repr.RequestInfo;
+import org.nimbustools.api.repr.ShutdownTasks;
+import org.nimbustools.api.repr.SpotCreateRequest;
+import org.nimbustools.api.repr.SpotPriceEntry;
+import org.nimbustools.api.repr.SpotRequestInfo;
+import org.nimbustools.api.repr.Usage;
+import org.nimbustools.api.repr.vm.NIC;
+import org.nimbustools.api.repr.vm.VM;
+import org.nimbustools.api.repr.vm.VMFile;
+import org.nimbustools.api.services.metadata.MetadataServerUnauthorizedException;
+import org.nimbustools.api.services.rm.DestructionCallback;
+import org.nimbustools.api.services.rm.Manager;
+import org.nimbustools.api.services.rm.StateChangeCallback;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.nimbustools.metadataserver.defaults.DefaultMetadataServer.CONTACT_SOCKET_PREFIX;
+import static org.testng.Assert.*;
+
+/**
+ * 1,000 booting VMs each asking for their metadata at the same time.
+ */
+public class DefaultMetadataServerLoadTest {
+
+    private static final Log logger =
+            LogFactory.getLog(DefaultMetadataServerLoadTest.class.getName());
+
+    private static final int NUM_VMS = 1000;
+    private static final int REQUESTS_PER_VM = 10;
+    private static final int THREADS = 100;
+
+    private DefaultMetadataServer server;
+    private FakeManager fakeManager;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        final CacheManager cacheManager =
+            CacheManager.create(getClass().getResource("default-ehcache.xml"));
+        cacheManager.getCache("metadataServerCache").removeAll();
+
+        this.fakeManager = new FakeManager();
+        this.server = new DefaultMetadataServer(cacheManager);
+        this.server.setCustomizationPath("/some/fake/path");
+        this.server.setEnabled(true);
+        this.server.setManager(this.fakeManager);
+
+        final Properties props = new Properties();
+        props.setProperty(CONTACT_SOCKET_PREFIX, "127.0.0.1:5558");
+        this.server.setProperties(props);
+        this.server.initServerAndListen();
+    }
+
+    @AfterMethod
+    public void teardown() throws Exception {
+        this.server.stop();
+    }
+
+    @Test
+    public void testConcurrentMisses() throws Exception {
+
+        final List<String> ips = new ArrayList<String>(NUM_VMS);
+        for (int i = 0; i < NUM_VMS; i++) {
+            final VM vm = getVM(i);
+            this.fakeManager.vms.put(vm.getNics()[0].getIpAddress(), vm);
+            ips.add(vm.getNics()[0].getIpAddress());
+        }
+
+        final long start = System.currentTimeMillis();
+        this.hammer(ips);
+        final long elapsed = System.currentTimeMillis() - start;
+
+        // every IP is looked up once no matter how many requests raced
+        for (String ip : ips) {
+            assertEquals(this.fakeManager.lookupCount(ip), 1, ip);
+        }
+        assertEquals(this.fakeManager.listeners.size(), NUM_VMS);
+
+        logger.debug(NUM_VMS * REQUESTS_PER_VM + " metadata requests " +
+                "from " + NUM_VMS + " VMs in " + elapsed + "ms");
+    }
+
+    @Test
+    public void testCreatedAndDestroyed() throws Exception {
+
+        final VM[] vms = new VM[NUM_VMS];
+        final List<String> ips = new ArrayList<String>(NUM_VMS);
+        for (int i = 0; i < NUM_VMS; i++) {
+            vms[i] = getVM(i);
+            ips.add(vms[i].getNics()[0].getIpAddress());
+        }
+
+        // the manager knows nothing, every answer comes from the push
+        this.server.instancesCreated(vms);
+        this.hammer(ips);
+        assertEquals(this.fakeManager.totalLookups(), 0);
+
+        final String ip = ips.get(7);
+        this.fakeManager.listeners.get(vms[7].getID()).destroyed();
+        try {
+            this.server.getResponse("/latest/meta-data/ami-id", ip);
+            fail("destroyed instance was still served");
+        } catch (MetadataServerUnauthorizedException e) {
+            // expected, the manager does not know the IP
+        }
+        assertEquals(this.fakeManager.lookupCount(ip), 1);
+    }
+
+    private void hammer(List<String> ips) throws Exception {
+
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        final CountDownLatch go = new CountDownLatch(1);
+        final List<Future<String>> results = new ArrayList<Future<String>>();
+        try {
+            for (int r = 0; r < REQUESTS_PER_VM; r++) {
+                for (final String ip : ips) {
+                    results.add(executor.submit(new Callable<String>() {
+                        public String call() throws Exception {
+                            go.await();
+                            return server.getResponse("/latest/meta-data/ami-id", ip);
+                        }
+                    }));
+                }
+            }
+            go.countDown();
+
+            int i = 0;
+            for (Future<String> result : results) {
+                final String ip = ips.get(i % ips.size());
+                assertEquals(result.get(), "image-" + ip);
+                i++;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static VM getVM(int i) {
+        final String ip = "10." + (i / 65536) + "." + (i / 256 % 256) + "." + (i % 256);
+
+        final DefaultNIC nic = new DefaultNIC();
+        nic.setNetworkName("public");
+        nic.setIpAddress(ip);
+
+        final DefaultVMFile file = new DefaultVMFile();
+        file.setRootFile(true);
+        file.setURI(URI.create("file:///images/image-" + ip));
+
+        final DefaultVM vm = new DefaultVM();
+        vm.setID(Integer.toString(i));
+        vm.setNics(new NIC[]{nic});
+        vm.setVMFiles(new VMFile[]{file});
+        return vm;
+    }
+
+    /**
+     * Knows the VMs it was given, looks them up slowly and counts lookups.
+     * Nothing else is used by the metadata server.
+     */
+    private static class FakeManager implements Manager {
+
+        final Map<String, VM> vms = new ConcurrentHashMap<String, VM>();
+        final Map<String, DestructionCallback> listeners =
+                new ConcurrentHashMap<String, DestructionCallback>();
+        final Map<String, AtomicInteger> lookups =
+                new ConcurrentHashMap<String, AtomicInteger>();
+
+        int lookupCount(String ip) {
+            final AtomicInteger count = this.lookups.get(ip);
+            return count == null ? 0 : count.get();
+        }
+
+        int totalLookups() {
+            int total = 0;
+            for (AtomicInteger count : this.lookups.values()) {
+                total += count.get();
+            }
+            return total;
+        }
+
+        public VM[] getAllByIPAddress(String ip) {
+            synchronized (this.lookups) {
+                if (!this.lookups.containsKey(ip)) {
+                    this.lookups.put(ip, new AtomicInteger());
+                }
+            }
+            this.lookups.get(ip).incrementAndGet();
+
+            // a slow lookup gives concurrent requests a chance to pile up
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            final VM vm = this.vms.get(ip);
+            return vm == null ? new VM[0] : new VM[]{vm};
+        }
+
+        public void registerDestructionListener(String id,
+                                                int type,
+                                                DestructionCallback listener) {
+            this.listeners.put(id, listener);
+        }
+
+        // ---- not used by the metadata server ----
+
+        public String report() {
+            return null;
+        }
+
+        public void recover_initialize() {
+        }
+
+        public void shutdownImmediately() {
+        }
+
+        public CreateResult create(CreateRequest req, Caller caller) {
+            return null;
+        }
+
+        public void setDestructionTime(String id, int type, Calendar time) {
+        }
+
+        public void trash(String id, int type, Caller caller) {
+        }
+
+        public void start(String id, int type, Caller caller) {
+        }
+
+        public void shutdown(String id, int type,
+                             ShutdownTasks tasks, Caller caller) {
+        }
+
+        public void shutdownSave(String id, int type,
+                                 ShutdownTasks tasks, Caller caller) {
+        }
+
+        public void cleanup(String id, int type, Caller caller) {
+        }
+
+        public void pause(String id, int type,
+                          ShutdownTasks tasks, Caller caller) {
+        }
+
+        public void serialize(String id, int type,
+                              ShutdownTasks tasks, Caller caller) {
+        }
+
+        public void reboot(String id, int type,
+                           ShutdownTasks tasks, Caller caller) {
+        }
+
+        public void coscheduleDone(String id, Caller caller) {
+        }
+
+        public boolean exists(String id, int type) {
+            return false;
+        }
+
+        public Advertised getAdvertised() {
+            return null;
+        }
+
+        public Calendar getDestructionTime(String id, int type) {
+            return null;
+        }
+
+        public Caller[] getAuthorizedManagers(String id, int type) {
+            return null;
+        }
+
+        public VM getInstance(String id) {
+            return null;
+        }
+
+        public VM[] getAll(String id, int type) {
+            return null;
+        }
+
+        public VM[] getAllByCaller(Caller caller) {
+            return null;
+        }
+
+        public VM[] getGlobalAll() {
+            return null;
+        }
+
+        public Usage getCallerUsage(Caller caller) {
+            return null;
+        }
+
+        public void registerStateChangeListener(String id,
+                                                int type,
+                                                StateChangeCallback listener) {
+        }
+
+        public String getVMMReport() {
+            return null;
+        }
+
+        public String[] getResourcePools() {
+            return null;
+        }
+
+        public SpotRequestInfo requestSpotInstances(SpotCreateRequest req,
+                                                    Caller caller) {
+            return null;
+        }
+
+        public SpotRequestInfo getSpotRequest(String requestID, Caller caller) {
+            return null;
+        }
+
+        public SpotRequestInfo[] getSpotRequests(String[] ids, Caller caller) {
+            return null;
+        }
+
+        public SpotRequestInfo[] getSpotRequestsByCaller(Caller caller) {
+            return null;
+        }
+
+        public SpotRequestInfo[] cancelSpotInstanceRequests(String[] ids,
+                                                            Caller caller) {
+            return null;
+        }
+
+        public Double getSpotPrice() {
+            return null;
+        }
+
+        public SpotPriceEntry[] getSpotPriceHistory() {
+            return null;
+        }
+
+        public SpotPriceEntry[] getSpotPriceHistory(Calendar startDate,
+                                                    Calendar endDate) {
+            return null;
+        }
+
+        public RequestInfo addBackfillRequest(AsyncCreateRequest req,
+                                              Caller caller) {
+            return null;
+        }
+
+        public RequestInfo getBackfillRequest(String requestID, Caller caller) {
+            return null;
+        }
+
+        public RequestInfo[] getBackfillRequests(String[] ids, Caller caller) {
+            return null;
+        }
+
+        public RequestInfo[] getBackfillRequestsByCaller(Caller caller) {
+            return null;
+        }
+
+        public RequestInfo[] cancelBackfillRequests(String[] ids,
+                                                    Caller caller) {
+            return null;
+        }
+    }
+}
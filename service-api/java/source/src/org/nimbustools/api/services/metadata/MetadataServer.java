@@ -17,6 +17,7 @@
 package org.nimbustools.api.services.metadata;
 
 import org.nimbustools.api.repr.vm.NIC;
+import org.nimbustools.api.repr.vm.VM;
 
 public interface MetadataServer {
 
@@ -30,4 +31,13 @@ public interface MetadataServer {
     public String getContactURL(NIC[] nics);
     
     public boolean isEnabled();
+
+    /**
+     * Lets the service hand over instances as soon as they are created so
+     * that the first requests from a booting guest do not need a lookup.
+     * Implementations may ignore this.
+     *
+     * @param vms newly created instances, may be null
+     */
+    public void instancesCreated(VM[] vms);
 }
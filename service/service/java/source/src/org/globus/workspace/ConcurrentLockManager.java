@@ -0,0 +1,313 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace;
+
+import edu.emory.mathcs.backport.java.util.concurrent.TimeUnit;
+import edu.emory.mathcs.backport.java.util.concurrent.locks.Lock;
+import edu.emory.mathcs.backport.java.util.concurrent.locks.ReentrantLock;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LockManager without a global monitor.  Locks live in a concurrent map
+ * and are only weakly held by it: a lock stays mapped to its key for as
+ * long as anyone holds a reference to it and is reclaimed after that, so
+ * callers do not need to remember removeLock.
+ *
+ * Every key keeps its own lock (keys are not folded onto shared locks,
+ * callers such as StateTransition take two keyed locks at once and sharing
+ * could deadlock).  Contention is counted per stripe, a stripe being a
+ * fixed slice of the key hash space.
+ */
+public class ConcurrentLockManager implements LockManager {
+
+    // -------------------------------------------------------------------------
+    // STATIC VARIABLES
+    // -------------------------------------------------------------------------
+
+    public static final int DEFAULT_STRIPES = 16;
+
+
+    // -------------------------------------------------------------------------
+    // INSTANCE VARIABLES
+    // -------------------------------------------------------------------------
+
+    private final ConcurrentMap<String, LockRef> locks;
+    private final ReferenceQueue<TrackedLock> reclaimed =
+            new ReferenceQueue<TrackedLock>();
+    private final StripeStats[] stripes;
+
+
+    // -------------------------------------------------------------------------
+    // CONSTRUCTORS
+    // -------------------------------------------------------------------------
+
+    public ConcurrentLockManager() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param numStripes how many slices contention is counted over, rounded
+     *        up to a power of two
+     */
+    public ConcurrentLockManager(int numStripes) {
+        if (numStripes < 1) {
+            throw new IllegalArgumentException("numStripes must be at least one");
+        }
+        int size = 1;
+        while (size < numStripes) {
+            size <<= 1;
+        }
+        this.stripes = new StripeStats[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new StripeStats();
+        }
+        this.locks = new ConcurrentHashMap<String, LockRef>(512, 0.75f, size);
+    }
+
+
+    // -------------------------------------------------------------------------
+    // implements LockManager
+    // -------------------------------------------------------------------------
+
+    public Lock getLock(int key) {
+        return this.getLock(String.valueOf(key));
+    }
+
+    public Lock getLock(String key) {
+        if (key == null) {
+            throw new IllegalArgumentException("key may not be null");
+        }
+
+        this.expunge();
+
+        while (true) {
+            final LockRef ref = this.locks.get(key);
+            if (ref != null) {
+                final TrackedLock lock = ref.get();
+                if (lock != null) {
+                    return lock;
+                }
+            }
+
+            final TrackedLock newLock = new TrackedLock(this.stripeFor(key));
+            final LockRef newRef = new LockRef(key, newLock, this.reclaimed);
+            if (ref == null) {
+                if (this.locks.putIfAbsent(key, newRef) == null) {
+                    return newLock;
+                }
+            } else if (this.locks.replace(key, ref, newRef)) {
+                return newLock;
+            }
+            // lost a race with another thread for this key, use theirs
+        }
+    }
+
+    public void removeLock(int key) {
+        this.removeLock(String.valueOf(key));
+    }
+
+    /**
+     * Not needed, unused locks are reclaimed.  A lock that is held or waited
+     * on is left in place so that no one gets a second lock for the key.
+     *
+     * @param key key
+     */
+    public void removeLock(String key) {
+        if (key == null) {
+            return;
+        }
+        final LockRef ref = this.locks.get(key);
+        if (ref == null) {
+            return;
+        }
+        final TrackedLock lock = ref.get();
+        if (lock == null || !(lock.isLocked() || lock.hasQueuedThreads())) {
+            this.locks.remove(key, ref);
+        }
+    }
+
+
+    // -------------------------------------------------------------------------
+    // STATISTICS
+    // -------------------------------------------------------------------------
+
+    /**
+     * @return number of keys mapped, including ones not yet reclaimed
+     */
+    public int getLockCount() {
+        this.expunge();
+        return this.locks.size();
+    }
+
+    public int getNumStripes() {
+        return this.stripes.length;
+    }
+
+    /**
+     * @param stripe index from zero to getNumStripes() - 1
+     * @return the stripe's counters, live
+     */
+    public StripeStats getStripeStats(int stripe) {
+        return this.stripes[stripe];
+    }
+
+    public String getStatsReport() {
+        final StringBuilder sb = new StringBuilder(1024);
+        sb.append("Locks: ").append(this.getLockCount()).append("\n");
+        for (int i = 0; i < this.stripes.length; i++) {
+            sb.append("stripe ").append(i).append(": ")
+              .append(this.stripes[i]).append("\n");
+        }
+        return sb.toString();
+    }
+
+    public static class StripeStats {
+
+        private final AtomicLong acquisitions = new AtomicLong();
+        private final AtomicLong contended = new AtomicLong();
+        private final AtomicLong waitNanos = new AtomicLong();
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+
+        void acquired(boolean wasContended, long nanos) {
+            this.acquisitions.incrementAndGet();
+            if (wasContended) {
+                this.contended.incrementAndGet();
+                this.waitNanos.addAndGet(nanos);
+                long max = this.maxWaitNanos.get();
+                while (nanos > max && !this.maxWaitNanos.compareAndSet(max, nanos)) {
+                    max = this.maxWaitNanos.get();
+                }
+            }
+        }
+
+        public long getAcquisitions() {
+            return this.acquisitions.get();
+        }
+
+        /**
+         * @return acquisitions that found the lock held by another thread
+         */
+        public long getContended() {
+            return this.contended.get();
+        }
+
+        public long getWaitMillis() {
+            return this.waitNanos.get() / 1000000L;
+        }
+
+        public long getMaxWaitMillis() {
+            return this.maxWaitNanos.get() / 1000000L;
+        }
+
+        public String toString() {
+            return "acquisitions=" + this.getAcquisitions() +
+                   ", contended=" + this.getContended() +
+                   ", waitMillis=" + this.getWaitMillis() +
+                   ", maxWaitMillis=" + this.getMaxWaitMillis();
+        }
+    }
+
+
+    // -------------------------------------------------------------------------
+    // IMPL
+    // -------------------------------------------------------------------------
+
+    private StripeStats stripeFor(String key) {
+        int h = key.hashCode();
+        // spread the low bits, sequential IDs hash to sequential values
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return this.stripes[h & (this.stripes.length - 1)];
+    }
+
+    private void expunge() {
+        LockRef ref;
+        while ((ref = (LockRef) this.reclaimed.poll()) != null) {
+            this.locks.remove(ref.key, ref);
+        }
+    }
+
+    private static class LockRef extends WeakReference<TrackedLock> {
+
+        final String key;
+
+        LockRef(String key, TrackedLock lock, ReferenceQueue<TrackedLock> queue) {
+            super(lock, queue);
+            this.key = key;
+        }
+    }
+
+    private static class TrackedLock extends ReentrantLock {
+
+        private final StripeStats stats;
+
+        TrackedLock(StripeStats stats) {
+            super(true);
+            this.stats = stats;
+        }
+
+        private boolean heldElsewhere() {
+            return this.isLocked() && !this.isHeldByCurrentThread();
+        }
+
+        public void lock() {
+            if (!this.heldElsewhere()) {
+                super.lock();
+                this.stats.acquired(false, 0);
+                return; // *** EARLY RETURN ***
+            }
+            final long start = System.nanoTime();
+            super.lock();
+            this.stats.acquired(true, System.nanoTime() - start);
+        }
+
+        public void lockInterruptibly() throws InterruptedException {
+            if (!this.heldElsewhere()) {
+                super.lockInterruptibly();
+                this.stats.acquired(false, 0);
+                return; // *** EARLY RETURN ***
+            }
+            final long start = System.nanoTime();
+            super.lockInterruptibly();
+            this.stats.acquired(true, System.nanoTime() - start);
+        }
+
+        public boolean tryLock(long timeout, TimeUnit unit)
+                throws InterruptedException {
+            final boolean wasContended = this.heldElsewhere();
+            final long start = System.nanoTime();
+            final boolean acquired = super.tryLock(timeout, unit);
+            if (acquired) {
+                this.stats.acquired(wasContended, System.nanoTime() - start);
+            }
+            return acquired;
+        }
+
+        public boolean tryLock() {
+            final boolean acquired = super.tryLock();
+            if (acquired) {
+                this.stats.acquired(false, 0);
+            }
+            return acquired;
+        }
+    }
+}
@@ -227,12 +227,6 @@ public class WorkspaceUtil {
                 throw new WorkspaceException("Interrupted: ", exp);
             }
 
-            if (eventLog && event) {
-                logger.info(Lager.ev(trackingID) + "Return code is " + returnCode);
-            } else if (traceLog && event) {
-                logger.trace("Return code is " + returnCode);
-            }
-
             try {
                 stdout = (String) stdoutConsumer.get(60L, TimeUnit.SECONDS);
             } catch (Exception e) {
@@ -245,38 +239,9 @@ public class WorkspaceUtil {
                 logger.error(e.getMessage());
             }
 
-            if (returnCode != 0) {
-                if (stderr != null && stdout != null) {
-
-                    logger.error(Lager.ev(trackingID) + "system command FAILURE" +
-                                    "\nSTDOUT:\n" + stdout +
-                                    "\n\nSTDERR:\n" + stderr);
-
-                    throw new ReturnException(returnCode, stderr, stdout);
-
-                } else if (stderr != null) {
-
-                    logger.error(Lager.ev(trackingID) + "system command FAILURE" +
-                                    "\nSTDERR:\n" + stderr);
-                    throw new ReturnException(returnCode, stderr);
-
-                } else {
+            stdout = handleReturn(returnCode, stdout, stderr, event,
+                                  eventLog, traceLog, trackingID);
 
-                    logger.error(Lager.ev(trackingID) +
-                                "system command FAILURE, no stdout or stderr");
-                    throw new ReturnException(returnCode);
-                }
-
-            } else {
-                if (stdout != null) {
-                    if (eventLog && event) {
-                        logger.info(Lager.ev(trackingID) + "\n" +
-                                    "STDOUT:\n" + stdout);
-                    } else if (traceLog && event) {
-                        logger.trace("\nSTDOUT:\n" + stdout);
-                    }
-                }
-            }
         } catch (IOException ioe) {
             logger.error(ioe);
             throw new WorkspaceException("", ioe);
@@ -298,6 +263,89 @@ public class WorkspaceUtil {
         return stdout;
     }
 
+    /**
+     * Logs how a command ended the way runCommand does, for command
+     * transports that do not fork.
+     *
+     * @param returnCode exit code
+     * @param stdout stdout, may be null
+     * @param stderr stderr, may be null
+     * @param event passing in false disables the event log
+     * @param eventLog log events to info?
+     * @param traceLog alternatively, log events to trace?
+     * @param trackingID optional for event logging, an id > 0?
+     * @return stdout (may be null)
+     * @throws ReturnException if exit code != 0, will contain return code
+     *         as well as stdout and stderr if they exist.
+     */
+    public static String handleReturn(int returnCode,
+                                      String stdout,
+                                      String stderr,
+                                      boolean event,
+                                      boolean eventLog,
+                                      boolean traceLog,
+                                      int trackingID)
+            throws ReturnException {
+
+        if (eventLog && event) {
+            logger.info(Lager.ev(trackingID) + "Return code is " + returnCode);
+        } else if (traceLog && event) {
+            logger.trace("Return code is " + returnCode);
+        }
+
+        if (returnCode != 0) {
+            if (stderr != null && stdout != null) {
+
+                logger.error(Lager.ev(trackingID) + "system command FAILURE" +
+                                "\nSTDOUT:\n" + stdout +
+                                "\n\nSTDERR:\n" + stderr);
+
+                throw new ReturnException(returnCode, stderr, stdout);
+
+            } else if (stderr != null) {
+
+                logger.error(Lager.ev(trackingID) + "system command FAILURE" +
+                                "\nSTDERR:\n" + stderr);
+                throw new ReturnException(returnCode, stderr);
+
+            } else {
+
+                logger.error(Lager.ev(trackingID) +
+                            "system command FAILURE, no stdout or stderr");
+                throw new ReturnException(returnCode);
+            }
+
+        } else {
+            if (stdout != null) {
+                if (eventLog && event) {
+                    logger.info(Lager.ev(trackingID) + "\n" +
+                                "STDOUT:\n" + stdout);
+                } else if (traceLog && event) {
+                    logger.trace("\nSTDOUT:\n" + stdout);
+                }
+            }
+        }
+        return stdout;
+    }
+
+    /**
+     * @param is stream to read to the end, not closed
+     * @return the lines read joined with newlines, null if there was nothing
+     * @throws IOException problem reading
+     */
+    public static String readLines(InputStream is) throws IOException {
+        final BufferedReader br = new BufferedReader(new InputStreamReader(is));
+        String line = br.readLine();
+        if (line == null) {
+            return null;
+        }
+        final StringBuffer output = new StringBuffer(line);
+        while ((line = br.readLine()) != null) {
+            output.append("\n").append(line);
+        }
+        return output.length() == 0 ? null : output.toString();
+    }
+
     public static String printCmd(String[] exe) {
         if (exe == null) {
             return "null";
@@ -28,6 +28,20 @@ public interface AccountingEventAdapter extends AccountingAdapter {
                        int memory,
                        double chargeRatio);
 
+    /**
+     * Same as calling create() for every id, with one database transaction
+     * for all of them.  The arrays are indexed like ids.
+     */
+    public void createAll(int[] ids,
+                          String ownerDN,
+                          long minutesRequested,
+                          String[] networks,
+                          String[] resources,
+                          String[] clientLaunchNames,
+                          int CPUCount,
+                          int memory,
+                          double chargeRatio);
+
     public void destroy(int id,
                         String ownerDN,
                         long minutesElapsed,
@@ -0,0 +1,185 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace.accounting.impls.dbdefault;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * package-private class, one create or destroy waiting to be written to the
+ * deployments table and the accounting files, see AccountingEventWriter
+ */
+class AccountingEvent {
+
+    static final byte CREATE = 1;
+    static final byte END = 2;
+
+    // not journaled, the writer counts down the latch once everything
+    // queued before it is written
+    static final byte FLUSH = 3;
+
+    final byte type;
+
+    // assigned when journaled
+    long seq;
+
+    // CREATE: set by the caller; END: set by the writer from the DB
+    String uuid;
+
+    final int id;
+    final String ownerDN;
+    final long time;
+    final long charge;
+    final double chargeRatio;
+
+    // CREATE only
+    long minutesRequested;
+    int CPUCount;
+    int memory;
+    String moreToLog;
+
+    // END only, before charge granularity and ratio
+    long minutesElapsed;
+
+    // not journaled, failed writes so far
+    int attempts;
+
+    final CountDownLatch flushed;
+
+    private AccountingEvent(byte type,
+                            int id,
+                            String ownerDN,
+                            long time,
+                            long charge,
+                            double chargeRatio,
+                            CountDownLatch flushed) {
+        this.type = type;
+        this.id = id;
+        this.ownerDN = ownerDN;
+        this.time = time;
+        this.charge = charge;
+        this.chargeRatio = chargeRatio;
+        this.flushed = flushed;
+    }
+
+    static AccountingEvent create(String uuid,
+                                  int id,
+                                  String ownerDN,
+                                  long time,
+                                  long minutesRequested,
+                                  long charge,
+                                  double chargeRatio,
+                                  int CPUCount,
+                                  int memory,
+                                  String moreToLog) {
+        final AccountingEvent ev = new AccountingEvent(
+                CREATE, id, ownerDN, time, charge, chargeRatio, null);
+        ev.uuid = uuid;
+        ev.minutesRequested = minutesRequested;
+        ev.CPUCount = CPUCount;
+        ev.memory = memory;
+        ev.moreToLog = moreToLog;
+        return ev;
+    }
+
+    static AccountingEvent end(int id,
+                               String ownerDN,
+                               long time,
+                               long minutesElapsed,
+                               long charge,
+                               double chargeRatio) {
+        final AccountingEvent ev = new AccountingEvent(
+                END, id, ownerDN, time, charge, chargeRatio, null);
+        ev.minutesElapsed = minutesElapsed;
+        return ev;
+    }
+
+    static AccountingEvent flush() {
+        return new AccountingEvent(FLUSH, -1, null, 0, 0, 0,
+                                   new CountDownLatch(1));
+    }
+
+    Calendar getCalendar() {
+        final Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(this.time);
+        return cal;
+    }
+
+
+    // -------------------------------------------------------------------------
+    // JOURNAL FORMAT
+    // -------------------------------------------------------------------------
+
+    void write(DataOutput out) throws IOException {
+        out.writeByte(this.type);
+        out.writeLong(this.seq);
+        out.writeInt(this.id);
+        out.writeUTF(this.ownerDN);
+        out.writeLong(this.time);
+        out.writeLong(this.charge);
+        out.writeDouble(this.chargeRatio);
+        if (this.type == CREATE) {
+            out.writeUTF(this.uuid);
+            out.writeLong(this.minutesRequested);
+            out.writeInt(this.CPUCount);
+            out.writeInt(this.memory);
+            out.writeBoolean(this.moreToLog != null);
+            if (this.moreToLog != null) {
+                out.writeUTF(this.moreToLog);
+            }
+        } else {
+            out.writeLong(this.minutesElapsed);
+        }
+    }
+
+    /**
+     * @param type type byte, already read
+     * @param in rest of the record
+     * @return event
+     * @throws IOException problem or record cut short
+     */
+    static AccountingEvent read(byte type, DataInput in) throws IOException {
+        if (type != CREATE && type != END) {
+            throw new IOException("unknown accounting event type " + type);
+        }
+        final long seq = in.readLong();
+        final int id = in.readInt();
+        final String ownerDN = in.readUTF();
+        final long time = in.readLong();
+        final long charge = in.readLong();
+        final double chargeRatio = in.readDouble();
+
+        final AccountingEvent ev =
+                new AccountingEvent(type, id, ownerDN, time, charge, chargeRatio, null);
+        ev.seq = seq;
+        if (type == CREATE) {
+            ev.uuid = in.readUTF();
+            ev.minutesRequested = in.readLong();
+            ev.CPUCount = in.readInt();
+            ev.memory = in.readInt();
+            if (in.readBoolean()) {
+                ev.moreToLog = in.readUTF();
+            }
+        } else {
+            ev.minutesElapsed = in.readLong();
+        }
+        return ev;
+    }
+}
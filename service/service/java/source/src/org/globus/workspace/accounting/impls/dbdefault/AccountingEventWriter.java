@@ -0,0 +1,555 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace.accounting.impls.dbdefault;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.globus.workspace.Lager;
+import org.globus.workspace.WorkspaceException;
+import org.globus.workspace.persistence.WorkspaceDatabaseException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * package-private class, takes accounting events off the create/destroy
+ * path and writes them to the deployments table and accounting files from
+ * one background thread.
+ *
+ * Events are journaled (if there is a journal) and put on a queue.  The
+ * writer thread wakes when flushBatchSize events are waiting or the flush
+ * interval passes and writes what is there in batches, in arrival order.
+ * When the queue is at capacity, submitters wait for the writer.  shutdown
+ * writes everything still queued before returning.
+ *
+ * An event the database refuses is kept and tried again before anything
+ * newer on each pass, up to MAX_ATTEMPTS times.  The journal is only
+ * checkpointed up to the oldest event not written yet, so events that are
+ * still failing at shutdown (or that were given up on) are replayed at the
+ * next startup.
+ */
+class AccountingEventWriter implements Runnable {
+
+    // -------------------------------------------------------------------------
+    // STATIC VARIABLES
+    // -------------------------------------------------------------------------
+
+    private static final Log logger =
+        LogFactory.getLog(AccountingEventWriter.class.getName());
+
+    static final int MAX_ATTEMPTS = 5;
+
+
+    // -------------------------------------------------------------------------
+    // INSTANCE VARIABLES
+    // -------------------------------------------------------------------------
+
+    private final DBAccountingPersistence db;
+    private final DelayedAccountingFileLogger fileLog;
+    private final AccountingJournal journal;
+    private final Lager lager;
+
+    private final long flushIntervalNanos;
+    private final int flushBatchSize;
+    private final int queueCapacity;
+
+    private final ConcurrentLinkedQueue<AccountingEvent> queue =
+            new ConcurrentLinkedQueue<AccountingEvent>();
+
+    // events on the queue, FLUSH markers are not counted
+    private final AtomicInteger queued = new AtomicInteger();
+
+    // keeps journal order and queue order the same
+    private final Object appendLock = new Object();
+
+    private volatile boolean stopping;
+    private volatile Thread thread;
+
+    // events the DB refused, oldest first, retried before anything newer
+    // (guarded by 'this')
+    private final List<AccountingEvent> failed =
+            new ArrayList<AccountingEvent>();
+
+    // oldest event given up on in this run, it stays in the journal
+    private long oldestAbandoned;
+
+    // highest sequence number handled and highest checkpointed so far
+    private long handled;
+    private long checkpointed;
+
+
+    // -------------------------------------------------------------------------
+    // CONSTRUCTOR
+    // -------------------------------------------------------------------------
+
+    /**
+     * @param db persistence
+     * @param fileLog file logging, may be null
+     * @param journal opened journal, may be null
+     * @param lager log flags
+     * @param flushIntervalMillis longest an event waits to be written
+     * @param flushBatchSize most events per DB batch, also wakes the writer
+     * @param queueCapacity events waiting before submitters block
+     */
+    AccountingEventWriter(DBAccountingPersistence db,
+                          DelayedAccountingFileLogger fileLog,
+                          AccountingJournal journal,
+                          Lager lager,
+                          long flushIntervalMillis,
+                          int flushBatchSize,
+                          int queueCapacity) {
+
+        if (db == null) {
+            throw new IllegalArgumentException("db may not be null");
+        }
+        if (lager == null) {
+            throw new IllegalArgumentException("lager may not be null");
+        }
+        if (flushIntervalMillis < 1) {
+            throw new IllegalArgumentException("flushIntervalMillis must be positive");
+        }
+        if (flushBatchSize < 1) {
+            throw new IllegalArgumentException("flushBatchSize must be positive");
+        }
+        if (queueCapacity < flushBatchSize) {
+            throw new IllegalArgumentException(
+                    "queueCapacity may not be less than flushBatchSize");
+        }
+        this.db = db;
+        this.fileLog = fileLog;
+        this.journal = journal;
+        this.lager = lager;
+        this.flushIntervalNanos =
+                TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        this.flushBatchSize = flushBatchSize;
+        this.queueCapacity = queueCapacity;
+    }
+
+
+    // -------------------------------------------------------------------------
+    // LIFECYCLE
+    // -------------------------------------------------------------------------
+
+    synchronized void start() {
+        if (this.thread != null) {
+            throw new IllegalStateException("already started");
+        }
+        this.thread = new Thread(this, "accounting-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Writes journaled events that were never written, before start().
+     * Creates already in the table and destroys of deployments that are not
+     * active anymore were written before the journal was checkpointed and
+     * are skipped.  Events that fail again are retried by the writer thread.
+     *
+     * @param events events from AccountingJournal.open()
+     */
+    void replay(List<AccountingEvent> events) {
+
+        long lastSeq = 0;
+        int replayed = 0;
+        for (AccountingEvent ev : events) {
+            lastSeq = Math.max(lastSeq, ev.seq);
+            try {
+                if (ev.type == AccountingEvent.CREATE) {
+                    if (this.db.deploymentExists(ev.uuid)) {
+                        continue;
+                    }
+                } else if (!this.db.activeDeploymentExists(ev.id)) {
+                    continue;
+                }
+            } catch (WorkspaceDatabaseException e) {
+                logger.error("could not check accounting event for " +
+                        Lager.id(ev.id) + ", replaying it: " + e.getMessage());
+            }
+            if (ev.type == AccountingEvent.CREATE) {
+                this.db.reserve(ev.ownerDN, ev.charge);
+            }
+            this.write(Collections.singletonList(ev));
+            replayed += 1;
+        }
+
+        this.checkpoint(lastSeq);
+        logger.info("Replayed " + replayed + " of " + events.size() +
+                    " journaled accounting events" + this.failedSuffix());
+    }
+
+    /**
+     * Writes everything queued, then stops the writer thread.  Events
+     * submitted afterwards are written in the caller's thread.
+     */
+    void shutdown() {
+        synchronized (this.appendLock) {
+            this.stopping = true;
+        }
+
+        final Thread t;
+        synchronized (this) {
+            t = this.thread;
+        }
+        if (t != null) {
+            LockSupport.unpark(t);
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // in case the thread never ran or died
+        this.drain();
+
+        final int left = this.getFailed();
+        if (left > 0) {
+            logger.error(left + " accounting event(s) could not be written " +
+                    (this.journal == null ? "and are lost" :
+                     "and are left in the journal for the next startup"));
+        }
+    }
+
+
+    // -------------------------------------------------------------------------
+    // SUBMIT
+    // -------------------------------------------------------------------------
+
+    /**
+     * @param events CREATE and END events, in order
+     */
+    void submit(List<AccountingEvent> events) {
+
+        if (events == null || events.isEmpty()) {
+            return;
+        }
+
+        while (this.queued.get() >= this.queueCapacity && !this.stopping) {
+            if (this.lager.accounting) {
+                logger.trace("accounting queue full, waiting for the writer");
+            }
+            this.flush();
+        }
+
+        synchronized (this.appendLock) {
+            if (!this.stopping) {
+                this.journal(events);
+                this.queue.addAll(events);
+                if (this.queued.addAndGet(events.size()) >= this.flushBatchSize) {
+                    this.wake();
+                }
+                return; // *** EARLY RETURN ***
+            }
+        }
+
+        // stopped: nothing left to hand off to
+        this.write(events);
+    }
+
+    /**
+     * Waits until everything submitted before this call is written.
+     */
+    void flush() {
+        final AccountingEvent marker = AccountingEvent.flush();
+        synchronized (this.appendLock) {
+            if (this.stopping) {
+                return;
+            }
+            this.queue.add(marker);
+            this.wake();
+        }
+        try {
+            marker.flushed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    int getQueued() {
+        return this.queued.get();
+    }
+
+    /**
+     * @return events waiting to be tried again
+     */
+    synchronized int getFailed() {
+        return this.failed.size();
+    }
+
+    private void journal(List<AccountingEvent> events) {
+        if (this.journal == null) {
+            return;
+        }
+        try {
+            this.journal.append(events);
+        } catch (IOException e) {
+            logger.error("Could not journal " + events.size() +
+                    " accounting event(s), they are only in memory until " +
+                    "written: " + e.getMessage());
+        }
+    }
+
+    private void wake() {
+        final Thread t = this.thread;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+
+    // -------------------------------------------------------------------------
+    // WRITER THREAD
+    // -------------------------------------------------------------------------
+
+    public void run() {
+        while (true) {
+            if (!this.stopping && this.queued.get() < this.flushBatchSize) {
+                LockSupport.parkNanos(this, this.flushIntervalNanos);
+            }
+
+            try {
+                this.drain();
+            } catch (Throwable t) {
+                logger.error("Problem writing accounting events: " +
+                             t.getMessage(), t);
+            }
+
+            if (this.stopping && this.queue.isEmpty()) {
+                break;
+            }
+        }
+        logger.debug("accounting writer stopped");
+    }
+
+    // synchronized: writer thread and shutdown() may both drain
+    private synchronized void drain() {
+        if (!this.failed.isEmpty()) {
+            final List<AccountingEvent> retry =
+                    new ArrayList<AccountingEvent>(this.failed);
+            this.failed.clear();
+            this.write(retry);
+        }
+
+        final List<AccountingEvent> batch =
+                new ArrayList<AccountingEvent>(this.flushBatchSize);
+        AccountingEvent ev;
+        while ((ev = this.queue.poll()) != null) {
+            if (ev.type != AccountingEvent.FLUSH) {
+                this.queued.decrementAndGet();
+            }
+            batch.add(ev);
+            if (batch.size() >= this.flushBatchSize) {
+                this.write(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            this.write(batch);
+        }
+    }
+
+    // synchronized: also called from replay() and after shutdown
+    private synchronized void write(List<AccountingEvent> batch) {
+
+        final List<AccountingEvent> creates = new ArrayList<AccountingEvent>();
+        long lastSeq = 0;
+
+        for (AccountingEvent ev : batch) {
+            if (ev.type == AccountingEvent.CREATE) {
+                creates.add(ev);
+            } else if (ev.type == AccountingEvent.END) {
+                // a destroy may be for a create earlier in this batch
+                this.writeCreates(creates);
+                if (!this.writeEnd(ev)) {
+                    this.failed(ev);
+                }
+            } else {
+                this.writeCreates(creates);
+                ev.flushed.countDown();
+            }
+            lastSeq = Math.max(lastSeq, ev.seq);
+        }
+        this.writeCreates(creates);
+
+        this.checkpoint(lastSeq);
+    }
+
+    /**
+     * Event failed: keep it to try again, or give up on it for this run.
+     * Its place in the journal is kept either way.
+     */
+    private void failed(AccountingEvent ev) {
+        ev.attempts += 1;
+        if (ev.attempts < MAX_ATTEMPTS) {
+            this.failed.add(ev);
+            return; // *** EARLY RETURN ***
+        }
+
+        if (this.journal == null) {
+            logger.error(Lager.id(ev.id) + ": giving up on accounting " +
+                    "event after " + ev.attempts + " attempts, it is lost");
+        } else {
+            logger.error(Lager.id(ev.id) + ": giving up on accounting " +
+                    "event after " + ev.attempts + " attempts, it stays in " +
+                    "the journal and is replayed at the next startup");
+            if (this.oldestAbandoned == 0 || ev.seq < this.oldestAbandoned) {
+                this.oldestAbandoned = ev.seq;
+            }
+        }
+
+        // no row behind the reservation (replay reserves it again)
+        if (ev.type == AccountingEvent.CREATE) {
+            this.db.unreserve(ev.ownerDN, ev.charge);
+        }
+    }
+
+    private String failedSuffix() {
+        final int n = this.getFailed();
+        return n == 0 ? "" : ", " + n + " failed and will be retried";
+    }
+
+    /**
+     * @param seq highest sequence number handled, the checkpoint stops
+     *            short of any event that is not written yet
+     */
+    private synchronized void checkpoint(long seq) {
+        if (this.journal == null || seq <= 0) {
+            return;
+        }
+
+        this.handled = Math.max(this.handled, seq);
+        long through = this.handled;
+        if (!this.failed.isEmpty()) {
+            through = Math.min(through, this.failed.get(0).seq - 1);
+        }
+        if (this.oldestAbandoned > 0) {
+            through = Math.min(through, this.oldestAbandoned - 1);
+        }
+        if (through <= this.checkpointed) {
+            return;
+        }
+
+        try {
+            this.journal.checkpoint(through);
+            this.checkpointed = through;
+        } catch (IOException e) {
+            logger.error("Could not checkpoint accounting journal, written " +
+                    "events may be replayed (and skipped) at startup: " +
+                    e.getMessage());
+        }
+    }
+
+    private void writeCreates(List<AccountingEvent> creates) {
+
+        if (creates.isEmpty()) {
+            return;
+        }
+
+        try {
+            this.db.insertCreated(creates);
+        } catch (WorkspaceDatabaseException e) {
+            if (creates.size() == 1) {
+                logger.error(e.getMessage());
+                this.failed(creates.get(0));
+                creates.clear();
+                return; // *** EARLY RETURN ***
+            }
+            // one bad row fails the batch, save the others
+            logger.error("Batch of " + creates.size() + " accounting " +
+                    "inserts failed, inserting one at a time: " + e.getMessage());
+            final List<AccountingEvent> inserted = new ArrayList<AccountingEvent>();
+            for (AccountingEvent ev : creates) {
+                try {
+                    this.db.insertCreated(Collections.singletonList(ev));
+                    inserted.add(ev);
+                } catch (WorkspaceDatabaseException e2) {
+                    logger.error(Lager.id(ev.id) + ": " + e2.getMessage());
+                    this.failed(ev);
+                }
+            }
+            creates.clear();
+            creates.addAll(inserted);
+        }
+
+        for (AccountingEvent ev : creates) {
+
+            if (this.lager.eventLog) {
+                logger.info(Lager.ev(ev.id) + "accounting: ownerDN = '" +
+                    ev.ownerDN + "', minutesRequested = " + ev.minutesRequested +
+                    ", minutes reserved = " + ev.charge + ", charge ratio = " +
+                    ev.chargeRatio + ", CPUCount = " + ev.CPUCount +
+                    ", memory = " + ev.memory + ", uuid = '" + ev.uuid + "'" +
+                    (ev.moreToLog == null ? "" : ev.moreToLog));
+            }
+
+            if (this.fileLog != null) {
+                try {
+                    this.fileLog.logCreate(ev.uuid, ev.id, ev.ownerDN,
+                                           ev.minutesRequested, ev.charge,
+                                           ev.chargeRatio, ev.getCalendar(),
+                                           ev.CPUCount, ev.memory, ev.moreToLog);
+                } catch (WorkspaceException e) {
+                    if (logger.isDebugEnabled()) {
+                        logger.error(e.getMessage(), e);
+                    } else {
+                        logger.error(e.getMessage());
+                    }
+                }
+            }
+        }
+        creates.clear();
+    }
+
+    // false if the DB update failed
+    private boolean writeEnd(AccountingEvent ev) {
+
+        try {
+            ev.uuid = this.db.end(ev.id, ev.ownerDN, ev.charge);
+        } catch (WorkspaceDatabaseException e) {
+            logger.error(e.getMessage());
+            return false; // *** EARLY RETURN ***
+        }
+
+        if (this.lager.eventLog) {
+            logger.info(Lager.ev(ev.id) + "accounting: ownerDN = '" +
+                ev.ownerDN + "', minutesElapsed = " + ev.charge +
+                ", chargeRatio = " + ev.chargeRatio +
+                ", real usage = " + ev.minutesElapsed +
+                ", uuid = '" + ev.uuid + '\'');
+        }
+
+        if (this.fileLog != null) {
+            try {
+                this.fileLog.logRemove(ev.uuid, ev.id, ev.ownerDN, ev.charge,
+                                       ev.chargeRatio, ev.getCalendar());
+            } catch (WorkspaceException e) {
+                if (logger.isDebugEnabled()) {
+                    logger.error(e.getMessage(), e);
+                } else {
+                    logger.error(e.getMessage());
+                }
+            }
+        }
+        return true;
+    }
+}
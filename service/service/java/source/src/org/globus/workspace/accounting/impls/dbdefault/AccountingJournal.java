@@ -0,0 +1,233 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace.accounting.impls.dbdefault;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * package-private class, append-only file of accounting events that were
+ * accepted but may not be in the deployments table yet.
+ *
+ * Each event gets a sequence number.  The writer appends a checkpoint
+ * record once everything up to a sequence number is in the database; when
+ * the checkpoint covers every appended event the file is truncated.  On
+ * startup the events after the last checkpoint are handed back for replay.
+ * A record cut short by a crash is ignored, it was never acknowledged, and
+ * cut off the file so that new records follow the last complete one.
+ */
+class AccountingJournal {
+
+    private static final Log logger =
+        LogFactory.getLog(AccountingJournal.class.getName());
+
+    private static final byte CHECKPOINT = 0;
+
+    private final File file;
+    private final boolean sync;
+
+    private FileOutputStream out;
+    private long nextSeq = 1;
+    private long lastAppended;
+
+    /**
+     * @param path journal file, created if missing
+     * @param sync if true, force every append to disk before returning
+     */
+    AccountingJournal(String path, boolean sync) {
+        if (path == null) {
+            throw new IllegalArgumentException("path may not be null");
+        }
+        this.file = new File(path);
+        this.sync = sync;
+    }
+
+    /**
+     * @return events that were journaled but not checkpointed, in order
+     * @throws IOException problem reading or opening for append
+     */
+    synchronized List<AccountingEvent> open() throws IOException {
+
+        final List<AccountingEvent> events = new ArrayList<AccountingEvent>();
+        long applied = 0;
+
+        // end of the last complete record, -1 if the file ends cleanly
+        long tornAt = -1;
+
+        if (this.file.exists()) {
+            final CountingInputStream counter = new CountingInputStream(
+                    new BufferedInputStream(new FileInputStream(this.file)));
+            final DataInputStream in = new DataInputStream(counter);
+            long complete = 0;
+            try {
+                while (true) {
+                    final int type = in.read();
+                    if (type < 0) {
+                        break;
+                    }
+                    if (type == CHECKPOINT) {
+                        applied = in.readLong();
+                    } else {
+                        events.add(AccountingEvent.read((byte) type, in));
+                    }
+                    complete = counter.count;
+                }
+            } catch (EOFException e) {
+                logger.warn("accounting journal '" + this.file + "' ends " +
+                        "with a partial record (crash while writing?), " +
+                        "ignoring it");
+                tornAt = complete;
+            } finally {
+                in.close();
+            }
+        }
+
+        final List<AccountingEvent> unapplied = new ArrayList<AccountingEvent>();
+        for (AccountingEvent ev : events) {
+            if (ev.seq > applied) {
+                unapplied.add(ev);
+            }
+            if (ev.seq >= this.nextSeq) {
+                this.nextSeq = ev.seq + 1;
+            }
+        }
+        this.lastAppended = this.nextSeq - 1;
+
+        this.out = new FileOutputStream(this.file, true);
+        if (tornAt >= 0) {
+            this.out.getChannel().truncate(tornAt);
+            if (this.sync) {
+                this.out.getFD().sync();
+            }
+        }
+        return unapplied;
+    }
+
+    /**
+     * Assigns sequence numbers and writes the events in one write.
+     *
+     * @param events events, not FLUSH markers
+     * @throws IOException problem, nothing should be considered journaled
+     */
+    synchronized void append(List<AccountingEvent> events) throws IOException {
+        if (this.out == null) {
+            throw new IOException("journal is not open");
+        }
+
+        final ByteArrayOutputStream bytes =
+                new ByteArrayOutputStream(128 * events.size());
+        final DataOutputStream data = new DataOutputStream(bytes);
+        long seq = this.nextSeq;
+        for (AccountingEvent ev : events) {
+            ev.seq = seq++;
+            ev.write(data);
+        }
+        data.flush();
+
+        this.out.write(bytes.toByteArray());
+        this.out.flush();
+        if (this.sync) {
+            this.out.getFD().sync();
+        }
+
+        this.nextSeq = seq;
+        this.lastAppended = seq - 1;
+    }
+
+    /**
+     * @param seq every event up to and including this one is in the DB
+     * @throws IOException problem
+     */
+    synchronized void checkpoint(long seq) throws IOException {
+        if (this.out == null) {
+            return;
+        }
+
+        if (seq >= this.lastAppended) {
+            // nothing left to replay, start over
+            this.out.getChannel().truncate(0);
+        } else {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(9);
+            final DataOutputStream data = new DataOutputStream(bytes);
+            data.writeByte(CHECKPOINT);
+            data.writeLong(seq);
+            data.flush();
+            this.out.write(bytes.toByteArray());
+            this.out.flush();
+        }
+        if (this.sync) {
+            this.out.getFD().sync();
+        }
+    }
+
+    synchronized void close() {
+        if (this.out != null) {
+            try {
+                this.out.close();
+            } catch (IOException e) {
+                logger.error("problem closing accounting journal: " +
+                             e.getMessage());
+            }
+            this.out = null;
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b >= 0) {
+                this.count += 1;
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int n = super.read(b, off, len);
+            if (n > 0) {
+                this.count += n;
+            }
+            return n;
+        }
+
+        public long skip(long n) throws IOException {
+            final long skipped = super.skip(n);
+            this.count += skipped;
+            return skipped;
+        }
+    }
+}
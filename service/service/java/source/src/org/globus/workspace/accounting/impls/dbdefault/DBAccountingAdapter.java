@@ -30,7 +30,10 @@ import org.safehaus.uuid.UUIDGenerator;
 
 import javax.sql.DataSource;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
 
 import commonj.timers.TimerManager;
 import org.springframework.core.io.Resource;
@@ -46,6 +49,10 @@ public class DBAccountingAdapter implements AccountingEventAdapter,
         LogFactory.getLog(DBAccountingAdapter.class.getName());
 
     public static final int DEFAULT_WRITE_DELAY_MILLISECONDS = 10000;
+
+    public static final int DEFAULT_FLUSH_INTERVAL_MILLISECONDS = 1000;
+    public static final int DEFAULT_FLUSH_BATCH_SIZE = 100;
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
     
 
     // -------------------------------------------------------------------------
@@ -69,6 +76,15 @@ public class DBAccountingAdapter implements AccountingEventAdapter,
 
     private DelayedAccountingFileLogger fileLog;
 
+    private String journalPath;
+    private boolean journalSync = true;
+    private int flushIntervalMilliseconds = DEFAULT_FLUSH_INTERVAL_MILLISECONDS;
+    private int flushBatchSize = DEFAULT_FLUSH_BATCH_SIZE;
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+    private AccountingJournal journal;
+    private AccountingEventWriter writer;
+
 
     // -------------------------------------------------------------------------
     // CONSTRUCTOR
@@ -126,6 +142,50 @@ public class DBAccountingAdapter implements AccountingEventAdapter,
         this.writeDelayMilliseconds = writeDelayMilliseconds;
     }
 
+    /**
+     * Optional.  Accepted events are appended here before create/destroy
+     * return so that they survive a crash before being written to the DB.
+     *
+     * @param journalResource journal file
+     * @throws IOException problem resolving the file
+     */
+    public void setJournalResource(Resource journalResource)
+            throws IOException {
+        this.journalPath = journalResource.getFile().getAbsolutePath();
+    }
+
+    /**
+     * @param journalSync if true (the default) journal appends are forced
+     *        to disk, if false they only survive a process crash
+     */
+    public void setJournalSync(boolean journalSync) {
+        this.journalSync = journalSync;
+    }
+
+    public void setFlushIntervalMilliseconds(int flushIntervalMilliseconds) {
+        if (flushIntervalMilliseconds < 1) {
+            throw new RuntimeException("flushIntervalMilliseconds must" +
+                    " be greater than zero");
+        }
+        this.flushIntervalMilliseconds = flushIntervalMilliseconds;
+    }
+
+    public void setFlushBatchSize(int flushBatchSize) {
+        if (flushBatchSize < 1) {
+            throw new RuntimeException("flushBatchSize must" +
+                    " be greater than zero");
+        }
+        this.flushBatchSize = flushBatchSize;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        if (queueCapacity < 1) {
+            throw new RuntimeException("queueCapacity must" +
+                    " be greater than zero");
+        }
+        this.queueCapacity = queueCapacity;
+    }
+
     public void setChargeGranularity(int chargeGranularity) {
         if (chargeGranularity < 1) {
             throw new RuntimeException("chargeGranularity must" +
@@ -205,10 +265,50 @@ public class DBAccountingAdapter implements AccountingEventAdapter,
                                             this.timerManager);
         }
 
+        List<AccountingEvent> unwritten = null;
+        if (this.journalPath != null && this.journalPath.length() != 0) {
+            this.journal = new AccountingJournal(this.journalPath,
+                                                 this.journalSync);
+            unwritten = this.journal.open();
+        } else {
+            logger.debug("No configuration found for accounting journal, " +
+                    "events waiting to be written are lost on a crash");
+        }
+
+        this.writer = new AccountingEventWriter(
+                                    this.db,
+                                    this.fileLog,
+                                    this.journal,
+                                    this.lager,
+                                    this.flushIntervalMilliseconds,
+                                    this.flushBatchSize,
+                                    Math.max(this.queueCapacity, this.flushBatchSize));
+
+        if (unwritten != null && !unwritten.isEmpty()) {
+            this.writer.replay(unwritten);
+        }
+        this.writer.start();
+
         this.initialized = true;
         logger.debug("validated/initialized");
     }
 
+    /**
+     * IoC destroy method: writes out every accepted event.
+     */
+    public synchronized void shutdown() {
+        if (this.writer != null) {
+            logger.debug("writing out queued accounting events");
+            this.writer.shutdown();
+        }
+        if (this.fileLog != null) {
+            this.fileLog.flush();
+        }
+        if (this.journal != null) {
+            this.journal.close();
+        }
+    }
+
 
     // -------------------------------------------------------------------------
     // implements AccountingEventAdapter
@@ -218,6 +318,97 @@ public class DBAccountingAdapter implements AccountingEventAdapter,
                        String network, String resource, String clientLaunchName,
                        int CPUCount, int memory, double chargeRatio) {
 
+        final String moreToLog = moreToLog(network, resource, clientLaunchName);
+
+        if (this.lager.accounting) {
+            logger.trace("create(): id = " + id + ", ownerDN = '" +
+                    ownerDN + "', minutesRequested = " + minutesRequested +
+                         ", CPUCount = " + CPUCount + ", memory = " + memory + moreToLog);
+        }
+
+        if (!this.initialized) {
+            logger.error("never initialized, can't do anything");
+            return;
+        }
+
+        if (ownerDN == null) {
+            logger.error("ownerDN is null, can't do anything");
+            return;
+        }
+
+        // account for container recovery after a service state reset
+        if (id == 1 && !this.stateResetCheck()) {
+            return;
+        }
+
+        try {
+
+            long charge = Util.positiveCeiling(minutesRequested,
+                                                     this.chargeGranularity);
+
+            final Double chargeDouble = charge * chargeRatio;
+            charge = chargeDouble.longValue();
+
+            final String uuid = uuidGen.generateRandomBasedUUID().toString();
+
+            final Calendar now = Calendar.getInstance();
+
+            // counted against the owner now, written by the writer thread
+            this.db.reserve(ownerDN, charge);
+            this.writer.submit(Collections.singletonList(
+                    AccountingEvent.create(uuid, id, ownerDN,
+                                           now.getTimeInMillis(),
+                                           minutesRequested, charge,
+                                           chargeRatio, CPUCount, memory,
+                                           moreToLog)));
+
+        } catch (Throwable t) {
+            logger.error(t.getMessage(), t);
+        }
+
+    }
+
+    // returns false if accounting can not proceed
+    private boolean stateResetCheck() {
+
+        // queued events are from before the reset
+        this.writer.flush();
+
+        try {
+            final int updated = this.db.forceAllInactive();
+
+            if (updated < 0) {
+
+                logger.error("compound, unresolvable DB problem");
+                return false;
+
+            } else if (updated > 0) {
+
+                logger.fatal("Fresh service install or service state " +
+                        "was wiped: ALL previous deployments tracked " +
+                        "by accounting module were moved to inactive.  " +
+                        "Destruction time in this case is undefined and " +
+                        "not set!  Set " + updated + " deployments to " +
+                        "inactive.");
+
+            } else {
+                
+                logger.debug("fresh service install or service state " +
+                        "was wiped, but all previous deployments were " +
+                        "already inactive: all is well");
+            }
+            
+        } catch (WorkspaceDatabaseException e) {
+            logger.error(e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    private static String moreToLog(String network,
+                                    String resource,
+                                    String clientLaunchName) {
+
         String moreToLog = "";
 
         if (resource != null) {
@@ -232,11 +423,29 @@ public class DBAccountingAdapter implements AccountingEventAdapter,
         if (network != null) {
             moreToLog += ", network='" + network.trim() + '\'';
         }
-        
+
+        return moreToLog;
+    }
+
+    public void createAll(int[] ids, String ownerDN, long minutesRequested,
+                          String[] networks, String[] resources,
+                          String[] clientLaunchNames,
+                          int CPUCount, int memory, double chargeRatio) {
+
+        if (ids == null) {
+            throw new IllegalArgumentException("ids may not be null");
+        }
+        if (networks == null || networks.length != ids.length
+                || resources == null || resources.length != ids.length
+                || clientLaunchNames == null || clientLaunchNames.length != ids.length) {
+            throw new IllegalArgumentException(
+                    "networks, resources and clientLaunchNames must match ids");
+        }
+
         if (this.lager.accounting) {
-            logger.trace("create(): id = " + id + ", ownerDN = '" +
+            logger.trace("createAll(): " + ids.length + " ids, ownerDN = '" +
                     ownerDN + "', minutesRequested = " + minutesRequested +
-                         ", CPUCount = " + CPUCount + ", memory = " + memory + moreToLog);
+                         ", CPUCount = " + CPUCount + ", memory = " + memory);
         }
 
         if (!this.initialized) {
@@ -250,34 +459,12 @@ public class DBAccountingAdapter implements AccountingEventAdapter,
         }
 
         // account for container recovery after a service state reset
-        if (id == 1) {
-            try {
-                final int updated = this.db.forceAllInactive();
-
-                if (updated < 0) {
-
-                    logger.error("compound, unresolvable DB problem");
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == 1) {
+                if (!this.stateResetCheck()) {
                     return;
-
-                } else if (updated > 0) {
-
-                    logger.fatal("Fresh service install or service state " +
-                            "was wiped: ALL previous deployments tracked " +
-                            "by accounting module were moved to inactive.  " +
-                            "Destruction time in this case is undefined and " +
-                            "not set!  Set " + updated + " deployments to " +
-                            "inactive.");
-
-                } else {
-                    
-                    logger.debug("fresh service install or service state " +
-                            "was wiped, but all previous deployments were " +
-                            "already inactive: all is well");
                 }
-                
-            } catch (WorkspaceDatabaseException e) {
-                logger.error(e.getMessage());
-                return;
+                break;
             }
         }
 
@@ -289,39 +476,32 @@ public class DBAccountingAdapter implements AccountingEventAdapter,
             final Double chargeDouble = charge * chargeRatio;
             charge = chargeDouble.longValue();
 
-            final String uuid = uuidGen.generateRandomBasedUUID().toString();
+            final String[] uuids = new String[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                uuids[i] = uuidGen.generateRandomBasedUUID().toString();
+            }
 
             final Calendar now = Calendar.getInstance();
 
-            this.db.add(uuid, id, ownerDN, charge, now, CPUCount, memory);
-            
-            if (this.lager.eventLog) {
-                logger.info(Lager.ev(id) + "accounting: ownerDN = '" +
-                    ownerDN + "', minutesRequested = " + minutesRequested +
-                    ", minutes reserved = " + charge + ", charge ratio = " + chargeRatio +
-                    ", CPUCount = " + CPUCount + ", memory = " + memory +
-                    ", uuid = '" + uuid + "'" + moreToLog);
-            }
-
-            if (this.fileLog != null) {
-                try {
-                    this.fileLog.logCreate(uuid, id, ownerDN,
-                                           minutesRequested, charge, chargeRatio, now,
-                                           CPUCount, memory, moreToLog);
-                } catch (WorkspaceException e) {
-                    if (logger.isDebugEnabled()) {
-                        logger.error(e.getMessage(), e);
-                    } else {
-                        logger.error(e.getMessage());
-                    }
-                }
+            final List<AccountingEvent> events =
+                    new ArrayList<AccountingEvent>(ids.length);
+            for (int i = 0; i < ids.length; i++) {
+                final String moreToLog =
+                        moreToLog(networks[i], resources[i], clientLaunchNames[i]);
+                events.add(AccountingEvent.create(uuids[i], ids[i], ownerDN,
+                                                  now.getTimeInMillis(),
+                                                  minutesRequested, charge,
+                                                  chargeRatio, CPUCount, memory,
+                                                  moreToLog));
             }
 
+            // counted against the owner now, written by the writer thread
+            this.db.reserve(ownerDN, charge * ids.length);
+            this.writer.submit(events);
 
-        } catch (WorkspaceDatabaseException e) {
-            logger.error(e.getMessage());
+        } catch (Throwable t) {
+            logger.error(t.getMessage(), t);
         }
-
     }
 
     public void destroy(int id, String ownerDN, long minutesElapsed, double chargeRatio) {
@@ -341,34 +521,10 @@ public class DBAccountingAdapter implements AccountingEventAdapter,
         final Double chargeDouble = charge * chargeRatio;
         charge = chargeDouble.longValue();
 
-        try {
-            
-            final String uuid = this.db.end(id, ownerDN, charge);
-            
-            if (this.lager.eventLog) {
-                logger.info(Lager.ev(id) + "accounting: ownerDN = '" +
-                    ownerDN + "', minutesElapsed = " + charge +
-                    ", chargeRatio = " + chargeRatio +
-                    ", real usage = " + minutesElapsed +
-                    ", uuid = '" + uuid + '\'');
-            }
-
-            if (this.fileLog != null) {
-                final Calendar now = Calendar.getInstance();
-                try {
-                    this.fileLog.logRemove(uuid, id, ownerDN, charge, chargeRatio, now);
-                } catch (WorkspaceException e) {
-                    if (logger.isDebugEnabled()) {
-                        logger.error(e.getMessage(), e);
-                    } else {
-                        logger.error(e.getMessage());
-                    }
-                }
-            }
-
-        } catch (WorkspaceDatabaseException e) {
-            logger.error(e.getMessage());
-        }
+        // until written, the reservation still counts against the owner
+        this.writer.submit(Collections.singletonList(
+                AccountingEvent.end(id, ownerDN, System.currentTimeMillis(),
+                                    minutesElapsed, charge, chargeRatio)));
     }
 
     // getChargeGranularity below is also from AccountingEventAdapter
@@ -46,13 +46,13 @@ public interface DBAccountingConstants {
             "UPDATE deployments SET elapsed_minutes=?, active=0 " +
             "WHERE uuid=?";
 
-    public static final String SQL_SUM_RESERVED =
-            "SELECT SUM(requested_duration) FROM deployments " +
-            "WHERE creator_dn=? AND active=1";
+    public static final String SQL_DEPLOYMENT_EXISTS =
+            "SELECT uuid FROM deployments WHERE uuid=?";
 
-    public static final String SQL_SUM_ELAPSED =
-            "SELECT SUM(elapsed_minutes) FROM deployments " +
-            "WHERE creator_dn=? AND active=0";
+    public static final String SQL_SUM_BY_OWNER =
+            "SELECT creator_dn, active, SUM(requested_duration), " +
+            "SUM(elapsed_minutes) FROM deployments " +
+            "GROUP BY creator_dn, active";
 
     public static final String[] PREPARED_STATEMENTS =
                                            {SQL_FORCE_ALL_INACTIVE,
@@ -60,6 +60,6 @@ public interface DBAccountingConstants {
                                             SQL_INSERT_DEPLOYMENT,
                                             SQL_LOAD_DEPLOYMENT,
                                             SQL_UPDATE_END_DEPLOYMENT,
-                                            SQL_SUM_ELAPSED,
-                                            SQL_SUM_RESERVED};
+                                            SQL_DEPLOYMENT_EXISTS,
+                                            SQL_SUM_BY_OWNER};
 }
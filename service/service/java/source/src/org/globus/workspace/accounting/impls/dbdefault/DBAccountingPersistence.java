@@ -32,9 +32,25 @@ import java.sql.Types;
 import java.text.DateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * package-private class, all access is from DBAccountingAdapter
+ *
+ * Reserved and elapsed minutes per owner are kept as running totals in
+ * memory, written through on add/end, so the authorization queries do not
+ * sum over every deployment the owner ever had.  The totals are built from
+ * the deployments table with one grouped scan at initialization and again
+ * after forceAllInactive, see rebuildOwnerTotals().  The table is not meant
+ * to be edited while the service runs, such edits are seen after a restart.
+ *
+ * Minutes reserved for creates that are not inserted yet (queued, or failed
+ * and waiting to be tried again) are also kept apart, a rebuild adds them
+ * back on top of what the table holds.
  */
 class DBAccountingPersistence implements DBAccountingConstants {
 
@@ -49,6 +65,14 @@ class DBAccountingPersistence implements DBAccountingConstants {
 
     private final Lager lager;
 
+    // ownerDN --> totals, replaced wholesale on rebuild
+    private volatile ConcurrentMap<String, OwnerTotals> ownerTotals =
+            new ConcurrentHashMap<String, OwnerTotals>();
+
+    // ownerDN --> minutes reserved and not inserted yet, guards itself
+    private final Map<String, Long> pendingReservations =
+            new HashMap<String, Long>();
+
     DBAccountingPersistence(DataSource dataSourceImpl,
                             Lager lagerImpl) {
         
@@ -76,6 +100,8 @@ class DBAccountingPersistence implements DBAccountingConstants {
             throw new Exception("Problem preparing DB statements: ", sql);
         }
 
+        this.rebuildOwnerTotals();
+
         this.initialized = true;
     }
 
@@ -139,7 +165,8 @@ class DBAccountingPersistence implements DBAccountingConstants {
         }
     }
 
-    public int forceAllInactive() throws WorkspaceDatabaseException {
+    public synchronized int forceAllInactive()
+            throws WorkspaceDatabaseException {
         
         if (this.lager.accounting) {
             logger.trace("forceAllInactive()");
@@ -174,9 +201,121 @@ class DBAccountingPersistence implements DBAccountingConstants {
             }
         }
 
+        // reservations moved to inactive without an elapsed time
+        if (updated > 0) {
+            this.rebuildOwnerTotals();
+        }
+
         return updated;
     }
 
+    /**
+     * Recomputes every owner's running totals from the deployments table.
+     * Done at initialization and by forceAllInactive.
+     *
+     * @return number of owners with deployments
+     * @throws WorkspaceDatabaseException problem
+     */
+    public synchronized int rebuildOwnerTotals()
+            throws WorkspaceDatabaseException {
+
+        final ConcurrentMap<String, OwnerTotals> totals =
+                new ConcurrentHashMap<String, OwnerTotals>();
+
+        Connection c = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            c = getConnection();
+            pstmt = c.prepareStatement(SQL_SUM_BY_OWNER);
+            rs = pstmt.executeQuery();
+
+            while (rs != null && rs.next()) {
+                final String dn = rs.getString(1);
+                final boolean active = rs.getInt(2) == 1;
+                final long requested = rs.getLong(3);
+                final long elapsed = rs.getLong(4);
+
+                final OwnerTotals owner = totalsFor(totals, dn);
+                if (active) {
+                    owner.reserve(requested);
+                } else {
+                    owner.elapse(elapsed);
+                }
+            }
+
+        } catch(SQLException e) {
+            logger.error("",e);
+            throw new WorkspaceDatabaseException(e);
+        } finally {
+            try {
+                if (rs != null) {
+                    rs.close();
+                }
+                if (pstmt != null) {
+                    pstmt.close();
+                }
+                if (c != null) {
+                    returnConnection(c);
+                }
+            } catch (SQLException sql) {
+                logger.error("SQLException in finally cleanup", sql);
+            }
+        }
+
+        // insertCreated holds this object's lock too, so nothing moves from
+        // pending to the table between the scan and here
+        synchronized (this.pendingReservations) {
+            for (Map.Entry<String, Long> entry :
+                    this.pendingReservations.entrySet()) {
+                totalsFor(totals, entry.getKey()).reserve(entry.getValue());
+            }
+            this.ownerTotals = totals;
+        }
+
+        if (this.lager.accounting) {
+            logger.trace("rebuilt accounting totals for " + totals.size() +
+                         " owners");
+        }
+        return totals.size();
+    }
+
+    private static OwnerTotals totalsFor(ConcurrentMap<String, OwnerTotals> map,
+                                         String ownerDN) {
+        OwnerTotals totals = map.get(ownerDN);
+        if (totals == null) {
+            final OwnerTotals newTotals = new OwnerTotals();
+            totals = map.putIfAbsent(ownerDN, newTotals);
+            if (totals == null) {
+                totals = newTotals;
+            }
+        }
+        return totals;
+    }
+
+    private static class OwnerTotals {
+
+        private long reserved;
+        private long elapsed;
+
+        synchronized void reserve(long minutes) {
+            this.reserved += minutes;
+        }
+
+        synchronized void elapse(long minutes) {
+            this.elapsed += minutes;
+        }
+
+        synchronized void end(long minutesReserved, long minutesElapsed) {
+            this.reserved -= minutesReserved;
+            this.elapsed += minutesElapsed;
+        }
+
+        synchronized ElapsedAndReservedMinutes get() {
+            return new ElapsedAndReservedMinutes(this.elapsed, this.reserved);
+        }
+    }
+
     /* ****** */
     /* Common */
     /* ****** */
@@ -243,6 +382,8 @@ class DBAccountingPersistence implements DBAccountingConstants {
                 logger.trace(Lager.id(id) + ": inserted " + inserted + " rows");   
             }
 
+            totalsFor(this.ownerTotals, ownerDN).reserve(minutesRequested);
+
         } catch(SQLException e) {
             logger.error("",e);
             throw new WorkspaceDatabaseException(e);
@@ -265,6 +406,258 @@ class DBAccountingPersistence implements DBAccountingConstants {
         
     }
 
+    /**
+     * Inserts one deployment row per id in one batch and one transaction.
+     *
+     * @param uuids uuid per deployment, indexed like ids
+     * @param ids vm ids
+     * @param ownerDN owner of all of them
+     * @param minutesRequested charge of each
+     * @param creationTime creation time of all of them
+     * @param CPUCores cores of each
+     * @param memory memory of each
+     * @throws WorkspaceDatabaseException problem, rolled back
+     */
+    public synchronized void addAll(String[] uuids,
+                                    int[] ids,
+                                    String ownerDN,
+                                    long minutesRequested,
+                                    Calendar creationTime,
+                                    int CPUCores,
+                                    int memory)
+            throws WorkspaceDatabaseException {
+
+        if (uuids == null || ids == null || uuids.length != ids.length) {
+            throw new IllegalArgumentException(
+                    "uuids and ids must be non-null and of equal length");
+        }
+
+        if (this.lager.accounting) {
+            logger.trace("addAll(): " + ids.length + " deployments, " +
+                    "ownerDN = '" + ownerDN + "', minutesRequest = " +
+                    minutesRequested + ", creationTime = " +
+                    creationTime.getTimeInMillis() + ", cpu cores = " +
+                    CPUCores + ", memory = " + memory
+                    );
+        }
+
+        Connection c = null;
+        PreparedStatement pstmt = null;
+        boolean committed = false;
+        try {
+            c = getConnection();
+            c.setAutoCommit(false);
+            pstmt = c.prepareStatement(SQL_INSERT_DEPLOYMENT);
+
+            for (int i = 0; i < ids.length; i++) {
+                pstmt.setString(1, uuids[i]);
+                pstmt.setInt(2, ids[i]);
+                pstmt.setString(3, ownerDN);
+                pstmt.setObject(4, new Long(creationTime.getTimeInMillis()));
+                pstmt.setObject(5, new Long(minutesRequested));
+                pstmt.setInt(6, 1);
+                pstmt.setNull(7, Types.INTEGER);
+                pstmt.setInt(8, CPUCores);
+                pstmt.setInt(9, memory);
+                pstmt.addBatch();
+            }
+
+            final int[] inserted = pstmt.executeBatch();
+            c.commit();
+            committed = true;
+
+            totalsFor(this.ownerTotals, ownerDN).reserve(
+                                        minutesRequested * ids.length);
+
+            if (this.lager.accounting) {
+                logger.trace("addAll(): batch of " + inserted.length +
+                             " inserts committed");
+            }
+
+        } catch(SQLException e) {
+            logger.error("",e);
+            throw new WorkspaceDatabaseException(e);
+        } finally {
+            try {
+                if (pstmt != null) {
+                    pstmt.close();
+                }
+                if (c != null) {
+                    if (!committed) {
+                        c.rollback();
+                    }
+                    c.setAutoCommit(true);
+                    returnConnection(c);
+                }
+            } catch (SQLException sql) {
+                logger.error("SQLException in finally cleanup", sql);
+            }
+        }
+    }
+
+    /**
+     * Inserts deployment rows for queued creates in one batch and one
+     * transaction.  Unlike add/addAll the owner totals are not touched, the
+     * caller reserved the minutes when the event was accepted.
+     *
+     * @param creates CREATE events, uuid set
+     * @throws WorkspaceDatabaseException problem, rolled back
+     */
+    synchronized void insertCreated(List<AccountingEvent> creates)
+            throws WorkspaceDatabaseException {
+
+        if (creates == null || creates.isEmpty()) {
+            return;
+        }
+
+        if (this.lager.accounting) {
+            logger.trace("insertCreated(): " + creates.size() + " deployments");
+        }
+
+        Connection c = null;
+        PreparedStatement pstmt = null;
+        boolean committed = false;
+        try {
+            c = getConnection();
+            c.setAutoCommit(false);
+            pstmt = c.prepareStatement(SQL_INSERT_DEPLOYMENT);
+
+            for (AccountingEvent ev : creates) {
+                pstmt.setString(1, ev.uuid);
+                pstmt.setInt(2, ev.id);
+                pstmt.setString(3, ev.ownerDN);
+                pstmt.setObject(4, new Long(ev.time));
+                pstmt.setObject(5, new Long(ev.charge));
+                pstmt.setInt(6, 1);
+                pstmt.setNull(7, Types.INTEGER);
+                pstmt.setInt(8, ev.CPUCount);
+                pstmt.setInt(9, ev.memory);
+                pstmt.addBatch();
+            }
+
+            pstmt.executeBatch();
+            c.commit();
+            committed = true;
+
+            // counted by the table from now on
+            for (AccountingEvent ev : creates) {
+                this.addPending(ev.ownerDN, -ev.charge);
+            }
+
+        } catch(SQLException e) {
+            logger.error("",e);
+            throw new WorkspaceDatabaseException(e);
+        } finally {
+            try {
+                if (pstmt != null) {
+                    pstmt.close();
+                }
+                if (c != null) {
+                    if (!committed) {
+                        c.rollback();
+                    }
+                    c.setAutoCommit(true);
+                    returnConnection(c);
+                }
+            } catch (SQLException sql) {
+                logger.error("SQLException in finally cleanup", sql);
+            }
+        }
+    }
+
+    /**
+     * Counts minutes as reserved for the owner without touching the table,
+     * for creates that are queued to be inserted by insertCreated.
+     *
+     * @param ownerDN owner
+     * @param minutes charge
+     */
+    void reserve(String ownerDN, long minutes) {
+        synchronized (this.pendingReservations) {
+            this.addPending(ownerDN, minutes);
+            totalsFor(this.ownerTotals, ownerDN).reserve(minutes);
+        }
+    }
+
+    /**
+     * Takes back a reserve() for a create that will not be inserted.
+     *
+     * @param ownerDN owner
+     * @param minutes charge
+     */
+    void unreserve(String ownerDN, long minutes) {
+        synchronized (this.pendingReservations) {
+            this.addPending(ownerDN, -minutes);
+            totalsFor(this.ownerTotals, ownerDN).reserve(-minutes);
+        }
+    }
+
+    private void addPending(String ownerDN, long minutes) {
+        synchronized (this.pendingReservations) {
+            final Long current = this.pendingReservations.get(ownerDN);
+            final long pending = (current == null ? 0 : current) + minutes;
+            if (pending == 0) {
+                this.pendingReservations.remove(ownerDN);
+            } else {
+                this.pendingReservations.put(ownerDN, pending);
+            }
+        }
+    }
+
+    /**
+     * @param uuid deployment uuid
+     * @return true if a row exists for it
+     * @throws WorkspaceDatabaseException problem
+     */
+    boolean deploymentExists(String uuid) throws WorkspaceDatabaseException {
+        return this.exists(SQL_DEPLOYMENT_EXISTS, uuid, 0);
+    }
+
+    /**
+     * @param id workspace id
+     * @return true if an active deployment exists for it
+     * @throws WorkspaceDatabaseException problem
+     */
+    boolean activeDeploymentExists(int id) throws WorkspaceDatabaseException {
+        return this.exists(SQL_LOAD_DEPLOYMENT, null, id);
+    }
+
+    private boolean exists(String query, String stringArg, int intArg)
+            throws WorkspaceDatabaseException {
+
+        Connection c = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            c = getConnection();
+            pstmt = c.prepareStatement(query);
+            if (stringArg != null) {
+                pstmt.setString(1, stringArg);
+            } else {
+                pstmt.setInt(1, intArg);
+            }
+            rs = pstmt.executeQuery();
+            return rs != null && rs.next();
+        } catch(SQLException e) {
+            logger.error("",e);
+            throw new WorkspaceDatabaseException(e);
+        } finally {
+            try {
+                if (rs != null) {
+                    rs.close();
+                }
+                if (pstmt != null) {
+                    pstmt.close();
+                }
+                if (c != null) {
+                    returnConnection(c);
+                }
+            } catch (SQLException sql) {
+                logger.error("SQLException in finally cleanup", sql);
+            }
+        }
+    }
+
     public synchronized String end(int id,
                                  String ownerDN,
                                  long minutesElapsed)
@@ -351,6 +744,9 @@ class DBAccountingPersistence implements DBAccountingConstants {
 
             c.commit();
 
+            totalsFor(this.ownerTotals, ownerDN).end(requestedDuration,
+                                                     minutesElapsed);
+
             if (this.lager.accounting) {
                 logger.trace(Lager.id(id) + ": updated " + updated + " rows");
             }
@@ -388,56 +784,24 @@ class DBAccountingPersistence implements DBAccountingConstants {
 
     public long totalElapsedMinutes(String ownerDN)
             throws WorkspaceException {
-
-        Connection c = null;
-        try {
-            c = getConnection();
-            return totalElapsedMinutesImpl(ownerDN, c);
-        } catch(SQLException e) {
-            logger.error("",e);
-            throw new WorkspaceException(e);
-        } finally {
-            if (c != null) {
-                returnConnection(c);
-            }
-        }
+        return this.totalElapsedAndReservedMinutesTuple(ownerDN).getElapsed();
     }
 
     public long currentReservedMinutes(String ownerDN)
             throws WorkspaceException {
-        
-        Connection c = null;
-        try {
-            c = getConnection();
-            return this.currentReservedMinutesImpl(ownerDN, c);
-        } catch(SQLException e) {
-            logger.error("",e);
-            throw new WorkspaceException(e);
-        } finally {
-            if (c != null) {
-                returnConnection(c);
-            }
-        }
+        return this.totalElapsedAndReservedMinutesTuple(ownerDN).getReserved();
     }
 
     public ElapsedAndReservedMinutes totalElapsedAndReservedMinutesTuple(
                                                         String ownerDN)
             throws WorkspaceException {
 
-        Connection c = null;
-        try {
-            c = getConnection();
-            long reserved = this.currentReservedMinutesImpl(ownerDN, c);
-            long elapsed = totalElapsedMinutesImpl(ownerDN, c);
-            return new ElapsedAndReservedMinutes(elapsed, reserved);
-        } catch(SQLException e) {
-            logger.error("",e);
-            throw new WorkspaceException(e);
-        } finally {
-            if (c != null) {
-                returnConnection(c);
-            }
+        final OwnerTotals totals = this.ownerTotals.get(ownerDN);
+        if (totals == null) {
+            logger.debug("no totals (DN not seen before)");
+            return new ElapsedAndReservedMinutes(0, 0);
         }
+        return totals.get();
     }
 
     /**
@@ -521,82 +885,4 @@ class DBAccountingPersistence implements DBAccountingConstants {
             }
         }
     }
-
-    private static long totalElapsedMinutesImpl(String ownerDN, Connection c)
-            throws WorkspaceException {
-
-        PreparedStatement pstmt = null;
-        ResultSet rs = null;
-        long time = 0;
-        
-        try {
-
-            pstmt = c.prepareStatement(SQL_SUM_ELAPSED);
-            pstmt.setString(1, ownerDN);
-            rs = pstmt.executeQuery();
-
-            if (rs == null || !rs.next()) {
-                logger.debug("no result from sum (DN not seen before)");
-                return time;
-            } else {
-                time = rs.getLong(1);
-            }
-
-        } catch(SQLException e) {
-            logger.error("",e);
-            throw new WorkspaceException(e);
-        } finally {
-            try {
-                if (rs != null) {
-                    rs.close();
-                }
-                if (pstmt != null) {
-                    pstmt.close();
-                }
-            } catch (SQLException sql) {
-                logger.error("SQLException in finally cleanup", sql);
-            }
-        }
-
-        return time;
-    }
-
-    private long currentReservedMinutesImpl(String ownerDN, Connection c)
-            throws WorkspaceException {
-
-        PreparedStatement pstmt = null;
-        ResultSet rs = null;
-        long time = 0;
-
-        try {
-
-            pstmt = c.prepareStatement(SQL_SUM_RESERVED);
-            pstmt.setString(1, ownerDN);
-            rs = pstmt.executeQuery();
-
-            if (rs == null || !rs.next()) {
-                logger.debug("no result from sum (DN not seen before)");
-                return time;
-            } else {
-                time = rs.getLong(1);
-            }
-            
-        } catch(SQLException e) {
-            logger.error("",e);
-            throw new WorkspaceException(e);
-        } finally {
-            try {
-                if (rs != null) {
-                    rs.close();
-                }
-                if (pstmt != null) {
-                    pstmt.close();
-                }
-            } catch (SQLException sql) {
-                logger.error("SQLException in finally cleanup", sql);
-            }
-        }
-
-        return time;
-    }
 }
@@ -455,6 +455,17 @@ public class DelayedAccountingFileLogger implements TimerListener {
         this.timer = null;
     }
 
+    /**
+     * Writes pending events now instead of waiting for the timer.
+     */
+    public synchronized void flush() {
+        try {
+            this.write();
+        } catch (Throwable t) {
+            logger.error(t.getMessage(), t);
+        }
+    }
+
     public synchronized void timerExpired(Timer aTimer) {
         try {
             this.write();
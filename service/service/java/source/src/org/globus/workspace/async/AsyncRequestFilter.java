@@ -12,7 +12,7 @@ public class AsyncRequestFilter {
         List<AsyncRequest> offersEqualPrice = new ArrayList<AsyncRequest>();
         
         for (AsyncRequest siRequest : allRequests) {
-            if(siRequest.getMaxBid() == price){
+            if(siRequest.getMaxBid().equals(price)){
                 offersEqualPrice.add(siRequest);
             }
         }
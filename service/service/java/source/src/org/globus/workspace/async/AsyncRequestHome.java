@@ -84,6 +84,22 @@ public interface AsyncRequestHome {
     public List<SpotPriceEntry> getSpotPriceHistory(Calendar startDate, Calendar endDate) 
             throws WorkspaceDatabaseException;
 
+    /**
+     * Retrieves one page of the spot price history, oldest entries first
+     * @param startDate the date the history should start. <b>null</n>
+     * indicates there is no start date.
+     * @param endDate the date the history should end. <b>null</n>
+     * indicates there is no end date.
+     * @param offset number of entries to skip
+     * @param limit maximum number of entries to return
+     * @return a list of at most limit spot price entries
+     * @throws WorkspaceDatabaseException in case there is an error
+     * in the databsae, while obtaining the history data
+     */
+    public List<SpotPriceEntry> getSpotPriceHistory(Calendar startDate, Calendar endDate,
+                                                    int offset, int limit)
+            throws WorkspaceDatabaseException;
+
     /**
      * Retrieves the Asynchronous request associated with
      * this Virtual Machine ID
@@ -22,6 +22,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -280,6 +281,25 @@ public class AsyncRequestManagerImpl implements AsyncRequestManager {
         
         return persistence.getSpotPriceHistory(startDate, endDate);
     }     
+
+    /**
+     * Retrieves one page of the spot price history, oldest entries first
+     * @param startDate the date the history should start. <b>null</n>
+     * indicates there is no start date.
+     * @param endDate the date the history should end. <b>null</n>
+     * indicates there is no end date.
+     * @param offset number of entries to skip
+     * @param limit maximum number of entries to return
+     * @return a list of at most limit spot price entries
+     * @throws WorkspaceDatabaseException in case there is an error
+     * in the databsae, while obtaining the history data
+     */
+    public List<SpotPriceEntry> getSpotPriceHistory(Calendar startDate, Calendar endDate,
+                                                    int offset, int limit)
+        throws WorkspaceDatabaseException {
+
+        return persistence.getSpotPriceHistory(startDate, endDate, offset, limit);
+    }
     
     // -------------------------------------------------------------------------
     // Implements org.globus.workspace.scheduler.defaults.PreemptableSpaceManager
@@ -363,33 +383,8 @@ public class AsyncRequestManagerImpl implements AsyncRequestManager {
      * @throws ManageException problem
      */
     public void stateNotification(int vmid, int state) throws ManageException {
-        if(state == WorkspaceConstants.STATE_DESTROYING  ||
-           state == WorkspaceConstants.STATE_DESTROY_FAILED ||
-           state == WorkspaceConstants.STATE_DESTROY_SUCCEEDED) {
-            
-            AsyncRequest request = this.getRequestFromVM(vmid);
-            if(request != null){
-                logger.debug(Lager.ev(-1) + "VM '" + vmid + "' from request '" + request.getId() + "' finished.");
-
-                boolean fin = request.finishVM(vmid);
-                this.asyncRequestMap.addOrReplace(request);
-                if(!fin){
-                    if(request.getAllocatedInstances().equals(0)){
-                        allVMsFinished(request);
-                    }
-                    
-                    //Will just change price and reallocate requests
-                    //if this was not a pre-emption                    
-                    if(request.isSpotRequest()){
-                        this.changePriceAndAllocateRequests();
-                    } else {
-                        this.allocateBackfillRequests();
-                    }                        
-                }
-            } else {
-                logger.debug("A non-preemptable VM was destroyed. Recalculating maximum instances.");
-                this.calculateMaxVMs();
-            }
+        if(isDestroyState(state)) {
+            this.vmsFinished(new int[]{vmid});
         }
     }    
     
@@ -407,6 +402,16 @@ public class AsyncRequestManagerImpl implements AsyncRequestManager {
      * @param state STATE_* in WorkspaceConstants
      */    
     public void stateNotification(int[] vmids, int state) {
+        if(isDestroyState(state)) {
+            try {
+                this.vmsFinished(vmids);
+            } catch (Exception e) {
+                logger.error(Lager.ev(-1) + "Problem handling destruction of " +
+                             vmids.length + " VMs: " + e.getMessage(), e);
+            }
+            return;
+        }
+        
         //assume just non-preemptable VM's are being notified here 
         if(state == WorkspaceConstants.STATE_FIRST_LEGAL){
             boolean doLog = this.backfillEnabled || this.remoteEnabled;
@@ -417,6 +422,85 @@ public class AsyncRequestManagerImpl implements AsyncRequestManager {
         }
     }    
     
+    private static boolean isDestroyState(int state) {
+        return state == WorkspaceConstants.STATE_DESTROYING  ||
+               state == WorkspaceConstants.STATE_DESTROY_FAILED ||
+               state == WorkspaceConstants.STATE_DESTROY_SUCCEEDED;
+    }
+    
+    /**
+     * Marks destroyed VMs as finished in their owning requests.
+     * 
+     * VMs are grouped per request so each request is updated and
+     * persisted once, and prices/allocations are recalculated once
+     * for the whole batch.
+     * 
+     * @param vmids ids of destroyed vms
+     */
+    private void vmsFinished(int[] vmids) {
+        
+        final Map<AsyncRequest, List<Integer>> byRequest =
+                new LinkedHashMap<AsyncRequest, List<Integer>>();
+        boolean nonPreemptableDestroyed = false;
+        
+        for (int vmid : vmids) {
+            AsyncRequest request = this.getRequestFromVM(vmid);
+            if(request == null){
+                nonPreemptableDestroyed = true;
+                continue;
+            }
+            List<Integer> requestVMs = byRequest.get(request);
+            if(requestVMs == null){
+                requestVMs = new ArrayList<Integer>();
+                byRequest.put(request, requestVMs);
+            }
+            requestVMs.add(vmid);
+        }
+        
+        boolean reallocateSpot = false;
+        boolean reallocateBackfill = false;
+        
+        for (Entry<AsyncRequest, List<Integer>> entry : byRequest.entrySet()) {
+            AsyncRequest request = entry.getKey();
+            logger.debug(Lager.ev(-1) + "VMs " + entry.getValue() + " from request '" +
+                         request.getId() + "' finished.");
+            
+            boolean allPreempted = true;
+            for (Integer vmid : entry.getValue()) {
+                if(!request.finishVM(vmid)){
+                    allPreempted = false;
+                }
+            }
+            this.asyncRequestMap.addOrReplace(request);
+            
+            //Will just change price and reallocate requests
+            //if this was not a pre-emption
+            if(!allPreempted){
+                if(request.getAllocatedInstances().equals(0)){
+                    allVMsFinished(request);
+                }
+                
+                if(request.isSpotRequest()){
+                    reallocateSpot = true;
+                } else {
+                    reallocateBackfill = true;
+                }
+            }
+        }
+        
+        if(reallocateSpot){
+            // also allocates backfill requests
+            this.changePriceAndAllocateRequests();
+        } else if(reallocateBackfill){
+            this.allocateBackfillRequests();
+        }
+        
+        if(nonPreemptableDestroyed){
+            logger.debug("A non-preemptable VM was destroyed. Recalculating maximum instances.");
+            this.calculateMaxVMs();
+        }
+    }
+    
     // -------------------------------------------------------------------------
     // PRICE SETTING
     // -------------------------------------------------------------------------     
@@ -452,7 +536,9 @@ public class AsyncRequestManagerImpl implements AsyncRequestManager {
      * price in case the new price is different
      */
     private void changePrice() {
-        Double newPrice = pricingModel.getNextPrice(this.getMaxVMs(), getAliveSpotRequests(), currentPrice);
+        Double newPrice = pricingModel.getNextPrice(this.getMaxVMs(),
+                                                   this.asyncRequestMap.getAliveSpotBids(),
+                                                   currentPrice);
         if(!newPrice.equals(this.currentPrice)){
             logger.info(Lager.ev(-1) + "Spot price has changed. " +
                     "Previous price = " + this.currentPrice + ". " +
@@ -1087,31 +1173,16 @@ public class AsyncRequestManagerImpl implements AsyncRequestManager {
      * @return the request that has this VM allocated
      */
     public AsyncRequest getRequestFromVM(int vmid) {
-        for (AsyncRequest request : this.asyncRequestMap.getAll()) {
-            if(request.isAllocatedVM(vmid)){
-                return request;
-            }
-        }
-        
-        return null;
+        return this.asyncRequestMap.getByAllocatedVM(vmid);
     }         
     
-    /**
-     * Retrieves ACTIVE or OPEN equal or higher bid requests
-     * @return list of alive equal or higher bid requests
-     */    
-    private List<AsyncRequest> getAliveEqualOrHigherBidRequests() {
-        return AsyncRequestFilter.filterAliveRequestsAboveOrEqualPrice(this.currentPrice,
-                                                                       this.asyncRequestMap.getAll());
-    }        
-    
     /**
      * Retrieves ACTIVE or OPEN equal bid requests
      * @return list of alive equal bid requests
      */
     private List<AsyncRequest> getAliveEqualBidRequests(){
         return AsyncRequestFilter.filterAliveRequestsEqualPrice(this.currentPrice,
-                                                                this.asyncRequestMap.getAll());
+                this.asyncRequestMap.getByBidRange(this.currentPrice, true, this.currentPrice, true));
     }  
     
     /**
@@ -1120,7 +1191,7 @@ public class AsyncRequestManagerImpl implements AsyncRequestManager {
      */
     private List<AsyncRequest> getAliveHigherBidRequests() {
         return AsyncRequestFilter.filterAliveRequestsAbovePrice(this.currentPrice,
-                                                                this.asyncRequestMap.getAll());
+                this.asyncRequestMap.getByBidRange(this.currentPrice, false, null, false));
     }
     
     /**
@@ -1128,25 +1199,19 @@ public class AsyncRequestManagerImpl implements AsyncRequestManager {
      * @return list of alive backfill requests
      */
     private List<AsyncRequest> getAliveBackfillRequests(){
-        return AsyncRequestFilter.filterAliveBackfillRequests(this.asyncRequestMap.getAll());
+        return AsyncRequestFilter.filterAliveBackfillRequests(
+                this.asyncRequestMap.getByStatus(AsyncRequestStatus.OPEN,
+                                                 AsyncRequestStatus.ACTIVE,
+                                                 AsyncRequestStatus.CANCELLED));
     }     
     
-    /**
-     * Retrieves alive spot instance requests
-     * @return list of alive requests
-     */
-    private List<AsyncRequest> getAliveSpotRequests() {
-        return AsyncRequestFilter.filterAliveRequestsAboveOrEqualPrice(minPrice,
-                                                                       this.asyncRequestMap.getAll());
-    }
-    
     /**
      * Retrieves allocated lower bid requests
      * @return list of lower bid active requests
      */
     private List<AsyncRequest> getLowerBidRequests() {
         return AsyncRequestFilter.filterAllocatedRequestsBelowPrice(this.currentPrice,
-                                                                    this.asyncRequestMap.getAll());
+                this.asyncRequestMap.getByBidRange(null, false, this.currentPrice, false));
     }    
     
     /**
@@ -1154,31 +1219,20 @@ public class AsyncRequestManagerImpl implements AsyncRequestManager {
      * @return number of needed VMs
      */
     protected Integer getGreaterBidVMCount() {
-        Collection<AsyncRequest> priorityRequests = getAliveHigherBidRequests();
-
-        Integer instanceCount = 0;
-
-        for (AsyncRequest request : priorityRequests) {
-            instanceCount += request.getNeededInstances();
-        }
-
-        return instanceCount;
+        return this.asyncRequestMap.getAliveSpotBids().getNeededInstancesAbove(this.currentPrice);
     } 
     
     /**
      * Retrieves the number of needed VMs by greater or equal bid requests
+     * 
+     * NOTE: this has always counted every alive spot request regardless
+     * of its bid (see AsyncRequestFilter.filterAliveRequestsAboveOrEqualPrice),
+     * the bid book total keeps that behavior.
+     * 
      * @return number of needed VMs
      */
     protected Integer getGreaterOrEqualBidVMCount() {
-        Collection<AsyncRequest> elegibleRequests = getAliveEqualOrHigherBidRequests();
-
-        Integer instanceCount = 0;
-
-        for (AsyncRequest request : elegibleRequests) {
-            instanceCount += request.getNeededInstances();
-        }
-
-        return instanceCount;
+        return this.asyncRequestMap.getAliveSpotBids().getNeededInstances();
     }    
     
     // -------------------------------------------------------------------------
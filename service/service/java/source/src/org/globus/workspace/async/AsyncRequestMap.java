@@ -21,9 +21,31 @@ import org.apache.commons.logging.LogFactory;
 import org.globus.workspace.persistence.PersistenceAdapter;
 import org.globus.workspace.persistence.WorkspaceDatabaseException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
 
-
+/**
+ * Authoritative in-memory view of all asynchronous requests.
+ *
+ * Everything is loaded from persistence once at construction time, after that
+ * reads are served from memory only and every addOrReplace is written through
+ * to persistence.  Requests are indexed by ID, by status, by max bid and by
+ * VM ID (allocated, finished and to-be-preempted VMs all map to their
+ * request), and alive spot requests are aggregated in a {@link BidBook}.
+ *
+ * The indexes are refreshed on addOrReplace, so a request that is mutated
+ * must always be handed back via addOrReplace (this was already required
+ * for the change to be persisted).
+ */
 public class AsyncRequestMap {
 
     // -----------------------------------------------------------------------------------------
@@ -40,6 +62,25 @@ public class AsyncRequestMap {
     // -----------------------------------------------------------------------------------------
 
     private PersistenceAdapter persistence;
+
+    // insertion ordered, getAll() callers see requests in arrival order
+    private final Map<String, AsyncRequest> requests =
+            new LinkedHashMap<String, AsyncRequest>();
+
+    private final Map<AsyncRequestStatus, Set<String>> statusIndex =
+            new EnumMap<AsyncRequestStatus, Set<String>>(AsyncRequestStatus.class);
+
+    private final TreeMap<Double, Set<String>> bidIndex =
+            new TreeMap<Double, Set<String>>();
+
+    private final Map<Integer, String> vmIndex = new HashMap<Integer, String>();
+
+    private final BidBook aliveSpotBids = new BidBook();
+
+    // what each request ID is currently indexed under, needed to unindex
+    // because the request objects themselves are mutated by callers
+    private final Map<String, IndexedKeys> indexedKeys =
+            new HashMap<String, IndexedKeys>();
     
 
     // -----------------------------------------------------------------------------------------
@@ -53,6 +94,11 @@ public class AsyncRequestMap {
         }
 
         this.persistence = persistenceAdapter;
+
+        for (AsyncRequestStatus status : AsyncRequestStatus.values()) {
+            this.statusIndex.put(status, new LinkedHashSet<String>());
+        }
+        
         this.loadAllFromDisk();
     }
 
@@ -74,8 +120,14 @@ public class AsyncRequestMap {
             this.persistence.addAsyncRequest(asyncRequest);
         } catch(WorkspaceDatabaseException e) {
             logger.error("Problem persisting AsyncRequest: ", e);
+            // memory must not get ahead of persistence, a restart would
+            // silently revert whatever was not written
+            this.revertToPersisted(id);
+            return; // *** EARLY RETURN ***
         }
 
+        this.putInMemory(asyncRequest);
+
         logger.debug("saved spot request, id: '" + id + "'");
     }
 
@@ -84,36 +136,112 @@ public class AsyncRequestMap {
             return null;
         }
 
-        try {
-            final AsyncRequest asyncRequest = this.persistence.getAsyncRequest(id);
-            if (asyncRequest != null) {
-                return asyncRequest;
-            }
-        } catch(WorkspaceDatabaseException e) {
-            logger.error("Couldn't retrieve " + id + " from persistence");
+        final AsyncRequest asyncRequest = this.requests.get(id);
+        if (asyncRequest != null) {
+            return asyncRequest;
         }
 
-
         logger.fatal("illegal object extension, no null values allowed");
         return null;
     }
 
     synchronized public Collection<AsyncRequest> getAll() {
+        return new ArrayList<AsyncRequest>(this.requests.values());
+    }
+
+    /**
+     * @param statuses statuses to match
+     * @return requests currently in any of the given statuses, never null
+     */
+    synchronized public List<AsyncRequest> getByStatus(AsyncRequestStatus... statuses) {
+        final List<AsyncRequest> result = new ArrayList<AsyncRequest>();
+        if (statuses == null) {
+            return result;
+        }
+        for (AsyncRequestStatus status : statuses) {
+            this.resolve(this.statusIndex.get(status), result);
+        }
+        return result;
+    }
+
+    /**
+     * @param fromBid lower bound, null for unbounded
+     * @param fromInclusive true if requests bidding exactly fromBid are included
+     * @param toBid upper bound, null for unbounded
+     * @param toInclusive true if requests bidding exactly toBid are included
+     * @return requests whose max bid is within the range, ordered by bid, never null
+     */
+    synchronized public List<AsyncRequest> getByBidRange(Double fromBid,
+                                                         boolean fromInclusive,
+                                                         Double toBid,
+                                                         boolean toInclusive) {
+
+        NavigableMap<Double, Set<String>> range = this.bidIndex;
+        if (fromBid != null) {
+            range = range.tailMap(fromBid, fromInclusive);
+        }
+        if (toBid != null) {
+            range = range.headMap(toBid, toInclusive);
+        }
 
-        Collection<AsyncRequest> all = null;
+        final List<AsyncRequest> result = new ArrayList<AsyncRequest>();
+        for (Set<String> ids : range.values()) {
+            this.resolve(ids, result);
+        }
+        return result;
+    }
+
+    /**
+     * @param vmid VM ID
+     * @return the request that this VM was launched for (whether it is still
+     *         allocated or not), or null
+     */
+    synchronized public AsyncRequest getByVM(int vmid) {
+        final String id = this.vmIndex.get(vmid);
+        if (id == null) {
+            return null;
+        }
+        return this.requests.get(id);
+    }
+
+    /**
+     * @param vmid VM ID
+     * @return the request that currently has this VM allocated, or null
+     */
+    synchronized public AsyncRequest getByAllocatedVM(int vmid) {
+        final AsyncRequest asyncRequest = this.getByVM(vmid);
+        if (asyncRequest != null && asyncRequest.isAllocatedVM(vmid)) {
+            return asyncRequest;
+        }
+        return null;
+    }
+
+    /**
+     * @return copy of the current bid book of alive spot requests
+     */
+    synchronized public BidBook getAliveSpotBids() {
+        return new BidBook(this.aliveSpotBids);
+    }
+
+    private void loadAllFromDisk() throws IOException {
+        final Collection<AsyncRequest> all;
         try {
             all = this.persistence.getAllAsyncRequests();
         } catch(WorkspaceDatabaseException e) {
             logger.error("Unable to load spot instances from persistence");
+            throw new IOException("Unable to load spot instances from persistence: " +
+                                  e.getMessage());
         }
 
-        return all;
-    }
-
-    private void loadAllFromDisk() throws IOException {
-        Collection<AsyncRequest> all = this.getAll();
         int count = 0;
         if (all != null) {
+            synchronized (this) {
+                for (AsyncRequest asyncRequest : all) {
+                    if (asyncRequest != null && asyncRequest.getId() != null) {
+                        this.putInMemory(asyncRequest);
+                    }
+                }
+            }
             count = all.size();
         }
         logger.info("Found " + count + " spot requests on disk.");
@@ -122,4 +250,154 @@ public class AsyncRequestMap {
     void shutdownImmediately() {
         logger.debug("Shut down stub");
     }
+
+
+    // -----------------------------------------------------------------------------------------
+    // INDEXING
+    // -----------------------------------------------------------------------------------------
+
+    // caller holds this object's lock
+    private void putInMemory(AsyncRequest asyncRequest) {
+        final String id = asyncRequest.getId();
+        this.unindex(id);
+        this.requests.put(id, asyncRequest);
+        this.index(asyncRequest);
+    }
+
+    // caller holds this object's lock
+    private void revertToPersisted(String id) {
+
+        // callers mutate the in-memory instance before handing it back, so
+        // it is replaced with a fresh copy of what persistence has
+        final AsyncRequest persisted;
+        try {
+            persisted = this.persistence.getAsyncRequest(id);
+        } catch (WorkspaceDatabaseException e) {
+            logger.error("Could not re-read AsyncRequest '" + id + "' after " +
+                         "a failed write, dropping it from memory until " +
+                         "restart", e);
+            this.unindex(id);
+            this.requests.remove(id);
+            return; // *** EARLY RETURN ***
+        }
+
+        if (persisted == null) {
+            this.unindex(id);
+            this.requests.remove(id);
+        } else {
+            this.putInMemory(persisted);
+        }
+    }
+
+    private void index(AsyncRequest asyncRequest) {
+        final String id = asyncRequest.getId();
+        final boolean booked = asyncRequest.isSpotRequest() && asyncRequest.isAlive()
+                                        && asyncRequest.getMaxBid() != null;
+        final IndexedKeys keys = new IndexedKeys(asyncRequest.getStatus(),
+                                                 asyncRequest.getMaxBid(),
+                                                 ownedVMs(asyncRequest),
+                                                 booked,
+                                                 booked ? asyncRequest.getNeededInstances() : 0);
+
+        if (keys.status != null) {
+            this.statusIndex.get(keys.status).add(id);
+        }
+
+        if (keys.maxBid != null) {
+            Set<String> ids = this.bidIndex.get(keys.maxBid);
+            if (ids == null) {
+                ids = new LinkedHashSet<String>();
+                this.bidIndex.put(keys.maxBid, ids);
+            }
+            ids.add(id);
+        }
+
+        if (keys.booked) {
+            this.aliveSpotBids.add(keys.maxBid, keys.bookedNeeded);
+        }
+
+        for (int vmid : keys.vmids) {
+            final String previous = this.vmIndex.put(vmid, id);
+            if (previous != null && !previous.equals(id)) {
+                logger.warn("VM " + vmid + " was indexed to request '" +
+                            previous + "', now indexed to request '" + id + "'");
+            }
+        }
+
+        this.indexedKeys.put(id, keys);
+    }
+
+    private void unindex(String id) {
+        final IndexedKeys keys = this.indexedKeys.remove(id);
+        if (keys == null) {
+            return;
+        }
+
+        if (keys.status != null) {
+            this.statusIndex.get(keys.status).remove(id);
+        }
+
+        if (keys.maxBid != null) {
+            final Set<String> ids = this.bidIndex.get(keys.maxBid);
+            if (ids != null) {
+                ids.remove(id);
+                if (ids.isEmpty()) {
+                    this.bidIndex.remove(keys.maxBid);
+                }
+            }
+        }
+
+        if (keys.booked) {
+            this.aliveSpotBids.remove(keys.maxBid, keys.bookedNeeded);
+        }
+
+        for (int vmid : keys.vmids) {
+            if (id.equals(this.vmIndex.get(vmid))) {
+                this.vmIndex.remove(vmid);
+            }
+        }
+    }
+
+    private static int[] ownedVMs(AsyncRequest asyncRequest) {
+        final int[] allocated = asyncRequest.getAllocatedVMs();
+        final int[] finished = asyncRequest.getFinishedVMs();
+        final int[] toBePreempted = asyncRequest.getToBePreempted();
+        final int[] vmids =
+                new int[allocated.length + finished.length + toBePreempted.length];
+        System.arraycopy(allocated, 0, vmids, 0, allocated.length);
+        System.arraycopy(finished, 0, vmids, allocated.length, finished.length);
+        System.arraycopy(toBePreempted, 0, vmids,
+                         allocated.length + finished.length, toBePreempted.length);
+        return vmids;
+    }
+
+    private void resolve(Set<String> ids, List<AsyncRequest> result) {
+        if (ids == null) {
+            return;
+        }
+        for (String id : ids) {
+            final AsyncRequest asyncRequest = this.requests.get(id);
+            if (asyncRequest != null) {
+                result.add(asyncRequest);
+            }
+        }
+    }
+
+    private static class IndexedKeys {
+
+        final AsyncRequestStatus status;
+        final Double maxBid;
+        final int[] vmids;
+        final boolean booked;
+        final int bookedNeeded;
+
+        IndexedKeys(AsyncRequestStatus status, Double maxBid, int[] vmids,
+                    boolean booked, int bookedNeeded) {
+            this.status = status;
+            this.maxBid = maxBid;
+            this.vmids = vmids;
+            this.booked = booked;
+            this.bookedNeeded = bookedNeeded;
+        }
+    }
 }
@@ -0,0 +1,189 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace.async;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+
+/**
+ * Price ordered view of spot instance demand: for every distinct max bid,
+ * the number of requests bidding it and the sum of their needed instances.
+ *
+ * AsyncRequestMap maintains one of these incrementally for all alive spot
+ * requests, pricing models and the allocation passes read from it instead
+ * of filtering the whole request collection per price candidate.
+ *
+ * Not thread safe, AsyncRequestMap hands out copies.
+ */
+public class BidBook {
+
+    // -----------------------------------------------------------------------------------------
+    // INSTANCE VARIABLES
+    // -----------------------------------------------------------------------------------------
+
+    private final TreeMap<Double, Level> levels = new TreeMap<Double, Level>();
+
+    private int requestCount;
+    private int neededInstances;
+
+
+    // -----------------------------------------------------------------------------------------
+    // CONSTRUCTORS
+    // -----------------------------------------------------------------------------------------
+
+    public BidBook() {
+    }
+
+    public BidBook(BidBook other) {
+        if (other == null) {
+            throw new IllegalArgumentException("other may not be null");
+        }
+        for (Map.Entry<Double, Level> entry : other.levels.entrySet()) {
+            this.levels.put(entry.getKey(), new Level(entry.getValue()));
+        }
+        this.requestCount = other.requestCount;
+        this.neededInstances = other.neededInstances;
+    }
+
+    /**
+     * @param requests requests to book, all of them are taken into account
+     * @return new book
+     */
+    public static BidBook fromRequests(Collection<AsyncRequest> requests) {
+        final BidBook book = new BidBook();
+        if (requests != null) {
+            for (AsyncRequest request : requests) {
+                book.add(request.getMaxBid(), request.getNeededInstances());
+            }
+        }
+        return book;
+    }
+
+
+    // -----------------------------------------------------------------------------------------
+    // MUTATE
+    // -----------------------------------------------------------------------------------------
+
+    public void add(Double bid, int needed) {
+        if (bid == null) {
+            throw new IllegalArgumentException("bid may not be null");
+        }
+        Level level = this.levels.get(bid);
+        if (level == null) {
+            level = new Level();
+            this.levels.put(bid, level);
+        }
+        level.requests += 1;
+        level.neededInstances += needed;
+        this.requestCount += 1;
+        this.neededInstances += needed;
+    }
+
+    public void remove(Double bid, int needed) {
+        if (bid == null) {
+            throw new IllegalArgumentException("bid may not be null");
+        }
+        final Level level = this.levels.get(bid);
+        if (level == null) {
+            throw new IllegalStateException("no bids booked at " + bid);
+        }
+        level.requests -= 1;
+        level.neededInstances -= needed;
+        this.requestCount -= 1;
+        this.neededInstances -= needed;
+        if (level.requests == 0) {
+            this.levels.remove(bid);
+        }
+    }
+
+
+    // -----------------------------------------------------------------------------------------
+    // QUERY
+    // -----------------------------------------------------------------------------------------
+
+    public boolean isEmpty() {
+        return this.levels.isEmpty();
+    }
+
+    public int getRequestCount() {
+        return this.requestCount;
+    }
+
+    public int getNeededInstances() {
+        return this.neededInstances;
+    }
+
+    /**
+     * @param minBid lowest bid to include
+     * @return distinct bids at or above minBid, ascending
+     */
+    public NavigableSet<Double> getBids(Double minBid) {
+        if (minBid == null) {
+            return this.levels.navigableKeySet();
+        }
+        return this.levels.tailMap(minBid, true).navigableKeySet();
+    }
+
+    public int getRequestCountAt(Double bid) {
+        final Level level = this.levels.get(bid);
+        return level == null ? 0 : level.requests;
+    }
+
+    public int getNeededInstancesAt(Double bid) {
+        final Level level = this.levels.get(bid);
+        return level == null ? 0 : level.neededInstances;
+    }
+
+    public int getRequestCountAbove(Double bid) {
+        int count = 0;
+        for (Level level : this.levels.tailMap(bid, false).values()) {
+            count += level.requests;
+        }
+        return count;
+    }
+
+    public int getNeededInstancesAbove(Double bid) {
+        int count = 0;
+        for (Level level : this.levels.tailMap(bid, false).values()) {
+            count += level.neededInstances;
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return "BidBook [levels=" + this.levels.size() + ", requests=" +
+                this.requestCount + ", neededInstances=" + this.neededInstances + "]";
+    }
+
+
+    private static class Level {
+
+        int requests;
+        int neededInstances;
+
+        Level() {
+        }
+
+        Level(Level other) {
+            this.requests = other.requests;
+            this.neededInstances = other.neededInstances;
+        }
+    }
+}
@@ -1,10 +1,10 @@
 package org.globus.workspace.async.pricingmodel;
 
 import java.util.Collection;
-import java.util.Collections;
-import java.util.LinkedList;
+import java.util.NavigableSet;
 
 import org.globus.workspace.async.AsyncRequest;
+import org.globus.workspace.async.BidBook;
 
 public abstract class AbstractPricingModel implements PricingModel{
     
@@ -24,39 +24,35 @@ public abstract class AbstractPricingModel implements PricingModel{
     }
     
     public Double getNextPrice(Integer totalReservedResources, Collection<AsyncRequest> requests, Double currentPrice) {
+        return getNextPrice(totalReservedResources, BidBook.fromRequests(requests), currentPrice);
+    }
+
+    public Double getNextPrice(Integer totalReservedResources, BidBook bids, Double currentPrice) {
         
-        if(requests.isEmpty()){
+        if(bids.isEmpty()){
             return minPrice;
         }
         
-        LinkedList<Double> priceCandidates = getOrderedPriceCandidates(requests);
+        NavigableSet<Double> priceCandidates = getOrderedPriceCandidates(bids);
         
         if(totalReservedResources < 1 && !priceCandidates.isEmpty()){
-            Double highestPrice = priceCandidates.getLast();
+            Double highestPrice = priceCandidates.last();
             return highestPrice+0.1;
         }
         
-        return getNextPriceImpl(totalReservedResources, requests, currentPrice);
+        return getNextPriceImpl(totalReservedResources, bids, currentPrice);
     }
     
     
     protected abstract Double getNextPriceImpl(Integer totalReservedResources,
-            Collection<AsyncRequest> requests, Double currentPrice);
+            BidBook bids, Double currentPrice);
 
 
-    protected LinkedList<Double> getOrderedPriceCandidates(Collection<AsyncRequest> requests) {
-        
-        LinkedList<Double> priceCandidates = new LinkedList<Double>();
-        
-        for (AsyncRequest siRequest : requests) {
-            Double requestBid = siRequest.getMaxBid();
-            if(requestBid >= minPrice){
-                priceCandidates.add(requestBid);
-            }
-        }
-        
-        Collections.sort(priceCandidates);
-        
-        return priceCandidates;
+    /**
+     * @param bids booked bids
+     * @return distinct bids at or above the minimum price, ascending
+     */
+    protected NavigableSet<Double> getOrderedPriceCandidates(BidBook bids) {
+        return bids.getBids(minPrice);
     }
 }
@@ -1,23 +1,29 @@
 package org.globus.workspace.async.pricingmodel;
 
-import java.util.Collection;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.NavigableSet;
 
-import org.globus.workspace.async.AsyncRequest;
-import org.globus.workspace.async.AsyncRequestFilter;
+import org.globus.workspace.async.BidBook;
 
 public class MaximizeProfitPricingModel extends AbstractPricingModel {
 
     @Override
-    public Double getNextPriceImpl(Integer totalReservedResources, Collection<AsyncRequest> requests, Double currentPrice) {
+    public Double getNextPriceImpl(Integer totalReservedResources, BidBook bids, Double currentPrice) {
                 
-        LinkedList<Double> priceCandidates = getOrderedPriceCandidates(requests);
+        NavigableSet<Double> priceCandidates = getOrderedPriceCandidates(bids);
+
+        if(priceCandidates.isEmpty()){
+            return minPrice;
+        }
+
+        Double[] profits = getProfits(priceCandidates, totalReservedResources, bids);
         
         Double highestProfitPrice = PricingModelConstants.NEGATIVE_INFINITY;
         Double highestProfit = PricingModelConstants.NEGATIVE_INFINITY;
         
+        int i = 0;
         for (Double priceCandidate : priceCandidates) {
-            Double profit = getProfit(priceCandidate, totalReservedResources, requests);
+            Double profit = profits[i++];
             if(profit > highestProfit){
                 highestProfit = profit;
                 highestProfitPrice = priceCandidate;
@@ -25,7 +31,7 @@ public class MaximizeProfitPricingModel extends AbstractPricingModel {
         }
         
         if(highestProfitPrice == PricingModelConstants.NEGATIVE_INFINITY){
-            Double highestPrice = priceCandidates.getLast();
+            Double highestPrice = priceCandidates.last();
             return highestPrice+1;
         }
         
@@ -33,52 +39,50 @@ public class MaximizeProfitPricingModel extends AbstractPricingModel {
     }
 
 
-    private static Double getProfit(Double priceCandidate, Integer availableResources, Collection<AsyncRequest> allRequests){
-        
-        Collection<AsyncRequest> priorityOffers = AsyncRequestFilter.getRequestsAbovePrice(priceCandidate, allRequests);
-        Collection<AsyncRequest> limitOffers = AsyncRequestFilter.getRequestsEqualPrice(priceCandidate, allRequests);
-        
-        Collection<AsyncRequest> eligibleOffers = union(priorityOffers, limitOffers);
-        
-        Double priorityUtilization = getUtilization(priorityOffers, availableResources);
-        
-        if(!priorityOffers.isEmpty() && priorityUtilization >= 1.0){
-            return PricingModelConstants.NEGATIVE_INFINITY;
-        }
-        
-        return getProfitFromEligibleOffers(eligibleOffers, priceCandidate);
-    }
+    /**
+     * Walks the candidates from the highest down, accumulating the demand
+     * above each one, so all profits are computed in a single pass.
+     * @return profit for each candidate, in ascending candidate order
+     */
+    private static Double[] getProfits(NavigableSet<Double> priceCandidates,
+                                       Integer availableResources,
+                                       BidBook bids) {
 
-    private static Double getProfitFromEligibleOffers(Collection<AsyncRequest> eligibleOffers, Double priceCandidate) {
-        
-        Double totalProfit = 0.0;
-        
-        for (AsyncRequest siRequest : eligibleOffers) {
-            totalProfit += siRequest.getNeededInstances()*priceCandidate;
+        Double[] profits = new Double[priceCandidates.size()];
+
+        int priorityRequests = bids.getRequestCountAbove(priceCandidates.last());
+        int priorityDemand = bids.getNeededInstancesAbove(priceCandidates.last());
+
+        int i = profits.length - 1;
+        Iterator<Double> iterator = priceCandidates.descendingIterator();
+        while(iterator.hasNext()){
+            Double priceCandidate = iterator.next();
+            int limitDemand = bids.getNeededInstancesAt(priceCandidate);
+
+            profits[i--] = getProfit(priceCandidate, availableResources,
+                                     priorityRequests, priorityDemand, limitDemand);
+
+            priorityRequests += bids.getRequestCountAt(priceCandidate);
+            priorityDemand += limitDemand;
         }
-        
-        return totalProfit;
-    }
 
-    private static Collection<AsyncRequest> union(
-            Collection<AsyncRequest> priorityOffers,
-            Collection<AsyncRequest> limitOffers) {
-        
-        LinkedList<AsyncRequest> union = new LinkedList<AsyncRequest>(priorityOffers);
-        union.addAll(limitOffers);
-        
-        return union;
+        return profits;
     }
 
-    private static Double getUtilization(Collection<AsyncRequest> bids, Integer offeredResources){
+    private static Double getProfit(Double priceCandidate, Integer availableResources,
+                                    int priorityRequests, int priorityDemand, int limitDemand){
         
-        Double demand = 0.0;
+        Double priorityUtilization = getUtilization(priorityDemand, availableResources);
         
-        for (AsyncRequest siRequest : bids) {
-            demand += siRequest.getNeededInstances();
+        if(priorityRequests > 0 && priorityUtilization >= 1.0){
+            return PricingModelConstants.NEGATIVE_INFINITY;
         }
         
-        return demand/offeredResources;
+        return (priorityDemand + limitDemand)*priceCandidate;
+    }
+
+    private static Double getUtilization(int demand, Integer offeredResources){
+        return (double)demand/offeredResources;
     }
 
 }
@@ -1,10 +1,6 @@
 package org.globus.workspace.async.pricingmodel;
 
-import java.util.Collection;
-import java.util.Collections;
-import java.util.LinkedList;
-
-import org.globus.workspace.async.AsyncRequest;
+import org.globus.workspace.async.BidBook;
 
 public class MaximizeUtilizationPricingModel extends AbstractPricingModel {
 
@@ -19,21 +15,16 @@ public class MaximizeUtilizationPricingModel extends AbstractPricingModel {
     }
     
     protected Double getNextPriceImpl(Integer totalReservedResources,
-            Collection<AsyncRequest> requests, Double currentPrice) {
+            BidBook bids, Double currentPrice) {
        
-        LinkedList<AsyncRequest> reverseOrderedRequests = new LinkedList<AsyncRequest>(requests);
-        Collections.sort(reverseOrderedRequests, Collections.reverseOrder());
-        
         Double nextPrice = this.minPrice;
         Integer availableResources = totalReservedResources;
         
-        for (AsyncRequest siRequest : reverseOrderedRequests) {
-            if(siRequest.getMaxBid() >= this.minPrice){
-                nextPrice = siRequest.getMaxBid();
-                availableResources -= siRequest.getNeededInstances();
-                if(availableResources <= 0){
-                    break;
-                }
+        for (Double bid : getOrderedPriceCandidates(bids).descendingSet()) {
+            nextPrice = bid;
+            availableResources -= bids.getNeededInstancesAt(bid);
+            if(availableResources <= 0){
+                break;
             }
         }
         
@@ -3,11 +3,15 @@ package org.globus.workspace.async.pricingmodel;
 import java.util.Collection;
 
 import org.globus.workspace.async.AsyncRequest;
+import org.globus.workspace.async.BidBook;
 
 public interface PricingModel {
 
     Double getNextPrice(Integer totalReservedResources,
             Collection<AsyncRequest> aliveRequests, Double currentPrice);
+
+    Double getNextPrice(Integer totalReservedResources,
+            BidBook aliveBids, Double currentPrice);
     
     void setMinPrice(Double minPrice);
     
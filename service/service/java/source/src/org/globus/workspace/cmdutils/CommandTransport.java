@@ -0,0 +1,56 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace.cmdutils;
+
+import org.globus.workspace.ReturnException;
+import org.globus.workspace.WorkspaceException;
+
+/**
+ * How commands meant for a VMM node get there.
+ *
+ * Commands arrive fully built, usually the SSHUtil.constructSshCommand
+ * prefix for the node followed by the remote command.  A transport may run
+ * that as it is (ForkTransport) or recognize the prefix and carry the remote
+ * part some other way (JSchTransport).  Tests can plug in a fake.
+ *
+ * @see org.globus.workspace.xen.VMMCommandScheduler#setTransport
+ */
+public interface CommandTransport {
+
+    /**
+     * @see org.globus.workspace.WorkspaceUtil#runCommand(String[], boolean, boolean, int)
+     * @param node VMM the command is for
+     * @param cmd command
+     * @param eventLog log events
+     * @param traceLog log traces
+     * @param trackingID workspace ID for logging
+     * @return stdout, may be null
+     * @throws WorkspaceException problem running
+     * @throws ReturnException non-zero exit
+     */
+    public String run(String node,
+                      String[] cmd,
+                      boolean eventLog,
+                      boolean traceLog,
+                      int trackingID)
+            throws WorkspaceException, ReturnException;
+
+    /**
+     * Releases connections etc., commands may still be run afterwards.
+     */
+    public void shutdown();
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace.cmdutils;
+
+import org.globus.workspace.ReturnException;
+import org.globus.workspace.WorkspaceException;
+import org.globus.workspace.WorkspaceUtil;
+
+/**
+ * Forks every command, for VMM nodes that means one ssh process (and
+ * connection) per command.  The default.
+ */
+public class ForkTransport implements CommandTransport {
+
+    public String run(String node,
+                      String[] cmd,
+                      boolean eventLog,
+                      boolean traceLog,
+                      int trackingID)
+            throws WorkspaceException, ReturnException {
+
+        return WorkspaceUtil.runCommand(cmd, eventLog, traceLog, trackingID);
+    }
+
+    public void shutdown() {
+        // nothing held
+    }
+}
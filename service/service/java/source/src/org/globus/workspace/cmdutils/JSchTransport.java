@@ -0,0 +1,428 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace.cmdutils;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.globus.workspace.Lager;
+import org.globus.workspace.ReturnException;
+import org.globus.workspace.WorkspaceException;
+import org.globus.workspace.WorkspaceUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs ssh commands in-process: keeps authenticated sessions to each VMM
+ * node and runs every command on an exec channel of one of them, so there
+ * is no process, TCP connect or key exchange per command.
+ *
+ * Commands that do not start with the SSHUtil.constructSshCommand prefix
+ * for their node (scp, local commands) are forked as before.
+ *
+ * Authentication is by key only (like ssh -o BatchMode=yes) with the
+ * configured identity file or ~/.ssh/id_rsa and ~/.ssh/id_dsa, and host
+ * keys must be in ~/.ssh/known_hosts.
+ */
+public class JSchTransport implements CommandTransport {
+
+    // -------------------------------------------------------------------------
+    // STATIC VARIABLES
+    // -------------------------------------------------------------------------
+
+    private static final Log logger =
+            LogFactory.getLog(JSchTransport.class.getName());
+
+    private static final int CONNECT_TIMEOUT_MS = 30000;
+    private static final int SERVER_ALIVE_MS = 60000;
+
+
+    // -------------------------------------------------------------------------
+    // INSTANCE VARIABLES
+    // -------------------------------------------------------------------------
+
+    private final JSch jsch;
+    private final String account;
+    private final int sessionsPerNode;
+    private final int channelsPerSession;
+    private final long idleMillis;
+
+    private final Map<String,NodeSessions> nodes =
+            new HashMap<String,NodeSessions>();
+
+
+    // -------------------------------------------------------------------------
+    // CONSTRUCTOR
+    // -------------------------------------------------------------------------
+
+    /**
+     * @param sshAccount remote account, null for the local user name
+     * @param identityFile private key, null for the ~/.ssh defaults
+     * @param sessions most sessions kept open to one node
+     * @param channels most commands running at once on one session (sshd
+     *        has a limit too, OpenSSH's MaxSessions defaults to 10)
+     * @param idleSeconds sessions unused this long are closed
+     * @throws WorkspaceException no usable key or known hosts
+     */
+    public JSchTransport(String sshAccount,
+                         String identityFile,
+                         int sessions,
+                         int channels,
+                         int idleSeconds) throws WorkspaceException {
+
+        if (sessions < 1) {
+            throw new IllegalArgumentException("sessions must be positive");
+        }
+        this.sessionsPerNode = sessions;
+
+        if (channels < 1) {
+            throw new IllegalArgumentException("channels must be positive");
+        }
+        this.channelsPerSession = channels;
+
+        this.idleMillis = idleSeconds * 1000L;
+
+        if (sshAccount == null || sshAccount.trim().length() == 0) {
+            this.account = System.getProperty("user.name");
+        } else {
+            this.account = sshAccount.trim();
+        }
+
+        this.jsch = new JSch();
+        final String sshDir = System.getProperty("user.home") +
+                File.separator + ".ssh" + File.separator;
+        try {
+            if (identityFile != null) {
+                this.jsch.addIdentity(identityFile);
+            } else {
+                int found = 0;
+                final String[] defaults = {"id_rsa", "id_dsa"};
+                for (int i = 0; i < defaults.length; i++) {
+                    final File key = new File(sshDir + defaults[i]);
+                    if (key.exists()) {
+                        this.jsch.addIdentity(key.getAbsolutePath());
+                        found += 1;
+                    }
+                }
+                if (found == 0) {
+                    throw new WorkspaceException("no identity file " +
+                            "configured and none found in " + sshDir);
+                }
+            }
+            this.jsch.setKnownHosts(sshDir + "known_hosts");
+        } catch (JSchException e) {
+            throw new WorkspaceException("Problem setting up SSH keys: " +
+                    e.getMessage(), e);
+        }
+    }
+
+
+    // -------------------------------------------------------------------------
+    // implements CommandTransport
+    // -------------------------------------------------------------------------
+
+    public String run(String node,
+                      String[] cmd,
+                      boolean eventLog,
+                      boolean traceLog,
+                      int trackingID)
+            throws WorkspaceException, ReturnException {
+
+        final String[] remote = SSHUtil.remoteCommand(node, cmd);
+        if (remote == null) {
+            return WorkspaceUtil.runCommand(cmd, eventLog, traceLog, trackingID);
+        }
+
+        if (eventLog) {
+            logger.info(Lager.ev(trackingID) + WorkspaceUtil.printCmd(cmd));
+        } else if (traceLog) {
+            logger.trace(WorkspaceUtil.printCmd(cmd));
+        }
+
+        // ssh sends the arguments joined with spaces too
+        final StringBuffer command = new StringBuffer(256);
+        for (int i = 0; i < remote.length; i++) {
+            if (i > 0) {
+                command.append(' ');
+            }
+            command.append(remote[i]);
+        }
+
+        final NodeSessions sessions = this.getNode(node);
+
+        // a pooled session may have died since it was last used, one retry
+        // on a new session if the command did not get started
+        for (int attempt = 1; ; attempt++) {
+            final PooledSession pooled = sessions.acquire();
+            boolean broken = false;
+            try {
+                return this.exec(pooled.session, command.toString(),
+                                 eventLog, traceLog, trackingID);
+            } catch (NotStarted e) {
+                broken = true;
+                if (attempt > 1 || pooled.fresh) {
+                    throw new WorkspaceException("Problem running command " +
+                            "over SSH to '" + node + "': " +
+                            e.getCause().getMessage(), e.getCause());
+                }
+                if (traceLog) {
+                    logger.trace("pooled SSH session to '" + node + "' is " +
+                            "not usable, retrying on a new one");
+                }
+            } catch (IOException e) {
+                broken = true;
+                throw new WorkspaceException("Problem running command over " +
+                        "SSH to '" + node + "': " + e.getMessage(), e);
+            } finally {
+                sessions.release(pooled, broken);
+            }
+        }
+    }
+
+    public void shutdown() {
+        final List<NodeSessions> all;
+        synchronized (this.nodes) {
+            all = new ArrayList<NodeSessions>(this.nodes.values());
+        }
+        for (NodeSessions sessions : all) {
+            sessions.close();
+        }
+    }
+
+
+    // -------------------------------------------------------------------------
+    // EXEC
+    // -------------------------------------------------------------------------
+
+    private String exec(Session session,
+                        String command,
+                        boolean eventLog,
+                        boolean traceLog,
+                        int trackingID)
+            throws NotStarted, IOException, ReturnException,
+                   WorkspaceException {
+
+        final ChannelExec channel;
+        final InputStream stdoutStream;
+        final ByteArrayOutputStream stderrBytes = new ByteArrayOutputStream();
+        try {
+            channel = (ChannelExec) session.openChannel("exec");
+            channel.setCommand(command);
+            channel.setInputStream(null); // like ssh -n
+            channel.setErrStream(stderrBytes, true);
+            stdoutStream = channel.getInputStream();
+            channel.connect(CONNECT_TIMEOUT_MS);
+        } catch (JSchException e) {
+            throw new NotStarted(e);
+        }
+
+        try {
+            final ByteArrayOutputStream stdoutBytes = new ByteArrayOutputStream();
+            final byte[] buf = new byte[4096];
+            int n;
+            while ((n = stdoutStream.read(buf)) >= 0) {
+                stdoutBytes.write(buf, 0, n);
+            }
+
+            // the exit status arrives before the channel closes
+            while (!channel.isClosed()) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new WorkspaceException("Interrupted: ", e);
+                }
+            }
+
+            int returnCode = channel.getExitStatus();
+            if (returnCode < 0) {
+                // no exit status (killed by a signal?), what ssh reports
+                returnCode = 255;
+            }
+
+            final String stdout = WorkspaceUtil.readLines(
+                    new ByteArrayInputStream(stdoutBytes.toByteArray()));
+            final String stderr = WorkspaceUtil.readLines(
+                    new ByteArrayInputStream(stderrBytes.toByteArray()));
+
+            return WorkspaceUtil.handleReturn(returnCode, stdout, stderr, true,
+                                              eventLog, traceLog, trackingID);
+        } finally {
+            channel.disconnect();
+        }
+    }
+
+    private static class NotStarted extends Exception {
+        NotStarted(JSchException e) {
+            super(e);
+        }
+    }
+
+
+    // -------------------------------------------------------------------------
+    // SESSIONS
+    // -------------------------------------------------------------------------
+
+    private NodeSessions getNode(String node) {
+        synchronized (this.nodes) {
+            NodeSessions sessions = this.nodes.get(node);
+            if (sessions == null) {
+                sessions = new NodeSessions(node);
+                this.nodes.put(node, sessions);
+            }
+            return sessions;
+        }
+    }
+
+    private static class PooledSession {
+        final Session session;
+        int channels;
+        long lastUsed;
+        // not used for a command yet
+        boolean fresh = true;
+
+        PooledSession(Session session) {
+            this.session = session;
+        }
+    }
+
+    private class NodeSessions {
+
+        private final String node;
+        private final List<PooledSession> sessions =
+                new ArrayList<PooledSession>();
+        private int connecting;
+
+        NodeSessions(String node) {
+            this.node = node;
+        }
+
+        PooledSession acquire() throws WorkspaceException {
+
+            synchronized (this) {
+                while (true) {
+                    this.closeIdle(System.currentTimeMillis());
+
+                    // fill up open sessions before opening more
+                    for (PooledSession pooled : this.sessions) {
+                        if (pooled.channels < channelsPerSession &&
+                                pooled.session.isConnected()) {
+                            pooled.channels += 1;
+                            pooled.fresh = false;
+                            return pooled;
+                        }
+                    }
+
+                    if (this.sessions.size() + this.connecting < sessionsPerNode) {
+                        this.connecting += 1;
+                        break;
+                    }
+
+                    try {
+                        this.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new WorkspaceException(
+                                "interrupted waiting for an SSH channel", e);
+                    }
+                }
+            }
+
+            // key exchange outside of the lock, other commands may still
+            // use the open sessions meanwhile
+            Session session = null;
+            try {
+                session = jsch.getSession(account, this.node, 22);
+                session.setConfig("StrictHostKeyChecking", "yes");
+                session.setServerAliveInterval(SERVER_ALIVE_MS);
+                session.connect(CONNECT_TIMEOUT_MS);
+                logger.debug("opened SSH session to '" + this.node + "'");
+            } catch (JSchException e) {
+                if (session != null) {
+                    session.disconnect();
+                }
+                session = null;
+                throw new WorkspaceException("Could not open SSH session " +
+                        "to '" + account + "@" + this.node + "': " +
+                        e.getMessage(), e);
+            } finally {
+                synchronized (this) {
+                    this.connecting -= 1;
+                    this.notifyAll();
+                }
+            }
+
+            final PooledSession pooled = new PooledSession(session);
+            synchronized (this) {
+                pooled.channels = 1;
+                this.sessions.add(pooled);
+            }
+            return pooled;
+        }
+
+        synchronized void release(PooledSession pooled, boolean broken) {
+            pooled.channels -= 1;
+            pooled.lastUsed = System.currentTimeMillis();
+            if (broken || !pooled.session.isConnected()) {
+                // no new commands on it, running ones finish (or fail)
+                if (this.sessions.remove(pooled)) {
+                    logger.debug("dropping SSH session to '" + this.node + "'");
+                }
+            }
+            if (pooled.channels == 0 && !this.sessions.contains(pooled)) {
+                // the last command on a dropped session
+                pooled.session.disconnect();
+            }
+            this.notifyAll();
+        }
+
+        private void closeIdle(long now) {
+            final Iterator<PooledSession> iter = this.sessions.iterator();
+            while (iter.hasNext()) {
+                final PooledSession pooled = iter.next();
+                if (pooled.channels > 0) {
+                    continue;
+                }
+                if (!pooled.session.isConnected() ||
+                        now - pooled.lastUsed >= idleMillis) {
+                    iter.remove();
+                    pooled.session.disconnect();
+                }
+            }
+        }
+
+        synchronized void close() {
+            for (PooledSession pooled : this.sessions) {
+                pooled.session.disconnect();
+            }
+            this.sessions.clear();
+            this.notifyAll();
+        }
+    }
+}
@@ -68,6 +68,48 @@ public class SSHUtil {
         return scpExe;
     }
 
+    public static String getSshaccount() {
+        return account;
+    }
+
+    public static String getSshIdentityFile() {
+        return sshIdFile;
+    }
+
+    /**
+     * @param node node
+     * @param cmd command
+     * @return the part of cmd that follows the constructSshCommand prefix
+     *         for this node, null if cmd does not start with that prefix
+     *         (or ssh is not configured)
+     */
+    public static String[] remoteCommand(String node, String[] cmd) {
+
+        if (node == null || cmd == null || executable == null) {
+            return null;
+        }
+
+        final ArrayList prefix;
+        try {
+            prefix = constructSshCommand(node);
+        } catch (WorkspaceException e) {
+            return null;
+        }
+
+        if (cmd.length <= prefix.size()) {
+            return null;
+        }
+        for (int i = 0; i < prefix.size(); i++) {
+            if (!prefix.get(i).equals(cmd[i])) {
+                return null;
+            }
+        }
+
+        final String[] remote = new String[cmd.length - prefix.size()];
+        System.arraycopy(cmd, prefix.size(), remote, 0, remote.length);
+        return remote;
+    }
+
     public static ArrayList constructSshCommand(String node)
             throws WorkspaceException {
 
@@ -65,6 +65,8 @@ import org.nimbustools.api.repr.ctx.Context;
 import org.nimbustools.api.repr.si.SIConstants;
 import org.nimbustools.api.repr.vm.NIC;
 import org.nimbustools.api.repr.vm.ResourceAllocation;
+import org.nimbustools.api.repr.vm.VM;
+import org.nimbustools.api.services.metadata.MetadataServer;
 
 import org.nimbustools.api.services.rm.*;
 import org.safehaus.uuid.UUIDGenerator;
@@ -120,6 +122,7 @@ public class CreationManagerImpl implements CreationManager, InternalCreationMan
     
     protected AsyncRequestManager asyncManager;
     protected IdempotentCreationManager idemManager;
+    protected MetadataServer mdServer;
 
 
     // -------------------------------------------------------------------------
@@ -239,6 +242,10 @@ public class CreationManagerImpl implements CreationManager, InternalCreationMan
         this.accounting = accEvents;
     }
 
+    public void setMetadataServer(MetadataServer metadataServer) {
+        this.mdServer = metadataServer;
+    }
+
     
     // -------------------------------------------------------------------------
     // implements CreationManager
@@ -798,6 +805,7 @@ public class CreationManagerImpl implements CreationManager, InternalCreationMan
                     bindings[i].addUnpropTargetSuffixes();
                 }
             }
+            this.bindNetwork.indexAddresses(bindings);
 
             return create1(res,
                            bindings,
@@ -956,22 +964,24 @@ public class CreationManagerImpl implements CreationManager, InternalCreationMan
             final int requestedMemory = bindings[0].getDeployment().getIndividualPhysicalMemory();
 
 
+            final String[] resources = new String[ids.length];
+            final String[] networks = new String[ids.length];
+            final String[] names = new String[ids.length];
             for (int i = 0; i < ids.length; i++) {
-                final String resource;
                 if (res.isConcrete()) {
                     final IdHostnameTuple tup = res.getIdHostnamePair(i);
-                    resource = tup.hostname;
+                    resources[i] = tup.hostname;
                 } else {
-                    resource = null;
+                    resources[i] = null;
                 }
 
-                final String network = bindings[i].getNetwork();
-                final String name = bindings[i].getName();
-                
-                this.accounting.create(ids[i], callerID, requestedMinutes,
-                                       network, resource, name,
-                                       requestedCPUCount, requestedMemory, chargeRatio);
+                networks[i] = bindings[i].getNetwork();
+                names[i] = bindings[i].getName();
             }
+
+            this.accounting.createAll(ids, callerID, requestedMinutes,
+                                      networks, resources, names,
+                                      requestedCPUCount, requestedMemory, chargeRatio);
         }
 
         try {
@@ -1085,29 +1095,22 @@ public class CreationManagerImpl implements CreationManager, InternalCreationMan
                         "expecting ID assignments from reservation");
         }
 
-        final InstanceResource[] createdResources = new InstanceResource[ids.length];
-
-        int bailed = -1;
+        InstanceResource[] createdResources = null;
         Throwable failure = null;
-        for (int i = 0; i < ids.length; i++) {
-
-            try {
-                createdResources[i] =
-                        this.createOne(i, ids, res, bindings[i],
-                                       callerID, context, coschedID, groupID,
-                                       clientToken, startTime, termTime, chargeRatio);
-            } catch (Throwable t) {
-                bailed = i;
-                failure = t;
-                break;
-            }
-            
+        try {
+            createdResources =
+                    this.createAll(ids, res, bindings,
+                                   callerID, context, coschedID, groupID,
+                                   clientToken, startTime, termTime, chargeRatio);
+        } catch (Throwable t) {
+            failure = t;
         }
 
         if (failure != null) {
 
+            // createAll already backed out whatever it had created
             // always throws an exception, return is to satisfy compiler
-            return this.failure(ids, bailed, failure);
+            return this.failure(ids, 0, failure);
 
         } else {
 
@@ -1122,6 +1125,8 @@ public class CreationManagerImpl implements CreationManager, InternalCreationMan
                                   groupID, coschedID, res);
             }
 
+            this.metadataCreatedNotification(createdResources);
+
             // go:
             this.schedulerCreatedNotification(ids, spotInstances);
 
@@ -1129,6 +1134,26 @@ public class CreationManagerImpl implements CreationManager, InternalCreationMan
         }
     }
 
+    protected void metadataCreatedNotification(InstanceResource[] resources) {
+
+        if (this.mdServer == null || !this.mdServer.isEnabled()) {
+            return; // *** EARLY RETURN ***
+        }
+
+        // saves the metadata server a lookup when each guest boots, it
+        // is only an optimization and may not fail the creation
+        try {
+            final VM[] vms = new VM[resources.length];
+            for (int i = 0; i < resources.length; i++) {
+                vms[i] = this.dataConvert.getVM(resources[i]);
+            }
+            this.mdServer.instancesCreated(vms);
+        } catch (Throwable t) {
+            logger.error("Problem handing new instances to the metadata " +
+                    "server: " + t.getMessage(), t);
+        }
+    }
+
     protected void schedulerCreatedNotification(int[] ids, boolean spotInstances) {
         
         // From here on, scheduler can do whatever it likes.  Instead
@@ -1185,10 +1210,27 @@ public class CreationManagerImpl implements CreationManager, InternalCreationMan
 
         logger.error(err + ", backing out the already created instances.");
 
-        for (int i = 0; i < bailed; i++) {
+        this.backOut(ids, bailed, true);
+
+        throw new CreationException(err, failure);
+    }
+
+    /**
+     * @param ids instance ids
+     * @param num how many of them, from the start, to back out
+     * @param persisted true to destroy the instances, false if they only
+     *                  exist in the home's cache and only need to be dropped
+     */
+    protected void backOut(int[] ids, int num, boolean persisted) {
+
+        for (int i = 0; i < num; i++) {
             try {
 
-                this.whome.destroy(ids[i]);
+                if (persisted) {
+                    this.whome.destroy(ids[i]);
+                } else {
+                    this.whome.discardNewInstance(ids[i]);
+                }
 
             } catch (Throwable t) {
 
@@ -1206,8 +1248,6 @@ public class CreationManagerImpl implements CreationManager, InternalCreationMan
                 // continue trying anyhow
             }
         }
-
-        throw new CreationException(err, failure);
     }
 
     protected InstanceResource createOne(int idx,
@@ -1229,6 +1269,92 @@ public class CreationManagerImpl implements CreationManager, InternalCreationMan
 
         // todo: check assumptions (guard against misuse by object extenders)
 
+        final InstanceResource resource =
+                this.newResource(idx, ids, res, vm,
+                                 callerID, coschedID, groupID, clientToken,
+                                 startTime, termTime, chargeRatio);
+
+        this.persistence.add(resource);
+
+        if (context != null) {
+            this.addContext(resource, vm, context);
+        }
+
+        return resource;
+    }
+
+    /**
+     * Like createOne() for every VM, but all of the instances are stored
+     * with one batched database transaction.  If anything fails, what was
+     * created so far is backed out before the exception is thrown: cached
+     * instances are dropped and, once stored, instances are destroyed.
+     */
+    protected InstanceResource[] createAll(int[] ids,
+                                           Reservation res,
+                                           VirtualMachine[] bindings,
+                                           String callerID,
+                                           Context context,
+                                           String coschedID,
+                                           String groupID,
+                                           String clientToken,
+                                           Calendar startTime,
+                                           Calendar termTime,
+                                           double chargeRatio)
+
+            throws CreationException,
+                   WorkspaceDatabaseException,
+                   CannotTranslateException {
+
+        // todo: check assumptions (guard against misuse by object extenders)
+
+        final InstanceResource[] resources = new InstanceResource[ids.length];
+        int created = 0;
+        boolean persisted = false;
+        boolean done = false;
+        try {
+
+            for (int i = 0; i < ids.length; i++) {
+                resources[i] = this.newResource(i, ids, res, bindings[i],
+                                                callerID, coschedID, groupID,
+                                                clientToken, startTime,
+                                                termTime, chargeRatio);
+                created += 1;
+            }
+
+            this.persistence.addAll(resources);
+            persisted = true;
+
+            if (context != null) {
+                for (int i = 0; i < ids.length; i++) {
+                    this.addContext(resources[i], bindings[i], context);
+                }
+            }
+
+            done = true;
+
+        } finally {
+            if (!done) {
+                this.backOut(ids, created, persisted);
+            }
+        }
+
+        return resources;
+    }
+
+    protected InstanceResource newResource(int idx,
+                                           int[] ids,
+                                           Reservation res,
+                                           VirtualMachine vm,
+                                           String callerID,
+                                           String coschedID,
+                                           String groupID,
+                                           String clientToken,
+                                           Calendar startTime,
+                                           Calendar termTime,
+                                           double chargeRatio)
+
+            throws CreationException {
+
         final int id;
         final String node;
         if (res.isConcrete()) {
@@ -1247,33 +1373,42 @@ public class CreationManagerImpl implements CreationManager, InternalCreationMan
 
         final InstanceResource resource = this.whome.newInstance(id);
 
-        this.populateResource(id, resource, vm,
-                              callerID, coschedID, groupID, clientToken,
-                              startTime, termTime, node,
-                              ids.length, last, idx, chargeRatio);
-
-        this.persistence.add(resource);
-
-        if (context != null) {
-            // todo: adding IPs to text here isn't necessary, this was added
-            // as a shortcut for a release but needs to go back to IaaS-agnostic
-            // text that works like a blob. Clean up w/ next interface changes
-            // to the ctx broker
-            try {
-                final String newContent =
-                        addIPs(context.getBootstrapText(), vm);
-                final FileCopyNeed need =
-                        this.binding.newFileCopyNeed(
-                                newContent, context.getBootstrapPath());
-                resource.newFileCopyNeed(need);
-            } catch (Exception e) {
-                logger.error(e.getMessage());
+        boolean populated = false;
+        try {
+            this.populateResource(id, resource, vm,
+                                  callerID, coschedID, groupID, clientToken,
+                                  startTime, termTime, node,
+                                  ids.length, last, idx, chargeRatio);
+            populated = true;
+        } finally {
+            if (!populated) {
+                this.backOut(new int[]{id}, 1, false);
             }
         }
 
         return resource;
     }
 
+    protected void addContext(InstanceResource resource,
+                              VirtualMachine vm,
+                              Context context) {
+
+        // todo: adding IPs to text here isn't necessary, this was added
+        // as a shortcut for a release but needs to go back to IaaS-agnostic
+        // text that works like a blob. Clean up w/ next interface changes
+        // to the ctx broker
+        try {
+            final String newContent =
+                    addIPs(context.getBootstrapText(), vm);
+            final FileCopyNeed need =
+                    this.binding.newFileCopyNeed(
+                            newContent, context.getBootstrapPath());
+            resource.newFileCopyNeed(need);
+        } catch (Exception e) {
+            logger.error(e.getMessage());
+        }
+    }
+
     protected String addIPs(String bootstrapText, VirtualMachine vm)
             throws CannotTranslateException {
 
@@ -0,0 +1,158 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace.network;
+
+import org.nimbustools.api.repr.vm.NIC;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * IP address -> instance ID index of the active instances.
+ *
+ * Entries are added by the network binding once instance IDs are known (and
+ * by the instance home during recovery) and removed when the addresses are
+ * backed out, which happens when an instance is destroyed.
+ *
+ * Lookups are only a hint, callers must still confirm the instance they load
+ * holds the address.
+ */
+public class InstanceIPIndex {
+
+    // -------------------------------------------------------------------------
+    // STATIC VARIABLES
+    // -------------------------------------------------------------------------
+
+    private static final int[] EMPTY_INT_ARRAY = new int[0];
+
+
+    // -------------------------------------------------------------------------
+    // INSTANCE VARIABLES
+    // -------------------------------------------------------------------------
+
+    // IP -> instance IDs (static addresses are not necessarily unique)
+    private final Map<String, Set<Integer>> byIP =
+            new HashMap<String, Set<Integer>>();
+
+    // instance ID -> its IPs, for removal
+    private final Map<Integer, String[]> byID =
+            new HashMap<Integer, String[]>();
+
+
+    // -------------------------------------------------------------------------
+    // MUTATE
+    // -------------------------------------------------------------------------
+
+    /**
+     * Replaces anything indexed for this instance with the addresses of the
+     * given NICs.
+     *
+     * @param id instance ID
+     * @param nics instance NICs, may be null or contain NICs with no address
+     */
+    public synchronized void add(int id, NIC[] nics) {
+
+        this.remove(id);
+
+        if (nics == null || nics.length == 0) {
+            return; // *** EARLY RETURN ***
+        }
+
+        final Set<String> ips = new TreeSet<String>();
+        for (int i = 0; i < nics.length; i++) {
+            if (nics[i] != null && nics[i].getIpAddress() != null) {
+                ips.add(nics[i].getIpAddress());
+            }
+        }
+
+        if (ips.isEmpty()) {
+            return; // *** EARLY RETURN ***
+        }
+
+        final Integer key = new Integer(id);
+        for (Iterator<String> iter = ips.iterator(); iter.hasNext();) {
+            final String ip = iter.next();
+            Set<Integer> ids = this.byIP.get(ip);
+            if (ids == null) {
+                ids = new TreeSet<Integer>();
+                this.byIP.put(ip, ids);
+            }
+            ids.add(key);
+        }
+        this.byID.put(key, ips.toArray(new String[ips.size()]));
+    }
+
+    /**
+     * @param id instance ID
+     * @return true if anything was indexed for this instance
+     */
+    public synchronized boolean remove(int id) {
+
+        final Integer key = new Integer(id);
+        final String[] ips = this.byID.remove(key);
+        if (ips == null) {
+            return false;
+        }
+
+        for (int i = 0; i < ips.length; i++) {
+            final Set<Integer> ids = this.byIP.get(ips[i]);
+            if (ids != null) {
+                ids.remove(key);
+                if (ids.isEmpty()) {
+                    this.byIP.remove(ips[i]);
+                }
+            }
+        }
+        return true;
+    }
+
+
+    // -------------------------------------------------------------------------
+    // QUERY
+    // -------------------------------------------------------------------------
+
+    /**
+     * @param ip IP address
+     * @return IDs of the instances indexed with this address, never null
+     */
+    public synchronized int[] find(String ip) {
+
+        if (ip == null) {
+            return EMPTY_INT_ARRAY;
+        }
+
+        final Set<Integer> ids = this.byIP.get(ip);
+        if (ids == null || ids.isEmpty()) {
+            return EMPTY_INT_ARRAY;
+        }
+
+        final int[] ret = new int[ids.size()];
+        int i = 0;
+        for (Iterator<Integer> iter = ids.iterator(); iter.hasNext();) {
+            ret[i] = iter.next().intValue();
+            i += 1;
+        }
+        return ret;
+    }
+
+    public synchronized int size() {
+        return this.byID.size();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace.network.defaults;
+
+import org.globus.workspace.network.Association;
+import org.globus.workspace.network.AssociationEntry;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * package-private class, the addresses of one network indexed for leasing.
+ *
+ * Free slots are tracked in a bitset in the same order as the network file,
+ * so the lowest free address is still the one handed out, and entries are
+ * found by IP through a hashtable instead of walking the list.  Each pool is
+ * its own lock: leases in different networks do not wait on each other.
+ *
+ * The entries are the same objects as in the Association, their in-use flag
+ * is kept in step with the bitset.
+ */
+class AssociationPool {
+
+    private final String name;
+    private final String dns;
+    private final AssociationEntry[] entries;
+    private final Map<String,Integer> byIp;
+    private final BitSet free;
+    private int numFree;
+
+    AssociationPool(String name, Association assoc) {
+
+        if (name == null) {
+            throw new IllegalArgumentException("name may not be null");
+        }
+        this.name = name;
+
+        if (assoc == null) {
+            throw new IllegalArgumentException("assoc may not be null");
+        }
+
+        final String DNS = assoc.getDns();
+        if (DNS == null || DNS.equalsIgnoreCase("none")) {
+            this.dns = "null";
+        } else {
+            this.dns = DNS;
+        }
+
+        final List list = assoc.getEntries();
+        final int size = list == null ? 0 : list.size();
+        this.entries = new AssociationEntry[size];
+        this.byIp = new HashMap<String,Integer>(size * 2);
+        this.free = new BitSet(size);
+
+        for (int i = 0; i < size; i++) {
+            final AssociationEntry entry = (AssociationEntry) list.get(i);
+            this.entries[i] = entry;
+            this.byIp.put(entry.getIpAddress().trim(), i);
+            if (!entry.isInUse()) {
+                this.free.set(i);
+                this.numFree += 1;
+            }
+        }
+    }
+
+    String getName() {
+        return this.name;
+    }
+
+    /**
+     * @return DNS setting, the string "null" if there is none
+     */
+    String getDns() {
+        return this.dns;
+    }
+
+    int size() {
+        return this.entries.length;
+    }
+
+    synchronized int getNumFree() {
+        return this.numFree;
+    }
+
+    /**
+     * Marks the first free entry in use.
+     *
+     * @return entry or null if all are in use
+     */
+    synchronized AssociationEntry lease() {
+        final int i = this.free.nextSetBit(0);
+        if (i < 0) {
+            return null;
+        }
+        this.free.clear(i);
+        this.numFree -= 1;
+        final AssociationEntry entry = this.entries[i];
+        entry.setInUse(true);
+        return entry;
+    }
+
+    /**
+     * Marks the entry with this IP free.
+     *
+     * @param ipAddress address
+     * @return entry or null if there is no entry with this IP
+     */
+    synchronized AssociationEntry release(String ipAddress) {
+        final Integer i = this.byIp.get(ipAddress.trim());
+        if (i == null) {
+            return null;
+        }
+        if (!this.free.get(i)) {
+            this.free.set(i);
+            this.numFree += 1;
+        }
+        final AssociationEntry entry = this.entries[i];
+        entry.setInUse(false);
+        return entry;
+    }
+}
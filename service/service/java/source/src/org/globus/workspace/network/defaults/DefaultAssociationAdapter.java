@@ -50,9 +50,11 @@ public class DefaultAssociationAdapter implements AssociationAdapter {
         "\n" +
         "where X is any hexadecimal digit, and Y is one of 2, 6, A or E";
 
-    private final Object lock = new Object();
+    // network name : addresses, replaced as a whole
+    private volatile Map<String,AssociationPool> pools =
+            Collections.emptyMap();
 
-    private List allMacs;
+    private MacSet allMacs;
 
     private static final String[] zeroLen = new String[0];
 
@@ -86,13 +88,12 @@ public class DefaultAssociationAdapter implements AssociationAdapter {
     // -------------------------------------------------------------------------
 
     public String[] getAssociationNames() throws ManageException {
-        
-        final Hashtable associations = this.persistence.currentAssociations(false);
-        if (associations == null || associations.isEmpty()) {
+
+        final Set<String> names = this.pools.keySet();
+        if (names.isEmpty()) {
             return zeroLen;
         } else {
-            final Set keys = associations.keySet();
-            return (String[])keys.toArray(new String[keys.size()]);
+            return names.toArray(new String[names.size()]);
         }
     }
 
@@ -105,10 +106,15 @@ public class DefaultAssociationAdapter implements AssociationAdapter {
                     "networking initialization problem");
         }
 
-        synchronized(this.lock) {
-            return Util.getNextEntry(name, this.persistence,
-                                     vmid, this.lager.eventLog);
+        final AssociationPool pool = name == null ? null : this.pools.get(name);
+        if (pool == null) {
+            final String err = "'" + name + "' is not a valid network name";
+            logger.error(err);
+            throw new ResourceRequestDeniedException(err);
         }
+
+        return Util.getNextEntry(pool, this.persistence,
+                                 vmid, this.lager.eventLog);
     }
 
     public void retireEntry(String name, String ipAddress, int trackingID)
@@ -120,12 +126,31 @@ public class DefaultAssociationAdapter implements AssociationAdapter {
                     "networking initialization problem");
         }
 
-        synchronized(this.lock) {
-            Util.retireEntry(name, ipAddress, this.persistence, trackingID);
+        final AssociationPool pool = name == null ? null : this.pools.get(name);
+        if (pool == null) {
+            logger.error("no network '" + name + "'");
+            return;
         }
-        
+
+        Util.retireEntry(pool, ipAddress, this.persistence, trackingID);
+    }
+
+    private void indexAssociations(Hashtable associations) {
+        final Map<String,AssociationPool> newPools =
+                new HashMap<String,AssociationPool>();
+        if (associations != null) {
+            final Enumeration en = associations.keys();
+            while (en.hasMoreElements()) {
+                final String assocName = (String) en.nextElement();
+                final Association assoc =
+                        (Association) associations.get(assocName);
+                newPools.put(assocName, new AssociationPool(assocName, assoc));
+            }
+        }
+        this.pools = Collections.unmodifiableMap(newPools);
     }
 
+
     // -------------------------------------------------------------------------
     // IoC INIT METHOD
     // -------------------------------------------------------------------------
@@ -190,8 +215,13 @@ public class DefaultAssociationAdapter implements AssociationAdapter {
                 }
             }
 
+            this.indexAssociations(new_associations);
+
             // we write network info to various files (dhcpd entries, etc)
             this.writeNetworkFiles(new_associations);
+
+        } else {
+            this.indexAssociations(this.persistence.currentAssociations(false));
         }
     }
 
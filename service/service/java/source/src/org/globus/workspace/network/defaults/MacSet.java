@@ -0,0 +1,240 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace.network.defaults;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * package-private class, the MAC addresses taken so far and the allocation
+ * state for each prefix that new addresses are picked under.
+ *
+ * Addresses are kept as 48 bit numbers in a hashed set so a uniqueness test
+ * is constant time however many are taken.  Each prefix gets its own range
+ * (its own lock, probe cursor and count of addresses it handed out), only
+ * the check-and-add on the shared set is serialized across prefixes.
+ */
+class MacSet {
+
+    // -------------------------------------------------------------------------
+    // STATIC VARIABLES
+    // -------------------------------------------------------------------------
+
+    /**
+     * Ranges up to this size are probed with a counter from the lowest
+     * address up, larger ones from a random address.
+     */
+    static final long SERIAL_LIMIT = 1L << 16;
+
+    private static final Random random = new Random();
+
+
+    // -------------------------------------------------------------------------
+    // INSTANCE VARIABLES
+    // -------------------------------------------------------------------------
+
+    private final Set<Long> used = new HashSet<Long>();
+    private final Map<String,Range> ranges = new HashMap<String,Range>();
+
+
+    // -------------------------------------------------------------------------
+    // CONSTRUCTORS
+    // -------------------------------------------------------------------------
+
+    MacSet() {
+    }
+
+    /**
+     * @param macs addresses already taken, unparseable ones are skipped
+     */
+    MacSet(Collection<String> macs) {
+        if (macs == null) {
+            return;
+        }
+        for (String mac : macs) {
+            final long value = parse(mac);
+            if (value >= 0) {
+                this.used.add(value);
+            }
+        }
+    }
+
+
+    // -------------------------------------------------------------------------
+    // SET
+    // -------------------------------------------------------------------------
+
+    /**
+     * @param mac address
+     * @return true if it was not taken already (or could not be parsed)
+     */
+    boolean add(String mac) {
+        final long value = parse(mac);
+        return value < 0 || this.add(value);
+    }
+
+    synchronized boolean contains(String mac) {
+        final long value = parse(mac);
+        return value >= 0 && this.used.contains(value);
+    }
+
+    synchronized int size() {
+        return this.used.size();
+    }
+
+    private synchronized boolean add(long value) {
+        return this.used.add(value);
+    }
+
+
+    // -------------------------------------------------------------------------
+    // ALLOCATE
+    // -------------------------------------------------------------------------
+
+    /**
+     * Takes an unused address under the prefix.
+     *
+     * @param prefix valid prefix, 1-16 characters
+     * @param needed hex digits after the prefix
+     * @return new address or null if every address under the prefix is taken
+     */
+    String pickNew(String prefix, int needed) {
+        return this.getRange(prefix, needed).pick();
+    }
+
+    private synchronized Range getRange(String prefix, int needed) {
+        Range range = this.ranges.get(prefix);
+        if (range == null) {
+            range = new Range(prefix, needed);
+            this.ranges.put(prefix, range);
+        }
+        return range;
+    }
+
+    private synchronized int countInRange(long base, long size) {
+        int count = 0;
+        for (Long value : this.used) {
+            if (value >= base && value < base + size) {
+                count += 1;
+            }
+        }
+        return count;
+    }
+
+    private class Range {
+
+        private final String prefix;
+        private final int needed;
+        private final long base;
+        private final long size;
+        private long cursor;
+        private long taken;
+
+        Range(String prefix, int needed) {
+            this.prefix = prefix;
+            this.needed = needed;
+            this.size = 1L << (4 * needed);
+
+            long prefixValue = 0;
+            for (int i = 0; i < prefix.length(); i++) {
+                final int digit = Character.digit(prefix.charAt(i), 16);
+                if (digit >= 0) {
+                    prefixValue = (prefixValue << 4) | digit;
+                }
+            }
+            this.base = prefixValue << (4 * needed);
+            this.taken = countInRange(this.base, this.size);
+        }
+
+        synchronized String pick() {
+
+            if (this.taken >= this.size) {
+                return null; // *** EARLY RETURN ***
+            }
+
+            final boolean serial = this.size <= SERIAL_LIMIT;
+            long offset;
+            if (serial) {
+                offset = this.cursor;
+            } else {
+                offset = (random.nextLong() >>> 1) % this.size;
+            }
+
+            // linear probe, every address in the range is tried at most once
+            for (long tried = 0; tried < this.size; tried++) {
+                if (add(this.base + offset)) {
+                    this.taken += 1;
+                    if (serial) {
+                        this.cursor = (offset + 1) % this.size;
+                    }
+                    return this.format(offset);
+                }
+                offset = (offset + 1) % this.size;
+            }
+
+            this.taken = this.size;
+            return null;
+        }
+
+        private String format(long offset) {
+            final StringBuffer buf = new StringBuffer(17);
+            buf.append(this.prefix);
+            for (int i = this.needed - 1; i >= 0; i--) {
+                final int L = buf.length();
+                if (L == 2 || L == 5 || L == 8 || L == 11 || L == 14) {
+                    buf.append(':');
+                }
+                buf.append(MacUtil.MAC_ARRAY[(int) ((offset >>> (4 * i)) & 0xF)]);
+            }
+            return buf.toString();
+        }
+    }
+
+
+    // -------------------------------------------------------------------------
+    // PARSE
+    // -------------------------------------------------------------------------
+
+    /**
+     * @param mac full address, separators are skipped
+     * @return 48 bit value or -1 if this is not a full address
+     */
+    static long parse(String mac) {
+        if (mac == null) {
+            return -1;
+        }
+        long value = 0;
+        int digits = 0;
+        for (int i = 0; i < mac.length(); i++) {
+            final char c = mac.charAt(i);
+            if (c == ':') {
+                continue;
+            }
+            final int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                return -1;
+            }
+            value = (value << 4) | digit;
+            digits += 1;
+        }
+        return digits == 12 ? value : -1;
+    }
+}
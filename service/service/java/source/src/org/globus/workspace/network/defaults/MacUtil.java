@@ -34,12 +34,8 @@ public class MacUtil {
 
     public static final char[] MAC_ARRAY = VALID_MAC_CHARACTERS.toCharArray();
 
-    private static final Object list_lock = new Object();
 
-    private static final Random random = new Random();
-    
-    
-    public static List<String> handleMacs(Map<String, Association> previous,
+    public static MacSet handleMacs(Map<String, Association> previous,
                                           Map<String, Association> current,
                                           String macPrefix)
             throws ResourceRequestDeniedException {
@@ -89,19 +85,19 @@ public class MacUtil {
             }
         }
 
-        final List<String> macList =
-                new ArrayList<String>();
-        macList.addAll(inUse.keySet());
-        macList.addAll(explicit);
+        final MacSet macs = new MacSet(inUse.keySet());
+        for (String mac : explicit) {
+            macs.add(mac);
+        }
 
         for (Association assoc : current.values()) {
             for (Object entryObject : assoc.getEntries()) {
                 final AssociationEntry entry = (AssociationEntry) entryObject;
-                _setMac(entry, macPrefix, macList, explicit);
+                _setMac(entry, macPrefix, macs, explicit);
             }
         }
 
-        return macList;
+        return macs;
     }
 
     private static Map<String, AssociationEntry> getInUseMacMap(Map<String, Association> previous) {
@@ -153,7 +149,7 @@ public class MacUtil {
 
     private static void _setMac(AssociationEntry entry,
                                 String macPrefix,
-                                List<String> macs, 
+                                MacSet macs,
                                 Set<String> explicit)
             throws ResourceRequestDeniedException {
         
@@ -195,7 +191,15 @@ public class MacUtil {
 
     }
 
-    static String pickNew(List macs, String macPrefix)
+    /**
+     * Picks a MAC under the prefix that is not in the set yet and adds it.
+     *
+     * Short remaining ranges (up to 16^4) are walked in order from the
+     * lowest address, longer ones are probed from a random address.  Either
+     * way every address is tried at most once, so an exhausted range fails
+     * instead of spinning.
+     */
+    static String pickNew(MacSet macs, String macPrefix)
 
             throws ResourceRequestDeniedException {
 
@@ -228,135 +232,12 @@ public class MacUtil {
             return macPrefix;
         }
 
-        synchronized (list_lock) {
-
-            final String result;
-            if (needed < 4) {
-                // slow, but tries every single permutation
-                result = _pickNewSerially(macs, macPrefix, needed);
-            } else {
-                // Faster.  Does not get at every single permutation but is very
-                // unlikely to fail when address range is 16^4 or higher
-                result = _pickNewWithRandomComponent(macs, macPrefix, needed);
-            }
-
-            if (result == null) {
-                throw new ResourceRequestDeniedException(
-                        "no unique MAC address is available");
-            } else {
-                macs.add(result);
-                return result;
-            }
-        }
-    }
-
-    // slow, but tries every single permutation
-    private static String _pickNewSerially(List macs,
-                                           String prefix,
-                                           int needed) {
-
-        if (needed == 1) {
-            for (int i = 0; i < MAC_ARRAY.length; i++) {
-                final String attempt = prefix + MAC_ARRAY[i];
-                if(uniqueMacTest(macs, attempt)) {
-                    return attempt;
-                }
-            }
-            return null;
-        }
-
-        final int L = prefix.length();
-        if (L == 2 || L == 5 || L == 8 || L == 11 || L == 14) {
-            prefix += ":";
-        }
-
-        for (int i = 0; i < MAC_ARRAY.length; i++) {
-            final String answer = _pickNewSerially(macs,
-                                                   prefix + MAC_ARRAY[i],
-                                                   needed-1);
-            if (answer != null) {
-                return answer;
-            }
-        }
-        
-        return null;
-    }
-
-    private static boolean uniqueMacTest(List macs, String attempt) {
-        for (Object mac1 : macs) {
-            final String mac = (String) mac1;
-            if (attempt.equals(mac)) {
-                return false;
-            }
-        }
-        return true;
-    }
-
-    // This is much faster than _pickNewSerially(), especially as the number
-    // of uniques stored in the "macs" List increases into the 100s/1000s.
-    // This will not get at every variation but in practice when a prefix is
-    // short enough (more digits needed), this does not matter (unless setup
-    // actually requires many many thousands of uniques at one time).
-    private static String _pickNewWithRandomComponent(List macs,
-                                                      String macPrefix,
-                                                      long needed)
-            throws ResourceRequestDeniedException {
-
-        final long limit = (long) StrictMath.pow(16, needed);
-
-        long count = 0;
-        while (true) {
-
-            if (count >= limit) {
-                // Even at lowest allowable limit (~65000), this is very
-                // unlikely to ever occur.
-                throw new ResourceRequestDeniedException(
-                    "Search limit reached (" + count +
-                    ") looking for MAC to assign.  Please inform developers.");
-            }
-
-            String attempt = appendRandomCharacter(macPrefix);
-            while (attempt.length() < 17) {
-                attempt = appendRandomCharacter(attempt);
-            }
-
-            if(uniqueMacTest(macs, attempt)) {
-                return attempt;
-            } else {
-                count += 1;
-            }
-        }
-    }
-
-    private static String appendRandomCharacter(String sofar) {
-        final int L = sofar.length();
-        String newString = sofar;
-        if (L == 2 || L == 5 || L == 8 || L == 11 || L == 14) {
-            newString += ":";
-        }
-        newString += randomChar();
-        return newString;
-    }
-
-    private static char randomChar() {
-        return MAC_ARRAY[random.nextInt(MAC_ARRAY.length)];
-    }
-
-    public static void main(String[] args) throws Exception {
-
-        final long mstart = System.currentTimeMillis();
-        final List macs = new LinkedList();
-        for (int i = 0; i < 4096; i++) {
-            final String result = pickNew(macs, "AB:CD:12:34:");
-            if (result == null) {
-                System.out.println("RAN OUT");
-                break;
-            } else {
-                System.out.println(result);
-            }
+        final String result = macs.pickNew(macPrefix, needed);
+        if (result == null) {
+            throw new ResourceRequestDeniedException(
+                    "no unique MAC address is available");
         }
-        final long mstop = System.currentTimeMillis();
-        System.out.println("ELAPSED: " + Long.toString(mstop - mstart) + "ms");
+        return result;
     }
 
     public static boolean isValidMac(String mac, boolean prefixOk) {
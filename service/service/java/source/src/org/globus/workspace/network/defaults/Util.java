@@ -49,7 +49,7 @@ public class Util {
     private static final String COMMENT_CHAR = "#";
 
     /**
-     * @param name network name
+     * @param pool network
      * @param db db
      * @param vmid for logging
      * @param eventLog for logging
@@ -58,7 +58,7 @@ public class Util {
      *             String dns setting [1]
      * @throws ResourceRequestDeniedException denial
      */
-    static Object[] getNextEntry(String name,
+    static Object[] getNextEntry(AssociationPool pool,
                                  PersistenceAdapter db,
                                  int vmid,
                                  boolean eventLog)
@@ -69,35 +69,29 @@ public class Util {
             throw new IllegalArgumentException("null persistence adapter");
         }
 
-        final Hashtable associations;
-        try {
-            associations = db.currentAssociations();
-        } catch (WorkspaceDatabaseException e) {
-            logger.fatal(e.getMessage(), e);
-            throw new ResourceRequestDeniedException(
-                    "internal error, db problem");
-        }
-        
-        final Object[] entryAndDns = nextAssociationEntry(name,
-                                                          associations);
-
+        final String name = pool.getName();
         final AssociationEntry entry;
-        if (entryAndDns == null || entryAndDns[0] == null) {
-            final String err = "network '" + name
-                        + "' is not currently available";
-            logger.error(err);
-            throw new ResourceRequestDeniedException(err);
-        } else {
-            entry = (AssociationEntry) entryAndDns[0];
+
+        // the DB write is under the network's lock so that the rows are
+        // updated in the same order as the in-memory flags
+        synchronized (pool) {
+            entry = pool.lease();
+            if (entry == null) {
+                final String err = "network '" + name
+                            + "' is not currently available";
+                logger.error(err);
+                throw new ResourceRequestDeniedException(err);
+            }
             logger.debug("entry picked = " + entry);
-        }
 
-        try {
-            db.replaceAssociationEntry(name, entry);
-        } catch (WorkspaceDatabaseException e) {
-            logger.fatal(e.getMessage(), e);
-            throw new ResourceRequestDeniedException(
-                    "internal error, db problem");
+            try {
+                db.replaceAssociationEntry(name, entry);
+            } catch (WorkspaceDatabaseException e) {
+                pool.release(entry.getIpAddress());
+                logger.fatal(e.getMessage(), e);
+                throw new ResourceRequestDeniedException(
+                        "internal error, db problem");
+            }
         }
 
         if (eventLog) {
@@ -105,10 +99,13 @@ public class Util {
                             "entry leased, ip=" + entry.getIpAddress());
         }
 
-        return entryAndDns;
+        final Object[] objs = new Object[2];
+        objs[0] = entry;
+        objs[1] = pool.getDns();
+        return objs;
     }
 
-    static void retireEntry(String name,
+    static void retireEntry(AssociationPool pool,
                             String ipAddress,
                             PersistenceAdapter db,
                             int trackingID)
@@ -119,87 +116,27 @@ public class Util {
             throw new IllegalArgumentException("null persistence adapter");
         }
 
-        final Hashtable associations = db.currentAssociations();
-        final Association assoc = (Association)associations.get(name);
-        if (assoc == null) {
-            logger.error("no network '" + name + "'");
-            return;
-        }
-
-        final List entries = assoc.getEntries();
-        if (entries == null || entries.isEmpty()) {
+        final String name = pool.getName();
+        if (pool.size() == 0) {
             logger.error(Lager.id(trackingID) +
                     " network '" + name + "' has no entries");
             return;
         }
 
-        // evidence for storing the entry list as an IP keyed hashtable...
-        final Iterator iter = entries.iterator();
-        AssociationEntry entry = null;
-        boolean found = false;
-        while (!found && iter.hasNext()) {
-            entry = (AssociationEntry)iter.next();
-            if (entry.getIpAddress().equals(ipAddress.trim())) {
-                found = true;
+        final AssociationEntry entry;
+        synchronized (pool) {
+            entry = pool.release(ipAddress);
+            if (entry == null) {
+                throw new ManageException(Lager.id(trackingID) + " entry was " +
+                        "not found in '" + name + "': " + ipAddress);
             }
+            db.replaceAssociationEntry(name, entry);
         }
 
-        if (!found) {
-            throw new ManageException(Lager.id(trackingID) + " entry was " +
-                    "not found in '" + name + "': " + ipAddress);
-        }
-        entry.setInUse(false);
-        db.replaceAssociationEntry(name, entry);
-
         logger.info(Lager.ev(trackingID) + "'" + name + "' network lease " +
                     "is over, ip=" + entry.getIpAddress());
     }
 
-
-    private static Object[] nextAssociationEntry(String name,
-                                                 Hashtable associations)
-            throws ResourceRequestDeniedException {
-
-        final Association assoc = (Association)associations.get(name);
-        if (assoc == null) {
-            final String err = "'" + name + "' is not a valid network name";
-            logger.error(err);
-            throw new ResourceRequestDeniedException(err);
-        }
-
-        final List entries = assoc.getEntries();
-        if (entries == null || entries.isEmpty()) {
-            return null; // *** EARLY RETURN ***
-        }
-
-        final Iterator iter = assoc.getEntries().iterator();
-        AssociationEntry entry = null;
-        while (iter.hasNext()) {
-            entry = (AssociationEntry)iter.next();
-            if (!entry.isInUse()) {
-                entry.setInUse(true);
-                break;
-            }
-            entry = null;
-        }
-
-        if (entry == null) {
-            return null; // *** EARLY RETURN ***
-        }
-            
-        final Object[] objs = new Object[2];
-
-        objs[0] = entry;
-
-        final String DNS = assoc.getDns();
-        if (DNS == null || DNS.equalsIgnoreCase("none")) {
-            objs[1] = "null";
-        } else {
-            objs[1] = DNS;
-        }
-        return objs;
-    }
-
     /**
      * @param associationDir association directory, may not be null
      * @param previous previous entries
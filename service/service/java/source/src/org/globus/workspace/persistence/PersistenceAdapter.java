@@ -115,6 +115,17 @@ public interface PersistenceAdapter {
 
             throws WorkspaceDatabaseException;
 
+    /**
+     * Inserts every resource (and its VM rows) with JDBC batches in one
+     * transaction: either all of them are stored or none.
+     *
+     * @param resources resources to store, may not be null
+     * @throws WorkspaceDatabaseException problem, rolled back
+     */
+    public void addAll(InstanceResource[] resources)
+
+            throws WorkspaceDatabaseException;
+
     public void addGroup(GroupResource resource)
 
             throws WorkspaceDatabaseException;
@@ -128,6 +139,16 @@ public interface PersistenceAdapter {
             throws DoesNotExistException,
                    WorkspaceDatabaseException;
 
+    /**
+     * @param ids ids, no duplicates
+     * @param resources empty resources to populate, same length as ids
+     * @return found[i] is false if ids[i] does not exist
+     * @throws WorkspaceDatabaseException problem
+     */
+    public boolean[] loadAll(int[] ids, InstanceResource[] resources)
+
+            throws WorkspaceDatabaseException;
+
     public void loadGroup(String id, GroupResource resource)
 
             throws DoesNotExistException,
@@ -161,6 +182,18 @@ public interface PersistenceAdapter {
 
             throws WorkspaceDatabaseException;
 
+    /**
+     * Writes the available and preemptible memory of every given entry in
+     * one batch and one transaction: either all rows are updated or none.
+     *
+     * @param entries entries carrying the new memory values, may not be null
+     * @throws WorkspaceDatabaseException problem or missing row, rolled back
+     */
+    public void updateResourcepoolEntriesAvailableMemory(
+                                        List<ResourcepoolEntry> entries)
+
+            throws WorkspaceDatabaseException;
+
     public int memoryUsedOnPoolnode(String poolnode)
 
             throws WorkspaceDatabaseException;
@@ -256,10 +289,32 @@ public interface PersistenceAdapter {
     
             throws WorkspaceDatabaseException;
 
+    /**
+     * @param startDate earliest entry, null for no limit
+     * @param endDate latest entry, null for no limit
+     * @return the most recent entries in the range (up to a configured
+     *         maximum), oldest first.  Older changes are downsampled.
+     * @throws WorkspaceDatabaseException problem
+     */
     public List<SpotPriceEntry> getSpotPriceHistory(Calendar startDate,
                                                     Calendar endDate)
                                                   
             throws WorkspaceDatabaseException;
+
+    /**
+     * @param startDate earliest entry, null for no limit
+     * @param endDate latest entry, null for no limit
+     * @param offset entries to skip, counting from the oldest
+     * @param limit maximum entries to return
+     * @return page of entries, oldest first
+     * @throws WorkspaceDatabaseException problem
+     */
+    public List<SpotPriceEntry> getSpotPriceHistory(Calendar startDate,
+                                                    Calendar endDate,
+                                                    int offset,
+                                                    int limit)
+
+            throws WorkspaceDatabaseException;
     
     public Double getLastSpotPrice()
             throws WorkspaceDatabaseException;
@@ -152,6 +152,39 @@ public interface PersistenceAdapterConstants {
             "SELECT sourcepath, destpath, on_image " +
             "FROM file_copy WHERE vmid=?";
 
+    // Bulk loading: the statement is completed with an IN list of
+    // LOAD_ALL_CHUNK parameters.  The row id comes last so rows can be read
+    // with the same column indexes as the single-id queries above.
+
+    public static final int LOAD_ALL_CHUNK = 64;
+
+    public static final String SQL_LOAD_RESOURCES_IN =
+            "SELECT name, state, target_state, term_time, ops_enabled, " +
+                    "creator_dn, start_time, vmm_access_ok, " +
+                    "ensembleid, groupid, groupsize, last_in_group, " +
+                    "launch_index, error_fault, client_token, charge_ratio, " +
+                    "id FROM resources WHERE id IN ";
+
+    public static final String SQL_LOAD_VMS_IN =
+            "SELECT name, node, prop_required, unprop_required, network, " +
+                    "kernel_parameters, vmm, vmm_version, assocs_needed, " +
+                    "md_user_data, preemptable, credential_name, " +
+                    "id FROM vms WHERE id IN ";
+
+    public static final String SQL_LOAD_VM_PARTITIONS_IN =
+            "SELECT image, imagemount, readwrite, rootdisk, blankspace, " +
+                    "prop_required, unprop_required, alternate_unprop, " +
+                    "vmid FROM vm_partitions WHERE vmid IN ";
+
+    public static final String SQL_LOAD_VM_DEPLOYMENTS_IN =
+            "SELECT requested_state, requested_shutdown, min_duration, " +
+                    "ind_physmem, ind_physcpu, " +
+                    "vmid FROM vm_deployment WHERE vmid IN ";
+
+    public static final String SQL_LOAD_FILE_COPIES_IN =
+            "SELECT sourcepath, destpath, on_image, " +
+                    "vmid FROM file_copy WHERE vmid IN ";
+
     public static final String SQL_UPDATE_ASSOCIATION_ENTRY =
             "UPDATE association_entries SET used=? " +
             "WHERE association=? AND ipaddress=?";
@@ -165,6 +198,9 @@ public interface PersistenceAdapterConstants {
     public static final String SQL_SELECT_ASSOCIATION =
             "SELECT * FROM association_entries WHERE association=?";
 
+    public static final String SQL_SELECT_ALL_ASSOCIATION_ENTRIES =
+            "SELECT * FROM association_entries";
+
     public static final String SQL_SELECT_ALL_RESOURCE_POOLS =
             "SELECT resourcepool FROM resourcepool_entries";
 
@@ -230,6 +266,61 @@ public interface PersistenceAdapterConstants {
     public static final String SQL_SELECT_SPOT_PRICE =
             "SELECT * FROM spot_prices";
 
+    public static final String SQL_SELECT_SPOT_PRICE_RANGE =
+            "SELECT tstamp, price FROM spot_prices " +
+                    "WHERE tstamp >= ? AND tstamp <= ? ORDER BY tstamp";
+
+    public static final String SQL_SELECT_SPOT_PRICE_RANGE_DESC =
+            "SELECT tstamp, price FROM spot_prices " +
+                    "WHERE tstamp >= ? AND tstamp <= ? ORDER BY tstamp DESC";
+
+    public static final String SQL_SELECT_LAST_SPOT_PRICE_TIME =
+            "SELECT MAX(tstamp) FROM spot_prices";
+
+    public static final String SQL_SELECT_SPOT_PRICE_BEFORE =
+            "SELECT tstamp, price FROM spot_prices WHERE tstamp < ? " +
+                    "ORDER BY tstamp";
+
+    public static final String SQL_DELETE_SPOT_PRICE_BEFORE =
+            "DELETE FROM spot_prices WHERE tstamp < ?";
+
+    // spot_price_rollups statements are not in PREPARED_STATEMENTS, a
+    // database created before the table was added still starts
+
+    public static final String SQL_COUNT_SPOT_PRICE_ROLLUPS =
+            "SELECT COUNT(*) FROM spot_price_rollups";
+
+    public static final String SQL_SELECT_SPOT_PRICE_ROLLUP_RANGE =
+            "SELECT close_time, close_price FROM spot_price_rollups " +
+                    "WHERE resolution=? AND close_time >= ? AND close_time <= ? " +
+                    "ORDER BY bucket";
+
+    public static final String SQL_SELECT_SPOT_PRICE_ROLLUP_RANGE_DESC =
+            "SELECT close_time, close_price FROM spot_price_rollups " +
+                    "WHERE resolution=? AND close_time >= ? AND close_time <= ? " +
+                    "ORDER BY bucket DESC";
+
+    public static final String SQL_SELECT_SPOT_PRICE_ROLLUPS_BEFORE =
+            "SELECT bucket, open_price, high_price, low_price, close_price, " +
+                    "close_time, samples FROM spot_price_rollups " +
+                    "WHERE resolution=? AND bucket < ? ORDER BY bucket";
+
+    public static final String SQL_SELECT_SPOT_PRICE_ROLLUP =
+            "SELECT open_price, high_price, low_price, close_price, " +
+                    "close_time, samples FROM spot_price_rollups " +
+                    "WHERE resolution=? AND bucket=?";
+
+    public static final String SQL_INSERT_SPOT_PRICE_ROLLUP =
+            "INSERT INTO spot_price_rollups VALUES(?,?,?,?,?,?,?,?)";
+
+    public static final String SQL_UPDATE_SPOT_PRICE_ROLLUP =
+            "UPDATE spot_price_rollups SET high_price=?, low_price=?, " +
+                    "close_price=?, close_time=?, samples=? " +
+                    "WHERE resolution=? AND bucket=?";
+
+    public static final String SQL_DELETE_SPOT_PRICE_ROLLUPS_BEFORE =
+            "DELETE FROM spot_price_rollups WHERE resolution=? AND bucket < ?";
+
     public static final String SQL_INSERT_BACKFILL =
             "INSERT INTO backfill VALUES(1,?,?,?,?,?,?)";
 
@@ -354,6 +445,7 @@ public interface PersistenceAdapterConstants {
     public static final String[] PREPARED_STATEMENTS = {
                                     SQL_SELECT_RESOURCES,
                                     SQL_SELECT_ALL_ASSOCIATIONS,
+                                    SQL_SELECT_ALL_ASSOCIATION_ENTRIES,
                                     SQL_SET_STATE,
                                     SQL_SET_OPS_ENABLED,
                                     SQL_SET_NETWORKING,
@@ -406,6 +498,9 @@ public interface PersistenceAdapterConstants {
                                     SQL_SELECT_USED_NON_PREEMPTABLE_MEMORY,
                                     SQL_INSERT_SPOT_PRICE,
                                     SQL_SELECT_LAST_SPOT_PRICE,
+                                    SQL_SELECT_SPOT_PRICE_RANGE,
+                                    SQL_SELECT_SPOT_PRICE_RANGE_DESC,
+                                    SQL_SELECT_LAST_SPOT_PRICE_TIME,
                                     SQL_INSERT_BACKFILL,
                                     SQL_UPDATE_BACKFILL,
                                     SQL_SELECT_BACKFILL,
@@ -27,9 +27,13 @@ import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import javax.sql.DataSource;
 
 import org.apache.commons.logging.Log;
@@ -83,7 +87,17 @@ public class PersistenceAdapterImpl implements WorkspaceConstants,
     private final ReprFactory repr;
 
     // caches, todo: ehcache
-    private Hashtable associations;
+    private volatile Hashtable associations;
+
+    private final Object spotPriceLock = new Object();
+    private SpotPriceRing spotPriceRing;
+    private volatile boolean spotPriceRollups;
+    private volatile long lastSpotPriceCompaction;
+    private int spotPriceRecentCapacity = 256;
+    private volatile int spotPriceMaxEntries = 1000;
+    private volatile long spotPriceRawRetention = SPOT_PRICE_DAY;
+    private volatile long spotPriceMinuteRetention = 7 * SPOT_PRICE_DAY;
+    private volatile long spotPriceHourRetention = 365 * SPOT_PRICE_DAY;
 
 
     // -------------------------------------------------------------------------
@@ -1086,99 +1100,130 @@ public class PersistenceAdapterImpl implements WorkspaceConstants,
             c.setAutoCommit(false);
             pstmt = c.prepareStatement(SQL_INSERT_RESOURCE);
 
-            pstmt.setInt(1, id);
-            pstmt.setString(2,resource.getName());
-            pstmt.setInt(3, resource.getState());
-            pstmt.setInt(4, resource.getTargetState());
-
-            if (resource.getTerminationTime() != null) {
-                pstmt.setObject(5,
-                    new Long(resource.getTerminationTime().getTimeInMillis()));
-            } else {
-                pstmt.setInt(5, 0);
-            }
+            setInsertResource(pstmt, resource, id, faultBytes);
 
-            if (resource.isOpsEnabled()) {
-                pstmt.setInt(6, 1);
-            } else {
-                pstmt.setInt(6, 0);
+            if (this.dbTrace) {
+                logger.trace("creating WorkspaceResource db " +
+                        "entry for " + Lager.id(id));
             }
 
-            if (resource.getCreatorID() != null) {
-                pstmt.setString(7, resource.getCreatorID());
-            } else {
-                pstmt.setNull(7, Types.VARCHAR);
-            }
+            pstmt.executeUpdate();
 
-            if (resource.getStartTime() != null) {
-                pstmt.setObject(8,
-                    new Long(resource.getStartTime().getTimeInMillis()));
-            } else {
-                pstmt.setInt(8, 0);
-            }
+            if (resource instanceof VMPersistence) {
 
-            if (resource.isVMMaccessOK()) {
-                pstmt.setInt(9, 1);
-            } else {
-                pstmt.setInt(9, 0);
-            }
+                pstmts = VirtualMachinePersistenceUtil.
+                                                  getInsertVM(resource, id, c);
 
-            if (resource.getEnsembleId() != null) {
-                pstmt.setString(10, resource.getEnsembleId());
-            } else {
-                pstmt.setNull(10, Types.VARCHAR);
-            }
+                if (this.dbTrace) {
+                    logger.trace("creating VirtualMachine db " +
+                            "entry for " + Lager.id(id) + ": " +
+                            pstmts.length + " inserts");
+                }
 
-            if (resource.getGroupId() != null) {
-                pstmt.setString(11, resource.getGroupId());
-            } else {
-                pstmt.setNull(11, Types.VARCHAR);
+                for (int i = 0; i < pstmts.length; i++) {
+                    pstmts[i].executeUpdate();
+                }
             }
 
-            pstmt.setInt(12, resource.getGroupSize());
+            c.commit();
 
-            if (resource.isLastInGroup()) {
-                pstmt.setInt(13, 1);
-            } else {
-                pstmt.setInt(13, 0);
+        } catch(SQLException e) {
+            logger.error("",e);
+            throw new WorkspaceDatabaseException(e);
+        } catch (ManageException e) {
+            logger.error("",e);
+            throw new WorkspaceDatabaseException(e);
+        } finally {
+            try {
+                if (pstmt != null) {
+                    pstmt.close();
+                }
+                if (pstmts != null) {
+                    for (int i = 0; i < pstmts.length; i++) {
+                        pstmts[i].close();
+                    }
+                }
+                if (c != null) {
+                    c.setAutoCommit(true);
+                    returnConnection(c);
+                }
+            } catch (SQLException sql) {
+                logger.error("SQLException in finally cleanup", sql);
             }
+        }
+    }
 
-            pstmt.setInt(14, resource.getLaunchIndex());
-
-            if (faultBytes != null) {
-                pstmt.setObject(15, faultBytes, Types.BLOB);
-            } else {
-                pstmt.setNull(15, Types.BLOB);
-            }
+    public void addAll(InstanceResource[] resources)
 
-            pstmt.setString(16, resource.getClientToken());
+            throws WorkspaceDatabaseException {
 
-            pstmt.setDouble(17, resource.getChargeRatio());
+        if (resources == null) {
+            throw new WorkspaceDatabaseException("resources is null");
+        }
 
-            if (this.dbTrace) {
-                logger.trace("creating WorkspaceResource db " +
-                        "entry for " + Lager.id(id));
+        final byte[][] faultBytes = new byte[resources.length][];
+        for (int i = 0; i < resources.length; i++) {
+            if (resources[i] == null) {
+                throw new WorkspaceDatabaseException("resource is null");
+            }
+            if (resources[i].getID() < 0) {
+                throw new WorkspaceDatabaseException("id is less than zero");
+            }
+            try {
+                faultBytes[i] = ErrorUtil.toByteArray(
+                                        resources[i].getStateThrowable());
+            } catch (IOException e) {
+                throw new WorkspaceDatabaseException(e);
             }
+        }
 
-            pstmt.executeUpdate();
+        if (resources.length == 0) {
+            return;
+        }
 
-            if (resource instanceof VMPersistence) {
+        if (this.dbTrace) {
+            logger.trace("addAll(): " + resources.length + " resources");
+        }
 
-                pstmts = VirtualMachinePersistenceUtil.
-                                                  getInsertVM(resource, id, c);
+        Connection c = null;
+        PreparedStatement pstmt = null;
+        PreparedStatement[] pstmts = null;
+        boolean committed = false;
+        try {
+            c = getConnection();
+            c.setAutoCommit(false);
+            pstmt = c.prepareStatement(SQL_INSERT_RESOURCE);
 
-                if (this.dbTrace) {
-                    logger.trace("creating VirtualMachine db " +
-                            "entry for " + Lager.id(id) + ": " +
-                            pstmts.length + " inserts");
+            for (int i = 0; i < resources.length; i++) {
+                setInsertResource(pstmt, resources[i],
+                                  resources[i].getID(), faultBytes[i]);
+                pstmt.addBatch();
+
+                if (resources[i] instanceof VMPersistence) {
+                    if (pstmts == null) {
+                        pstmts = VirtualMachinePersistenceUtil.
+                                                  prepareInsertVMBatch(c);
+                    }
+                    VirtualMachinePersistenceUtil.addInsertVMBatch(
+                            resources[i], resources[i].getID(), pstmts);
                 }
+            }
+
+            if (this.dbTrace) {
+                logger.trace("creating WorkspaceResource db entries for " +
+                        resources.length + " resources in one batch");
+            }
 
+            // parent rows first
+            pstmt.executeBatch();
+            if (pstmts != null) {
                 for (int i = 0; i < pstmts.length; i++) {
-                    pstmts[i].executeUpdate();
+                    pstmts[i].executeBatch();
                 }
             }
 
             c.commit();
+            committed = true;
 
         } catch(SQLException e) {
             logger.error("",e);
@@ -1197,6 +1242,9 @@ public class PersistenceAdapterImpl implements WorkspaceConstants,
                     }
                 }
                 if (c != null) {
+                    if (!committed) {
+                        c.rollback();
+                    }
                     c.setAutoCommit(true);
                     returnConnection(c);
                 }
@@ -1206,6 +1254,82 @@ public class PersistenceAdapterImpl implements WorkspaceConstants,
         }
     }
 
+    private static void setInsertResource(PreparedStatement pstmt,
+                                          InstanceResource resource,
+                                          int id,
+                                          byte[] faultBytes)
+            throws SQLException {
+
+        pstmt.setInt(1, id);
+        pstmt.setString(2,resource.getName());
+        pstmt.setInt(3, resource.getState());
+        pstmt.setInt(4, resource.getTargetState());
+
+        if (resource.getTerminationTime() != null) {
+            pstmt.setObject(5,
+                new Long(resource.getTerminationTime().getTimeInMillis()));
+        } else {
+            pstmt.setInt(5, 0);
+        }
+
+        if (resource.isOpsEnabled()) {
+            pstmt.setInt(6, 1);
+        } else {
+            pstmt.setInt(6, 0);
+        }
+
+        if (resource.getCreatorID() != null) {
+            pstmt.setString(7, resource.getCreatorID());
+        } else {
+            pstmt.setNull(7, Types.VARCHAR);
+        }
+
+        if (resource.getStartTime() != null) {
+            pstmt.setObject(8,
+                new Long(resource.getStartTime().getTimeInMillis()));
+        } else {
+            pstmt.setInt(8, 0);
+        }
+
+        if (resource.isVMMaccessOK()) {
+            pstmt.setInt(9, 1);
+        } else {
+            pstmt.setInt(9, 0);
+        }
+
+        if (resource.getEnsembleId() != null) {
+            pstmt.setString(10, resource.getEnsembleId());
+        } else {
+            pstmt.setNull(10, Types.VARCHAR);
+        }
+
+        if (resource.getGroupId() != null) {
+            pstmt.setString(11, resource.getGroupId());
+        } else {
+            pstmt.setNull(11, Types.VARCHAR);
+        }
+
+        pstmt.setInt(12, resource.getGroupSize());
+
+        if (resource.isLastInGroup()) {
+            pstmt.setInt(13, 1);
+        } else {
+            pstmt.setInt(13, 0);
+        }
+
+        pstmt.setInt(14, resource.getLaunchIndex());
+
+        if (faultBytes != null) {
+            pstmt.setObject(15, faultBytes, Types.BLOB);
+        } else {
+            pstmt.setNull(15, Types.BLOB);
+        }
+
+        pstmt.setString(16, resource.getClientToken());
+
+        pstmt.setDouble(17, resource.getChargeRatio());
+    }
+
     public void addGroup(GroupResource resource)
 
             throws WorkspaceDatabaseException {
@@ -1314,88 +1438,7 @@ public class PersistenceAdapterImpl implements WorkspaceConstants,
                 logger.debug(err);
                 throw new DoesNotExistException(err);
             } else {
-                final String name = rs.getString(1);
-                resource.setName(name);
-                final int state = rs.getInt(2);
-                final int targetState = rs.getInt(3);
-                resource.setInitialTargetState(targetState);
-                final long t = rs.getLong(4);
-                if (t == 0) {
-                    resource.setTerminationTime(null);
-                } else {
-                    final Calendar term = Calendar.getInstance();
-                    term.setTimeInMillis(t);
-                    resource.setTerminationTime(term);
-                }
-                final boolean opsEnabled = rs.getBoolean(5);
-                resource.setInitialOpsEnabled(opsEnabled);
-                
-                final String dn = rs.getString(6);
-                resource.setCreatorID(dn);
-
-                final long s = rs.getLong(7);
-                if (s == 0) {
-                    resource.setStartTime(null);
-                } else {
-                    final Calendar start = Calendar.getInstance();
-                    start.setTimeInMillis(s);
-                    resource.setStartTime(start);
-                }
-                
-                final boolean vmmAccessOK = rs.getBoolean(8);
-                resource.setInitialVMMaccessOK(vmmAccessOK);
-
-                final String ensembleid = rs.getString(9);
-                resource.setEnsembleId(ensembleid);
-
-                final String groupid = rs.getString(10);
-                resource.setGroupId(groupid);
-
-                final int groupsize = rs.getInt(11);
-                resource.setGroupSize(groupsize);
-
-                final boolean isLastInGroup = rs.getBoolean(12);
-                resource.setLastInGroup(isLastInGroup);
-
-                final int launchIndex = rs.getInt(13);
-                resource.setLaunchIndex(launchIndex);
-
-                final Blob errBlob = rs.getBlob(14);
-                if (errBlob != null) {
-                    // getBytes requires int, cast from long
-                    final int length = (int)errBlob.length();
-                    final Throwable err =
-                           ErrorUtil.getThrowable(errBlob.getBytes(1,length));
-                    resource.setInitialState(state, err);
-                } else {
-                    resource.setInitialState(state, null);
-                }
-
-                final String clientToken = rs.getString(15);
-                resource.setClientToken(clientToken);
-
-                final double chargeRatio = rs.getDouble(16);
-                resource.setChargeRatio(chargeRatio);
-
-                if (this.dbTrace) {
-                    logger.trace("found " + Lager.id(id) +
-                             ": name = " + name +
-                             ", state = " + state +
-                             ", targetState = " + targetState +
-                             ", termination time = " + t +
-                             ", opsEnabled = " + opsEnabled +
-                             ", creator ID = " + dn +
-                             ", start time = " + s +
-                             ", vmmAccessOK = " + vmmAccessOK +
-                             ", ensembleid = " + ensembleid +
-                             ", groupid = " + groupid +
-                             ", groupsize = " + groupsize +
-                             ", isLastInGroup = " + isLastInGroup +
-                             ", launchIndex = " + launchIndex +
-                             ", clientToken = " + clientToken +
-                             ", chargeRatio = " + chargeRatio +
-                             ", error present = " + (errBlob != null));
-                }
+                this.setResourceFields(id, rs, resource);
                 
                 rs.close();
 
@@ -1502,88 +1545,418 @@ public class PersistenceAdapterImpl implements WorkspaceConstants,
         }
     }
 
-    public VirtualMachine loadVM(int id, Connection c) throws SQLException, DoesNotExistException, WorkspaceDatabaseException {
+    /**
+     * Bulk version of load: each table is read with IN queries covering
+     * LOAD_ALL_CHUNK ids at a time instead of one round trip per table and
+     * per id.
+     *
+     * @param ids ids, no duplicates
+     * @param resources empty resources to populate, same length as ids
+     * @return found[i] is false if ids[i] does not exist, resources[i] should
+     *         then be discarded
+     * @throws WorkspaceDatabaseException problem
+     */
+    public boolean[] loadAll(int[] ids, InstanceResource[] resources)
+            throws WorkspaceDatabaseException {
 
-        if (this.dbTrace) {
-            logger.trace(Lager.id(id) + ": load virtual machine");
+        if (ids == null) {
+            throw new IllegalArgumentException("ids may not be null");
         }
-
-        PreparedStatement[] pstmts = VirtualMachinePersistenceUtil.getVMQuery(id, c);
-        ResultSet rs = pstmts[0].executeQuery();
-        if (rs == null || !rs.next()) {
-            logger.error("resource with id=" + id + " not found");
-            throw new DoesNotExistException();
+        if (resources == null || resources.length != ids.length) {
+            throw new IllegalArgumentException(
+                    "resources must be the same length as ids");
         }
 
-        final VirtualMachine vm =
-                VirtualMachinePersistenceUtil.newVM(id, rs);
-
         if (this.dbTrace) {
-            logger.trace(Lager.id(id) +
-                    ", created vm:\n" + vm.toString());
+            logger.trace("loadAll(): " + ids.length + " ids");
         }
 
-        rs.close();
+        final boolean[] found = new boolean[ids.length];
+        if (ids.length == 0) {
+            return found; // *** EARLY RETURN ***
+        }
 
-        rs = pstmts[1].executeQuery();
-        if (rs == null || !rs.next()) {
-            logger.debug("resource with id=" + id + " has no" +
-                    " deployment information");
-        } else {
-            VirtualMachinePersistenceUtil.addDeployment(vm, rs);
-            if (this.dbTrace) {
-                logger.trace("added deployment info to vm object");
+        final Map<Integer,Integer> index =
+                new HashMap<Integer,Integer>(ids.length * 2);
+        for (int i = 0; i < ids.length; i++) {
+            if (index.put(ids[i], i) != null) {
+                throw new IllegalArgumentException(
+                        "duplicate id in ids: " + ids[i]);
             }
-            rs.close();
         }
 
-        rs = pstmts[2].executeQuery();
-
-        if (rs == null || !rs.next()) {
-            logger.warn("resource with id=" + id + " has no" +
-                    " partitions");
-        } else {
-            final ArrayList partitions = new ArrayList(8);
-            do {
-                partitions.add(VirtualMachinePersistenceUtil.
-                        getPartition(rs));
-            } while (rs.next());
-
-            final VirtualMachinePartition[] parts =
-                    (VirtualMachinePartition[]) partitions.toArray(
-                            new VirtualMachinePartition[partitions.size()]);
-            vm.setPartitions(parts);
+        long mstart = 0;
+        if (this.lager.perfLog) {
+            mstart = System.currentTimeMillis();
         }
 
-        rs = pstmts[3].executeQuery();
-
-        if (rs == null || !rs.next()) {
-            if (this.lager.dbLog) {
-                logger.debug("resource with id=" + id + " has no" +
-                        " customization needs");
+        Connection c = null;
+        try {
+            c = getConnection();
+            for (int start = 0; start < ids.length; start += LOAD_ALL_CHUNK) {
+                final int end = Math.min(ids.length, start + LOAD_ALL_CHUNK);
+                this.loadChunk(c, ids, start, end, resources, index, found);
+            }
+        } catch(SQLException e) {
+            logger.error("",e);
+            throw new WorkspaceDatabaseException(e);
+        } catch (IOException e) {
+            logger.error("",e);
+            throw new WorkspaceDatabaseException(e);
+        } catch (ClassNotFoundException e) {
+            logger.error("",e);
+            throw new WorkspaceDatabaseException(e);
+        } finally {
+            if (c != null) {
+                returnConnection(c);
             }
-        } else {
-            do {
-                vm.addFileCopyNeed(
-                        VirtualMachinePersistenceUtil.getNeed(rs));
-            } while (rs.next());
         }
 
-        return vm;
+        if (this.lager.perfLog) {
+            final long mstop = System.currentTimeMillis();
+            logger.debug("_perf: loadAll() of " + ids.length + " took " +
+                        Long.toString(mstop - mstart) + " ms");
+        }
+
+        return found;
     }
 
-    public void loadGroup(String id, GroupResource resource)
+    private void loadChunk(Connection c,
+                           int[] ids,
+                           int start,
+                           int end,
+                           InstanceResource[] resources,
+                           Map<Integer,Integer> index,
+                           boolean[] found)
+            throws SQLException, IOException, ClassNotFoundException,
+                   WorkspaceDatabaseException {
+
+        final Map<Integer,VirtualMachine> vms =
+                new HashMap<Integer,VirtualMachine>(end - start);
+        final Map<Integer,List<VirtualMachinePartition>> partitions =
+                new HashMap<Integer,List<VirtualMachinePartition>>(end - start);
 
-            throws DoesNotExistException, WorkspaceDatabaseException {
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            pstmt = prepareIn(c, SQL_LOAD_RESOURCES_IN, ids, start, end);
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                final int id = rs.getInt(17);
+                final int i = index.get(id);
+                if (!found[i]) {
+                    this.setResourceFields(id, rs, resources[i]);
+                    found[i] = true;
+                }
+            }
+            rs.close();
+            rs = null;
+            pstmt.close();
+            pstmt = null;
 
-        if (this.dbTrace) {
-            logger.trace("loadGroup(): " + Lager.groupid(id) +
-                                ", WorkspaceGroupResource = " + resource);
-        }
+            pstmt = prepareIn(c, SQL_LOAD_VMS_IN, ids, start, end);
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                final int id = rs.getInt(13);
+                final int i = index.get(id);
+                if (found[i] && resources[i] instanceof VMPersistence) {
+                    vms.put(id, VirtualMachinePersistenceUtil.newVM(id, rs));
+                }
+            }
+            rs.close();
+            rs = null;
+            pstmt.close();
+            pstmt = null;
 
-        final String callerID = this.loadGroupOrEnsemble(id);
-        resource.setCreatorID(callerID);
-        resource.setID(id);
+            if (!vms.isEmpty()) {
+
+                pstmt = prepareIn(c, SQL_LOAD_VM_DEPLOYMENTS_IN, ids, start, end);
+                rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    final VirtualMachine vm = vms.get(rs.getInt(6));
+                    if (vm != null && vm.getDeployment() == null) {
+                        VirtualMachinePersistenceUtil.addDeployment(vm, rs);
+                    }
+                }
+                rs.close();
+                rs = null;
+                pstmt.close();
+                pstmt = null;
+
+                pstmt = prepareIn(c, SQL_LOAD_VM_PARTITIONS_IN, ids, start, end);
+                rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    final Integer id = rs.getInt(9);
+                    List<VirtualMachinePartition> parts = partitions.get(id);
+                    if (parts == null) {
+                        parts = new ArrayList<VirtualMachinePartition>(4);
+                        partitions.put(id, parts);
+                    }
+                    parts.add(VirtualMachinePersistenceUtil.getPartition(rs));
+                }
+                rs.close();
+                rs = null;
+                pstmt.close();
+                pstmt = null;
+
+                pstmt = prepareIn(c, SQL_LOAD_FILE_COPIES_IN, ids, start, end);
+                rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    final VirtualMachine vm = vms.get(rs.getInt(4));
+                    if (vm != null) {
+                        vm.addFileCopyNeed(
+                                VirtualMachinePersistenceUtil.getNeed(rs));
+                    }
+                }
+                rs.close();
+                rs = null;
+                pstmt.close();
+                pstmt = null;
+            }
+
+        } finally {
+            if (rs != null) {
+                rs.close();
+            }
+            if (pstmt != null) {
+                pstmt.close();
+            }
+        }
+
+        for (int i = start; i < end; i++) {
+            if (!found[i] || !(resources[i] instanceof VMPersistence)) {
+                continue;
+            }
+            final int id = ids[i];
+            final VirtualMachine vm = vms.get(id);
+            if (vm == null) {
+                // same as load(): resource row without a vm row
+                logger.error("resource with id=" + id + " not found");
+                found[i] = false;
+                continue;
+            }
+
+            final List<VirtualMachinePartition> parts = partitions.get(id);
+            if (parts == null) {
+                logger.warn("resource with id=" + id + " has no" +
+                        " partitions");
+            } else {
+                vm.setPartitions(parts.toArray(
+                        new VirtualMachinePartition[parts.size()]));
+            }
+
+            if (this.dbTrace) {
+                logger.trace(Lager.id(id) +
+                                ", created vm:\n" + vm.toString());
+            }
+
+            ((VMPersistence)resources[i]).setWorkspace(vm);
+        }
+    }
+
+    // Always LOAD_ALL_CHUNK parameters so there is one statement text per
+    // query, a short last chunk repeats its final id.
+    private static PreparedStatement prepareIn(Connection c,
+                                               String prefix,
+                                               int[] ids,
+                                               int start,
+                                               int end) throws SQLException {
+        final PreparedStatement pstmt =
+                c.prepareStatement(prefix + IN_PARAMETERS);
+        for (int p = 0; p < LOAD_ALL_CHUNK; p++) {
+            pstmt.setInt(p + 1, ids[Math.min(start + p, end - 1)]);
+        }
+        return pstmt;
+    }
+
+    private static final String IN_PARAMETERS;
+    static {
+        final StringBuffer buf = new StringBuffer(LOAD_ALL_CHUNK * 2 + 2);
+        buf.append('(');
+        for (int p = 0; p < LOAD_ALL_CHUNK; p++) {
+            if (p > 0) {
+                buf.append(',');
+            }
+            buf.append('?');
+        }
+        buf.append(')');
+        IN_PARAMETERS = buf.toString();
+    }
+
+    /**
+     * @param id id
+     * @param rs positioned on a row of SQL_LOAD_RESOURCE columns
+     * @param resource resource to populate
+     */
+    private void setResourceFields(int id, ResultSet rs, InstanceResource resource)
+            throws SQLException, IOException, ClassNotFoundException {
+
+        final String name = rs.getString(1);
+        resource.setName(name);
+        final int state = rs.getInt(2);
+        final int targetState = rs.getInt(3);
+        resource.setInitialTargetState(targetState);
+        final long t = rs.getLong(4);
+        if (t == 0) {
+            resource.setTerminationTime(null);
+        } else {
+            final Calendar term = Calendar.getInstance();
+            term.setTimeInMillis(t);
+            resource.setTerminationTime(term);
+        }
+        final boolean opsEnabled = rs.getBoolean(5);
+        resource.setInitialOpsEnabled(opsEnabled);
+        
+        final String dn = rs.getString(6);
+        resource.setCreatorID(dn);
+
+        final long s = rs.getLong(7);
+        if (s == 0) {
+            resource.setStartTime(null);
+        } else {
+            final Calendar start = Calendar.getInstance();
+            start.setTimeInMillis(s);
+            resource.setStartTime(start);
+        }
+        
+        final boolean vmmAccessOK = rs.getBoolean(8);
+        resource.setInitialVMMaccessOK(vmmAccessOK);
+
+        final String ensembleid = rs.getString(9);
+        resource.setEnsembleId(ensembleid);
+
+        final String groupid = rs.getString(10);
+        resource.setGroupId(groupid);
+
+        final int groupsize = rs.getInt(11);
+        resource.setGroupSize(groupsize);
+
+        final boolean isLastInGroup = rs.getBoolean(12);
+        resource.setLastInGroup(isLastInGroup);
+
+        final int launchIndex = rs.getInt(13);
+        resource.setLaunchIndex(launchIndex);
+
+        final Blob errBlob = rs.getBlob(14);
+        if (errBlob != null) {
+            // getBytes requires int, cast from long
+            final int length = (int)errBlob.length();
+            final Throwable err =
+                   ErrorUtil.getThrowable(errBlob.getBytes(1,length));
+            resource.setInitialState(state, err);
+        } else {
+            resource.setInitialState(state, null);
+        }
+
+        final String clientToken = rs.getString(15);
+        resource.setClientToken(clientToken);
+
+        final double chargeRatio = rs.getDouble(16);
+        resource.setChargeRatio(chargeRatio);
+
+        if (this.dbTrace) {
+            logger.trace("found " + Lager.id(id) +
+                     ": name = " + name +
+                     ", state = " + state +
+                     ", targetState = " + targetState +
+                     ", termination time = " + t +
+                     ", opsEnabled = " + opsEnabled +
+                     ", creator ID = " + dn +
+                     ", start time = " + s +
+                     ", vmmAccessOK = " + vmmAccessOK +
+                     ", ensembleid = " + ensembleid +
+                     ", groupid = " + groupid +
+                     ", groupsize = " + groupsize +
+                     ", isLastInGroup = " + isLastInGroup +
+                     ", launchIndex = " + launchIndex +
+                     ", clientToken = " + clientToken +
+                     ", chargeRatio = " + chargeRatio +
+                     ", error present = " + (errBlob != null));
+        }
+    }
+
+    public VirtualMachine loadVM(int id, Connection c) throws SQLException, DoesNotExistException, WorkspaceDatabaseException {
+
+        if (this.dbTrace) {
+            logger.trace(Lager.id(id) + ": load virtual machine");
+        }
+
+        PreparedStatement[] pstmts = VirtualMachinePersistenceUtil.getVMQuery(id, c);
+        ResultSet rs = pstmts[0].executeQuery();
+        if (rs == null || !rs.next()) {
+            logger.error("resource with id=" + id + " not found");
+            throw new DoesNotExistException();
+        }
+
+        final VirtualMachine vm =
+                VirtualMachinePersistenceUtil.newVM(id, rs);
+
+        if (this.dbTrace) {
+            logger.trace(Lager.id(id) +
+                    ", created vm:\n" + vm.toString());
+        }
+
+        rs.close();
+
+        rs = pstmts[1].executeQuery();
+        if (rs == null || !rs.next()) {
+            logger.debug("resource with id=" + id + " has no" +
+                    " deployment information");
+        } else {
+            VirtualMachinePersistenceUtil.addDeployment(vm, rs);
+            if (this.dbTrace) {
+                logger.trace("added deployment info to vm object");
+            }
+            rs.close();
+        }
+
+        rs = pstmts[2].executeQuery();
+
+        if (rs == null || !rs.next()) {
+            logger.warn("resource with id=" + id + " has no" +
+                    " partitions");
+        } else {
+            final ArrayList partitions = new ArrayList(8);
+            do {
+                partitions.add(VirtualMachinePersistenceUtil.
+                        getPartition(rs));
+            } while (rs.next());
+
+            final VirtualMachinePartition[] parts =
+                    (VirtualMachinePartition[]) partitions.toArray(
+                            new VirtualMachinePartition[partitions.size()]);
+            vm.setPartitions(parts);
+        }
+
+        rs = pstmts[3].executeQuery();
+
+        if (rs == null || !rs.next()) {
+            if (this.lager.dbLog) {
+                logger.debug("resource with id=" + id + " has no" +
+                        " customization needs");
+            }
+        } else {
+            do {
+                vm.addFileCopyNeed(
+                        VirtualMachinePersistenceUtil.getNeed(rs));
+            } while (rs.next());
+        }
+
+        return vm;
+    }
+
+    public void loadGroup(String id, GroupResource resource)
+
+            throws DoesNotExistException, WorkspaceDatabaseException {
+
+        if (this.dbTrace) {
+            logger.trace("loadGroup(): " + Lager.groupid(id) +
+                                ", WorkspaceGroupResource = " + resource);
+        }
+
+        final String callerID = this.loadGroupOrEnsemble(id);
+        resource.setCreatorID(callerID);
+        resource.setID(id);
 
         if (this.dbTrace) {
             logger.trace("found " + Lager.groupid(id) +
@@ -1782,18 +2155,24 @@ public class PersistenceAdapterImpl implements WorkspaceConstants,
         return currentAssociations(true);
     }
 
-    public synchronized Hashtable currentAssociations(boolean cachedIsFine)
+    public Hashtable currentAssociations(boolean cachedIsFine)
                             throws WorkspaceDatabaseException {
 
-        if (this.dbTrace) {
-            logger.trace("currentAssociations()");
-        }
-
         if (cachedIsFine) {
-            if (this.associations != null) {
-                return this.associations;
+            final Hashtable cached = this.associations;
+            if (cached != null) {
+                return cached;
             }
         }
+        return this.loadAssociations();
+    }
+
+    private synchronized Hashtable loadAssociations()
+                            throws WorkspaceDatabaseException {
+
+        if (this.dbTrace) {
+            logger.trace("currentAssociations()");
+        }
 
         Connection c = null;
         PreparedStatement pstmt = null;
@@ -1813,57 +2192,57 @@ public class PersistenceAdapterImpl implements WorkspaceConstants,
                 return new Hashtable();
             }
 
-            Hashtable assocs = new Hashtable();
+            final Hashtable assocs = new Hashtable();
             do {
                 // rs was next'd above already
-                String name = rs.getString(1);
-                String dns = rs.getString(2);
-                long fileTime = rs.getLong(3);
-                Association assoc = new Association(dns);
+                final String name = rs.getString(1);
+                final String dns = rs.getString(2);
+                final long fileTime = rs.getLong(3);
+                final Association assoc = new Association(dns);
                 assoc.setFileTime(fileTime);
-
-                pstmt2 = c.prepareStatement(SQL_SELECT_ASSOCIATION);
-                pstmt2.setString(1, name);
-                rs2 = pstmt2.executeQuery();
-
-                ArrayList entries = new ArrayList();
-                while (rs2.next()) {
-                    AssociationEntry entry =
-                                new AssociationEntry(rs2.getString(2),
-                                                     rs2.getString(3),
-                                                     rs2.getString(4),
-                                                     rs2.getString(5),
-                                                     rs2.getString(6),
-                                                     rs2.getString(7));
-                    entry.setInUse(rs2.getBoolean(8));
-
-                    // Encoding that MAC is explicit in the MAC field itself.
-                    // better to introduce a new field to schema?
-                    String mac = entry.getMac();
-                    if (mac.startsWith(AssociationPersistenceUtil.EXPLICIT_MAC_PREFIX)) {
-                        mac = mac.substring(AssociationPersistenceUtil.EXPLICIT_MAC_PREFIX.length());
-                        entry.setMac(mac);
-                        entry.setExplicitMac(true);
-                    }
-
-                    entries.add(entry);
-                }
-                assoc.setEntries(entries);
+                assoc.setEntries(new ArrayList());
                 assocs.put(name,assoc);
-                if (this.dbTrace) {
-                    logger.trace("found previously stored network '" +
-                            name + "':\n" + assoc);
+            } while (rs.next());
+
+            // all entries in one query instead of one per network
+            pstmt2 = c.prepareStatement(SQL_SELECT_ALL_ASSOCIATION_ENTRIES);
+            rs2 = pstmt2.executeQuery();
+            while (rs2.next()) {
+                final Association assoc =
+                        (Association) assocs.get(rs2.getString(1));
+                if (assoc == null) {
+                    continue;
                 }
+                final AssociationEntry entry =
+                            new AssociationEntry(rs2.getString(2),
+                                                 rs2.getString(3),
+                                                 rs2.getString(4),
+                                                 rs2.getString(5),
+                                                 rs2.getString(6),
+                                                 rs2.getString(7));
+                entry.setInUse(rs2.getBoolean(8));
 
-                pstmt2.close();
-                rs2.close();
+                // Encoding that MAC is explicit in the MAC field itself.
+                // better to introduce a new field to schema?
+                final String mac = entry.getMac();
+                if (mac != null &&
+                        mac.startsWith(AssociationPersistenceUtil.EXPLICIT_MAC_PREFIX)) {
+                    entry.setMac(mac.substring(
+                            AssociationPersistenceUtil.EXPLICIT_MAC_PREFIX.length()));
+                    entry.setExplicitMac(true);
+                }
 
-            } while (rs.next());
+                assoc.getEntries().add(entry);
+            }
 
-            rs = null;
-            rs2 = null;
-            pstmt = null;
-            pstmt2 = null;
+            if (this.dbTrace) {
+                final Enumeration en = assocs.keys();
+                while (en.hasMoreElements()) {
+                    final String name = (String) en.nextElement();
+                    logger.trace("found previously stored network '" +
+                            name + "':\n" + assocs.get(name));
+                }
+            }
 
             this.associations = assocs;
 
@@ -1875,18 +2254,18 @@ public class PersistenceAdapterImpl implements WorkspaceConstants,
             throw new WorkspaceDatabaseException(e);
         } finally {
             try {
-                if (pstmt != null) {
-                    pstmt.close();
-                }
-                if (pstmt2 != null) {
-                    pstmt2.close();
-                }
                 if (rs != null) {
                     rs.close();
                 }
                 if (rs2 != null) {
                     rs2.close();
                 }
+                if (pstmt != null) {
+                    pstmt.close();
+                }
+                if (pstmt2 != null) {
+                    pstmt2.close();
+                }
                 if (c != null) {
                     returnConnection(c);
                 }
@@ -2044,6 +2423,85 @@ public class PersistenceAdapterImpl implements WorkspaceConstants,
         stringBuilder.append(columnName).append("=?");
     }
 
+    public void updateResourcepoolEntriesAvailableMemory(
+                                        List<ResourcepoolEntry> entries)
+            throws WorkspaceDatabaseException {
+
+        if (this.dbTrace) {
+            logger.trace("updateResourcepoolEntriesAvailableMemory()");
+        }
+
+        if (entries == null) {
+            throw new IllegalArgumentException("entries may not be null");
+        }
+
+        for (ResourcepoolEntry entry : entries) {
+            if (entry.getHostname() == null) {
+                throw new IllegalArgumentException("hostname may not be null");
+            }
+            if (entry.getMemCurrent() < 0) {
+                throw new IllegalArgumentException("newAvailMemory must be non-negative");
+            }
+            if (entry.getMemPreemptable() < 0) {
+                throw new IllegalArgumentException("preemptibleMemory must be non-negative");
+            }
+        }
+
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        Connection c = null;
+        PreparedStatement pstmt = null;
+        boolean committed = false;
+        try {
+            c = getConnection();
+            c.setAutoCommit(false);
+
+            pstmt =
+                    c.prepareStatement(SQL_UPDATE_RESOURCE_POOL_ENTRY_MEMORY);
+
+            for (ResourcepoolEntry entry : entries) {
+                pstmt.setInt(1, entry.getMemCurrent());
+                pstmt.setInt(2, entry.getMemPreemptable());
+                pstmt.setString(3, entry.getHostname());
+                pstmt.addBatch();
+            }
+
+            final int[] updated = pstmt.executeBatch();
+            for (int i = 0; i < updated.length; i++) {
+                // SUCCESS_NO_INFO is allowed, any driver reporting counts
+                // must report exactly one row per entry
+                if (updated[i] != 1 && updated[i] != Statement.SUCCESS_NO_INFO) {
+                    throw new WorkspaceDatabaseException("expected row update " +
+                            "for '" + entries.get(i).getHostname() + "'");
+                }
+            }
+
+            c.commit();
+            committed = true;
+
+        } catch(SQLException e) {
+            logger.error("",e);
+            throw new WorkspaceDatabaseException(e);
+        } finally {
+            try {
+                if (pstmt != null) {
+                    pstmt.close();
+                }
+                if (c != null) {
+                    if (!committed) {
+                        c.rollback();
+                    }
+                    c.setAutoCommit(true);
+                    returnConnection(c);
+                }
+            } catch (SQLException sql) {
+                logger.error("SQLException in finally cleanup", sql);
+            }
+        }
+    }
+
     // one can only use result of this safely during service initialization
     public int memoryUsedOnPoolnode(String poolnode)
 
@@ -2818,24 +3276,70 @@ public class PersistenceAdapterImpl implements WorkspaceConstants,
         return total;
     }
 
+    // -------------------------------------------------------------------------
+    // SPOT PRICE HISTORY
+    // -------------------------------------------------------------------------
+
+    // The raw price changes of the last spotPriceRawRetention milliseconds
+    // stay in spot_prices (the newest few also in memory).  Older changes
+    // are rolled up into per-minute open/high/low/close buckets, minute
+    // buckets older than spotPriceMinuteRetention into per-hour buckets and
+    // hour buckets older than spotPriceHourRetention are dropped.  Rolled up
+    // buckets are reported as one entry with the price the bucket closed at,
+    // at the time of the last change in the bucket (from then on it is the
+    // price until the next entry).  Changes in between are not reported.
+
+    public static final long SPOT_PRICE_MINUTE = 60L * 1000L;
+    public static final long SPOT_PRICE_HOUR = 60L * SPOT_PRICE_MINUTE;
+    private static final long SPOT_PRICE_DAY = 24L * SPOT_PRICE_HOUR;
+    private static final long SPOT_PRICE_COMPACTION_INTERVAL =
+                                                    10L * SPOT_PRICE_MINUTE;
+
+    public void setSpotPriceRecentCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.spotPriceRecentCapacity = capacity;
+    }
+
+    public void setSpotPriceMaxEntries(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.spotPriceMaxEntries = maxEntries;
+    }
+
+    public void setSpotPriceRawRetentionHours(long hours) {
+        this.spotPriceRawRetention = hours * SPOT_PRICE_HOUR;
+    }
+
+    public void setSpotPriceMinuteRetentionDays(long days) {
+        this.spotPriceMinuteRetention = days * SPOT_PRICE_DAY;
+    }
+
+    /**
+     * @param days hour buckets to keep, zero or less keeps them forever
+     */
+    public void setSpotPriceHourRetentionDays(long days) {
+        this.spotPriceHourRetention = days * SPOT_PRICE_DAY;
+    }
+
     public void addSpotPriceHistory(Calendar timeStamp, Double newPrice) throws WorkspaceDatabaseException{
         if (this.dbTrace) {
             logger.trace("addSpotPriceHistory(): timeStamp = " + timeStamp + ", spot price = " + newPrice);
         }
 
+        final SpotPriceRing ring = this.getSpotPriceRing();
+
+        final long time = timeStamp == null ? 0 : timeStamp.getTimeInMillis();
+
         Connection c = null;
         PreparedStatement pstmt = null;
         try {
             c = getConnection();
             pstmt = c.prepareStatement(SQL_INSERT_SPOT_PRICE);
 
-            if (timeStamp != null) {
-                pstmt.setLong(1,
-                    new Long(timeStamp.getTimeInMillis()));
-            } else {
-                pstmt.setInt(1, 0);
-            }
-
+            pstmt.setLong(1, time);
             pstmt.setDouble(2, newPrice);
             final int updated = pstmt.executeUpdate();
 
@@ -2858,98 +3362,211 @@ public class PersistenceAdapterImpl implements WorkspaceConstants,
                 logger.error("SQLException in finally cleanup", sql);
             }
         }
-    }
 
+        ring.add(time, newPrice);
+
+        final long now = System.currentTimeMillis();
+        if (now - this.lastSpotPriceCompaction >= SPOT_PRICE_COMPACTION_INTERVAL) {
+            this.compactSpotPriceHistory(now);
+        }
+    }
 
     public List<SpotPriceEntry> getSpotPriceHistory(Calendar startDate,
             Calendar endDate) throws WorkspaceDatabaseException {
         if (this.dbTrace) {
-            logger.trace("getSpotPriceHistory() startDate: " + startDate == null? null : startDate.getTime() 
-                            + ". endDate: " + endDate == null? null : endDate.getTime());
+            logger.trace("getSpotPriceHistory() startDate: " +
+                    (startDate == null ? null : startDate.getTime()) +
+                    ". endDate: " +
+                    (endDate == null ? null : endDate.getTime()));
         }
 
-        Connection c = null;
-        Statement st = null;
-        ResultSet rs = null;
+        final long from = startDate == null ?
+                Long.MIN_VALUE : startDate.getTimeInMillis();
+        final long to = endDate == null ?
+                Long.MAX_VALUE : endDate.getTimeInMillis();
+        final int max = this.spotPriceMaxEntries;
 
+        final SpotPriceRing ring = this.getSpotPriceRing();
+        if (from >= ring.getOldest()) {
+            final int len = Math.min(max, ring.size());
+            final long[] times = new long[len];
+            final double[] prices = new double[len];
+            final int n = ring.copyRange(from, to, times, prices);
+            final List<SpotPriceEntry> result = new ArrayList<SpotPriceEntry>(n);
+            for (int i = 0; i < n; i++) {
+                result.add(this.newSpotPriceEntry(times[i], prices[i]));
+            }
+            return result; // *** EARLY RETURN ***
+        }
+
+        Connection c = null;
         try {
             c = getConnection();
-            st = c.createStatement();
-            
-            String statement = SQL_SELECT_SPOT_PRICE;
-            
-            if(startDate != null || endDate != null){
-                statement += " WHERE ";
-                
-                if(startDate != null){
-                    statement += "tstamp >= " + startDate.getTimeInMillis(); 
-                    if(endDate != null){
-                        statement += " AND";
-                    }
-                }
-                
-                if(endDate != null){
-                    statement += " tstamp <= " + endDate.getTimeInMillis();
-                }
+
+            // newest first until there are enough
+            final LinkedList<SpotPriceEntry> result =
+                                        new LinkedList<SpotPriceEntry>();
+            final List<SpotPriceEntry> page = new ArrayList<SpotPriceEntry>();
+
+            this.selectSpotPrices(c, SQL_SELECT_SPOT_PRICE_RANGE_DESC,
+                                  -1, from, to, 0, max, page);
+            if (this.spotPriceRollups) {
+                this.selectSpotPrices(c, SQL_SELECT_SPOT_PRICE_ROLLUP_RANGE_DESC,
+                                      SPOT_PRICE_MINUTE, from, to,
+                                      0, max - page.size(), page);
+                this.selectSpotPrices(c, SQL_SELECT_SPOT_PRICE_ROLLUP_RANGE_DESC,
+                                      SPOT_PRICE_HOUR, from, to,
+                                      0, max - page.size(), page);
             }
-            
-            rs = st.executeQuery(statement);
-            
-            if (rs == null || !rs.next()) {
-                if (lager.traceLog) {
-                    logger.debug("no previous spot price history");
-                }
-                return new LinkedList<SpotPriceEntry>();
+            for (SpotPriceEntry entry : page) {
+                result.addFirst(entry);
             }
 
-            List<SpotPriceEntry> result = new LinkedList<SpotPriceEntry>();
-            do {
-                // rs was next'd above already
-                Long timeMillis = rs.getLong(1);                
-                Double spotPrice = rs.getDouble(2);
-                _SpotPriceEntry spotPriceEntry = repr._newSpotPriceEntry();
-                
-                Calendar timeStamp = Calendar.getInstance();
-                timeStamp.setTimeInMillis(timeMillis);
+            if (result.isEmpty() && lager.traceLog) {
+                logger.debug("no previous spot price history");
+            }
+            return result;
 
-                spotPriceEntry.setTimeStamp(timeStamp);
-                spotPriceEntry.setSpotPrice(spotPrice);
-                
-                result.add(spotPriceEntry);
-                
-                if (this.dbTrace) {
-                    logger.trace("found spot price entry: '" +
-                            timeStamp + " : " + spotPrice + "'");
-                }
-            } while (rs.next());
+        } catch(SQLException e) {
+            logger.error("",e);
+            throw new WorkspaceDatabaseException(e);
+        } finally {
+            if (c != null) {
+                returnConnection(c);
+            }
+        }
+    }
+
+    public List<SpotPriceEntry> getSpotPriceHistory(Calendar startDate,
+                                                    Calendar endDate,
+                                                    int offset,
+                                                    int limit)
+            throws WorkspaceDatabaseException {
 
+        if (this.dbTrace) {
+            logger.trace("getSpotPriceHistory() startDate: " +
+                    (startDate == null ? null : startDate.getTime()) +
+                    ". endDate: " +
+                    (endDate == null ? null : endDate.getTime()) +
+                    ", offset " + offset + ", limit " + limit);
+        }
+
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset may not be negative");
+        }
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit may not be negative");
+        }
+
+        final long from = startDate == null ?
+                Long.MIN_VALUE : startDate.getTimeInMillis();
+        final long to = endDate == null ?
+                Long.MAX_VALUE : endDate.getTimeInMillis();
+
+        this.getSpotPriceRing();
+
+        Connection c = null;
+        try {
+            c = getConnection();
+
+            // oldest first: hour buckets, minute buckets, raw changes
+            final List<SpotPriceEntry> result = new ArrayList<SpotPriceEntry>();
+            int skip = offset;
+            if (this.spotPriceRollups) {
+                skip = this.selectSpotPrices(c, SQL_SELECT_SPOT_PRICE_ROLLUP_RANGE,
+                                             SPOT_PRICE_HOUR, from, to,
+                                             skip, limit, result);
+                skip = this.selectSpotPrices(c, SQL_SELECT_SPOT_PRICE_ROLLUP_RANGE,
+                                             SPOT_PRICE_MINUTE, from, to,
+                                             skip, limit - result.size(), result);
+            }
+            this.selectSpotPrices(c, SQL_SELECT_SPOT_PRICE_RANGE,
+                                  -1, from, to,
+                                  skip, limit - result.size(), result);
             return result;
-            
+
         } catch(SQLException e) {
             logger.error("",e);
             throw new WorkspaceDatabaseException(e);
         } finally {
-            try {
-                if (st != null) {
-                    st.close();
-                }
-                if (rs != null) {
-                    rs.close();
-                }
-                if (c != null) {
-                    returnConnection(c);
+            if (c != null) {
+                returnConnection(c);
+            }
+        }
+    }
+
+    /**
+     * @param resolution rollup resolution or -1 for raw changes
+     * @param skip rows to skip before adding
+     * @param max maximum number of entries to add
+     * @return rows still to skip
+     */
+    private int selectSpotPrices(Connection c,
+                                 String sql,
+                                 long resolution,
+                                 long from,
+                                 long to,
+                                 int skip,
+                                 int max,
+                                 List<SpotPriceEntry> result)
+            throws SQLException {
+
+        if (max <= 0) {
+            return skip; // *** EARLY RETURN ***
+        }
+
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            pstmt = c.prepareStatement(sql);
+            int i = 1;
+            if (resolution > 0) {
+                pstmt.setLong(i++, resolution);
+            }
+            pstmt.setLong(i++, from);
+            pstmt.setLong(i, to);
+            pstmt.setMaxRows((int) Math.min(Integer.MAX_VALUE, (long) skip + max));
+
+            rs = pstmt.executeQuery();
+            int added = 0;
+            while (added < max && rs.next()) {
+                if (skip > 0) {
+                    skip -= 1;
+                    continue;
                 }
-            } catch (SQLException sql) {
-                logger.error("SQLException in finally cleanup", sql);
+                result.add(this.newSpotPriceEntry(rs.getLong(1), rs.getDouble(2)));
+                added += 1;
+            }
+            return skip;
+        } finally {
+            if (rs != null) {
+                rs.close();
+            }
+            if (pstmt != null) {
+                pstmt.close();
             }
         }
     }
-    
+
+    private SpotPriceEntry newSpotPriceEntry(long timeMillis, double price) {
+        final _SpotPriceEntry spotPriceEntry = repr._newSpotPriceEntry();
+        final Calendar timeStamp = Calendar.getInstance();
+        timeStamp.setTimeInMillis(timeMillis);
+        spotPriceEntry.setTimeStamp(timeStamp);
+        spotPriceEntry.setSpotPrice(price);
+        return spotPriceEntry;
+    }
+
     public Double getLastSpotPrice() throws WorkspaceDatabaseException {
         if (this.dbTrace) {
             logger.trace("getLastSpotPrice()");
         }
 
+        final Double recent = this.getSpotPriceRing().getNewestPrice();
+        if (recent != null) {
+            return recent; // *** EARLY RETURN ***
+        }
+
         Connection c = null;
         PreparedStatement pstmt = null;
         ResultSet rs = null;
@@ -2995,6 +3612,373 @@ public class PersistenceAdapterImpl implements WorkspaceConstants,
         }
     }
 
+    private SpotPriceRing getSpotPriceRing() throws WorkspaceDatabaseException {
+        synchronized (this.spotPriceLock) {
+            if (this.spotPriceRing == null) {
+                final SpotPriceRing ring =
+                        new SpotPriceRing(this.spotPriceRecentCapacity);
+                this.loadRecentSpotPrices(ring);
+                this.spotPriceRing = ring;
+            }
+            return this.spotPriceRing;
+        }
+    }
+
+    private void loadRecentSpotPrices(SpotPriceRing ring)
+            throws WorkspaceDatabaseException {
+
+        Connection c = null;
+        try {
+            c = getConnection();
+
+            final List<SpotPriceEntry> recent = new ArrayList<SpotPriceEntry>();
+            this.selectSpotPrices(c, SQL_SELECT_SPOT_PRICE_RANGE_DESC, -1,
+                                  Long.MIN_VALUE, Long.MAX_VALUE,
+                                  0, this.spotPriceRecentCapacity, recent);
+            for (int i = recent.size() - 1; i >= 0; i--) {
+                final SpotPriceEntry entry = recent.get(i);
+                ring.add(entry.getTimeStamp().getTimeInMillis(),
+                         entry.getSpotPrice());
+            }
+
+            PreparedStatement pstmt = null;
+            try {
+                pstmt = c.prepareStatement(SQL_COUNT_SPOT_PRICE_ROLLUPS);
+                pstmt.executeQuery().close();
+                this.spotPriceRollups = true;
+            } catch (SQLException e) {
+                logger.warn("Could not read spot_price_rollups table, spot " +
+                        "price history will not be downsampled (was the " +
+                        "database created with an older schema?): " +
+                        e.getMessage());
+                this.spotPriceRollups = false;
+            } finally {
+                if (pstmt != null) {
+                    pstmt.close();
+                }
+            }
+
+        } catch(SQLException e) {
+            logger.error("",e);
+            throw new WorkspaceDatabaseException(e);
+        } finally {
+            if (c != null) {
+                returnConnection(c);
+            }
+        }
+    }
+
+    /**
+     * Rolls up and drops spot price history past the retention settings.
+     * Problems are logged, the history is just left as it is.
+     *
+     * @param now current time
+     */
+    public void compactSpotPriceHistory(long now) {
+
+        synchronized (this.spotPriceLock) {
+
+            this.lastSpotPriceCompaction = now;
+            if (!this.spotPriceRollups) {
+                return; // *** EARLY RETURN ***
+            }
+
+            final long rawCutoff = now - this.spotPriceRawRetention;
+            // whole hours only, so an hour bucket is made at most once
+            final long minuteCutoff = floor(
+                    now - this.spotPriceMinuteRetention, SPOT_PRICE_HOUR);
+
+            Connection c = null;
+            boolean committed = false;
+            try {
+                c = getConnection();
+                c.setAutoCommit(false);
+
+                final int raw = this.rollUpRawSpotPrices(c, rawCutoff);
+                final int minutes = this.rollUpSpotPriceBuckets(
+                        c, SPOT_PRICE_MINUTE, SPOT_PRICE_HOUR, minuteCutoff);
+                int hours = 0;
+                if (this.spotPriceHourRetention > 0) {
+                    hours = deleteSpotPriceBuckets(c, SPOT_PRICE_HOUR,
+                            now - this.spotPriceHourRetention);
+                }
+
+                c.commit();
+                committed = true;
+
+                if (this.spotPriceRing != null) {
+                    this.spotPriceRing.dropBefore(rawCutoff);
+                }
+
+                if (raw + minutes + hours > 0 && lager.traceLog) {
+                    logger.debug("spot price history: rolled up " + raw +
+                            " price changes and " + minutes + " minute " +
+                            "buckets, dropped " + hours + " hour buckets");
+                }
+
+            } catch (SQLException e) {
+                logger.error("Problem compacting spot price history: " +
+                        e.getMessage(), e);
+            } finally {
+                try {
+                    if (c != null) {
+                        if (!committed) {
+                            c.rollback();
+                        }
+                        c.setAutoCommit(true);
+                        returnConnection(c);
+                    }
+                } catch (SQLException sql) {
+                    logger.error("SQLException in finally cleanup", sql);
+                }
+            }
+        }
+    }
+
+    // never rolls up the newest change, getLastSpotPrice needs it
+    private int rollUpRawSpotPrices(Connection c, long cutoff)
+            throws SQLException {
+
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            pstmt = c.prepareStatement(SQL_SELECT_LAST_SPOT_PRICE_TIME);
+            rs = pstmt.executeQuery();
+            if (!rs.next()) {
+                return 0; // *** EARLY RETURN ***
+            }
+            final long newest = rs.getLong(1);
+            if (rs.wasNull()) {
+                return 0; // *** EARLY RETURN ***
+            }
+            final long bound = Math.min(cutoff, newest);
+            rs.close();
+            rs = null;
+            pstmt.close();
+
+            final Map<Long,SpotPriceRollup> buckets =
+                    new LinkedHashMap<Long,SpotPriceRollup>();
+            int count = 0;
+            pstmt = c.prepareStatement(SQL_SELECT_SPOT_PRICE_BEFORE);
+            pstmt.setLong(1, bound);
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                final long time = rs.getLong(1);
+                final long bucket = floor(time, SPOT_PRICE_MINUTE);
+                final double price = rs.getDouble(2);
+                final SpotPriceRollup rollup = buckets.get(bucket);
+                if (rollup == null) {
+                    buckets.put(bucket, new SpotPriceRollup(time, price));
+                } else {
+                    rollup.add(time, price);
+                }
+                count += 1;
+            }
+            rs.close();
+            rs = null;
+            pstmt.close();
+            pstmt = null;
+
+            if (count == 0) {
+                return 0; // *** EARLY RETURN ***
+            }
+
+            mergeSpotPriceBuckets(c, SPOT_PRICE_MINUTE, buckets);
+
+            pstmt = c.prepareStatement(SQL_DELETE_SPOT_PRICE_BEFORE);
+            pstmt.setLong(1, bound);
+            pstmt.executeUpdate();
+            return count;
+
+        } finally {
+            if (rs != null) {
+                rs.close();
+            }
+            if (pstmt != null) {
+                pstmt.close();
+            }
+        }
+    }
+
+    private static int rollUpSpotPriceBuckets(Connection c,
+                                              long fromResolution,
+                                              long toResolution,
+                                              long cutoff)
+            throws SQLException {
+
+        final Map<Long,SpotPriceRollup> buckets =
+                new LinkedHashMap<Long,SpotPriceRollup>();
+        int count = 0;
+
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            pstmt = c.prepareStatement(SQL_SELECT_SPOT_PRICE_ROLLUPS_BEFORE);
+            pstmt.setLong(1, fromResolution);
+            pstmt.setLong(2, cutoff);
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                final long bucket = floor(rs.getLong(1), toResolution);
+                final SpotPriceRollup next = new SpotPriceRollup(
+                        rs.getDouble(2), rs.getDouble(3), rs.getDouble(4),
+                        rs.getDouble(5), rs.getLong(6), rs.getInt(7));
+                final SpotPriceRollup rollup = buckets.get(bucket);
+                if (rollup == null) {
+                    buckets.put(bucket, next);
+                } else {
+                    rollup.merge(next);
+                }
+                count += 1;
+            }
+        } finally {
+            if (rs != null) {
+                rs.close();
+            }
+            if (pstmt != null) {
+                pstmt.close();
+            }
+        }
+
+        if (count == 0) {
+            return 0; // *** EARLY RETURN ***
+        }
+
+        mergeSpotPriceBuckets(c, toResolution, buckets);
+        deleteSpotPriceBuckets(c, fromResolution, cutoff);
+        return count;
+    }
+
+    // buckets are newer than what is stored for the same bucket already
+    private static void mergeSpotPriceBuckets(Connection c,
+                                              long resolution,
+                                              Map<Long,SpotPriceRollup> buckets)
+            throws SQLException {
+
+        PreparedStatement select = null;
+        PreparedStatement insert = null;
+        PreparedStatement update = null;
+        try {
+            select = c.prepareStatement(SQL_SELECT_SPOT_PRICE_ROLLUP);
+            insert = c.prepareStatement(SQL_INSERT_SPOT_PRICE_ROLLUP);
+            update = c.prepareStatement(SQL_UPDATE_SPOT_PRICE_ROLLUP);
+
+            for (Map.Entry<Long,SpotPriceRollup> bucket : buckets.entrySet()) {
+
+                SpotPriceRollup rollup = bucket.getValue();
+
+                select.setLong(1, resolution);
+                select.setLong(2, bucket.getKey());
+                final ResultSet rs = select.executeQuery();
+                SpotPriceRollup stored = null;
+                try {
+                    if (rs.next()) {
+                        stored = new SpotPriceRollup(
+                                rs.getDouble(1), rs.getDouble(2),
+                                rs.getDouble(3), rs.getDouble(4),
+                                rs.getLong(5), rs.getInt(6));
+                    }
+                } finally {
+                    rs.close();
+                }
+
+                if (stored == null) {
+                    insert.setLong(1, resolution);
+                    insert.setLong(2, bucket.getKey());
+                    insert.setDouble(3, rollup.open);
+                    insert.setDouble(4, rollup.high);
+                    insert.setDouble(5, rollup.low);
+                    insert.setDouble(6, rollup.close);
+                    insert.setLong(7, rollup.closeTime);
+                    insert.setInt(8, rollup.samples);
+                    insert.executeUpdate();
+                } else {
+                    stored.merge(rollup);
+                    rollup = stored;
+                    update.setDouble(1, rollup.high);
+                    update.setDouble(2, rollup.low);
+                    update.setDouble(3, rollup.close);
+                    update.setLong(4, rollup.closeTime);
+                    update.setInt(5, rollup.samples);
+                    update.setLong(6, resolution);
+                    update.setLong(7, bucket.getKey());
+                    update.executeUpdate();
+                }
+            }
+        } finally {
+            if (select != null) {
+                select.close();
+            }
+            if (insert != null) {
+                insert.close();
+            }
+            if (update != null) {
+                update.close();
+            }
+        }
+    }
+
+    private static int deleteSpotPriceBuckets(Connection c,
+                                              long resolution,
+                                              long cutoff)
+            throws SQLException {
+        final PreparedStatement pstmt =
+                c.prepareStatement(SQL_DELETE_SPOT_PRICE_ROLLUPS_BEFORE);
+        try {
+            pstmt.setLong(1, resolution);
+            pstmt.setLong(2, cutoff);
+            return pstmt.executeUpdate();
+        } finally {
+            pstmt.close();
+        }
+    }
+
+    private static long floor(long time, long resolution) {
+        final long rem = time % resolution;
+        return rem < 0 ? time - rem - resolution : time - rem;
+    }
+
+    private static class SpotPriceRollup {
+
+        final double open;
+        double high;
+        double low;
+        double close;
+        long closeTime;
+        int samples;
+
+        SpotPriceRollup(long time, double price) {
+            this(price, price, price, price, time, 1);
+        }
+
+        SpotPriceRollup(double open, double high, double low,
+                        double close, long closeTime, int samples) {
+            this.open = open;
+            this.high = high;
+            this.low = low;
+            this.close = close;
+            this.closeTime = closeTime;
+            this.samples = samples;
+        }
+
+        // changes come in time order
+        void add(long time, double price) {
+            this.high = Math.max(this.high, price);
+            this.low = Math.min(this.low, price);
+            this.close = price;
+            this.closeTime = time;
+            this.samples += 1;
+        }
+
+        // later must cover a later time than this
+        void merge(SpotPriceRollup later) {
+            this.high = Math.max(this.high, later.high);
+            this.low = Math.min(this.low, later.low);
+            this.close = later.close;
+            this.closeTime = later.closeTime;
+            this.samples += later.samples;
+        }
+    }
+
     public Backfill getStoredBackfill() throws WorkspaceDatabaseException {
         if (this.dbTrace) {
             logger.trace("getStoredBackfill()");
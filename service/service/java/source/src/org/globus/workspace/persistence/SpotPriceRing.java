@@ -0,0 +1,130 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace.persistence;
+
+/**
+ * package-private class, the most recent raw spot price changes in time
+ * order.  When full the oldest change is overwritten.
+ *
+ * Every change from the oldest one held up to now is in the ring, so a
+ * range that starts at or after getOldest() can be answered without the
+ * database.
+ */
+class SpotPriceRing {
+
+    private final long[] times;
+    private final double[] prices;
+    private int first;
+    private int count;
+
+    SpotPriceRing(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.times = new long[capacity];
+        this.prices = new double[capacity];
+    }
+
+    synchronized void add(long time, double price) {
+        final int capacity = this.times.length;
+        final int next = (this.first + this.count) % capacity;
+        this.times[next] = time;
+        this.prices[next] = price;
+        if (this.count < capacity) {
+            this.count += 1;
+        } else {
+            this.first = (this.first + 1) % capacity;
+        }
+    }
+
+    synchronized int size() {
+        return this.count;
+    }
+
+    /**
+     * @return time of the oldest change held, Long.MAX_VALUE if empty
+     */
+    synchronized long getOldest() {
+        if (this.count == 0) {
+            return Long.MAX_VALUE;
+        }
+        return this.times[this.first];
+    }
+
+    /**
+     * @return newest price or null if empty
+     */
+    synchronized Double getNewestPrice() {
+        if (this.count == 0) {
+            return null;
+        }
+        return this.prices[(this.first + this.count - 1) % this.times.length];
+    }
+
+    /**
+     * Copies the newest changes with from <= time <= to, oldest first.
+     *
+     * @param from earliest time
+     * @param to latest time
+     * @param outTimes filled with times, its length is the maximum copied
+     * @param outPrices filled with prices, at least as long as outTimes
+     * @return number of changes copied
+     */
+    synchronized int copyRange(long from, long to,
+                               long[] outTimes, double[] outPrices) {
+
+        final int capacity = this.times.length;
+
+        // walk back from the newest to find how many fit
+        int n = 0;
+        int oldest = -1;
+        for (int i = this.count - 1; i >= 0 && n < outTimes.length; i--) {
+            final long time = this.times[(this.first + i) % capacity];
+            if (time < from) {
+                break;
+            }
+            if (time <= to) {
+                n += 1;
+                oldest = i;
+            }
+        }
+
+        int j = 0;
+        for (int i = oldest; j < n; i++) {
+            final int idx = (this.first + i) % capacity;
+            if (this.times[idx] <= to) {
+                outTimes[j] = this.times[idx];
+                outPrices[j] = this.prices[idx];
+                j += 1;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Forgets changes older than the cutoff, always keeping the newest.
+     *
+     * @param cutoff time
+     */
+    synchronized void dropBefore(long cutoff) {
+        final int capacity = this.times.length;
+        while (this.count > 1 && this.times[this.first] < cutoff) {
+            this.first = (this.first + 1) % capacity;
+            this.count -= 1;
+        }
+    }
+}
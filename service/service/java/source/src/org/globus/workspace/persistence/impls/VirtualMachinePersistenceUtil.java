@@ -54,6 +54,123 @@ public class VirtualMachinePersistenceUtil
             throws ManageException, SQLException {
 
         final PreparedStatement pstmt = c.prepareStatement(SQL_INSERT_VM);
+        setInsertVM(pstmt, vm, id);
+
+        PreparedStatement pstmt2 = null;
+
+        VirtualMachineDeployment dep = vm.getDeployment();
+        if (dep != null) {
+            pstmt2 = c.prepareStatement(SQL_INSERT_VM_DEPLOYMENT);
+            setInsertDeployment(pstmt2, dep, id);
+        }
+
+        final ArrayList inserts = new ArrayList(16);
+        inserts.add(pstmt);
+        if (pstmt2 != null) {
+            inserts.add(pstmt2);
+        }
+        
+        final VirtualMachinePartition[] partitions = vm.getPartitions();
+        if (partitions != null) {
+            for (int i = 0; i < partitions.length; i++) {
+                final PreparedStatement partStmt =
+                            c.prepareStatement(SQL_INSERT_VM_PARTITION);
+                setInsertPartition(partStmt, partitions[i], id);
+                inserts.add(partStmt);
+            }
+        }
+
+        final FileCopyNeed[] needs = vm.getFileCopyNeeds();
+        if (needs != null) {
+            for (int i = 0; i < needs.length; i++) {
+                final PreparedStatement custStmt =
+                            c.prepareStatement(SQL_INSERT_FILE_COPY);
+                setInsertFileCopy(custStmt, needs[i], id);
+                inserts.add(custStmt);
+            }
+        }
+
+        return (PreparedStatement[]) inserts.toArray(
+                                new PreparedStatement[inserts.size()]);
+    }
+
+    /**
+     * Statements for addInsertVMBatch(), in the order they need to be
+     * executed: vms, vm_deployment, vm_partitions, file_copy.
+     *
+     * @param c connection
+     * @return insert statements, caller closes them
+     * @throws SQLException if problem with preparestmt
+     */
+    public static PreparedStatement[] prepareInsertVMBatch(Connection c)
+            throws SQLException {
+
+        final PreparedStatement[] pstmts = new PreparedStatement[4];
+        try {
+            pstmts[0] = c.prepareStatement(SQL_INSERT_VM);
+            pstmts[1] = c.prepareStatement(SQL_INSERT_VM_DEPLOYMENT);
+            pstmts[2] = c.prepareStatement(SQL_INSERT_VM_PARTITION);
+            pstmts[3] = c.prepareStatement(SQL_INSERT_FILE_COPY);
+        } catch (SQLException e) {
+            for (int i = 0; i < pstmts.length; i++) {
+                if (pstmts[i] != null) {
+                    pstmts[i].close();
+                }
+            }
+            throw e;
+        }
+        return pstmts;
+    }
+
+    /**
+     * Same rows as getInsertVM() but added to the shared batches of
+     * statements from prepareInsertVMBatch().
+     *
+     * @param resource resource with VM
+     * @param id vm ID
+     * @param pstmts statements from prepareInsertVMBatch()
+     * @throws ManageException if no VM
+     * @throws SQLException if problem setting parameters
+     */
+    public static void addInsertVMBatch(InstanceResource resource,
+                                        int id,
+                                        PreparedStatement[] pstmts)
+            throws ManageException, SQLException {
+
+        final VirtualMachine vm = resource.getVM();
+        if (vm == null) {
+            throw new ProgrammingError("vm is null");
+        }
+
+        setInsertVM(pstmts[0], vm, id);
+        pstmts[0].addBatch();
+
+        final VirtualMachineDeployment dep = vm.getDeployment();
+        if (dep != null) {
+            setInsertDeployment(pstmts[1], dep, id);
+            pstmts[1].addBatch();
+        }
+
+        final VirtualMachinePartition[] partitions = vm.getPartitions();
+        if (partitions != null) {
+            for (int i = 0; i < partitions.length; i++) {
+                setInsertPartition(pstmts[2], partitions[i], id);
+                pstmts[2].addBatch();
+            }
+        }
+
+        final FileCopyNeed[] needs = vm.getFileCopyNeeds();
+        if (needs != null) {
+            for (int i = 0; i < needs.length; i++) {
+                setInsertFileCopy(pstmts[3], needs[i], id);
+                pstmts[3].addBatch();
+            }
+        }
+    }
+
+    private static void setInsertVM(PreparedStatement pstmt,
+                                    VirtualMachine vm,
+                                    int id) throws SQLException {
 
         pstmt.setInt(1, id);
         pstmt.setString(2, vm.getName());
@@ -119,109 +236,90 @@ public class VirtualMachinePersistenceUtil
         } else {
             pstmt.setNull(13, Types.VARCHAR);
         }
+    }
 
-        PreparedStatement pstmt2 = null;
-
-        VirtualMachineDeployment dep = vm.getDeployment();
-        if (dep != null) {
-            pstmt2 = c.prepareStatement(SQL_INSERT_VM_DEPLOYMENT);
-            pstmt2.setInt(1, id);
-            // can be -1
-            pstmt2.setInt(2, dep.getRequestedState());
-            pstmt2.setInt(3, dep.getRequestedShutdown());
-            // can be -1
-            pstmt2.setInt(4, dep.getMinDuration());
-            // can be -1 (but binding will reject that)
-            pstmt2.setInt(5, dep.getIndividualPhysicalMemory());
-            pstmt2.setInt(6, dep.getIndividualCPUCount());
-        }
-
-        final ArrayList inserts = new ArrayList(16);
-        inserts.add(pstmt);
-        if (pstmt2 != null) {
-            inserts.add(pstmt2);
-        }
-        
-        final VirtualMachinePartition[] partitions = vm.getPartitions();
-        if (partitions != null) {
-            for (int i = 0; i < partitions.length; i++) {
-                final PreparedStatement partStmt =
-                            c.prepareStatement(SQL_INSERT_VM_PARTITION);
-                partStmt.setInt(1, id);
-
-                final String image = partitions[i].getImage();
-                if (image != null) {
-                    partStmt.setString(2, image);
-                } else {
-                    partStmt.setNull(2, Types.VARCHAR);
-                }
+    private static void setInsertDeployment(PreparedStatement pstmt2,
+                                            VirtualMachineDeployment dep,
+                                            int id) throws SQLException {
 
-                final String imageMount = partitions[i].getImagemount();
-                if (imageMount != null) {
-                    partStmt.setString(3, imageMount);
-                } else {
-                    partStmt.setNull(3, Types.VARCHAR);
-                }
+        pstmt2.setInt(1, id);
+        // can be -1
+        pstmt2.setInt(2, dep.getRequestedState());
+        pstmt2.setInt(3, dep.getRequestedShutdown());
+        // can be -1
+        pstmt2.setInt(4, dep.getMinDuration());
+        // can be -1 (but binding will reject that)
+        pstmt2.setInt(5, dep.getIndividualPhysicalMemory());
+        pstmt2.setInt(6, dep.getIndividualCPUCount());
+    }
 
-                if (partitions[i].isReadwrite()) {
-                    partStmt.setInt(4, 1);
-                } else {
-                    partStmt.setInt(4, 0);
-                }
+    private static void setInsertPartition(PreparedStatement partStmt,
+                                           VirtualMachinePartition partition,
+                                           int id) throws SQLException {
 
-                if (partitions[i].isRootdisk()) {
-                    partStmt.setInt(5, 1);
-                } else {
-                    partStmt.setInt(5, 0);
-                }
+        partStmt.setInt(1, id);
 
-                partStmt.setInt(6, partitions[i].getBlankspace());
+        final String image = partition.getImage();
+        if (image != null) {
+            partStmt.setString(2, image);
+        } else {
+            partStmt.setNull(2, Types.VARCHAR);
+        }
 
-                if (partitions[i].isPropRequired()) {
-                    partStmt.setInt(7, 1);
-                } else {
-                    partStmt.setInt(7, 0);
-                }
+        final String imageMount = partition.getImagemount();
+        if (imageMount != null) {
+            partStmt.setString(3, imageMount);
+        } else {
+            partStmt.setNull(3, Types.VARCHAR);
+        }
 
-                if (partitions[i].isUnPropRequired()) {
-                    partStmt.setInt(8, 1);
-                } else {
-                    partStmt.setInt(8, 0);
-                }
+        if (partition.isReadwrite()) {
+            partStmt.setInt(4, 1);
+        } else {
+            partStmt.setInt(4, 0);
+        }
 
-                final String alt = partitions[i].getAlternateUnpropTarget();
-                if (alt != null) {
-                    partStmt.setString(9, alt);
-                } else {
-                    partStmt.setNull(9, Types.VARCHAR);
-                }
+        if (partition.isRootdisk()) {
+            partStmt.setInt(5, 1);
+        } else {
+            partStmt.setInt(5, 0);
+        }
 
-                inserts.add(partStmt);
+        partStmt.setInt(6, partition.getBlankspace());
 
-            }
+        if (partition.isPropRequired()) {
+            partStmt.setInt(7, 1);
+        } else {
+            partStmt.setInt(7, 0);
         }
 
-        final FileCopyNeed[] needs = vm.getFileCopyNeeds();
-        if (needs != null) {
-            for (int i = 0; i < needs.length; i++) {
-                final PreparedStatement custStmt =
-                            c.prepareStatement(SQL_INSERT_FILE_COPY);
-                custStmt.setInt(1, id);
-                custStmt.setString(2, needs[i].sourcePath);
-                custStmt.setString(3, needs[i].destPath);
-                if (needs[i].onImage()) {
-                    custStmt.setInt(4, 1);
-                } else {
-                    custStmt.setInt(4, 0);
-                }
-                inserts.add(custStmt);
-            }
+        if (partition.isUnPropRequired()) {
+            partStmt.setInt(8, 1);
+        } else {
+            partStmt.setInt(8, 0);
         }
 
-        return (PreparedStatement[]) inserts.toArray(
-                                new PreparedStatement[inserts.size()]);
+        final String alt = partition.getAlternateUnpropTarget();
+        if (alt != null) {
+            partStmt.setString(9, alt);
+        } else {
+            partStmt.setNull(9, Types.VARCHAR);
+        }
     }
 
+    private static void setInsertFileCopy(PreparedStatement custStmt,
+                                          FileCopyNeed need,
+                                          int id) throws SQLException {
+
+        custStmt.setInt(1, id);
+        custStmt.setString(2, need.sourcePath);
+        custStmt.setString(3, need.destPath);
+        if (need.onImage()) {
+            custStmt.setInt(4, 1);
+        } else {
+            custStmt.setInt(4, 0);
+        }
+    }
 
     /**
      * @param vm VirtualMachine
@@ -0,0 +1,32 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace.scheduler;
+
+import commonj.timers.TimerListener;
+
+/**
+ * A TimerListener that may run at the same time as other timers, and that
+ * does not rely on running in the order the timers were scheduled in.
+ *
+ * ScheduledTimerManager runs these on its pool, every other listener runs
+ * on one thread, one at a time, like java.util.Timer does.  A timer never
+ * runs concurrently with itself either way.
+ *
+ * @see ScheduledTimerManager
+ */
+public interface ConcurrentTimerListener extends TimerListener {
+}
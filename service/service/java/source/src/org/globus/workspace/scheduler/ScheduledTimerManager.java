@@ -0,0 +1,526 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace.scheduler;
+
+import commonj.timers.CancelTimerListener;
+import commonj.timers.StopTimerListener;
+import commonj.timers.Timer;
+import commonj.timers.TimerListener;
+import commonj.timers.TimerManager;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TimerManager backed by ScheduledThreadPoolExecutors.
+ *
+ * Listeners run on one thread, one at a time and in the order they come
+ * due, the same as with TimerManagerImpl's single java.util.Timer thread.
+ * Listeners that implement ConcurrentTimerListener run on a separate pool
+ * of poolSize threads instead, so a slow one (a notification poll reading
+ * a large file, say) neither holds up the others nor is held up by them.
+ *
+ * A timer never runs concurrently with itself.  Cancelling is a flag and a
+ * hash removal, the executor skips cancelled entries when they come up.
+ *
+ * Run time is recorded per listener class.  A run that takes longer than
+ * its period (or longer than overrunMillis for one shot timers) is logged
+ * and counted as an overrun.
+ */
+public class ScheduledTimerManager implements TimerManager {
+
+    // -------------------------------------------------------------------------
+    // STATIC VARIABLES
+    // -------------------------------------------------------------------------
+
+    private static final Log logger =
+            LogFactory.getLog(ScheduledTimerManager.class.getName());
+
+    private static final AtomicInteger managerCount = new AtomicInteger();
+
+
+    // -------------------------------------------------------------------------
+    // INSTANCE VARIABLES
+    // -------------------------------------------------------------------------
+
+    // every listener that is not a ConcurrentTimerListener
+    private final ScheduledThreadPoolExecutor serial;
+
+    // ConcurrentTimerListeners
+    private final ScheduledThreadPoolExecutor pool;
+
+    private final Set<ScheduledTimer> timers =
+            Collections.newSetFromMap(new ConcurrentHashMap<ScheduledTimer, Boolean>());
+
+    private final ConcurrentMap<String, ListenerStats> stats =
+            new ConcurrentHashMap<String, ListenerStats>();
+
+    private volatile long overrunMillis = 5000;
+    private volatile boolean suspended;
+    private volatile boolean stopped;
+
+
+    // -------------------------------------------------------------------------
+    // CONSTRUCTOR
+    // -------------------------------------------------------------------------
+
+    public ScheduledTimerManager() {
+        final String prefix = "timer-" + managerCount.incrementAndGet();
+        this.serial = newExecutor(1, prefix + "-serial-");
+        this.pool = newExecutor(4, prefix + "-pool-");
+    }
+
+    private static ScheduledThreadPoolExecutor newExecutor(int threads,
+                                                           final String prefix) {
+        return new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+            public Thread newThread(Runnable r) {
+                final Thread thread =
+                        new Thread(r, prefix + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+
+    // -------------------------------------------------------------------------
+    // OPTIONAL SETs
+    // -------------------------------------------------------------------------
+
+    /**
+     * @return threads for ConcurrentTimerListeners
+     */
+    public int getPoolSize() {
+        return this.pool.getCorePoolSize();
+    }
+
+    /**
+     * Other listeners always share one thread.
+     *
+     * @param poolSize threads for ConcurrentTimerListeners, default 4
+     */
+    public void setPoolSize(int poolSize) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("poolSize must be at least one");
+        }
+        this.pool.setCorePoolSize(poolSize);
+    }
+
+    public long getOverrunMillis() {
+        return this.overrunMillis;
+    }
+
+    /**
+     * @param overrunMillis one shot timers running longer than this are
+     *        counted as overruns, periodic timers use their period
+     */
+    public void setOverrunMillis(long overrunMillis) {
+        this.overrunMillis = overrunMillis;
+    }
+
+
+    // -------------------------------------------------------------------------
+    // implements TimerManager
+    // -------------------------------------------------------------------------
+
+    public Timer schedule(TimerListener listener, Date time) {
+        return this.schedule(listener, delayUntil(time));
+    }
+
+    public Timer schedule(TimerListener listener, Date firstTime, long period) {
+        return this.schedule(listener, delayUntil(firstTime), period);
+    }
+
+    public Timer schedule(TimerListener listener, long delay) {
+        final ScheduledTimer timer = this.newTimer(listener, delay, 0, false);
+        try {
+            timer.setFuture(timer.executor.schedule(
+                    timer, delay, TimeUnit.MILLISECONDS));
+        } catch (RejectedExecutionException e) {
+            throw this.rejected(timer);
+        }
+        return timer;
+    }
+
+    public Timer schedule(TimerListener listener, long delay, long period) {
+        checkPeriod(period);
+        final ScheduledTimer timer = this.newTimer(listener, delay, period, false);
+        try {
+            timer.setFuture(timer.executor.scheduleWithFixedDelay(
+                    timer, delay, period, TimeUnit.MILLISECONDS));
+        } catch (RejectedExecutionException e) {
+            throw this.rejected(timer);
+        }
+        return timer;
+    }
+
+    public Timer scheduleAtFixedRate(TimerListener listener,
+                                     Date firstTime,
+                                     long period) {
+        return this.scheduleAtFixedRate(listener, delayUntil(firstTime), period);
+    }
+
+    public Timer scheduleAtFixedRate(TimerListener listener,
+                                     long delay,
+                                     long period) {
+        checkPeriod(period);
+        final ScheduledTimer timer = this.newTimer(listener, delay, period, true);
+        try {
+            timer.setFuture(timer.executor.scheduleAtFixedRate(
+                    timer, delay, period, TimeUnit.MILLISECONDS));
+        } catch (RejectedExecutionException e) {
+            throw this.rejected(timer);
+        }
+        return timer;
+    }
+
+    public void suspend() {
+        this.suspended = true;
+    }
+
+    public void resume() {
+        this.suspended = false;
+        for (ScheduledTimer timer : this.timers) {
+            timer.resume();
+        }
+    }
+
+    public void stop() {
+        this.stopped = true;
+        final List<ScheduledTimer> stopping =
+                new ArrayList<ScheduledTimer>(this.timers);
+        this.timers.clear();
+        for (ScheduledTimer timer : stopping) {
+            timer.stop();
+            final TimerListener listener = timer.getTimerListener();
+            if (listener instanceof StopTimerListener) {
+                ((StopTimerListener) listener).timerStop(timer);
+            }
+        }
+        this.serial.shutdownNow();
+        this.pool.shutdownNow();
+    }
+
+
+    // -------------------------------------------------------------------------
+    // STATISTICS
+    // -------------------------------------------------------------------------
+
+    /**
+     * @return timers scheduled and not yet done or cancelled
+     */
+    public int getActiveTimers() {
+        return this.timers.size();
+    }
+
+    /**
+     * @return listener class name to its statistics, sorted by name
+     */
+    public Map<String, ListenerStats> getListenerStats() {
+        return Collections.unmodifiableMap(
+                new TreeMap<String, ListenerStats>(this.stats));
+    }
+
+    public String getStatsReport() {
+        final StringBuilder sb = new StringBuilder(512);
+        sb.append("Timers (threads: 1 + ").append(this.getPoolSize())
+          .append(" concurrent, active timers: ").append(this.getActiveTimers())
+          .append(")\n");
+        for (Map.Entry<String, ListenerStats> entry :
+                this.getListenerStats().entrySet()) {
+            sb.append(entry.getKey()).append(": ")
+              .append(entry.getValue()).append("\n");
+        }
+        return sb.toString();
+    }
+
+    public static class ListenerStats {
+
+        private final AtomicLong runs = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong overruns = new AtomicLong();
+        private final AtomicLong totalMillis = new AtomicLong();
+        private final AtomicLong maxMillis = new AtomicLong();
+        private final AtomicLong maxLateMillis = new AtomicLong();
+
+        void record(long millis, long lateMillis, boolean failed, boolean overrun) {
+            this.runs.incrementAndGet();
+            this.totalMillis.addAndGet(millis);
+            raise(this.maxMillis, millis);
+            raise(this.maxLateMillis, lateMillis);
+            if (failed) {
+                this.failures.incrementAndGet();
+            }
+            if (overrun) {
+                this.overruns.incrementAndGet();
+            }
+        }
+
+        private static void raise(AtomicLong max, long value) {
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+        }
+
+        public long getRuns() {
+            return this.runs.get();
+        }
+
+        public long getFailures() {
+            return this.failures.get();
+        }
+
+        public long getOverruns() {
+            return this.overruns.get();
+        }
+
+        public long getTotalMillis() {
+            return this.totalMillis.get();
+        }
+
+        public long getMaxMillis() {
+            return this.maxMillis.get();
+        }
+
+        /**
+         * @return longest a run started after its scheduled time
+         */
+        public long getMaxLateMillis() {
+            return this.maxLateMillis.get();
+        }
+
+        public String toString() {
+            final long numRuns = this.getRuns();
+            return "runs=" + numRuns +
+                   ", failures=" + this.getFailures() +
+                   ", overruns=" + this.getOverruns() +
+                   ", avgMillis=" + (numRuns == 0 ? 0 : this.getTotalMillis() / numRuns) +
+                   ", maxMillis=" + this.getMaxMillis() +
+                   ", maxLateMillis=" + this.getMaxLateMillis();
+        }
+    }
+
+
+    // -------------------------------------------------------------------------
+    // IMPL
+    // -------------------------------------------------------------------------
+
+    private static long delayUntil(Date time) {
+        if (time == null) {
+            throw new IllegalArgumentException("time may not be null");
+        }
+        return Math.max(0, time.getTime() - System.currentTimeMillis());
+    }
+
+    private static void checkPeriod(long period) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("period must be positive");
+        }
+    }
+
+    private ScheduledTimer newTimer(TimerListener listener,
+                                    long delay,
+                                    long period,
+                                    boolean fixedRate) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener may not be null");
+        }
+        if (delay < 0) {
+            throw new IllegalArgumentException("delay may not be negative");
+        }
+        if (this.stopped) {
+            throw new IllegalStateException("TimerManager is stopped");
+        }
+
+        final String name = listener.getClass().getName();
+        ListenerStats listenerStats = this.stats.get(name);
+        if (listenerStats == null) {
+            final ListenerStats newStats = new ListenerStats();
+            listenerStats = this.stats.putIfAbsent(name, newStats);
+            if (listenerStats == null) {
+                listenerStats = newStats;
+            }
+        }
+
+        final ScheduledThreadPoolExecutor executor =
+                listener instanceof ConcurrentTimerListener ?
+                        this.pool : this.serial;
+
+        final ScheduledTimer timer = new ScheduledTimer(
+                listener, listenerStats, executor, delay, period, fixedRate);
+        this.timers.add(timer);
+        return timer;
+    }
+
+    private IllegalStateException rejected(ScheduledTimer timer) {
+        this.timers.remove(timer);
+        return new IllegalStateException("TimerManager is stopped");
+    }
+
+    private class ScheduledTimer implements Timer, Runnable {
+
+        private final TimerListener listener;
+        private final ListenerStats listenerStats;
+        private final ScheduledThreadPoolExecutor executor;
+        private final long period;
+        private final boolean fixedRate;
+
+        private volatile ScheduledFuture<?> future;
+        private volatile long nextExecution;
+        private volatile boolean cancelled;
+
+        // fired while the manager was suspended
+        private boolean expired;
+
+        ScheduledTimer(TimerListener listener,
+                       ListenerStats listenerStats,
+                       ScheduledThreadPoolExecutor executor,
+                       long delay,
+                       long period,
+                       boolean fixedRate) {
+            this.listener = listener;
+            this.listenerStats = listenerStats;
+            this.executor = executor;
+            this.period = period;
+            this.fixedRate = fixedRate;
+            this.nextExecution = System.currentTimeMillis() + delay;
+        }
+
+        void setFuture(ScheduledFuture<?> future) {
+            this.future = future;
+            // cancelled before the executor handed back the future
+            if (this.cancelled) {
+                future.cancel(false);
+            }
+        }
+
+        public synchronized void run() {
+            if (this.cancelled) {
+                return;
+            }
+            if (suspended) {
+                this.expired = true;
+                return;
+            }
+            this.fire();
+        }
+
+        synchronized void resume() {
+            if (this.expired && !this.cancelled) {
+                this.expired = false;
+                try {
+                    this.executor.execute(new Runnable() {
+                        public void run() {
+                            ScheduledTimer.this.runExpired();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    logger.debug("not resuming timer, manager is stopped");
+                }
+            }
+        }
+
+        synchronized void runExpired() {
+            if (!this.cancelled) {
+                this.fire();
+            }
+        }
+
+        // always called holding this timer's lock
+        private void fire() {
+            final long start = System.currentTimeMillis();
+            final long late = Math.max(0, start - this.nextExecution);
+
+            boolean failed = false;
+            try {
+                this.listener.timerExpired(this);
+            } catch (Throwable t) {
+                failed = true;
+                logger.error("Timer exception from " +
+                        this.listener.getClass().getName() + " - ignoring: " +
+                        t.getMessage(), t);
+            }
+
+            final long end = System.currentTimeMillis();
+            final long elapsed = end - start;
+            final long limit = this.period > 0 ? this.period : overrunMillis;
+            final boolean overrun = elapsed > limit;
+            if (overrun) {
+                logger.warn("Timer overrun: " +
+                        this.listener.getClass().getName() + " ran for " +
+                        elapsed + "ms (limit " + limit + "ms)");
+            }
+            this.listenerStats.record(elapsed, late, failed, overrun);
+
+            if (this.period == 0) {
+                timers.remove(this);
+            } else if (this.fixedRate) {
+                this.nextExecution += this.period;
+            } else {
+                this.nextExecution = end + this.period;
+            }
+        }
+
+        void stop() {
+            this.cancelled = true;
+            final ScheduledFuture<?> f = this.future;
+            if (f != null) {
+                f.cancel(false);
+            }
+        }
+
+        public boolean cancel() {
+            if (this.listener instanceof CancelTimerListener) {
+                ((CancelTimerListener) this.listener).timerCancel(this);
+            }
+            final boolean wasCancelled = this.cancelled;
+            this.stop();
+            timers.remove(this);
+            return !wasCancelled;
+        }
+
+        public TimerListener getTimerListener() {
+            return this.listener;
+        }
+
+        public long scheduledExecutionTime() {
+            return this.nextExecution;
+        }
+
+        public long getPeriod() {
+            return this.period;
+        }
+    }
+}
@@ -39,8 +39,12 @@ import org.nimbustools.api.services.rm.ManageException;
 
 import javax.sql.DataSource;
 import java.text.DateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
 
+import commonj.timers.Timer;
+import commonj.timers.TimerListener;
 import commonj.timers.TimerManager;
 import edu.emory.mathcs.backport.java.util.concurrent.locks.Lock;
 
@@ -83,6 +87,9 @@ public class DefaultSchedulerAdapter implements Scheduler {
     // see CreationPending class comment
     protected final CreationPending creationPending = new CreationPending();
 
+    // destroyed VMs not yet handed to the siManager, see notifySiManager
+    private final List<Integer> destroyedPending = new ArrayList<Integer>();
+
 
     // -------------------------------------------------------------------------
     // CONSTRUCTOR
@@ -631,7 +638,7 @@ public class DefaultSchedulerAdapter implements Scheduler {
 
         if (state == WorkspaceConstants.STATE_DESTROY_SUCCEEDED) {
             removeScheduling(id);
-            notifySiManager(id, state);
+            notifySiManager(id);
             return;
         }
 
@@ -764,12 +771,39 @@ public class DefaultSchedulerAdapter implements Scheduler {
     }
 
 
-    private void notifySiManager(int id, int state) {
-        final StateChangeEvent simEvent = new StateChangeEvent(id,
-                                                               state,
-                                                               this.siManager);
+    /**
+     * The siManager handles destroyed VMs in batches, recalculating prices
+     * and allocations once per batch.  Destructions that arrive before the
+     * delayed notification goes out (e.g. a whole group being destroyed)
+     * are handed over together.
+     *
+     * @param id destroyed vmid
+     */
+    private void notifySiManager(int id) {
+        synchronized (this.destroyedPending) {
+            this.destroyedPending.add(id);
+            if (this.destroyedPending.size() > 1) {
+                return; // *** EARLY RETURN *** (already scheduled)
+            }
+        }
+        this.timerManager.schedule(new DestroyedBatch(), 20);
+    }
+
+    private class DestroyedBatch implements TimerListener {
 
-        this.timerManager.schedule(simEvent, 20);
+        public void timerExpired(Timer timer) {
+            final int[] ids;
+            synchronized (destroyedPending) {
+                ids = new int[destroyedPending.size()];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = destroyedPending.get(i);
+                }
+                destroyedPending.clear();
+            }
+            new StateChangeEvent(ids,
+                                 WorkspaceConstants.STATE_DESTROY_SUCCEEDED,
+                                 siManager).timerExpired(timer);
+        }
     }
 
     private InstanceResource fetchResource(int id, int state)
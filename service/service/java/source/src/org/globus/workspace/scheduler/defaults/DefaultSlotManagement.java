@@ -16,7 +16,6 @@
 
 package org.globus.workspace.scheduler.defaults;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -72,6 +71,9 @@ public class DefaultSlotManagement implements SlotManagement, NodeManagement {
 
     private boolean greedy;
 
+    // memory resident copy of resourcepool_entries, loaded on first use
+    private ResourcepoolIndex index;
+
 
     // -------------------------------------------------------------------------
     // CONSTRUCTOR
@@ -232,13 +234,14 @@ public class DefaultSlotManagement implements SlotManagement, NodeManagement {
             }
 
             final int[] vmids = req.getIds();
+            if (vmids == null) {
+                throw new IllegalArgumentException("no vmids");
+            }
 
-            final String[] hostnames =
-                    this.reserveSpace(vmids, req.getMemory(),
-                                      req.getNeededAssociations(),
-                                      req.getResourcePool(), preemptable);
+            final ResourcepoolUtil.Placement placement =
+                    this.reserveSpace(new NodeRequest[]{req}, preemptable, null);
 
-            return new Reservation(vmids, hostnames);
+            return new Reservation(vmids, placement.getHostnames(0));
         } finally {
             this.releaseWholeManagerLock();
         }
@@ -270,86 +273,42 @@ public class DefaultSlotManagement implements SlotManagement, NodeManagement {
             throw new IllegalArgumentException("requests null or length 0?");
         }
 
-        final ArrayList idInts = new ArrayList(64);
-        final ArrayList allHostnames = new ArrayList(64);
-        final ArrayList allDurations = new ArrayList(64);
-        final ArrayList allMemory = new ArrayList(64); // for backouts if needed
-
-        try {
-            for (int i = 0; i < requests.length; i++) {
-
-                final NodeRequest request = requests[i];
-
-                final int[] ids = request.getIds();
-                if (ids == null) {
-                    throw new ResourceRequestDeniedException(
-                            "Cannot proceed, no ids in NodeRequest (?)");
-                }
-
-                final String[] hostnames =
-                        this.reserveSpace(ids,
-                                          request.getMemory(),
-                                          request.getNeededAssociations(),
-                                          request.getResourcePool(),
-                                          false);
-
-                final Integer duration = new Integer(request.getDuration());
-
-                for (int j = 0; j < ids.length; j++) {
-                    idInts.add(new Integer(ids[j]));
-                    allHostnames.add(hostnames[j]);
-                    allDurations.add(duration);
-                    allMemory.add(new Integer(request.getMemory()));
-                }
+        for (int i = 0; i < requests.length; i++) {
+            if (requests[i].getIds() == null) {
+                throw new ResourceRequestDeniedException(
+                        "Cannot proceed, no ids in NodeRequest (?)");
             }
-        } catch (Exception e) {
-            String msg = "Problem reserving space for coscheduling group '" +
-                         coschedid + "': " + e.getMessage();
+        }
 
-            if (logger.isDebugEnabled()) {
-                logger.error(msg, e);
-            } else {
-                logger.error(msg);
-            }
+        // all or nothing, there is nothing to back out if this fails
+        final ResourcepoolUtil.Placement placement =
+                this.reserveSpace(requests, false, coschedid);
 
-            if (allHostnames.size() != allMemory.size()) {
-                logger.fatal("Could not back reservations out, no matching " +
-                        "memory recordings (?)");
-                throw new ResourceRequestDeniedException(msg);
-                }
+        return toReservation(requests, placement);
+    }
 
-            final String[] justReservedNodes = (String[])
-                    allHostnames.toArray(new String[allHostnames.size()]);
-            final Integer[] justReservedMemory = (Integer[])
-                    allMemory.toArray(new Integer[allMemory.size()]);
-
-            for (int i = 0; i < justReservedNodes.length; i++) {
-                try {
-
-                    ResourcepoolUtil.retireMem(justReservedNodes[i],
-                                               justReservedMemory[i],
-                                               this.db,
-                                               this.lager.eventLog,
-                                               this.lager.traceLog,
-                                               -1, false);
-            } catch (Exception ee) {
-                    logger.error(ee.getMessage());
-                }
-            }
+    private static Reservation toReservation(NodeRequest[] requests,
+                                             ResourcepoolUtil.Placement placement) {
 
-            throw new ResourceRequestDeniedException(msg);
+        int length = 0;
+        for (NodeRequest request : requests) {
+            length += request.getIds().length;
         }
 
-        final int length = idInts.size();
-
         final int[] all_ids = new int[length];
         final String[] all_hostnames = new String[length];
         final int[] all_durations = new int[length];
 
-        for (int i = 0; i < length; i++) {
-            all_ids[i] = ((Number)idInts.get(i)).intValue();
-            all_hostnames[i] = (String)allHostnames.get(i);
-            all_durations[i] = ((Integer)allDurations.get(i)).intValue();
+        int idx = 0;
+        for (int i = 0; i < requests.length; i++) {
+            final int[] ids = requests[i].getIds();
+            final String[] hostnames = placement.getHostnames(i);
+            for (int j = 0; j < ids.length; j++) {
+                all_ids[idx] = ids[j];
+                all_hostnames[idx] = hostnames[j];
+                all_durations[idx] = requests[i].getDuration();
+                idx += 1;
+            }
         }
 
         return new Reservation(all_ids, all_hostnames, all_durations);
@@ -359,178 +318,153 @@ public class DefaultSlotManagement implements SlotManagement, NodeManagement {
      * Only handling one slot per VM for now, will change in the future
      * (multiple layers).
      *
-     * @param vmids array of IDs.  If array length is greater than one, it is
-     *        up to the implementation (and its configuration etc) to decide
-     *        if each must map to its own node or not.  In the case where more
-     *        than one VM is mapped to the same node, the returned node
-     *        assignment array will include duplicates.
-     * @param memory megabytes needed
-     * @param assocs array of needed associations, can be null
+     * Every VM of every request is placed in one pass over the in-memory
+     * pool and the memory deductions are written in one database batch.
+     * Either all VMs get a slot or none do.
+     *
+     * @param requests requests to place.  If a request has more than one
+     *        id, it is up to the implementation (and its configuration etc)
+     *        to decide if each must map to its own node or not.  In the case
+     *        where more than one VM is mapped to the same node, the node
+     *        assignments will include duplicates.
      * @param preemptable indicates if the space can be pre-empted by higher priority reservations
-     * @return Names of resources.  Must match length of vmids input and caller
-     *         assumes the ordering in the assignemnt array maps to the input
+     * @param coschedid coscheduling (ensemble) ID for error messages, can be null
+     * @return Names of resources per request, ordered like each request's
      *         vmids array.
      *
      * @throws ResourceRequestDeniedException can not fulfill request
      */
-    private String[] reserveSpace(final int[] vmids,
-                                  final int memory,
-                                  final String[] assocs,
-                                  final String availabilityZone,
-                                  boolean preemptable)
+    private ResourcepoolUtil.Placement reserveSpace(final NodeRequest[] requests,
+                                                    boolean preemptable,
+                                                    String coschedid)
                   throws ResourceRequestDeniedException {
 
-
-        if (vmids == null) {
-            throw new IllegalArgumentException("no vmids");
-        }
-
-        String msg = "request for " + vmids.length + " space(s) with " +
-                "mem = " + memory;
-
-        if (lager.traceLog) {
-
-            if (assocs == null) {
-                msg += ", needed networks null";
-            } else if (assocs.length == 0) {
-                msg += ", needed networks = zero length";
-            } else {
-                msg += ", needed networks = ";
-                for (int i = 0; i < assocs.length; i++) {
-                    msg += "[" + i + "] " + assocs[i];
-                    if (i != assocs.length-1) {
-                        msg += ", ";
-                    }
-                }
+        int numVMs = 0;
+        for (NodeRequest request : requests) {
+            if (request.getIds() == null) {
+                throw new IllegalArgumentException("no vmids");
             }
-            logger.trace(msg);
-        } else {
-            logger.debug(msg);
+            numVMs += request.getIds().length;
+            this.logRequest(request);
         }
 
-        // in future, getResourcepoolEntry() will take a group request
-        // (and as much as we will move down to SQL for efficiency)
+        int maxAttempts = numVMs + 2;
 
-        final String[] nodes = new String[vmids.length];
-        int bailed = -1;
-        Throwable failure = null;
-        int maxAttempts = vmids.length + 2;
-        
-        for (int i = 0; i < vmids.length; i++) {
+        while (true) {
 
-            if (maxAttempts == 0) {
-                throw new NotEnoughMemoryException("Could not reclaim enough memory");
-            }
+            final ResourcepoolUtil.Placement placement =
+                    new ResourcepoolUtil.Placement(requests);
 
             try {
-                nodes[i] = ResourcepoolUtil.getResourcePoolEntry(memory,
-                                                                 assocs,
-                                                                 availabilityZone,
-                                                                 this.db,
-                                                                 this.lager,
-                                                                 vmids[i],
-                                                                 greedy,
-                                                                 preemptable);
-                if (nodes[i] == null) {
-                    throw new ProgrammingError(
-                                    "returned node should not be null");
-                }
+                ResourcepoolUtil.getResourcePoolEntries(placement,
+                                                        this.db,
+                                                        this.getIndex(),
+                                                        this.lager,
+                                                        greedy,
+                                                        preemptable);
+                return placement;
+
             } catch (ImpossibleAmountOfMemoryException e) {
                 throw e;
             } catch (NotEnoughMemoryException e) {
-                if(!preemptable){
-                    maxAttempts -= 1;
-                    try {
-                        //If there isn't available memory
-                        //for a non-preemptable reservation
-                        //ask preemptable space manager
-                        //to free needed space from
-                        //preemptable (lower priority)
-                        //reservations
-                        
-                        Integer availableMemory = this.db.getTotalAvailableMemory();    
-                        Integer usedPreemptable = this.db.getTotalPreemptableMemory();
-
-                        Integer realAvailable = availableMemory + usedPreemptable;
-                        
-                        Integer neededMem = (vmids.length-i)*memory;
-
-                        if (usedPreemptable == 0) {
-                            // impossible to fulfill the request
-                            throw e;
-                        }
-
-                        if(realAvailable >= neededMem){
-                            //There will be sufficient space to
-                            //fulfill this reservation
-                            //so, free preemptable space
-                            //and decrease i value, so 
-                            //previous entry can be reconsidered
-
-                            // Read the long locking comment above before using/changing
-                            this._releaseDestructionLock();
-                            preempManager.releaseSpace(neededMem);
-                            this._acquireDestructionLock();
-                            i--;
-                        } else {
-                            throw e;
-                        }
-                    } catch (Throwable t) {
-                        bailed = i;
-                        failure = t;
-                        break;
-                    }                    
+                if (preemptable) {
+                    throw e;
+                }
+                if (maxAttempts == 0) {
+                    throw new NotEnoughMemoryException("Could not reclaim enough memory");
+                }
+                maxAttempts -= 1;
+
+                //If there isn't available memory
+                //for a non-preemptable reservation
+                //ask preemptable space manager
+                //to free needed space from
+                //preemptable (lower priority)
+                //reservations.  Nothing was kept
+                //from the failed pass, it is retried
+                //as a whole
+                this.reclaimPreemptableSpace(placement.getUnplacedMemory(), e);
+
+            } catch (ResourceRequestDeniedException e) {
+                throw e;
+            } catch (Exception e) {
+                String msg = "Problem reserving space";
+                if (coschedid != null) {
+                    msg += " for coscheduling group '" + coschedid + "'";
                 }
-            } catch (Throwable t) {
-                bailed = i;
-                failure = t;
-                break;
+                msg += ": " + e.getMessage();
+
+                if (logger.isDebugEnabled()) {
+                    logger.error(msg, e);
+                } else {
+                    logger.error(msg);
+                }
+                throw new ResourceRequestDeniedException(msg);
             }
         }
+    }
 
-        if (failure == null) {
-            return nodes;
+    private void reclaimPreemptableSpace(int neededMem,
+                                         NotEnoughMemoryException e)
+            throws ResourceRequestDeniedException {
+
+        final Integer availableMemory;
+        final Integer usedPreemptable;
+        try {
+            availableMemory = this.db.getTotalAvailableMemory();
+            usedPreemptable = this.db.getTotalPreemptableMemory();
+        } catch (WorkspaceDatabaseException wde) {
+            throw new ResourceRequestDeniedException(wde.getMessage());
         }
 
-        // nothing to back out:
-        if (bailed < 1) {
-            if (failure instanceof ResourceRequestDeniedException) {
-                throw (ResourceRequestDeniedException) failure;
-            } else {
-                throw new ResourceRequestDeniedException(
-                                                failure.getMessage());
-            }
+        if (usedPreemptable == 0) {
+            // impossible to fulfill the request
+            throw e;
         }
 
-        final String clientMsg;
-        if (bailed == 1) {
-            clientMsg = "Problem reserving enough space (did get enough " +
-                        "for one VM)";
-        } else {
-            clientMsg = "Problem reserving enough space (did get enough " +
-                        "for " + bailed + " VMs)";
+        final Integer realAvailable = availableMemory + usedPreemptable;
+        if (realAvailable < neededMem) {
+            throw e;
         }
 
-        // back out
-        for (int i = 0; i < bailed; i++) {
-            try {
-                ResourcepoolUtil.retireMem(nodes[i], memory, this.db,
-                                           this.lager.eventLog,
-                                           this.lager.traceLog,
-                                           vmids[i], preemptable);
-            } catch (Throwable t) {
-                if (logger.isDebugEnabled()) {
-                    logger.error(
-                            "Error with one backout: " + t.getMessage(), t);
-                } else {
-                    logger.error(
-                            "Error with one backout: " + t.getMessage());
+        // There will be sufficient space to fulfill this reservation,
+        // so free preemptable space.
+
+        // Read the long locking comment above before using/changing
+        this._releaseDestructionLock();
+        try {
+            preempManager.releaseSpace(neededMem);
+        } finally {
+            this._acquireDestructionLock();
+        }
+    }
+
+    private void logRequest(NodeRequest request) {
+
+        final String[] assocs = request.getNeededAssociations();
+
+        String msg = "request for " + request.getIds().length +
+                " space(s) with mem = " + request.getMemory();
+
+        if (lager.traceLog) {
+
+            if (assocs == null) {
+                msg += ", needed networks null";
+            } else if (assocs.length == 0) {
+                msg += ", needed networks = zero length";
+            } else {
+                msg += ", needed networks = ";
+                for (int i = 0; i < assocs.length; i++) {
+                    msg += "[" + i + "] " + assocs[i];
+                    if (i != assocs.length-1) {
+                        msg += ", ";
+                    }
                 }
-                // continue trying to backout anyhow
             }
+            logger.trace(msg);
+        } else {
+            logger.debug(msg);
         }
-
-        throw new ResourceRequestDeniedException(clientMsg);
     }
 
     public boolean isBestEffort() {
@@ -643,7 +577,7 @@ public class DefaultSlotManagement implements SlotManagement, NodeManagement {
         logger.debug("releaseSpace() retiring mem = " + mem +
                     ", node = '" + node + "' from " + Lager.id(vmid) + ". Preemptable: " + preemptable);
 
-        ResourcepoolUtil.retireMem(node, mem, this.db,
+        ResourcepoolUtil.retireMem(node, mem, this.db, this.getIndex(),
                 this.lager.eventLog, this.lager.traceLog,
                 vmid, preemptable);
     }
@@ -652,6 +586,23 @@ public class DefaultSlotManagement implements SlotManagement, NodeManagement {
         // ignored
     }
 
+    /**
+     * Every change to resourcepool_entries goes through this class, so after
+     * the first load the index stays in step with the table: each write is
+     * made to the database first and then applied to the index.
+     *
+     * @return index, never null
+     * @throws WorkspaceDatabaseException could not load entries
+     */
+    private synchronized ResourcepoolIndex getIndex()
+            throws WorkspaceDatabaseException {
+        if (this.index == null) {
+            this.index = new ResourcepoolIndex(
+                    this.db.currentResourcepoolEntries());
+        }
+        return this.index;
+    }
+
 
     // -------------------------------------------------------------------------
     // IoC INIT METHOD
@@ -738,6 +689,7 @@ public class DefaultSlotManagement implements SlotManagement, NodeManagement {
 
         //check then act protected by lock
         this.db.addResourcepoolEntry(entry);
+        this.getIndex().add(entry);
         this.poolChanged();
         return entry;
     }
@@ -809,6 +761,11 @@ public class DefaultSlotManagement implements SlotManagement, NodeManagement {
             }
 
             ResourcepoolEntry result = getNode(hostname);
+            if (result != null) {
+                this.getIndex().add(result);
+            } else {
+                this.getIndex().remove(hostname.trim());
+            }
             this.poolChanged();
             return result;
         } finally {
@@ -846,6 +803,9 @@ public class DefaultSlotManagement implements SlotManagement, NodeManagement {
             }
 
             result = this.db.removeResourcepoolEntry(hostname);
+            if (result) {
+                this.getIndex().remove(hostname);
+            }
             
         } finally {
             this.releaseWholeManagerLock();
@@ -0,0 +1,322 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace.scheduler.defaults;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Memory resident copy of the resourcepool_entries table.
+ *
+ * DefaultSlotManagement is the only writer of that table, it writes to the
+ * database first and then applies the same change here, so slot selection
+ * never has to query the database.
+ *
+ * Entries are kept per resource pool ordered by free memory percentage
+ * (the same percentEmpty() value the selection strategies compare) and the
+ * supported associations are split once, when an entry is added.
+ *
+ * Entries handed out are copies, the index owns its own.
+ */
+class ResourcepoolIndex {
+
+    // -------------------------------------------------------------------------
+    // STATIC VARIABLES
+    // -------------------------------------------------------------------------
+
+    private static final String ALL_ASSOCIATIONS = "*";
+
+    private static final Comparator<Indexed> BY_FREE_PERCENTAGE =
+            new Comparator<Indexed>() {
+                public int compare(Indexed o1, Indexed o2) {
+                    final int p1 = o1.entry.percentEmpty();
+                    final int p2 = o2.entry.percentEmpty();
+                    if (p1 != p2) {
+                        return p1 < p2 ? -1 : 1;
+                    }
+                    return o1.entry.getHostname().compareTo(o2.entry.getHostname());
+                }
+            };
+
+
+    // -------------------------------------------------------------------------
+    // INSTANCE VARIABLES
+    // -------------------------------------------------------------------------
+
+    private final Map<String, Indexed> byHostname = new HashMap<String, Indexed>();
+
+    // every entry ordered by free memory percentage, and the same per pool
+    private final TreeSet<Indexed> all = new TreeSet<Indexed>(BY_FREE_PERCENTAGE);
+    private final Map<String, TreeSet<Indexed>> byPool =
+            new HashMap<String, TreeSet<Indexed>>();
+
+    // maximum memory -> number of active entries with it, for infeasibility
+    private final TreeMap<Integer, Integer> activeMaxMemory = new TreeMap<Integer, Integer>();
+
+
+    // -------------------------------------------------------------------------
+    // CONSTRUCTOR
+    // -------------------------------------------------------------------------
+
+    ResourcepoolIndex(Collection<ResourcepoolEntry> entries) {
+        if (entries != null) {
+            for (ResourcepoolEntry entry : entries) {
+                this.add(entry);
+            }
+        }
+    }
+
+
+    // -------------------------------------------------------------------------
+    // MUTATE
+    // -------------------------------------------------------------------------
+
+    synchronized void add(ResourcepoolEntry entry) {
+        if (entry == null) {
+            throw new IllegalArgumentException("entry may not be null");
+        }
+        if (entry.getHostname() == null) {
+            throw new IllegalArgumentException("entry hostname may not be null");
+        }
+        this.remove(entry.getHostname());
+
+        final Indexed indexed = new Indexed(copy(entry));
+        this.byHostname.put(entry.getHostname(), indexed);
+        this.insert(indexed);
+    }
+
+    synchronized boolean remove(String hostname) {
+        final Indexed indexed = this.byHostname.remove(hostname);
+        if (indexed == null) {
+            return false;
+        }
+        this.extract(indexed);
+        return true;
+    }
+
+    synchronized void updateMemory(String hostname, int memCurrent, int memPreemptable) {
+        final Indexed indexed = this.byHostname.get(hostname);
+        if (indexed == null) {
+            throw new IllegalArgumentException(
+                    "no resource pool entry '" + hostname + "' in the index");
+        }
+        // percentEmpty is the sort key, it may not change while sorted
+        this.extract(indexed);
+        indexed.entry.setMemCurrent(memCurrent);
+        indexed.entry.setMemPreemptable(memPreemptable);
+        this.insert(indexed);
+    }
+
+
+    // -------------------------------------------------------------------------
+    // QUERY
+    // -------------------------------------------------------------------------
+
+    synchronized ResourcepoolEntry get(String hostname) {
+        final Indexed indexed = this.byHostname.get(hostname);
+        if (indexed == null) {
+            return null;
+        }
+        return copy(indexed.entry);
+    }
+
+    synchronized boolean hasPool(String resourcePool) {
+        return this.byPool.containsKey(resourcePool);
+    }
+
+    /**
+     * @param requestedMem memory needed
+     * @return true if no active entry could ever hold this much memory
+     */
+    synchronized boolean isInfeasibleRequest(int requestedMem) {
+        return this.activeMaxMemory.ceilingKey(requestedMem) == null;
+    }
+
+    /**
+     * @param requestedMem memory needed
+     * @param resourcePool pool to look in, null or empty for all pools
+     * @return true if at least one active entry has enough memory available
+     */
+    synchronized boolean hasAvailableEntry(int requestedMem, String resourcePool) {
+        for (Indexed indexed : this.candidates(resourcePool)) {
+            if (fits(indexed, requestedMem)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the active entries with enough available memory and support for
+     * all needed networks that share the lowest (greedy) or the highest
+     * (round robin) free memory percentage.
+     *
+     * @param requestedMem memory needed
+     * @param neededAssociations needed associations, can be null
+     * @param resourcePool pool to look in, null or empty for all pools
+     * @param leastSpace true for the fullest entries, false for the emptiest
+     * @return copies of the equally good entries, empty if there are none
+     */
+    synchronized List<ResourcepoolEntry> getBestEntries(int requestedMem,
+                                                        String[] neededAssociations,
+                                                        String resourcePool,
+                                                        boolean leastSpace) {
+
+        final NavigableSet<Indexed> ordered = this.candidates(resourcePool);
+        final Iterator<Indexed> iter =
+                leastSpace ? ordered.iterator() : ordered.descendingIterator();
+
+        final List<ResourcepoolEntry> best = new ArrayList<ResourcepoolEntry>();
+        int percentEmpty = -1;
+        while (iter.hasNext()) {
+            final Indexed indexed = iter.next();
+            if (!best.isEmpty() && indexed.entry.percentEmpty() != percentEmpty) {
+                break;
+            }
+            if (fits(indexed, requestedMem) && indexed.supports(neededAssociations)) {
+                percentEmpty = indexed.entry.percentEmpty();
+                best.add(copy(indexed.entry));
+            }
+        }
+        return best;
+    }
+
+
+    // -------------------------------------------------------------------------
+    // IMPL
+    // -------------------------------------------------------------------------
+
+    private NavigableSet<Indexed> candidates(String resourcePool) {
+        if (resourcePool == null || resourcePool.length() == 0) {
+            return this.all;
+        }
+        final TreeSet<Indexed> pool = this.byPool.get(resourcePool);
+        if (pool == null) {
+            return new TreeSet<Indexed>(BY_FREE_PERCENTAGE);
+        }
+        return pool;
+    }
+
+    private static boolean fits(Indexed indexed, int requestedMem) {
+        return indexed.entry.isActive() && indexed.entry.getMemCurrent() >= requestedMem;
+    }
+
+    private void insert(Indexed indexed) {
+        final ResourcepoolEntry entry = indexed.entry;
+        this.all.add(indexed);
+
+        TreeSet<Indexed> pool = this.byPool.get(entry.getResourcePool());
+        if (pool == null) {
+            pool = new TreeSet<Indexed>(BY_FREE_PERCENTAGE);
+            this.byPool.put(entry.getResourcePool(), pool);
+        }
+        pool.add(indexed);
+
+        if (entry.isActive()) {
+            final Integer count = this.activeMaxMemory.get(entry.getMemMax());
+            this.activeMaxMemory.put(entry.getMemMax(), count == null ? 1 : count + 1);
+        }
+    }
+
+    private void extract(Indexed indexed) {
+        final ResourcepoolEntry entry = indexed.entry;
+        this.all.remove(indexed);
+
+        final TreeSet<Indexed> pool = this.byPool.get(entry.getResourcePool());
+        if (pool != null) {
+            pool.remove(indexed);
+            if (pool.isEmpty()) {
+                this.byPool.remove(entry.getResourcePool());
+            }
+        }
+
+        if (entry.isActive()) {
+            final Integer count = this.activeMaxMemory.get(entry.getMemMax());
+            if (count != null) {
+                if (count <= 1) {
+                    this.activeMaxMemory.remove(entry.getMemMax());
+                } else {
+                    this.activeMaxMemory.put(entry.getMemMax(), count - 1);
+                }
+            }
+        }
+    }
+
+    private static ResourcepoolEntry copy(ResourcepoolEntry entry) {
+        return new ResourcepoolEntry(entry.getResourcePool(),
+                                     entry.getHostname(),
+                                     entry.getMemMax(),
+                                     entry.getMemCurrent(),
+                                     entry.getMemPreemptable(),
+                                     entry.getSupportedAssociations(),
+                                     entry.isActive());
+    }
+
+    private static class Indexed {
+
+        final ResourcepoolEntry entry;
+
+        // null means no networks configured, allAssociations means "*"
+        final Set<String> associations;
+        final boolean allAssociations;
+
+        Indexed(ResourcepoolEntry entry) {
+            this.entry = entry;
+            final String assocsStr = entry.getSupportedAssociations();
+            if (assocsStr == null) {
+                this.associations = null;
+                this.allAssociations = false;
+            } else if (assocsStr.equals(ALL_ASSOCIATIONS)) {
+                this.associations = null;
+                this.allAssociations = true;
+            } else {
+                this.associations = new HashSet<String>();
+                Collections.addAll(this.associations, assocsStr.split(","));
+                this.allAssociations = false;
+            }
+        }
+
+        boolean supports(String[] neededAssociations) {
+            if (neededAssociations == null || neededAssociations.length == 0) {
+                return true;
+            }
+            if (this.allAssociations) {
+                return true;
+            }
+            if (this.associations == null) {
+                return false;
+            }
+            for (String neededAssociation : neededAssociations) {
+                if (!this.associations.contains(neededAssociation)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -27,7 +27,11 @@ import org.nimbustools.api.services.rm.ResourceRequestDeniedException;
 import org.nimbustools.api.services.rm.ManageException;
 
 import java.security.SecureRandom;
-import java.util.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 /**
  * TODO: move from static and passing in arguments etc.
@@ -40,254 +44,188 @@ class ResourcepoolUtil {
     private static final Random randomGen = new SecureRandom();
 
     /**
-     * Look at all the available nodes, pick the node with the least amount of available space
-     * on it.  If there are multiple nodes with the same percentage available, choose a random
-     * one. 
-     * @param okNodes list of nodes sorted in ascending percentage memory available order
+     * Pick a random node from a group of equally utilized candidates.
+     * @param candidates nodes with the same percentage available, never empty
      * @param trace log trace messages
-     * @return ResourcepoolEntry randomly selected from all nodes with least available space
+     * @return ResourcepoolEntry randomly selected from the candidates
      */
-    private static ResourcepoolEntry randomLeastSpace(List<ResourcepoolEntry> okNodes,
-                                                      boolean trace) {
-        final List<Integer> candidateIndexes = new ArrayList<Integer>();
-        final int percentEmpty = okNodes.get(0).percentEmpty();
-        for (int i = 0; i < okNodes.size(); i++) {
-            final ResourcepoolEntry okNode = okNodes.get(i);
-            if (okNode.percentEmpty() > percentEmpty) {
-                break;
-            } else {
-                candidateIndexes.add(i);
-            }
-        }
-
-        // pick a random node from the list of equally utilized ones
-        return randomSelect(candidateIndexes, okNodes, trace);
-    }
-
-    /**
-     * Look at all the available nodes, pick the node with the most amount of available space
-     * on it.  If there are multiple nodes with the same percentage available, choose a random
-     * one. 
-     * @param okNodes list of nodes sorted in ascending percentage memory available order
-     * @param trace log trace messages
-     * @return ResourcepoolEntry randomly selected from all nodes with highest available space
-     */
-    private static ResourcepoolEntry randomMostSpace(List<ResourcepoolEntry> okNodes,
-                                                     boolean trace) {
-
-        // choosing highest percent that is empty
-        Collections.reverse(okNodes);
-
-        final List<Integer> candidateIndexes = new ArrayList<Integer>();
-        final int percentEmpty = okNodes.get(0).percentEmpty();
-        for (int i = 0; i < okNodes.size(); i++) {
-            final ResourcepoolEntry okNode = okNodes.get(i);
-            if (okNode.percentEmpty() < percentEmpty) {
-                break;
-            } else {
-                candidateIndexes.add(i);
-            }
-        }
-
-        // pick a random node from the list of equally utilized ones
-        return randomSelect(candidateIndexes, okNodes, trace);
-    }
-
-    private static ResourcepoolEntry randomSelect(Collection<Integer> indexes,
-                                                  List<ResourcepoolEntry> okNodes,
+    private static ResourcepoolEntry randomSelect(List<ResourcepoolEntry> candidates,
                                                   boolean trace) {
 
         if (trace) {
             final StringBuilder buf = new StringBuilder("Final node choices:\n");
-            for (Integer index : indexes) {
-                buf.append("  Candidate #").append(index.toString()).append(": ")
-                        .append(okNodes.get(index).getHostname()).append('\n');
+            for (int i = 0; i < candidates.size(); i++) {
+                buf.append("  Candidate #").append(i).append(": ")
+                        .append(candidates.get(i).getHostname()).append('\n');
             }
             logger.trace(buf.toString());
         }
 
-        final int numIndexes = indexes.size();
-        final int idx = randomGen.nextInt(numIndexes);
-        return okNodes.get(idx);
+        return candidates.get(randomGen.nextInt(candidates.size()));
     }
 
-    /*
-     * remove any candidates that don't support the right networks
-     */
-    private static void netFilter(List<ResourcepoolEntry> okNodes,
-                                  String[] neededAssociations,
-                                  boolean trace) {
-
-        if (neededAssociations == null
-                        || neededAssociations.length == 0) {
-            return;
-        }
-
-        final Iterator iter = okNodes.iterator();
-        while (iter.hasNext()) {
-            
-            final ResourcepoolEntry entry = (ResourcepoolEntry)iter.next();
-            final String assocsStr = entry.getSupportedAssociations();
-
-            if (assocsStr == null) {
-                logger.warn("resource pool entry has no configured " +
-                            "networks? entry '" + entry.getHostname() + '\'');
-                iter.remove();
-                continue;
-            }
-
-            if (assocsStr.equals("*")) {
-                // Entry supports all associations, if this causes a failure hooking up
-                // networking it's an administrator misconfiguration
-                if (trace) {
-                    logger.trace("'" + entry.getHostname() + "' supports all networks");
-                }
-                continue;
-            }
-
-            final String[] assocs = assocsStr.split(",");
-
-            boolean allFound = true;
-
-            for (String neededAssociation : neededAssociations) {
-
-                boolean found = false;
-
-                for (String assoc : assocs) {
-                    if (assoc.equals(neededAssociation)) {
-                        found = true;
-                        break;
-                    }
-                }
-
-                if (!found) {
-                    if (trace) {
-                        logger.trace("not all networks were found in pool entry '" +
-                                entry.getHostname() + "'");
-                    }
 
-                    allFound = false;
-                    break;
-                }
-            }
-
-            if (!allFound) {
-                iter.remove();
-            }
-        }
-    }
-
-    
     /**
+     * Places every VM of a group of requests in one pass over the index and
+     * writes all of the memory deductions in one database batch.
+     *
+     * All or nothing: if any VM can not be placed or the write fails, the
+     * index is restored and nothing is written.  The placement records how
+     * much memory was still unplaced at the time of a failure.
+     *
      * Note: Locking is assumed to be implemented above.
      *
-     * @param mem needed memory
-     * @param neededAssociations array of needed associations, can be null
+     * @param placement requests to place, receives the node names
      * @param db db
+     * @param index in memory copy of the resource pool entries
      * @param lager logging switches
-     * @param vmid for logging
      * @param greedy true if VMs should stack up on VMMs first, false if round robin
      * @param preemptable indicates if the space can be pre-empted by higher priority reservations
-     * @return node name can not be null
      * @throws ResourceRequestDeniedException exc
      * @throws WorkspaceDatabaseException exc
      */
-    static String getResourcePoolEntry(int mem,
-            String[] neededAssociations,
-            String resourcePool,
-            final PersistenceAdapter db,
-            Lager lager,
-            int vmid,
-            boolean greedy,
-            boolean preemptable)
-    throws ResourceRequestDeniedException,
-    WorkspaceDatabaseException {
-
+    static void getResourcePoolEntries(Placement placement,
+                                       final PersistenceAdapter db,
+                                       final ResourcepoolIndex index,
+                                       Lager lager,
+                                       boolean greedy,
+                                       boolean preemptable)
+            throws ResourceRequestDeniedException,
+                   WorkspaceDatabaseException {
+
+        if (placement == null) {
+            throw new IllegalArgumentException("placement may not be null");
+        }
         if (db == null) {
             throw new IllegalArgumentException("null persistence adapter");
         }
+        if (index == null) {
+            throw new IllegalArgumentException("index may not be null");
+        }
         if (lager == null) {
             throw new IllegalArgumentException("lager may not be null");
         }
 
-        final boolean eventLog = lager.eventLog;
         final boolean trace = lager.traceLog;
+        final NodeRequest[] requests = placement.requests;
 
-        if (trace) {
-            traceLookingForResource(mem, neededAssociations, greedy);
-        }
+        // per VM, logged only once the whole placement is written
+        final List<String> reserved =
+                lager.eventLog ? new ArrayList<String>() : null;
 
-        if (db.isInfeasibleRequest(mem)) {
-            throw new ImpossibleAmountOfMemoryException(mem + "MB memory request is too " +
-                                            "large to ever be fulfilled");
-        }
+        synchronized (index) {
 
-        //availableEntries is never empty
-        final List<ResourcepoolEntry> availableEntries =
-                getAvailableEntries(mem, neededAssociations, resourcePool, db, trace);
-        
-        if (trace) {
-            traceAvailableEntries(availableEntries);
-        }
+            // state of each touched entry before this placement, for undo
+            final Map<String, ResourcepoolEntry> originals =
+                    new LinkedHashMap<String, ResourcepoolEntry>();
 
-        ResourcepoolEntry entry;
-        if (greedy) {
-            entry = randomLeastSpace(availableEntries, trace);
-        } else {
-            entry = randomMostSpace(availableEntries, trace);
-        }
+            boolean done = false;
+            try {
+                for (int i = 0; i < requests.length; i++) {
 
-        entry.addMemCurrent(-mem);
-        if(preemptable){
-            entry.addMemPreemptable(mem);
-        }
-        db.updateResourcepoolEntryAvailableMemory(entry.getHostname(),
-                entry.getMemCurrent(), entry.getMemPreemptable());
-
-        if (eventLog) {
-            logger.info(Lager.ev(vmid) + "'" + entry.getResourcePool() +
-                    "' resource pool entry '" + entry.getHostname() +
-                    "': " + mem + " MB reserved, " +
-                    entry.getMemCurrent() + " MB left, " +
-                    entry.getMemPreemptable() + " MB preemptible");
-        }
+                    final int mem = requests[i].getMemory();
+                    final String[] assocs = requests[i].getNeededAssociations();
+                    final String pool = requests[i].getResourcePool();
 
-        return entry.getHostname();            
+                    if (trace) {
+                        traceLookingForResource(mem, assocs, greedy);
+                    }
 
-    }
+                    if (index.isInfeasibleRequest(mem)) {
+                        throw new ImpossibleAmountOfMemoryException(mem + "MB memory " +
+                                "request is too large to ever be fulfilled");
+                    }
 
-    private static List<ResourcepoolEntry> getAvailableEntries(int mem,
-            String[] neededAssociations, String resourcePool, final PersistenceAdapter db,
-            final boolean trace) throws WorkspaceDatabaseException,
-            ResourceRequestDeniedException {
+                    final String[] hostnames = placement.hostnames[i];
+                    for (int j = 0; j < hostnames.length; j++) {
+
+                        //candidates is never empty
+                        final List<ResourcepoolEntry> candidates =
+                                getCandidates(mem, assocs, pool, index, greedy);
+
+                        if (trace) {
+                            traceAvailableEntries(candidates);
+                        }
+
+                        final ResourcepoolEntry entry = randomSelect(candidates, trace);
+                        final String hostname = entry.getHostname();
+                        if (!originals.containsKey(hostname)) {
+                            originals.put(hostname, index.get(hostname));
+                        }
+
+                        entry.addMemCurrent(-mem);
+                        if (preemptable) {
+                            entry.addMemPreemptable(mem);
+                        }
+                        index.updateMemory(hostname,
+                                entry.getMemCurrent(), entry.getMemPreemptable());
+
+                        hostnames[j] = hostname;
+                        placement.unplacedMemory -= mem;
+
+                        if (reserved != null) {
+                            reserved.add(Lager.ev(requests[i].getIds()[j]) +
+                                    "'" + entry.getResourcePool() +
+                                    "' resource pool entry '" + hostname +
+                                    "': " + mem + " MB reserved, " +
+                                    entry.getMemCurrent() + " MB left, " +
+                                    entry.getMemPreemptable() + " MB preemptible");
+                        }
+                    }
+                }
 
+                // one row per touched VMM, not one per VM
+                final List<ResourcepoolEntry> changed =
+                        new ArrayList<ResourcepoolEntry>(originals.size());
+                for (String hostname : originals.keySet()) {
+                    changed.add(index.get(hostname));
+                }
+                db.updateResourcepoolEntriesAvailableMemory(changed);
+                done = true;
 
-        String[] pools = db.getResourcePools();
-        if (resourcePool != null && Arrays.asList(pools).contains(resourcePool) == false) {
+            } finally {
+                if (!done) {
+                    for (ResourcepoolEntry original : originals.values()) {
+                        index.add(original);
+                    }
+                }
+            }
+        }
 
-            String err = "Resource pool (Availability Zone) '" + resourcePool + "' does not exist.";
-            logger.error(err);
-            throw new ResourceRequestDeniedException(err);
+        if (reserved != null) {
+            for (String msg : reserved) {
+                logger.info(msg);
+            }
         }
+    }
+
+    private static List<ResourcepoolEntry> getCandidates(int mem,
+            String[] neededAssociations, String resourcePool,
+            final ResourcepoolIndex index, boolean greedy)
+            throws ResourceRequestDeniedException {
 
-        final List<ResourcepoolEntry> availableEntries =
-                db.getAvailableEntriesSortedByFreeMemoryPercentage(mem, resourcePool);
+        if (resourcePool != null && !index.hasPool(resourcePool)) {
 
-        if(availableEntries.isEmpty()){
-            String err = "No resource is available for this request (based on memory).";
+            String err = "Resource pool (Availability Zone) '" + resourcePool + "' does not exist.";
             logger.error(err);
-            throw new NotEnoughMemoryException(err);
+            throw new ResourceRequestDeniedException(err);
         }
 
-        netFilter(availableEntries, neededAssociations, trace);
+        final List<ResourcepoolEntry> candidates =
+                index.getBestEntries(mem, neededAssociations, resourcePool, greedy);
 
-        if(availableEntries.isEmpty()){
+        if (candidates.isEmpty()) {
+            if (!index.hasAvailableEntry(mem, resourcePool)) {
+                String err = "No resource is available for this request (based on memory).";
+                logger.error(err);
+                throw new NotEnoughMemoryException(err);
+            }
             String err = "No resource can support the requested network(s).";
             logger.error(err);
             throw new ResourceRequestDeniedException(err);
         }
         
-        return availableEntries;
+        return candidates;
     }
 
     private static void traceAvailableEntries(final List<ResourcepoolEntry> availableEntries) {
@@ -325,6 +263,48 @@ class ResourcepoolUtil {
         logger.trace(buf.toString());
     }    
 
+    /**
+     * Node assignments for a group of requests, see getResourcePoolEntries()
+     */
+    static class Placement {
+
+        private final NodeRequest[] requests;
+        private final String[][] hostnames;
+        private int unplacedMemory;
+
+        Placement(NodeRequest[] requests) {
+            if (requests == null || requests.length == 0) {
+                throw new IllegalArgumentException("requests null or length 0?");
+            }
+            this.requests = requests;
+            this.hostnames = new String[requests.length][];
+            for (int i = 0; i < requests.length; i++) {
+                final int[] ids = requests[i].getIds();
+                if (ids == null) {
+                    throw new IllegalArgumentException(
+                            "Cannot proceed, no ids in NodeRequest (?)");
+                }
+                this.hostnames[i] = new String[ids.length];
+                this.unplacedMemory += ids.length * requests[i].getMemory();
+            }
+        }
+
+        /**
+         * @param i index of the request
+         * @return node names, ordered like the request's ids
+         */
+        String[] getHostnames(int i) {
+            return this.hostnames[i];
+        }
+
+        /**
+         * @return memory of the VMs that were not placed (yet)
+         */
+        int getUnplacedMemory() {
+            return this.unplacedMemory;
+        }
+    }
+
     /**
      * NOTE: a node may not be in more than one resource pool, will
      * result in inccorect behavior.  Pools can be used with authorization
@@ -339,6 +319,7 @@ class ResourcepoolUtil {
      * @param hostname hostname
      * @param mem memory
      * @param db db
+     * @param index in memory copy of the resource pool entries
      * @param eventLog log events
      * @param traceLog log traces
      * @param vmid for tracking in logs
@@ -347,6 +328,7 @@ class ResourcepoolUtil {
     static void retireMem(String hostname,
                           int mem,
                           PersistenceAdapter db,
+                          ResourcepoolIndex index,
                           boolean eventLog,
                           boolean traceLog,
                           int vmid,
@@ -362,31 +344,42 @@ class ResourcepoolUtil {
             throw new IllegalArgumentException("null persistence adapter");
         }
 
+        if (index == null) {
+            throw new IllegalArgumentException("index may not be null");
+        }
+
         if (hostname == null) {
             throw new IllegalArgumentException("hostname may not be null");
         }
 
-        final ResourcepoolEntry entry = db.getResourcepoolEntry(hostname);
+        final ResourcepoolEntry entry;
+        synchronized (index) {
+            entry = index.get(hostname);
+            if (entry != null) {
 
-        if (entry != null) {
+                entry.addMemCurrent(mem);
+                if(preemptable){
+                    entry.addMemPreemptable(-mem);
+                }
 
-            final String poolname = entry.getResourcePool();
+                // If the node's memory capacity was changed during this VM's
+                // deployment, there can be a situation when this addition
+                // will make the current memory exceed the maximum.  If this
+                // happens, the current memory is adjusted to be the maximum.
+                if (entry.getMemCurrent() > entry.getMemMax()) {
+                    entry.setMemCurrent(entry.getMemMax());
+                }
 
-            entry.addMemCurrent(mem);
-            if(preemptable){
-                entry.addMemPreemptable(-mem);
+                db.updateResourcepoolEntryAvailableMemory(entry.getHostname(),
+                    entry.getMemCurrent(), entry.getMemPreemptable());
+                index.updateMemory(entry.getHostname(),
+                    entry.getMemCurrent(), entry.getMemPreemptable());
             }
+        }
 
-            // If the node's memory capacity was changed during this VM's
-            // deployment, there can be a situation when this addition
-            // will make the current memory exceed the maximum.  If this
-            // happens, the current memory is adjusted to be the maximum.
-            if (entry.getMemCurrent() > entry.getMemMax()) {
-                entry.setMemCurrent(entry.getMemMax());
-            }
+        if (entry != null) {
 
-            db.updateResourcepoolEntryAvailableMemory(entry.getHostname(),
-                entry.getMemCurrent(), entry.getMemPreemptable());
+            final String poolname = entry.getResourcePool();
 
             if (eventLog) {
                 logger.info(Lager.ev(vmid) + "'" + poolname +
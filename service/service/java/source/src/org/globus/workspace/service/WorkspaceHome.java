@@ -29,6 +29,15 @@ public interface WorkspaceHome {
 
     public InstanceResource newInstance(int id) throws CreationException;
 
+    /**
+     * Forget a resource from newInstance() that was never persisted, used
+     * to back out a creation that did not get that far.
+     *
+     * @param id vm id
+     * @throws ManageException problem
+     */
+    public void discardNewInstance(int id) throws ManageException;
+
     /**
      * Find resource with VM id.
      * 
@@ -45,6 +54,18 @@ public interface WorkspaceHome {
 
             throws ManageException, DoesNotExistException;
 
+    /**
+     * Find several resources at once, loading the ones that are not cached
+     * together.
+     *
+     * @param ids vm ids
+     * @return resources that exist, never null
+     * @throws ManageException problem retrieving resources
+     */
+    public InstanceResource[] find(int[] ids)
+
+            throws ManageException;
+
     public InstanceResource[] findByCaller(String callerID)
 
             throws ManageException;
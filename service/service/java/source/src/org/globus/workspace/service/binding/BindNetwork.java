@@ -29,6 +29,9 @@ public interface BindNetwork {
 
     public void neededAllocations(VirtualMachine vm, NIC[] nics) throws CreationException;
 
+    // called once the consumed VMs have their IDs, backing out drops them again
+    public void indexAddresses(VirtualMachine[] vms);
+
     public void backOutIPAllocations(VirtualMachine vm)
             throws WorkspaceException;
 
@@ -19,11 +19,13 @@ package org.globus.workspace.service.binding.defaults;
 import org.globus.workspace.service.binding.BindNetwork;
 import org.globus.workspace.service.binding.GlobalPolicies;
 import org.globus.workspace.service.binding.vm.VirtualMachine;
+import org.globus.workspace.Lager;
 import org.globus.workspace.WorkspaceException;
 import org.globus.workspace.ExceptionDuringBackoutHandlerException;
 import org.globus.workspace.persistence.DataConvert;
 import org.globus.workspace.network.AssociationAdapter;
 import org.globus.workspace.network.AssociationEntry;
+import org.globus.workspace.network.InstanceIPIndex;
 import org.globus.workspace.xen.XenUtil;
 import org.nimbustools.api.repr.vm.NIC;
 import org.nimbustools.api.repr.CannotTranslateException;
@@ -52,6 +54,7 @@ public class DefaultBindNetwork implements BindNetwork {
     protected final AssociationAdapter networkAdapter;
     protected final GlobalPolicies globals;
     protected final DataConvert dataConvert;
+    protected InstanceIPIndex ipIndex;
     
 
     // -------------------------------------------------------------------------
@@ -78,6 +81,15 @@ public class DefaultBindNetwork implements BindNetwork {
         this.dataConvert = dataConvertImpl;
     }
 
+
+    // -------------------------------------------------------------------------
+    // OPTIONAL SET
+    // -------------------------------------------------------------------------
+
+    public void setIpIndex(InstanceIPIndex index) {
+        this.ipIndex = index;
+    }
+
     
     // -------------------------------------------------------------------------
     // implements BindNetwork
@@ -199,6 +211,27 @@ public class DefaultBindNetwork implements BindNetwork {
 
     }
 
+    public void indexAddresses(VirtualMachine[] vms) {
+
+        if (this.ipIndex == null || vms == null) {
+            return; // *** EARLY RETURN ***
+        }
+
+        for (int i = 0; i < vms.length; i++) {
+            final VirtualMachine vm = vms[i];
+            if (vm == null || vm.getID() == null) {
+                continue; // *** SKIP ***
+            }
+            try {
+                this.ipIndex.add(vm.getID().intValue(),
+                                 this.dataConvert.getNICs(vm));
+            } catch (CannotTranslateException e) {
+                logger.error("could not index addresses of " +
+                        Lager.id(vm.getID()) + ": " + e.getMessage());
+            }
+        }
+    }
+
     public void backOutIPAllocations(VirtualMachine vm)
             throws WorkspaceException {
 
@@ -208,6 +241,10 @@ public class DefaultBindNetwork implements BindNetwork {
 
         final int vmid = vm.getID().intValue();
 
+        if (this.ipIndex != null) {
+            this.ipIndex.remove(vmid);
+        }
+
         final NIC[] nics;
         try {
             nics = this.dataConvert.getNICs(vm);
@@ -210,11 +210,23 @@ public abstract class CoschedHomeImpl implements WorkspaceCoschedHome {
         // check-then-act problem with findVMsInEnsemble result and some instance
         // destruction in the meantime (which is not a problem for this query
         // so far, todo: more docs)
-        final List retlist = new LinkedList();
-
         // will never be null return array, just empty
         final int[] ids = this.findMemberIDs(coschedid);
 
+        // members that are not cached are loaded together
+        try {
+            return this.whome.find(ids);
+        } catch (ManageException e) {
+            if (logger.isDebugEnabled()) {
+                logger.error(e.getMessage(), e);
+            } else {
+                logger.error(e.getMessage());
+            }
+        }
+
+        // fall back to one at a time, skipping the problem ones
+        final List retlist = new LinkedList();
+
         for (int i = 0; i < ids.length; i++) {
 
             final InstanceResource rsrc;
@@ -0,0 +1,299 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace.service.impls;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.globus.workspace.Lager;
+import org.globus.workspace.service.InstanceResource;
+import org.globus.workspace.service.WorkspaceHome;
+import org.nimbustools.api.services.rm.ManageException;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads the persisted instances after a container restart.
+ *
+ * The IDs are split into batches that a bounded pool of workers loads with
+ * WorkspaceHome#find(int[]), so each recovered instance lands in the home's
+ * cache as soon as its batch is done.  Progress is logged every tenth of the
+ * way and can be polled while it runs.
+ */
+public class InstanceRecovery {
+
+    // -------------------------------------------------------------------------
+    // STATIC VARIABLES
+    // -------------------------------------------------------------------------
+
+    private static final Log logger =
+            LogFactory.getLog(InstanceRecovery.class.getName());
+
+
+    // -------------------------------------------------------------------------
+    // INSTANCE VARIABLES
+    // -------------------------------------------------------------------------
+
+    protected final WorkspaceHome home;
+    protected final int[] ids;
+    protected final int threads;
+    protected final int batchSize;
+    protected final Lager lager;
+
+    private final AtomicInteger processed = new AtomicInteger();
+    private final AtomicInteger recovered = new AtomicInteger();
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private volatile long started;
+    private volatile long finished;
+
+
+    // -------------------------------------------------------------------------
+    // CONSTRUCTORS
+    // -------------------------------------------------------------------------
+
+    /**
+     * @param whome home to find instances with
+     * @param activeIDs instances persisted as active
+     * @param threadCount maximum number of batches loading at once
+     * @param batch instances per find call
+     * @param lagerImpl log switches
+     */
+    public InstanceRecovery(WorkspaceHome whome,
+                            int[] activeIDs,
+                            int threadCount,
+                            int batch,
+                            Lager lagerImpl) {
+
+        if (whome == null) {
+            throw new IllegalArgumentException("whome may not be null");
+        }
+        this.home = whome;
+
+        if (activeIDs == null) {
+            throw new IllegalArgumentException("activeIDs may not be null");
+        }
+        this.ids = activeIDs;
+
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("threadCount must be positive");
+        }
+        this.threads = threadCount;
+
+        if (batch < 1) {
+            throw new IllegalArgumentException("batch must be positive");
+        }
+        this.batchSize = batch;
+
+        if (lagerImpl == null) {
+            throw new IllegalArgumentException("lagerImpl may not be null");
+        }
+        this.lager = lagerImpl;
+    }
+
+
+    // -------------------------------------------------------------------------
+    // PROGRESS
+    // -------------------------------------------------------------------------
+
+    public int getTotal() {
+        return this.ids.length;
+    }
+
+    /**
+     * @return instances looked at so far, recovered or found terminated
+     */
+    public int getProcessed() {
+        return this.processed.get();
+    }
+
+    public int getRecovered() {
+        return this.recovered.get();
+    }
+
+    public boolean isDone() {
+        return this.done.getCount() == 0;
+    }
+
+    /**
+     * @param millis maximum time to wait
+     * @return true if recovery finished (successfully or not)
+     * @throws InterruptedException interrupted while waiting
+     */
+    public boolean await(long millis) throws InterruptedException {
+        return this.done.await(millis, TimeUnit.MILLISECONDS);
+    }
+
+    public String getProgressReport() {
+        final StringBuffer buf = new StringBuffer(64);
+        buf.append(this.getProcessed())
+           .append(" of ")
+           .append(this.getTotal())
+           .append(" instances checked, ")
+           .append(this.getRecovered())
+           .append(" recovered");
+        if (this.finished > 0) {
+            buf.append(", took ")
+               .append(this.finished - this.started)
+               .append(" ms");
+        }
+        return buf.toString();
+    }
+
+
+    // -------------------------------------------------------------------------
+    // RECOVER
+    // -------------------------------------------------------------------------
+
+    /**
+     * Called from worker threads for every instance that was recovered.
+     *
+     * @param resource recovered instance, already cached by the home
+     */
+    protected void recovered(InstanceResource resource) {
+        // default is nothing
+    }
+
+    /**
+     * Loads every instance, blocking until done.  Instances terminated
+     * during the load (or expired) are just not counted.
+     *
+     * @return number of instances recovered
+     * @throws ManageException first problem hit by a worker, the other
+     *         batches are still attempted
+     */
+    public int recover() throws ManageException {
+
+        this.started = System.currentTimeMillis();
+        try {
+            if (this.ids.length == 0) {
+                return 0; // *** EARLY RETURN ***
+            }
+
+            final List<int[]> batches = new ArrayList<int[]>();
+            for (int start = 0; start < this.ids.length; start += this.batchSize) {
+                final int end = Math.min(this.ids.length, start + this.batchSize);
+                final int[] batch = new int[end - start];
+                System.arraycopy(this.ids, start, batch, 0, batch.length);
+                batches.add(batch);
+            }
+
+            final int poolSize = Math.min(this.threads, batches.size());
+            final ExecutorService pool =
+                    Executors.newFixedThreadPool(poolSize, new WorkerFactory());
+
+            ManageException failure = null;
+            try {
+                final List<Future<Object>> futures =
+                        new ArrayList<Future<Object>>(batches.size());
+                for (final int[] batch : batches) {
+                    futures.add(pool.submit(new Callable<Object>() {
+                        public Object call() throws Exception {
+                            recoverBatch(batch);
+                            return null;
+                        }
+                    }));
+                }
+
+                for (Future<Object> future : futures) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        final Throwable cause =
+                                e.getCause() == null ? e : e.getCause();
+                        logger.error("Problem recovering instances: " +
+                                cause.getMessage(), cause);
+                        if (failure == null) {
+                            failure = cause instanceof ManageException ?
+                                    (ManageException) cause :
+                                    new ManageException(cause.getMessage(), cause);
+                        }
+                    } catch (InterruptedException e) {
+                        throw new ManageException(
+                                "interrupted while recovering instances", e);
+                    }
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+
+            if (failure != null) {
+                throw failure;
+            }
+            return this.recovered.get();
+
+        } finally {
+            this.finished = System.currentTimeMillis();
+            this.done.countDown();
+        }
+    }
+
+    private void recoverBatch(int[] batch) throws ManageException {
+
+        final InstanceResource[] resources = this.home.find(batch);
+
+        final Set<Integer> found = new HashSet<Integer>(resources.length * 2);
+        for (int i = 0; i < resources.length; i++) {
+            this.recovered(resources[i]);
+            found.add(resources[i].getID());
+            if (this.lager.eventLog) {
+                logger.info(Lager.ev(resources[i].getID()) + "recovered");
+            }
+        }
+        if (this.lager.eventLog && found.size() < batch.length) {
+            for (int i = 0; i < batch.length; i++) {
+                if (!found.contains(batch[i])) {
+                    logger.info(Lager.ev(batch[i]) + "resource terminated " +
+                            "during recovery");
+                }
+            }
+        }
+
+        this.recovered.addAndGet(resources.length);
+        final int now = this.processed.addAndGet(batch.length);
+        final int before = now - batch.length;
+
+        // log each tenth of the way once
+        final int total = this.ids.length;
+        if (now * 10L / total != before * 10L / total) {
+            logger.info("Recovery: " + this.getProgressReport());
+        }
+    }
+
+    private static class WorkerFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r,
+                    "instance-recovery-" + this.count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -827,7 +827,8 @@ public class StateTransition implements WorkspaceConstants {
                         ": adding propagate request: " + req + "\n");
             }
 
-            RequestDispatch.addRequest(req, id);
+            RequestDispatch.addRequest(req, id, RequestDispatch.PRIORITY_LOW,
+                                       resource.getVM().getNode());
             return true;
 
         } else if (target == STATE_STARTED) {
@@ -842,7 +843,8 @@ public class StateTransition implements WorkspaceConstants {
                       ": adding propagate-to-start request: " + req + "\n");
             }
 
-            RequestDispatch.addRequest(req, id);
+            RequestDispatch.addRequest(req, id, RequestDispatch.PRIORITY_LOW,
+                                       resource.getVM().getNode());
             return true;
 
         } else {
@@ -857,7 +859,8 @@ public class StateTransition implements WorkspaceConstants {
                         ": adding propagate-to-pause request: " + req + "\n");
             }
 
-            RequestDispatch.addRequest(req, id);
+            RequestDispatch.addRequest(req, id, RequestDispatch.PRIORITY_LOW,
+                                       resource.getVM().getNode());
             return true;
         }
     }
@@ -1010,7 +1013,8 @@ public class StateTransition implements WorkspaceConstants {
         req.setRequestContext(requestContext);
 
         resource.setStateUnderLock(STATE_STARTING, null);
-        RequestDispatch.addRequest(req, id);
+        RequestDispatch.addRequest(req, id, RequestDispatch.PRIORITY_NORMAL,
+                                   resource.getVM().getNode());
 
         return true;
     }
@@ -1132,7 +1136,8 @@ public class StateTransition implements WorkspaceConstants {
         }
         requestContext.setPartOfGroupRequest(resource.isPartOfGroupRequest());
         req.setRequestContext(requestContext);
-        RequestDispatch.addRequest(req, id);
+        RequestDispatch.addRequest(req, id, RequestDispatch.PRIORITY_HIGH,
+                                   resource.getVM().getNode());
 
         return true;
     }
@@ -1248,7 +1253,8 @@ public class StateTransition implements WorkspaceConstants {
             logger.trace("\n\n   ***** ST--rForT " + idStr +
                     ": adding readyForTransport request: " + req + "\n");
         }
-        RequestDispatch.addRequest(req, id);
+        RequestDispatch.addRequest(req, id, RequestDispatch.PRIORITY_LOW,
+                                   resrc.getVM().getNode());
 
         return true;
     }
@@ -30,6 +30,7 @@ import org.apache.commons.logging.LogFactory;
 import org.globus.workspace.Lager;
 import org.globus.workspace.LockManager;
 import org.globus.workspace.RepoFileSystemAdaptor;
+import org.globus.workspace.network.InstanceIPIndex;
 import org.globus.workspace.persistence.PersistenceAdapter;
 import org.globus.workspace.persistence.WorkspaceDatabaseException;
 import org.globus.workspace.persistence.DataConvert;
@@ -38,6 +39,7 @@ import org.globus.workspace.service.InstanceResource;
 import org.globus.workspace.service.Sweepable;
 import org.globus.workspace.service.WorkspaceHome;
 import org.globus.workspace.service.CurrentVMs;
+import org.globus.workspace.xen.VMMCommandScheduler;
 import org.globus.workspace.xen.XenUtil;
 import org.nimbustools.api.services.rm.CreationException;
 import org.nimbustools.api.services.rm.DoesNotExistException;
@@ -59,6 +61,9 @@ public abstract class WorkspaceHomeImpl implements WorkspaceHome,
     private static final Log logger =
             LogFactory.getLog(WorkspaceHomeImpl.class.getName());
 
+    // instances loaded from persistence per PersistenceAdapter#loadAll call
+    private static final int LOAD_BATCH = 256;
+
     private static final InstanceResource[] EMPTY_RESOURCE_ARRAY =
             new InstanceResource[0];
 
@@ -75,9 +80,10 @@ public abstract class WorkspaceHomeImpl implements WorkspaceHome,
     protected final DataConvert dataConvert;
     protected Scheduler scheduler;
     protected RepoFileSystemAdaptor repoAdaptor;
+    protected InstanceIPIndex ipIndex;
 
     // perhaps quartz in the future
-    protected ScheduledThreadPoolExecutor scheduledExecutor;
+    protected volatile ScheduledThreadPoolExecutor scheduledExecutor;
 
     // see comment in initialize()
     private boolean initialized;
@@ -90,7 +96,18 @@ public abstract class WorkspaceHomeImpl implements WorkspaceHome,
     private String sshIdentityFile;
     private String threadPoolInitialSize;
     private String threadPoolMaxSize;
+    private String requestQueueCapacity;
+    private String requestsPerVMM;
+    private String commandsPerVMM;
+    private String sshTransport;
+    private String sshSessionsPerVMM;
+    private String sshChannelsPerSession;
     private long sweeperDelay = 60000;
+    private int recoveryThreads = 4;
+    private boolean recoverInBackground;
+
+    private boolean recoveryStarted;
+    private volatile InstanceRecovery recovery;
 
 
     // -------------------------------------------------------------------------
@@ -157,6 +174,10 @@ public abstract class WorkspaceHomeImpl implements WorkspaceHome,
         XenUtil.setRepoAdaptor(ra);
     }
 
+    public void setIpIndex(InstanceIPIndex index) {
+        this.ipIndex = index;
+    }
+
     // -------------------------------------------------------------------------
     // SETTERS (from outside config)
     // -------------------------------------------------------------------------
@@ -189,10 +210,57 @@ public abstract class WorkspaceHomeImpl implements WorkspaceHome,
         this.threadPoolMaxSize = maxSize;
     }
 
+    public void setRequestQueueCapacity(String capacity) {
+        this.requestQueueCapacity = capacity;
+    }
+
+    public void setRequestsPerVMM(String limit) {
+        this.requestsPerVMM = limit;
+    }
+
+    public void setCommandsPerVMM(String limit) {
+        this.commandsPerVMM = limit;
+    }
+
+    /**
+     * @param transport "fork" runs ssh for every command, "pooled" keeps
+     *        SSH sessions to each VMM open and runs commands in-process
+     */
+    public void setSshTransport(String transport) {
+        this.sshTransport = transport;
+    }
+
+    public void setSshSessionsPerVMM(String sessions) {
+        this.sshSessionsPerVMM = sessions;
+    }
+
+    public void setSshChannelsPerSession(String channels) {
+        this.sshChannelsPerSession = channels;
+    }
+
     public void setSweeperDelay(long delay) {
         this.sweeperDelay = delay;
     }
 
+    public void setRecoveryThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("recoveryThreads must be " +
+                    "greater than zero");
+        }
+        this.recoveryThreads = threads;
+    }
+
+    /**
+     * @param background if true, recover_initialize returns right away and
+     *        instances are loaded by a background thread; lookups of
+     *        instances not loaded yet load them on demand.  Operations are
+     *        not held back meanwhile: an instance is loaded (under its lock)
+     *        by whichever of the recovery and the operation gets to it first.
+     */
+    public void setRecoverInBackground(boolean background) {
+        this.recoverInBackground = background;
+    }
+
 
     // -------------------------------------------------------------------------
     // IoC INIT METHOD
@@ -213,11 +281,18 @@ public abstract class WorkspaceHomeImpl implements WorkspaceHome,
         // todo: all this static stuff will go away in favor of these things
         //       being IoC beans etc.
         WorkspaceHomeInit.initializeRequestDispatch(this.threadPoolInitialSize,
-                                                    this.threadPoolMaxSize);
+                                                    this.threadPoolMaxSize,
+                                                    this.requestQueueCapacity,
+                                                    this.requestsPerVMM);
+        WorkspaceHomeInit.initializeVMMCommands(this.commandsPerVMM,
+                                                this.requestsPerVMM);
         WorkspaceHomeInit.initializeSSH(this.sshPath,
                                         this.scpPath,
                                         this.sshAccount,
                                         this.sshIdentityFile);
+        WorkspaceHomeInit.initializeVMMTransport(this.sshTransport,
+                                                 this.sshSessionsPerVMM,
+                                                 this.sshChannelsPerSession);
 
         // todo: temporary hack, RequiredVMM implementation and configurations
         //       will be more encapsulated in the future
@@ -311,6 +386,24 @@ public abstract class WorkspaceHomeImpl implements WorkspaceHome,
         return resource;
     }
 
+    public void discardNewInstance(int id) throws ManageException {
+
+        final String idStr = this.convertID(id);
+
+        final Lock lock = this.lockManager.getLock(idStr);
+        try {
+            lock.lockInterruptibly();
+        } catch (InterruptedException e) {
+            throw new ManageException(e.getMessage(), e);
+        }
+
+        try {
+            this.cache.remove(idStr);
+        } finally {
+            lock.unlock();
+        }
+    }
+
 
     // -------------------------------------------------------------------------
     // FIND
@@ -371,6 +464,151 @@ public abstract class WorkspaceHomeImpl implements WorkspaceHome,
         return this.find(this.convertID(id));
     }
 
+    /**
+     * Same as calling find for each ID but instances that are not cached
+     * are loaded from persistence together, see PersistenceAdapter#loadAll
+     *
+     * @param ids vm ids
+     * @return resources that exist, in ID order, never null
+     * @throws ManageException problem retrieving resources
+     */
+    public InstanceResource[] find(int[] ids) throws ManageException {
+
+        if (ids == null) {
+            throw new ManageException("ids may not be null");
+        }
+
+        final InstanceResource[] found = new InstanceResource[ids.length];
+        final List<Integer> misses = new ArrayList<Integer>();
+        for (int i = 0; i < ids.length; i++) {
+            final Element el = this.cache.get(this.convertID(ids[i]));
+            if (el == null) {
+                misses.add(i);
+            } else {
+                found[i] = (InstanceResource) el.getObjectValue();
+            }
+        }
+
+        for (int start = 0; start < misses.size(); start += LOAD_BATCH) {
+            final int end = Math.min(misses.size(), start + LOAD_BATCH);
+            this.loadBatch(ids, misses.subList(start, end), found);
+        }
+
+        final List<InstanceResource> resourceList =
+                new ArrayList<InstanceResource>(ids.length);
+        for (int i = 0; i < found.length; i++) {
+            if (found[i] != null) {
+                resourceList.add(found[i]);
+            }
+        }
+        return resourceList.toArray(new InstanceResource[resourceList.size()]);
+    }
+
+    /*
+     * Only IDs whose lock is free right now are loaded in bulk: holding many
+     * locks while waiting on another could deadlock.  The rest, and any that
+     * expired, go through find() and destroy() one at a time.
+     */
+    private void loadBatch(int[] ids,
+                           List<Integer> indexes,
+                           InstanceResource[] found) throws ManageException {
+
+        final List<Lock> held = new ArrayList<Lock>(indexes.size());
+        final List<Integer> loading = new ArrayList<Integer>(indexes.size());
+        final List<Integer> contended = new ArrayList<Integer>();
+        final List<Integer> expired = new ArrayList<Integer>();
+
+        try {
+            for (Integer i : indexes) {
+                final String idStr = this.convertID(ids[i]);
+                final Lock lock = this.lockManager.getLock(idStr);
+                if (!lock.tryLock()) {
+                    contended.add(i);
+                    continue;
+                }
+                held.add(lock);
+
+                // may have been loaded since the cache was checked
+                final Element el = this.cache.get(idStr);
+                if (el == null) {
+                    loading.add(i);
+                } else {
+                    found[i] = (InstanceResource) el.getObjectValue();
+                }
+            }
+
+            if (!loading.isEmpty()) {
+                final int[] loadIDs = new int[loading.size()];
+                final InstanceResource[] resources =
+                        new InstanceResource[loading.size()];
+                for (int j = 0; j < loadIDs.length; j++) {
+                    loadIDs[j] = ids[loading.get(j)];
+                    resources[j] = this.newEmptyResource();
+                    resources[j].setID(loadIDs[j]);
+                }
+
+                final boolean[] loaded;
+                try {
+                    loaded = this.persistence.loadAll(loadIDs, resources);
+                } catch (WorkspaceDatabaseException e) {
+                    throw new ManageException(e.getMessage(), e);
+                }
+
+                final Calendar currTime = Calendar.getInstance();
+                for (int j = 0; j < loadIDs.length; j++) {
+                    if (!loaded[j]) {
+                        if (lager.traceLog) {
+                            logger.trace("find could not retrieve " +
+                                    Lager.id(loadIDs[j]));
+                        }
+                        continue;
+                    }
+                    this.cache.put(new Element(this.convertID(loadIDs[j]),
+                                               resources[j]));
+                    final Calendar termTime = resources[j].getTerminationTime();
+                    if (termTime != null && termTime.before(currTime)) {
+                        expired.add(loading.get(j));
+                    } else {
+                        found[loading.get(j)] = resources[j];
+                    }
+                }
+            }
+
+        } finally {
+            for (Lock lock : held) {
+                lock.unlock();
+            }
+        }
+
+        for (Integer i : expired) {
+            try {
+                if (this.destroy(ids[i])) {
+                    if (lager.traceLog) {
+                        logger.trace(Lager.id(ids[i]) + " expired");
+                    }
+                    continue;
+                }
+            } catch (DoesNotExistException e) {
+                continue;
+            }
+            found[i] = this.findOrNull(ids[i]);
+        }
+        for (Integer i : contended) {
+            found[i] = this.findOrNull(ids[i]);
+        }
+    }
+
+    private InstanceResource findOrNull(int id) throws ManageException {
+        try {
+            return this.find(id);
+        } catch (DoesNotExistException e) {
+            if (lager.traceLog) {
+                logger.trace("find could not retrieve " + Lager.id(id));
+            }
+            return null;
+        }
+    }
+
     // TODO: make this termination process less expensive and memory consuming
     // TODO: in particular, push this responsibility to Scheduler, right now
     //       this is just quickly mimicking the old, inefficient setup from GT.
@@ -565,6 +803,7 @@ public abstract class WorkspaceHomeImpl implements WorkspaceHome,
         if (this.cache != null) {
             this.cache.removeAll();
         }
+        VMMCommandScheduler.shutdownTransport();
     }
 
     /**
@@ -577,17 +816,120 @@ public abstract class WorkspaceHomeImpl implements WorkspaceHome,
             throw new Exception("loading problem, not initialized yet");
         }
 
-        if (this.scheduledExecutor != null) {
-            // todo
-            // should have a latch mechanism for handling many different layers
-            // initializing this service instance; would need to coordinate
-            // somehow.  currently we know that only one layer is interested
-            // in registering listeners which is the problem...
-            logger.debug("already recovered (multiple actors above)");
+        synchronized (this) {
+            if (this.recoveryStarted) {
+                // todo
+                // should have a latch mechanism for handling many different
+                // layers initializing this service instance; would need to
+                // coordinate somehow.  currently we know that only one layer
+                // is interested in registering listeners which is the
+                // problem...
+                logger.debug("already recovered (multiple actors above)");
+                return; // *** EARLY RETURN ***
+            }
+            this.recoveryStarted = true;
+        }
+
+        final int[] keys;
+        try {
+            keys = this.persistence.findActiveWorkspacesIDs();
+        } catch (WorkspaceDatabaseException e) {
+            throw new ManageException(e.getMessage(), e);
+        }
+
+        this.recovery = new InstanceRecovery(this,
+                                             keys == null ? new int[0] : keys,
+                                             this.recoveryThreads,
+                                             LOAD_BATCH,
+                                             this.lager) {
+            protected void recovered(InstanceResource resource) {
+                indexAddresses(resource);
+            }
+        };
+
+        if (!this.recoverInBackground || this.recovery.getTotal() == 0) {
+            this.recover_find_active_workspaces();
             return; // *** EARLY RETURN ***
         }
 
-        this.recover_find_active_workspaces();
+        logger.info("Recovering " + this.recovery.getTotal() + " workspaces " +
+                "in the background, service is available meanwhile");
+
+        final Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    recover_find_active_workspaces();
+                } catch (Throwable t) {
+                    logger.fatal("Problem recovering workspaces: " +
+                            t.getMessage(), t);
+                }
+            }
+        }, "workspace-recovery");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return true once the workspaces persisted at startup are all loaded
+     */
+    public boolean isRecovered() {
+        final InstanceRecovery rec = this.recovery;
+        return rec != null && rec.isDone();
+    }
+
+    /**
+     * @return recovery progress, null if recovery has not started
+     */
+    public String getRecoveryReport() {
+        final InstanceRecovery rec = this.recovery;
+        return rec == null ? null : rec.getProgressReport();
+    }
+
+    /*
+     * Some may need to be expired after a container crash/restart.
+     */
+    private void recover_find_active_workspaces() throws ManageException {
+
+        if (lager.traceLog) {
+            logger.trace("find_active_workspaces()");
+        }
+
+        if (this.recovery.getTotal() == 0) {
+            final String msg = "No workspaces were persisted when the" +
+                        " container last shut down";
+            if (this.lager.eventLog) {
+                logger.info(msg);
+            } else if (logger.isDebugEnabled()) {
+                logger.debug(msg);
+            }
+        }
+
+        // if a workspace is terminated during the load process, that is
+        // OK, it is just not counted
+        try {
+            this.recovery.recover();
+        } finally {
+            if (this.recovery.getTotal() > 0) {
+                logger.info("Recovery done: " +
+                        this.recovery.getProgressReport());
+            }
+
+            // Even if some batches failed: the instances that did load (and
+            // any created since, in background mode) still need the
+            // scheduler and the sweeper.
+            //
+            // The ones terminated during the load process will generate a
+            // notification to the scheduler before this is sent (when state
+            // is set to destroying, while the destroy process does block in
+            // StateTransition, the notification to scheduler is sent before
+            // that happens).
+            this.scheduler.recover(this.recovery.getRecovered());
+
+            this.startSweeper();
+        }
+    }
+
+    private void startSweeper() {
 
         // todo: options etc. by wrapping as IoC bean
         this.scheduledExecutor = new ScheduledThreadPoolExecutor(2);
@@ -615,70 +957,17 @@ public abstract class WorkspaceHomeImpl implements WorkspaceHome,
                                                       TimeUnit.MILLISECONDS);
     }
 
-
-    /*
-     * Some may need to be expired after a container crash/restart.
-     */
-    private void recover_find_active_workspaces() throws ManageException {
-
-        if (lager.traceLog) {
-            logger.trace("find_active_workspaces()");
+    private void indexAddresses(InstanceResource resource) {
+        if (this.ipIndex == null) {
+            return; // *** EARLY RETURN ***
         }
-
-        final int[] keys;
         try {
-            keys = this.persistence.findActiveWorkspacesIDs();
-        } catch (WorkspaceDatabaseException e) {
-            throw new ManageException(e.getMessage(), e);
-        }
-
-        if (keys == null || keys.length == 0) {
-            final String msg = "No workspaces were persisted when the" +
-                        " container last shut down";
-            if (this.lager.eventLog) {
-                logger.info(msg);
-            } else if (logger.isDebugEnabled()) {
-                logger.debug(msg);
-            }
-            this.scheduler.recover(0);
-            return;
-        }
-
-        // TODO: add bit to set notification pending counter
-
-        int numRecovered = 0;
-        for (int i = 0; i < keys.length; i++) {
-            if (lager.traceLog) {
-                logger.trace("found #" + keys[i] + " in DB");
-            }
-
-            // To better support 1000s of resources, we should create a custom
-            // query for ones that need to be terminated
-
-            try {
-                this.find(keys[i]);
-                if (lager.eventLog) {
-                    logger.info(Lager.ev(keys[i]) + "recovered");
-                }
-                numRecovered += 1;
-            } catch (DoesNotExistException e) {
-                // if the workspace is terminated during the load process,
-                // that is OK; but, it will return NoSuchResourceException
-                if (lager.eventLog) {
-                    logger.info(Lager.ev(keys[i]) + "resource terminated " +
-                            "during recovery");
-                }
-            } catch (ManageException e) {
-                throw e;
-            }
+            this.ipIndex.add(resource.getID(),
+                             this.dataConvert.getNICs(resource.getVM()));
+        } catch (CannotTranslateException e) {
+            logger.error("could not index addresses of " +
+                    Lager.id(resource.getID()) + ": " + e.getMessage());
         }
-
-        // The ones terminated during the load process will generate a
-        // notification to the scheduler before this is sent (when state
-        // is set to destroying, while the destroy process does block in
-        // StateTransition, the notification to scheduler is sent before
-        // that happens).
-        this.scheduler.recover(numRecovered);
     }
 
 
@@ -710,64 +999,49 @@ public abstract class WorkspaceHomeImpl implements WorkspaceHome,
 
             throws ManageException {
 
-        // not an efficient way to do this, waiting on some object model
-        // revisions to do anything about it
         final int[] ids = this.findIDsByCaller(callerID);
 
         if (ids == null || ids.length == 0) {
             return EMPTY_RESOURCE_ARRAY;
         }
 
-        final List resourceList = new ArrayList(ids.length);
-
         // Not worried about races w/ destruction here.
-
-        for (int i = 0; i < ids.length; i++) {
-            try {
-                resourceList.add(this.find(ids[i]));
-            } catch (DoesNotExistException e) {
-                if (lager.traceLog) {
-                    logger.trace("findByCaller could not retrieve " +
-                            Lager.id(ids[i]));
-                }
-            }
-        }
-
-        if (resourceList.isEmpty()) {
-            return EMPTY_RESOURCE_ARRAY;
-        } else {
-            return (InstanceResource[]) resourceList.toArray(
-                            new InstanceResource[resourceList.size()]);
-        }
+        return this.find(ids);
     }
 
     public InstanceResource[] findByIP(String ip) throws ManageException {
 
-        // Not an efficient way to do this, waiting on some object model
-        // revisions to do anything about it.  Also, it is highly likely
-        // that all VMs are in instance cache at this point.
-
         final int[] keys;
-        try {
-            keys = this.persistence.findActiveWorkspacesIDs();
-        } catch (WorkspaceDatabaseException e) {
-            throw new ManageException(e.getMessage(), e);
+        if (this.ipIndex != null && this.isRecovered()) {
+            // only active instances are indexed, each candidate is still
+            // checked below in case of a race with destruction
+            keys = this.ipIndex.find(ip);
+        } else {
+            // Not an efficient way to do this, only used when no IP index
+            // is configured or it is still being filled by recovery.  It is highly likely that all VMs are in
+            // instance cache at this point.
+            try {
+                keys = this.persistence.findActiveWorkspacesIDs();
+            } catch (WorkspaceDatabaseException e) {
+                throw new ManageException(e.getMessage(), e);
+            }
         }
 
         if (keys == null || keys.length == 0) {
+            if (lager.traceLog) {
+                logger.trace("findByIP found 0");
+            }
             return EMPTY_RESOURCE_ARRAY;
         }
 
         final List resourceList = new ArrayList(keys.length);
 
-        // Not worried about races w/ destruction here.
-
         for (int key : keys) {
             try {
                 InstanceResource resource = this.find(key);
                 NIC[] nics = this.dataConvert.getNICs(resource.getVM());
                 for (NIC nic : nics) {
-                    if (nic.getIpAddress().equals(ip)) {
+                    if (ip.equals(nic.getIpAddress())) {
                         resourceList.add(resource);
                         break;
                     }
@@ -777,6 +1051,9 @@ public abstract class WorkspaceHomeImpl implements WorkspaceHome,
                     logger.trace("findByIP could not retrieve " +
                             Lager.id(key));
                 }
+                if (this.ipIndex != null) {
+                    this.ipIndex.remove(key);
+                }
             } catch (CannotTranslateException e) {
                 logger.warn(e.getMessage());
             }
@@ -802,8 +1079,6 @@ public abstract class WorkspaceHomeImpl implements WorkspaceHome,
 
             throws ManageException {
 
-        // not an efficient way to do this, waiting on some object model
-        // revisions to do anything about it
         final int[] keys;
         try {
             keys = this.persistence.findActiveWorkspacesIDs();
@@ -815,29 +1090,8 @@ public abstract class WorkspaceHomeImpl implements WorkspaceHome,
             return EMPTY_RESOURCE_ARRAY;
         }
 
-        final List resourceList = new ArrayList(keys.length);
-
         // Not worried about races w/ destruction here.
-
-        for (int i = 0; i < keys.length; i++) {
-            try {
-                resourceList.add(this.find(keys[i]));
-            } catch (DoesNotExistException e) {
-                if (lager.traceLog) {
-                    logger.trace("findGlobalAll could not retrieve " +
-                            Lager.id(keys[i]));
-                }
-            }
-        }
-
-        final InstanceResource[] ret;
-
-        if (resourceList.isEmpty()) {
-            ret = EMPTY_RESOURCE_ARRAY;
-        } else {
-            ret = (InstanceResource[]) resourceList.toArray(
-                            new InstanceResource[resourceList.size()]);
-        }
+        final InstanceResource[] ret = this.find(keys);
 
         if (lager.traceLog) {
             logger.trace("findAll found " + ret.length);
@@ -16,8 +16,13 @@
 
 package org.globus.workspace.service.impls;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.globus.workspace.cmdutils.ForkTransport;
+import org.globus.workspace.cmdutils.JSchTransport;
 import org.globus.workspace.cmdutils.SSHUtil;
 import org.globus.workspace.service.impls.async.RequestDispatch;
+import org.globus.workspace.xen.VMMCommandScheduler;
 
 /**
  * Things that should not be static but that still are.
@@ -27,8 +32,13 @@ import org.globus.workspace.service.impls.async.RequestDispatch;
  */
 class WorkspaceHomeInit {
 
+    private static final Log logger =
+            LogFactory.getLog(WorkspaceHomeInit.class.getName());
+
     static void initializeRequestDispatch(String initialSize,
-                                          String maxSize) throws Exception {
+                                          String maxSize,
+                                          String queueCapacity,
+                                          String perVMMLimit) throws Exception {
         
         if (initialSize == null) {
             throw new Exception("threadPoolInitialSize is not configured");
@@ -56,21 +66,59 @@ class WorkspaceHomeInit {
                                        "greater than threadPoolMaxSize");
         }
 
-        int highwater = initial * 2;
-        if (highwater > max) {
-            // half of difference
-            final int diff = max - initial;
-
-            if (diff < 2) {
-                highwater = initial;
-            } else {
-                highwater = diff / 2;
+        // optional
+        int capacity = 1000;
+        if (queueCapacity != null) {
+            capacity = Integer.parseInt(queueCapacity);
+            if (capacity < 1) {
+                throw new Exception(
+                            "requestQueueCapacity may not be less than one");
             }
         }
 
-        RequestDispatch.setOptions(initial, max, highwater);
+        // optional, zero or less means no limit
+        int vmmLimit = 0;
+        if (perVMMLimit != null) {
+            vmmLimit = Integer.parseInt(perVMMLimit);
+        }
+
+        RequestDispatch.setOptions(initial, max, capacity, vmmLimit);
     }
     
+    /**
+     * requestsPerVMM and commandsPerVMM stack.  A dispatched request runs
+     * its commands one after the other, so with requestsPerVMM at or below
+     * commandsPerVMM the command limit only holds back commands run outside
+     * of RequestDispatch (destroy runs its request in the caller's thread).
+     * Above it, the extra requests hold worker threads while they wait for a
+     * command slot, which is allowed but only warned about.
+     *
+     * @param perVMMLimit commandsPerVMM, may be null
+     * @param perVMMRequests requestsPerVMM, may be null
+     * @throws Exception invalid
+     */
+    static void initializeVMMCommands(String perVMMLimit,
+                                      String perVMMRequests)
+            throws Exception {
+
+        // optional, zero or less means no limit
+        if (perVMMLimit != null) {
+            VMMCommandScheduler.setMaxPerHost(Integer.parseInt(perVMMLimit));
+        }
+
+        final int commandLimit = VMMCommandScheduler.getMaxPerHost();
+        int requestLimit = 0;
+        if (perVMMRequests != null) {
+            requestLimit = Integer.parseInt(perVMMRequests);
+        }
+        if (commandLimit > 0 && requestLimit > commandLimit) {
+            logger.warn("requestsPerVMM (" + requestLimit + ") is greater " +
+                    "than commandsPerVMM (" + commandLimit + "), requests " +
+                    "over " + commandLimit + " per VMM will hold a worker " +
+                    "thread while they wait to run their commands");
+        }
+    }
+
     static void initializeSSH(String sshPath,
                               String scpPath,
                               String sshAccount,
@@ -95,4 +143,45 @@ class WorkspaceHomeInit {
             }
         }
     }
+
+    static void initializeVMMTransport(String transport,
+                                       String sessionsPerVMM,
+                                       String channelsPerSession)
+            throws Exception {
+
+        // optional, default is to fork ssh for every command
+        if (transport == null || transport.trim().equalsIgnoreCase("fork")) {
+            VMMCommandScheduler.setTransport(new ForkTransport());
+            return; // *** EARLY RETURN ***
+        }
+
+        if (!transport.trim().equalsIgnoreCase("pooled")) {
+            throw new Exception("sshTransport must be 'fork' or 'pooled', " +
+                    "not '" + transport + "'");
+        }
+
+        int sessions = 2;
+        if (sessionsPerVMM != null) {
+            sessions = Integer.parseInt(sessionsPerVMM);
+            if (sessions < 1) {
+                throw new Exception(
+                            "sshSessionsPerVMM may not be less than one");
+            }
+        }
+
+        int channels = 8;
+        if (channelsPerSession != null) {
+            channels = Integer.parseInt(channelsPerSession);
+            if (channels < 1) {
+                throw new Exception(
+                            "sshChannelsPerSession may not be less than one");
+            }
+        }
+
+        // idle sessions are closed after five minutes
+        VMMCommandScheduler.setTransport(
+                new JSchTransport(SSHUtil.getSshaccount(),
+                                  SSHUtil.getSshIdentityFile(),
+                                  sessions, channels, 300));
+    }
 }
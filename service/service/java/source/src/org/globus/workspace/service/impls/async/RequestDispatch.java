@@ -19,113 +19,316 @@ package org.globus.workspace.service.impls.async;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs WorkspaceRequests on a pool of worker threads.
+ *
+ * Requests are queued in priority lanes: a shutdown is not stuck behind
+ * hundreds of propagates.  Each lane is bounded, when a lane is full the
+ * submitting thread runs the request itself (this is counted as a rejection).
+ * Optionally, the number of requests running against one VMM at a time is
+ * limited; requests over that limit wait (still counted in their lane) until
+ * a running one on the same VMM finishes.  The limit also holds for requests
+ * that found their lane full: if their VMM has no free slot they wait with
+ * the others instead of running in the submitting thread.  Those are not in
+ * any lane, so at most queueCapacity of them wait per VMM; past that they
+ * run in the submitting thread even though the VMM is at its limit.
+ *
+ * The per-VMM request limit is separate from VMMCommandScheduler's per-VMM
+ * command limit, which every command goes through as well.
+ *
+ * Queue depth, rejections and queue wait times are available per lane.
+ */
 public class RequestDispatch {
 
+    // -------------------------------------------------------------------------
+    // STATIC VARIABLES
+    // -------------------------------------------------------------------------
+
     private static final Log logger =
                         LogFactory.getLog(RequestDispatch.class.getName());
 
-    protected static WorkspaceRequestQueue queue;
+    /** shutdown, serialize, pause */
+    public static final int PRIORITY_HIGH = 0;
+
+    /** start, unpause, reboot etc. */
+    public static final int PRIORITY_NORMAL = 1;
+
+    /** propagate, ready for transport (long running file transfers) */
+    public static final int PRIORITY_LOW = 2;
+
+    private static final String[] LANE_NAMES = {"high", "normal", "low"};
+
+    private static final long KEEPALIVE_SECONDS = 60;
+
     private static Options opts;
-    private static WorkspaceThreadPool threadPool;
-    private static Semaphore semaphore = new Semaphore();
+    private static ThreadPoolExecutor executor;
+    private static Lane[] lanes;
+
+    // VMM hostname -> gate, only used if there is a per-VMM limit
+    private static final Map<String, VmmGate> gates =
+            new HashMap<String, VmmGate>();
+
+    // FIFO order within a lane
+    private static final AtomicLong sequence = new AtomicLong();
 
     static class Options {
-        int numThreads;
+        final int numThreads;
         final int maxThreads;
-        final int highWaterMark;
+        final int queueCapacity;
+        final int vmmLimit;
         boolean stopped;
-        int addedThreads;
 
-        Options(int numThreads, int maxThreads, int highWaterMark) {
+        Options(int numThreads, int maxThreads, int queueCapacity, int vmmLimit) {
             this.numThreads = numThreads;
             this.maxThreads = maxThreads;
-            this.highWaterMark = highWaterMark;
+            this.queueCapacity = queueCapacity;
+            this.vmmLimit = vmmLimit;
         }
     }
 
+
+    // -------------------------------------------------------------------------
+    // SETUP
+    // -------------------------------------------------------------------------
+
+    /**
+     * @param numThreads threads started up front
+     * @param maxThreads most threads running requests at once, idle threads
+     *                   are retired after a minute
+     * @param queueCapacity most requests waiting in each priority lane
+     * @param vmmLimit most requests running against one VMM, zero or less
+     *                 for no limit
+     */
     public synchronized static void setOptions(int numThreads,
                                                int maxThreads,
-                                               int highWaterMark) {
-        
+                                               int queueCapacity,
+                                               int vmmLimit) {
+
         logger.debug("RequestDispatch options: numThreads = " +
                      numThreads + ", maxThreads = " + maxThreads +
-                     ", highWaterMark = " + highWaterMark);
+                     ", queueCapacity = " + queueCapacity +
+                     ", vmmLimit = " + vmmLimit);
         if (opts != null) {
             logger.warn("Attempt to call setOptions more than once?  " +
                     "RequestDispatch is JVM or classloader wide.");
         } else {
-            opts = new Options(numThreads, maxThreads, highWaterMark);
+            opts = new Options(numThreads, maxThreads, queueCapacity, vmmLimit);
         }
     }
 
+    private synchronized static ThreadPoolExecutor getExecutor() {
+        // the first request activates this
+        if (executor == null) {
+            initialize();
+        }
+        return executor;
+    }
+
     private static void initialize() {
         logger.debug("intializing RequestDispatch");
-        queue = new WorkspaceRequestQueue();
         if (opts == null) {
             logger.warn("Options were not initialized already (?).");
-            opts = new Options(5,50,20);
+            opts = new Options(5, 50, 1000, 0);
+        }
+
+        lanes = new Lane[LANE_NAMES.length];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane(LANE_NAMES[i]);
+        }
+
+        // The queue is unbounded as far as the executor is concerned (the
+        // lanes enforce the bounds), so it would never grow past its core
+        // size: core is the maximum and idle threads time out instead.
+        executor = new ThreadPoolExecutor(opts.maxThreads,
+                                          opts.maxThreads,
+                                          KEEPALIVE_SECONDS,
+                                          TimeUnit.SECONDS,
+                                          new PriorityBlockingQueue<Runnable>(),
+                                          new WorkspaceThreadFactory());
+        executor.allowCoreThreadTimeOut(true);
+
+        logger.debug("starting up request handler with "
+                                            + opts.numThreads + " threads");
+        for (int i = 0; i < opts.numThreads; i++) {
+            executor.prestartCoreThread();
         }
-        threadPool = new WorkspaceThreadPool(queue);
     }
 
+
+    // -------------------------------------------------------------------------
+    // DISPATCH
+    // -------------------------------------------------------------------------
+
     /**
      * @param req request
      * @param id workspid
      */
-    public synchronized static void addRequest(WorkspaceRequest req, int id) {
-        // the first request activates this
-        if (queue == null) {
-            initialize();
-            start();
+    public static void addRequest(WorkspaceRequest req, int id) {
+        addRequest(req, id, PRIORITY_NORMAL, null);
+    }
+
+    /**
+     * @param req request
+     * @param id workspid
+     * @param priority one of the PRIORITY_* constants
+     * @param vmm hostname of the VMM the request runs against, may be null
+     */
+    public static void addRequest(WorkspaceRequest req,
+                                  int id,
+                                  int priority,
+                                  String vmm) {
+
+        if (req == null) {
+            throw new IllegalArgumentException("req may not be null");
+        }
+        if (priority < PRIORITY_HIGH || priority > PRIORITY_LOW) {
+            throw new IllegalArgumentException("unknown priority: " + priority);
         }
 
+        final ThreadPoolExecutor exe = getExecutor();
+
         if (isStopped()) {
             logger.error("cannot add request to queue, " +
                     "RequestDispatch is disabled");
             return;
         }
 
-        int waitingThreads = queue.enqueue(req);
+        final Lane lane = lanes[priority];
+        lane.submitted.incrementAndGet();
 
-        if (waitingThreads == 0 && threadPool.getThreads() < opts.maxThreads) {
-            opts.addedThreads += addThread();
-        } else if (waitingThreads > opts.highWaterMark) {
-            if (opts.addedThreads > 0) {
-                removeThread();
-                opts.addedThreads --;
+        if (!lane.reserve(opts.queueCapacity)) {
+            lane.rejected.incrementAndGet();
+            final Task task = new Task(req, id, priority, vmm, false);
+            if (!enterGate(task)) {
+                logger.warn("The " + lane.name + " priority request queue " +
+                    "is full (" + opts.queueCapacity + "), request for " +
+                    "workspace #" + id + " waits for a free slot on VMM '" +
+                    vmm + "'");
+                return; // *** EARLY RETURN ***
             }
+            logger.warn("The " + lane.name + " priority request queue is " +
+                    "full (" + opts.queueCapacity + "), running request for " +
+                    "workspace #" + id + " in the submitting thread");
+            task.run();
+            return;
         }
-    }
 
-    public synchronized static void start() {
-        logger.debug("starting up request handler with "
-                                            + opts.numThreads + " threads");
-
-        threadPool.startThreads(opts.numThreads);
-        semaphore.sendSignal();
+        final Task task = new Task(req, id, priority, vmm, true);
+        if (enterGate(task)) {
+            execute(exe, task);
+        }
     }
 
-    public void waitForInit() throws InterruptedException {
-        semaphore.waitForSignal();
+    /**
+     * Takes a running slot on the task's VMM if there is a limit.
+     *
+     * @param task task about to run
+     * @return false if the VMM was busy and the task was queued behind it,
+     *         taskDone will run it later
+     */
+    private static boolean enterGate(Task task) {
+        if (opts.vmmLimit <= 0 || task.vmm == null) {
+            return true; // *** EARLY RETURN ***
+        }
+        synchronized (gates) {
+            VmmGate gate = gates.get(task.vmm);
+            if (gate == null) {
+                gate = new VmmGate();
+                gates.put(task.vmm, gate);
+            }
+            if (gate.running >= opts.vmmLimit) {
+                if (task.inLane) {
+                    gate.waiting.add(task);
+                    return false; // *** EARLY RETURN ***
+                }
+                if (opts.queueCapacity <= 0 ||
+                        gate.overflow < opts.queueCapacity) {
+                    gate.waiting.add(task);
+                    gate.overflow += 1;
+                    return false; // *** EARLY RETURN ***
+                }
+                logger.warn("Too many requests (" + gate.overflow + ") wait " +
+                        "outside of their queue for VMM '" + task.vmm +
+                        "', request for workspace #" + task.id +
+                        " runs over the limit of " + opts.vmmLimit);
+            }
+            gate.running += 1;
+            return true;
+        }
     }
 
-    public void waitForStop() throws InterruptedException {
-        threadPool.waitForThreads();
+    private static void execute(ThreadPoolExecutor exe, Task task) {
+        try {
+            exe.execute(task);
+        } catch (RejectedExecutionException e) {
+            if (task.inLane) {
+                lanes[task.priority].release();
+            }
+            taskDone(task);
+            logger.error("cannot add request to queue, " +
+                    "RequestDispatch is disabled");
+        }
     }
 
-    private static synchronized int addThread() {
-        if (opts == null || opts.stopped) {
-            return 0;
-        } else {
-            threadPool.startThreads(1);
-            return 1;
+    private static void runRequest(WorkspaceRequest req) {
+        try {
+            req.execute();
+        } catch (Throwable t) {
+            logger.error("runtime exception from task " +
+                         "implementation: " + t.getMessage(), t);
         }
     }
 
-    private static void removeThread() {
-        threadPool.stopThreads(1);
+    // frees the task's VMM slot and hands it to the next waiting request
+    private static void taskDone(Task task) {
+        if (opts.vmmLimit <= 0 || task.vmm == null) {
+            return; // *** EARLY RETURN ***
+        }
+
+        final Task next;
+        synchronized (gates) {
+            final VmmGate gate = gates.get(task.vmm);
+            if (gate == null) {
+                return; // *** EARLY RETURN ***
+            }
+            // a slot taken over the limit is not handed on
+            if (gate.running > opts.vmmLimit) {
+                next = null;
+            } else {
+                next = gate.waiting.poll();
+            }
+            if (next != null && !next.inLane) {
+                gate.overflow -= 1;
+            }
+            if (next == null) {
+                gate.running -= 1;
+                if (gate.running <= 0) {
+                    gates.remove(task.vmm);
+                }
+            }
+        }
+
+        if (next != null) {
+            execute(getExecutor(), next);
+        }
     }
 
+
+    // -------------------------------------------------------------------------
+    // LIFECYCLE
+    // -------------------------------------------------------------------------
+
     public synchronized static void stop() {
         if (opts == null || opts.stopped) {
             return;
@@ -135,12 +338,12 @@ public class RequestDispatch {
 
         opts.stopped = true;
 
-        if (threadPool != null) {
-            // request threads to stop
-            threadPool.stopThreads();
+        if (executor != null) {
+            logger.debug(getStatsReport());
+            executor.shutdown();
             // wait util they actually stop or 2 min time out
             try {
-                threadPool.waitForThreads(1000 * 60 * 2);
+                executor.awaitTermination(2, TimeUnit.MINUTES);
             } catch (InterruptedException e) {
                 // we can ignore it
             }
@@ -156,4 +359,194 @@ public class RequestDispatch {
         return opts.stopped;
     }
 
+
+    // -------------------------------------------------------------------------
+    // STATISTICS
+    // -------------------------------------------------------------------------
+
+    /**
+     * @param priority one of the PRIORITY_* constants
+     * @return requests waiting in the lane (including ones held back by the
+     *         per-VMM limit)
+     */
+    public static int getQueueDepth(int priority) {
+        final Lane lane = getLane(priority);
+        return lane == null ? 0 : lane.depth.get();
+    }
+
+    /**
+     * @param priority one of the PRIORITY_* constants
+     * @return requests that found the lane full and ran in the submitter
+     *         (or waited for their VMM outside of the lane)
+     */
+    public static long getRejectedCount(int priority) {
+        final Lane lane = getLane(priority);
+        return lane == null ? 0 : lane.rejected.get();
+    }
+
+    public static long getCompletedCount(int priority) {
+        final Lane lane = getLane(priority);
+        return lane == null ? 0 : lane.completed.get();
+    }
+
+    /**
+     * @param priority one of the PRIORITY_* constants
+     * @return average milliseconds between being added and starting to run
+     */
+    public static long getAverageWaitMillis(int priority) {
+        final Lane lane = getLane(priority);
+        if (lane == null) {
+            return 0;
+        }
+        final long started = lane.started.get();
+        return started == 0 ? 0 : lane.totalWaitMillis.get() / started;
+    }
+
+    public static long getMaxWaitMillis(int priority) {
+        final Lane lane = getLane(priority);
+        return lane == null ? 0 : lane.maxWaitMillis.get();
+    }
+
+    public static int getActiveThreads() {
+        final ThreadPoolExecutor exe;
+        synchronized (RequestDispatch.class) {
+            exe = executor;
+        }
+        return exe == null ? 0 : exe.getActiveCount();
+    }
+
+    public static String getStatsReport() {
+        final StringBuilder sb = new StringBuilder(256);
+        sb.append("RequestDispatch: ").append(getActiveThreads())
+          .append(" active threads");
+        for (int i = 0; i < LANE_NAMES.length; i++) {
+            sb.append("; ").append(LANE_NAMES[i])
+              .append(": depth=").append(getQueueDepth(i))
+              .append(", completed=").append(getCompletedCount(i))
+              .append(", rejected=").append(getRejectedCount(i))
+              .append(", avgWaitMs=").append(getAverageWaitMillis(i))
+              .append(", maxWaitMs=").append(getMaxWaitMillis(i));
+        }
+        return sb.toString();
+    }
+
+    private synchronized static Lane getLane(int priority) {
+        if (lanes == null || priority < 0 || priority >= lanes.length) {
+            return null;
+        }
+        return lanes[priority];
+    }
+
+
+    // -------------------------------------------------------------------------
+    // IMPL
+    // -------------------------------------------------------------------------
+
+    private static class Lane {
+
+        final String name;
+        final AtomicInteger depth = new AtomicInteger();
+        final AtomicLong submitted = new AtomicLong();
+        final AtomicLong started = new AtomicLong();
+        final AtomicLong completed = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+        final AtomicLong totalWaitMillis = new AtomicLong();
+        final AtomicLong maxWaitMillis = new AtomicLong();
+
+        Lane(String name) {
+            this.name = name;
+        }
+
+        boolean reserve(int capacity) {
+            while (true) {
+                final int current = this.depth.get();
+                if (capacity > 0 && current >= capacity) {
+                    return false;
+                }
+                if (this.depth.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            this.depth.decrementAndGet();
+        }
+
+        void recordWait(long waitMillis) {
+            this.started.incrementAndGet();
+            this.totalWaitMillis.addAndGet(waitMillis);
+            while (true) {
+                final long max = this.maxWaitMillis.get();
+                if (waitMillis <= max ||
+                        this.maxWaitMillis.compareAndSet(max, waitMillis)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static class VmmGate {
+        int running;
+        // waiting requests that are not counted in a lane
+        int overflow;
+        final PriorityQueue<Task> waiting = new PriorityQueue<Task>();
+    }
+
+    private static class Task implements Runnable, Comparable<Task> {
+
+        final WorkspaceRequest req;
+        final int id;
+        final int priority;
+        final String vmm;
+        // false for requests that found their lane full
+        final boolean inLane;
+        final long seq = sequence.getAndIncrement();
+        final long added = System.currentTimeMillis();
+
+        Task(WorkspaceRequest req, int id, int priority, String vmm,
+             boolean inLane) {
+            this.req = req;
+            this.id = id;
+            this.priority = priority;
+            this.vmm = vmm;
+            this.inLane = inLane;
+        }
+
+        public void run() {
+            final Lane lane = lanes[this.priority];
+            if (this.inLane) {
+                lane.release();
+            }
+            lane.recordWait(System.currentTimeMillis() - this.added);
+            try {
+                runRequest(this.req);
+            } finally {
+                lane.completed.incrementAndGet();
+                taskDone(this);
+            }
+        }
+
+        public int compareTo(Task other) {
+            if (this.priority != other.priority) {
+                return this.priority < other.priority ? -1 : 1;
+            }
+            if (this.seq != other.seq) {
+                return this.seq < other.seq ? -1 : 1;
+            }
+            return 0;
+        }
+    }
+
+    private static class WorkspaceThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r);
+            thread.setName("Thread-" + this.count.incrementAndGet() +
+                           "_WorkspTaskThrd");
+            return thread;
+        }
+    }
 }
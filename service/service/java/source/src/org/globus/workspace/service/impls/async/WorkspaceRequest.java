@@ -16,13 +16,12 @@
 
 package org.globus.workspace.service.impls.async;
 
-// TODO: move to executor
 public interface WorkspaceRequest {
 
     /**
      * All error reporting and request setup must happen out of band.
      *
-     * WorkspaceRequestQueue just knows how to dequeue work requests
+     * RequestDispatch just knows how to queue work requests
      * and call execute.
      */
     public void execute();
@@ -17,21 +17,36 @@
 package org.globus.workspace.service.impls.site;
 
 import commonj.timers.Timer;
-import commonj.timers.TimerListener;
 import commonj.timers.TimerManager;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.globus.workspace.Lager;
+import org.globus.workspace.scheduler.ConcurrentTimerListener;
 
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.RandomAccessFile;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Polls for asynchronous notifications coming from outside of the service
  * via the filesystem.
+ *
+ * The file is tailed through a FileChannel in large chunks and records are
+ * split on the raw bytes, a poll that finds the file has not grown does not
+ * read at all.  While notifications keep arriving the file is polled again
+ * right away instead of after the configured delay, and the pending count
+ * is decreased once for everything read in one pass.
+ *
+ * Polls may run alongside other timers: the channel and cursor are only
+ * touched under watchLock, and the notifications are handed to the same
+ * resource calls that request threads make, which lock what they change.
  */
-public abstract class NotificationPoll implements TimerListener {
+public abstract class NotificationPoll implements ConcurrentTimerListener {
 
     // -------------------------------------------------------------------------
     // STATIC VARIABLES
@@ -40,6 +55,14 @@ public abstract class NotificationPoll implements TimerListener {
     protected static final Log logger =
         LogFactory.getLog(NotificationPoll.class.getName());
 
+    private static final String EON = "<eon>";
+    private static final String SEPARATOR = "::";
+
+    // one byte per char, the same as RandomAccessFile.readLine
+    private static final Charset LINE_CHARSET = Charset.forName("ISO-8859-1");
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
 
     // -------------------------------------------------------------------------
     // INSTANCE VARIABLES
@@ -54,8 +77,17 @@ public abstract class NotificationPoll implements TimerListener {
     private final String polledObjectNoun;
 
     private Timer timer;
-    private RandomAccessFile raf = null;
-    private long filepos;    
+    private FileChannel channel = null;
+    private long filepos;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private byte[] lineBuffer = new byte[512];
+
+    // true if the last pass read something, poll again without a delay
+    private boolean burst;
+
+    // guards the channel and cursor
+    private final Object watchLock = new Object();
 
     public NotificationPoll(TimerManager timerManager,
                             Lager lagerImpl,
@@ -152,7 +184,12 @@ public abstract class NotificationPoll implements TimerListener {
         }
 
         if (notDoneCount > 0) {
-            notificationWatch();
+            // a ConcurrentTimerListener, see class comment
+            synchronized (this.watchLock) {
+                notificationWatch();
+            }
+        } else {
+            this.burst = false;
         }
 
         resetNotificationWatcher();
@@ -171,7 +208,8 @@ public abstract class NotificationPoll implements TimerListener {
         }
 
         if (this.timer == null) {
-            this.timer = this.timerManager.schedule(this, this.delay);
+            final long next = this.burst ? 0 : this.delay;
+            this.timer = this.timerManager.schedule(this, next);
             if (lager.pollLog) {
                 logger.trace("scheduled notificationWatcher");
             }
@@ -191,19 +229,28 @@ public abstract class NotificationPoll implements TimerListener {
             logger.trace("notificationWatch()");
         }
 
-        final String[] notifications = this.readNotifications();
-        if (notifications == null) {
+        final String[] lines = this.readNotifications();
+        if (lines == null) {
+            this.burst = false;
             return;
         }
+        this.burst = true;
 
         // minimum 3 tokens required
 
         // NAME::state::code[::message][::message word #2][etc]]
 
         int decrease = 0;
-        for (int i = 0; i < notifications.length; i++) {
+        for (int i = 0; i < lines.length; i++) {
+            final Notification notification = parseNotification(lines[i]);
+            if (notification == null) {
+                continue;
+            }
             try {
-                if (processOneNotification(notifications[i])) {
+                if (oneNotification(notification.name,
+                                    notification.state,
+                                    notification.code,
+                                    notification.message)) {
                     decrease += 1;
                 }
             } catch (Exception e) {
@@ -234,8 +281,8 @@ public abstract class NotificationPoll implements TimerListener {
 
         try {
             try {
-                if (this.raf == null) {
-                    this.raf = new RandomAccessFile(this.path, "r");
+                if (this.channel == null) {
+                    this.channel = new FileInputStream(this.path).getChannel();
                 }
             } catch (FileNotFoundException e) {
                 if (lager.pollLog) {
@@ -252,46 +299,81 @@ public abstract class NotificationPoll implements TimerListener {
             } else {
                 logger.error(e.getMessage());
             }
-            this.raf = null;
+            this.closeChannel();
             // this is as far as the problem goes:
             return null;
         }
     }
 
+    private void closeChannel() {
+        if (this.channel != null) {
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                logger.debug("problem closing notification file: " +
+                        e.getMessage());
+            }
+            this.channel = null;
+        }
+    }
+
     private String[] readNotificationsImpl()
             throws Exception {
 
-        if (this.raf == null) {
-            throw new Exception("raf should be opened before calling");
+        if (this.channel == null) {
+            throw new Exception("channel should be opened before calling");
         }
-        
-        if (this.filepos > this.raf.length()) {
+
+        final long size = this.channel.size();
+        if (this.filepos > size) {
             logger.warn("Notification cursor reset, file is new/truncated?");
             this.filepos = 0;
         }
 
-        this.raf.seek(this.filepos);
+        if (this.filepos == size) {
+            return null; // *** EARLY RETURN ***
+        }
 
-        final ArrayList notifs = new ArrayList(64);
-        while (true) {
-            String line = this.raf.readLine();
+        final ArrayList<String> notifs = new ArrayList<String>(64);
 
-            if (line == null) {
+        final ByteBuffer buf = this.readBuffer;
+        final byte[] bytes = buf.array();
+        long readpos = this.filepos;
+        int lineLen = 0;
+        boolean race = false;
+
+        while (!race) {
+            buf.clear();
+            final int n = this.channel.read(buf, readpos);
+            if (n <= 0) {
                 break;
             }
-            
-            if (!line.endsWith("<eon>")) {
-                logger.debug("race with a notification writer (unless " +
-                        "there is a severe, odd issue, line='" + line + "'");
 
-                // next readNotificationsImpl invocation should start this
-                // line over, so filepos is not updated
-                break;
+            for (int i = 0; i < n; i++) {
+                final byte b = bytes[i];
+                if (b != '\n') {
+                    if (lineLen == this.lineBuffer.length) {
+                        final byte[] bigger = new byte[lineLen * 2];
+                        System.arraycopy(this.lineBuffer, 0, bigger, 0, lineLen);
+                        this.lineBuffer = bigger;
+                    }
+                    this.lineBuffer[lineLen++] = b;
+                    continue;
+                }
+
+                if (!this.addNotification(notifs, lineLen)) {
+                    race = true;
+                    break;
+                }
+                lineLen = 0;
+                this.filepos = readpos + i + 1;
             }
+            readpos += n;
+        }
 
-            this.filepos = this.raf.getFilePointer();
-            // chop off <eon>
-            notifs.add(line.substring(0, line.length() - 5));
+        // last record may be complete but not newline terminated
+        if (!race && lineLen > 0 && this.addNotification(notifs, lineLen)) {
+            this.filepos = readpos;
         }
 
         if (notifs.isEmpty()) {
@@ -299,21 +381,90 @@ public abstract class NotificationPoll implements TimerListener {
         }
 
         this.call.cursorPosition(this.filepos);
-        return (String[]) notifs.toArray(new String[notifs.size()]);
+        return notifs.toArray(new String[notifs.size()]);
     }
 
+    // false if the line is not (yet) complete
+    private boolean addNotification(List<String> notifs, int lineLen) {
+
+        int len = lineLen;
+        if (len > 0 && this.lineBuffer[len - 1] == '\r') {
+            len -= 1;
+        }
+
+        final String line = new String(this.lineBuffer, 0, len, LINE_CHARSET);
 
-    // true if a message is sent to impl and the impl cares about it,
-    // see this.oneNotification()
-    private boolean processOneNotification(String line) {
-        final String[] notification = line.trim().split("::");
+        if (!line.endsWith(EON)) {
+            logger.debug("race with a notification writer (unless " +
+                    "there is a severe, odd issue, line='" + line + "'");
+
+            // next readNotificationsImpl invocation should start this
+            // line over, so filepos is not updated
+            return false;
+        }
+
+        // chop off <eon>
+        notifs.add(line.substring(0, line.length() - EON.length()));
+        return true;
+    }
+
+
+    // -------------------------------------------------------------------------
+    // PARSE
+    // -------------------------------------------------------------------------
+
+    // one notification line, see oneNotification
+    private static class Notification {
+
+        final String name;
+        final String state;
+        final int code;
+        final String message;
+
+        Notification(String name, String state, int code, String message) {
+            this.name = name;
+            this.state = state;
+            this.code = code;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Same tokens as String.split("::"), without compiling a pattern per line
+     *
+     * @param line line
+     * @return tokens, trailing empty tokens removed
+     */
+    static String[] splitTokens(String line) {
+        final ArrayList<String> tokens = new ArrayList<String>(8);
+        int start = 0;
+        int idx;
+        while ((idx = line.indexOf(SEPARATOR, start)) >= 0) {
+            tokens.add(line.substring(start, idx));
+            start = idx + SEPARATOR.length();
+        }
+        tokens.add(line.substring(start));
+
+        int size = tokens.size();
+        while (size > 1 && tokens.get(size - 1).length() == 0) {
+            size -= 1;
+        }
+        if (size == 1 && tokens.get(0).length() == 0 && line.length() > 0) {
+            size = 0;
+        }
+        return tokens.subList(0, size).toArray(new String[size]);
+    }
+
+    // null if the line is not a valid notification
+    private static Notification parseNotification(String line) {
+        final String[] notification = splitTokens(line.trim());
 
         if (notification.length < 3) {
             if (notification.length != 0) {
                 logger.error("invalid notification line, less than " +
                         "three tokens: " + line);
             }
-            return false;
+            return null;
         }
 
         // notification encoder will not send blankspace, trimming
@@ -327,7 +478,7 @@ public abstract class NotificationPoll implements TimerListener {
         } catch (NumberFormatException e) {
             logger.error("invalid notification line, code is " +
                     "not an integer: '" + code + "', line = " + line);
-            return false;
+            return null;
         }
 
         String message = null;
@@ -349,6 +500,6 @@ public abstract class NotificationPoll implements TimerListener {
             message = buf.toString();
         }
 
-        return oneNotification(name, state, codeInt, message);
+        return new Notification(name, state, codeInt, message);
     }
 }
@@ -0,0 +1,374 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace.xen;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.globus.workspace.ReturnException;
+import org.globus.workspace.WorkspaceException;
+import org.globus.workspace.WorkspaceUtil;
+import org.globus.workspace.cmdutils.CommandTransport;
+import org.globus.workspace.cmdutils.ForkTransport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runs commands against VMM nodes (workspace-control invocations and file
+ * pushes) with a cap on how many are in flight per node.  Callers over the
+ * cap wait in arrival order.
+ *
+ * An identical command for the same node that is already queued or running
+ * is not run twice, the second caller gets the first one's outcome.
+ * workspace-control acts on one VM per invocation so different VMs'
+ * operations can not be merged into one command.
+ *
+ * Per node queue length, in flight count and a command latency histogram
+ * are kept.
+ *
+ * Commands for a node go through the configured CommandTransport, by
+ * default a forked process for every command.
+ *
+ * This limit sits below RequestDispatch's per-VMM request limit: a request
+ * runs its commands one at a time, so this one only matters for dispatched
+ * requests when it is the lower of the two, and it always covers commands
+ * run outside of the dispatcher (destroy).  See
+ * WorkspaceHomeInit#initializeVMMCommands.
+ *
+ * Like RequestDispatch this is JVM wide, see WorkspaceHomeInit.
+ */
+public class VMMCommandScheduler {
+
+    // -------------------------------------------------------------------------
+    // STATIC VARIABLES
+    // -------------------------------------------------------------------------
+
+    private static final Log logger =
+            LogFactory.getLog(VMMCommandScheduler.class.getName());
+
+    /** upper bounds (ms) of the latency histogram buckets, the last is open */
+    public static final long[] LATENCY_BUCKETS_MS =
+            {1000L, 5000L, 30000L, 120000L, 600000L};
+
+    private static volatile int maxPerHost;
+
+    private static volatile CommandTransport transport = new ForkTransport();
+
+    private static final ConcurrentMap<String, Host> hosts =
+            new ConcurrentHashMap<String, Host>();
+
+    // node + command -> invocation queued or in flight
+    private static final ConcurrentMap<String, FutureTask<String>> inFlight =
+            new ConcurrentHashMap<String, FutureTask<String>>();
+
+
+    // -------------------------------------------------------------------------
+    // SETUP
+    // -------------------------------------------------------------------------
+
+    /**
+     * Applies to nodes seen after this call.
+     *
+     * @param max most commands in flight per node, zero or less for no limit
+     */
+    public static void setMaxPerHost(int max) {
+        logger.debug("VMMCommandScheduler: maxPerHost = " + max);
+        maxPerHost = max;
+    }
+
+    public static int getMaxPerHost() {
+        return maxPerHost;
+    }
+
+    /**
+     * Shuts the previous transport down.
+     *
+     * @param commandTransport how commands for nodes are run
+     */
+    public static void setTransport(CommandTransport commandTransport) {
+        if (commandTransport == null) {
+            throw new IllegalArgumentException(
+                    "commandTransport may not be null");
+        }
+        logger.debug("VMMCommandScheduler: transport = " +
+                commandTransport.getClass().getName());
+        final CommandTransport old = transport;
+        transport = commandTransport;
+        if (old != commandTransport) {
+            old.shutdown();
+        }
+    }
+
+    public static CommandTransport getTransport() {
+        return transport;
+    }
+
+    public static void shutdownTransport() {
+        transport.shutdown();
+    }
+
+
+    // -------------------------------------------------------------------------
+    // RUN
+    // -------------------------------------------------------------------------
+
+    /**
+     * @see WorkspaceUtil#runCommand(String[], boolean, boolean, int)
+     * @param node VMM the command acts on, if null it just runs
+     * @param cmd command
+     * @param eventLog log events
+     * @param traceLog log traces
+     * @param trackingID workspace ID for logging
+     * @return stdout
+     * @throws WorkspaceException problem running
+     * @throws ReturnException non-zero exit
+     */
+    public static String runCommand(final String node,
+                                    final String[] cmd,
+                                    final boolean eventLog,
+                                    final boolean traceLog,
+                                    final int trackingID)
+            throws WorkspaceException, ReturnException {
+
+        if (cmd == null) {
+            throw new IllegalArgumentException("cmd may not be null");
+        }
+
+        if (node == null) {
+            return WorkspaceUtil.runCommand(cmd, eventLog, traceLog, trackingID);
+        }
+
+        final Host host = getHost(node);
+        final String key = node + '\n' + join(cmd);
+
+        final FutureTask<String> task = new FutureTask<String>(
+                new Callable<String>() {
+                    public String call() throws Exception {
+                        return host.run(node, cmd, eventLog,
+                                        traceLog, trackingID);
+                    }
+                });
+
+        FutureTask<String> existing = inFlight.putIfAbsent(key, task);
+        if (existing == null) {
+            existing = task;
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+        } else {
+            host.coalesced.incrementAndGet();
+            if (traceLog) {
+                logger.trace("#" + trackingID + ": identical command " +
+                        "already in flight for " + node + ", waiting on it");
+            }
+        }
+
+        try {
+            return existing.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new WorkspaceException("interrupted waiting on command " +
+                    "for '" + node + "'", e);
+        } catch (ExecutionException e) {
+            final Throwable t = e.getCause();
+            if (t instanceof ReturnException) {
+                throw (ReturnException) t;
+            } else if (t instanceof WorkspaceException) {
+                throw (WorkspaceException) t;
+            } else if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            } else if (t instanceof Error) {
+                throw (Error) t;
+            }
+            throw new WorkspaceException(t.getMessage(), t);
+        }
+    }
+
+    private static Host getHost(String node) {
+        Host host = hosts.get(node);
+        if (host == null) {
+            final Host newHost = new Host(maxPerHost);
+            host = hosts.putIfAbsent(node, newHost);
+            if (host == null) {
+                host = newHost;
+            }
+        }
+        return host;
+    }
+
+    private static String join(String[] cmd) {
+        final StringBuilder sb = new StringBuilder(256);
+        for (int i = 0; i < cmd.length; i++) {
+            if (i > 0) {
+                sb.append('\0');
+            }
+            sb.append(cmd[i]);
+        }
+        return sb.toString();
+    }
+
+
+    // -------------------------------------------------------------------------
+    // STATISTICS
+    // -------------------------------------------------------------------------
+
+    public static List<String> getHosts() {
+        final List<String> names = new ArrayList<String>(hosts.keySet());
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * @param node VMM
+     * @return commands waiting for a slot on the node
+     */
+    public static int getQueueLength(String node) {
+        final Host host = hosts.get(node);
+        return host == null ? 0 : host.waiting.get();
+    }
+
+    public static int getInFlight(String node) {
+        final Host host = hosts.get(node);
+        return host == null ? 0 : host.running.get();
+    }
+
+    /**
+     * @param node VMM
+     * @return number of commands whose run time fell in each of the
+     *         LATENCY_BUCKETS_MS buckets, plus one more for longer ones
+     */
+    public static long[] getLatencyHistogram(String node) {
+        final long[] ret = new long[LATENCY_BUCKETS_MS.length + 1];
+        final Host host = hosts.get(node);
+        if (host != null) {
+            for (int i = 0; i < ret.length; i++) {
+                ret[i] = host.latencies.get(i);
+            }
+        }
+        return ret;
+    }
+
+    public static long getCoalescedCount(String node) {
+        final Host host = hosts.get(node);
+        return host == null ? 0 : host.coalesced.get();
+    }
+
+    public static String getReport() {
+        final StringBuilder sb = new StringBuilder(512);
+        sb.append("VMM commands (max per host: ").append(maxPerHost)
+          .append(")\n");
+        for (String node : getHosts()) {
+            final Host host = hosts.get(node);
+            sb.append(node)
+              .append(": inFlight=").append(host.running.get())
+              .append(", queued=").append(host.waiting.get())
+              .append(", completed=").append(host.completed.get())
+              .append(", coalesced=").append(host.coalesced.get())
+              .append(", latency");
+            final long[] histogram = getLatencyHistogram(node);
+            for (int i = 0; i < histogram.length; i++) {
+                if (i < LATENCY_BUCKETS_MS.length) {
+                    sb.append(" <").append(LATENCY_BUCKETS_MS[i] / 1000).append("s:");
+                } else {
+                    sb.append(" more:");
+                }
+                sb.append(histogram[i]);
+            }
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
+
+    // -------------------------------------------------------------------------
+    // IMPL
+    // -------------------------------------------------------------------------
+
+    private static class Host {
+
+        // null if there is no limit
+        final Semaphore slots;
+
+        final AtomicInteger waiting = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicLong completed = new AtomicLong();
+        final AtomicLong coalesced = new AtomicLong();
+        final AtomicLongArray latencies =
+                new AtomicLongArray(LATENCY_BUCKETS_MS.length + 1);
+
+        Host(int max) {
+            // fair: waiting commands go in arrival order
+            this.slots = max > 0 ? new Semaphore(max, true) : null;
+        }
+
+        String run(String node,
+                   String[] cmd,
+                   boolean eventLog,
+                   boolean traceLog,
+                   int trackingID)
+                throws WorkspaceException, ReturnException {
+
+            if (this.slots != null) {
+                this.waiting.incrementAndGet();
+                try {
+                    this.slots.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new WorkspaceException(
+                            "interrupted waiting for a command slot", e);
+                } finally {
+                    this.waiting.decrementAndGet();
+                }
+            }
+
+            this.running.incrementAndGet();
+            final long start = System.currentTimeMillis();
+            try {
+                return transport.run(node, cmd, eventLog,
+                                     traceLog, trackingID);
+            } finally {
+                this.record(System.currentTimeMillis() - start);
+                this.running.decrementAndGet();
+                if (this.slots != null) {
+                    this.slots.release();
+                }
+            }
+        }
+
+        void record(long millis) {
+            this.completed.incrementAndGet();
+            int bucket = 0;
+            while (bucket < LATENCY_BUCKETS_MS.length &&
+                    millis >= LATENCY_BUCKETS_MS[bucket]) {
+                bucket++;
+            }
+            this.latencies.incrementAndGet(bucket);
+        }
+    }
+}
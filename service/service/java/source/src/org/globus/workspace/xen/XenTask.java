@@ -239,7 +239,9 @@ public abstract class XenTask implements WorkspaceRequest {
             // for the timebeing without using the fakeness infrastructure
             // for other commands...).
             if (this.cmd != null) {
-                WorkspaceUtil.runCommand(this.cmd, eventLog, traceLog, id);
+                final VirtualMachine vm = this.ctx.getVm();
+                VMMCommandScheduler.runCommand(vm == null ? null : vm.getNode(),
+                                               this.cmd, eventLog, traceLog, id);
             }
 
             return null;
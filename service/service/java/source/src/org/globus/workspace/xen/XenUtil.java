@@ -827,7 +827,10 @@ public class XenUtil implements WorkspaceConstants {
             logger.debug("Would have run this for file push: " +
                     WorkspaceUtil.printCmd(send));
         } else {
-            WorkspaceUtil.runCommand(send, eventLog, traceLog, vm.getID().intValue());
+            // local target has no VMM to throttle for
+            VMMCommandScheduler.runCommand(remoteTarget ? vm.getNode() : null,
+                                           send, eventLog, traceLog,
+                                           vm.getID().intValue());
         }
     }
 }
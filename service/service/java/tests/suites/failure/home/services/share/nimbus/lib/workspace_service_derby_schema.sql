@@ -226,6 +226,22 @@ price DOUBLE NOT NULL,
 PRIMARY KEY(tstamp, price)
 );
 
+-- older spot price changes rolled up into per-minute and per-hour buckets
+-- (resolution is the bucket length in milliseconds, close_time is the time
+-- of the last change in the bucket)
+CREATE TABLE spot_price_rollups
+(
+resolution BIGINT NOT NULL,
+bucket BIGINT NOT NULL,
+open_price DOUBLE NOT NULL,
+high_price DOUBLE NOT NULL,
+low_price DOUBLE NOT NULL,
+close_price DOUBLE NOT NULL,
+close_time BIGINT NOT NULL,
+samples INT NOT NULL,
+PRIMARY KEY(resolution, bucket)
+);
+
 --
 -- Other:
 
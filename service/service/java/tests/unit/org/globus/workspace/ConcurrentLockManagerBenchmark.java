@@ -0,0 +1,97 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.emory.mathcs.backport.java.util.concurrent.locks.Lock;
+
+/**
+ * Lock lookups plus lock/unlock over many keys from many threads, comparing
+ * DefaultLockManager's single monitor against ConcurrentLockManager.
+ *
+ * Not a test, run by hand:
+ *   java org.globus.workspace.ConcurrentLockManagerBenchmark [threads] [keys] [ops per thread]
+ */
+public class ConcurrentLockManagerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+
+        final int threads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        final int keys = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        final int ops = args.length > 2 ? Integer.parseInt(args[2]) : 50000;
+
+        // warm up both
+        run(new DefaultLockManager(), threads, keys, ops);
+        run(new ConcurrentLockManager(), threads, keys, ops);
+
+        System.out.println(threads + " threads, " + keys + " keys, " +
+                           (long) threads * ops + " lookups");
+        report("DefaultLockManager",
+               run(new DefaultLockManager(), threads, keys, ops));
+
+        final ConcurrentLockManager striped = new ConcurrentLockManager();
+        report("ConcurrentLockManager", run(striped, threads, keys, ops));
+        System.out.println(striped.getStatsReport());
+    }
+
+    private static void report(String name, long millis) {
+        System.out.println(String.format("  %-24s %8d ms", name, millis));
+    }
+
+    private static long run(final LockManager manager,
+                            final int threads,
+                            final int numKeys,
+                            final int opsPerThread) throws Exception {
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch go = new CountDownLatch(1);
+        try {
+            final List<Future<Object>> results = new ArrayList<Future<Object>>();
+            for (int t = 0; t < threads; t++) {
+                final int seed = t;
+                results.add(executor.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        go.await();
+                        int key = seed;
+                        for (int i = 0; i < opsPerThread; i++) {
+                            key = (key * 31 + 7) % numKeys;
+                            final Lock lock = manager.getLock(key);
+                            lock.lock();
+                            lock.unlock();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            final long start = System.currentTimeMillis();
+            go.countDown();
+            for (Future<Object> result : results) {
+                result.get();
+            }
+            return System.currentTimeMillis() - start;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
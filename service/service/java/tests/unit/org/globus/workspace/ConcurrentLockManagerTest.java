@@ -0,0 +1,196 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import edu.emory.mathcs.backport.java.util.concurrent.locks.Lock;
+import edu.emory.mathcs.backport.java.util.concurrent.locks.ReentrantLock;
+import org.testng.annotations.Test;
+
+public class ConcurrentLockManagerTest {
+
+    private static final int THREADS = 64;
+    private static final int HOT_OPS_PER_THREAD = 2000;
+
+    @Test
+    public void testSameLockWhileReferenced() throws Exception {
+        final ConcurrentLockManager manager = new ConcurrentLockManager();
+        final Lock lock = manager.getLock(5);
+        assertSame(manager.getLock("5"), lock);
+        assertNotSame(manager.getLock(6), lock);
+
+        // held locks are not removed
+        lock.lock();
+        try {
+            manager.removeLock(5);
+            assertSame(manager.getLock(5), lock);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Test
+    public void testContentionCounted() throws Exception {
+        final ConcurrentLockManager manager = new ConcurrentLockManager(1);
+        final ReentrantLock lock = (ReentrantLock) manager.getLock("vm");
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch acquired = new CountDownLatch(1);
+
+        final long start = System.currentTimeMillis();
+        lock.lock();
+        final Thread waiter = new Thread() {
+            public void run() {
+                final Lock same = manager.getLock("vm");
+                started.countDown();
+                same.lock();
+                same.unlock();
+                acquired.countDown();
+            }
+        };
+        try {
+            waiter.start();
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            awaitTrue("waiter queued", new Check() {
+                public boolean ok() {
+                    return lock.hasQueuedThreads();
+                }
+            });
+        } finally {
+            lock.unlock();
+        }
+        assertTrue(acquired.await(10, TimeUnit.SECONDS));
+        final long elapsed = System.currentTimeMillis() - start;
+
+        final ConcurrentLockManager.StripeStats stats = manager.getStripeStats(0);
+        assertEquals(stats.getAcquisitions(), 2);
+        assertEquals(stats.getContended(), 1);
+        assertTrue(stats.getMaxWaitMillis() <= elapsed, stats.toString());
+    }
+
+    @Test
+    public void testReclaimed() throws Exception {
+        final ConcurrentLockManager manager = new ConcurrentLockManager();
+        for (int i = 0; i < 10000; i++) {
+            final Lock lock = manager.getLock(i);
+            lock.lock();
+            lock.unlock();
+        }
+
+        // nothing references the locks any more, the next collections
+        // clear them; allocating is what brings those collections on
+        awaitTrue("unused locks reclaimed", new Check() {
+            public boolean ok() {
+                garbage = new byte[1024 * 1024];
+                return manager.getLockCount() < 1000;
+            }
+        });
+
+        long acquisitions = 0;
+        for (int i = 0; i < manager.getNumStripes(); i++) {
+            acquisitions += manager.getStripeStats(i).getAcquisitions();
+        }
+        assertEquals(acquisitions, 10000);
+    }
+
+    @Test
+    public void testMutualExclusion() throws Exception {
+        final ConcurrentLockManager manager = new ConcurrentLockManager(4);
+        final int[] counters = new int[8];
+        this.run(manager, counters.length, HOT_OPS_PER_THREAD, new Op() {
+            public void run(Lock lock, int key) {
+                counters[key]++;
+            }
+        });
+        int total = 0;
+        for (int counter : counters) {
+            total += counter;
+        }
+        assertEquals(total, THREADS * HOT_OPS_PER_THREAD);
+    }
+
+    // written so the allocation is not optimized away
+    private static volatile byte[] garbage;
+
+    private interface Check {
+        boolean ok();
+    }
+
+    private static void awaitTrue(String what, Check check) {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (!check.ok()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("timed out waiting for: " + what);
+            }
+            Thread.yield();
+        }
+    }
+
+    private interface Op {
+        void run(Lock lock, int key);
+    }
+
+    private void run(final LockManager manager,
+                     final int numKeys,
+                     final int opsPerThread,
+                     final Op op) throws Exception {
+
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        final CountDownLatch go = new CountDownLatch(1);
+        try {
+            final List<Future<Object>> results = new ArrayList<Future<Object>>();
+            for (int t = 0; t < THREADS; t++) {
+                final int seed = t;
+                results.add(executor.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        go.await();
+                        int key = seed;
+                        for (int i = 0; i < opsPerThread; i++) {
+                            key = (key * 31 + 7) % numKeys;
+                            final Lock lock = manager.getLock(key);
+                            lock.lock();
+                            try {
+                                op.run(lock, key);
+                            } finally {
+                                lock.unlock();
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            go.countDown();
+            for (Future<Object> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace.accounting.impls.dbdefault;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.globus.workspace.Lager;
+import org.globus.workspace.persistence.WorkspaceDatabaseException;
+import org.testng.annotations.Test;
+
+public class AccountingEventWriterTest {
+
+    private static final String OWNER = "/O=test/CN=owner";
+
+    private static AccountingEvent create(String uuid, int id) {
+        return AccountingEvent.create(uuid, id, OWNER, 1000L,
+                                      60, 60, 1.0, 1, 256, null);
+    }
+
+    private static AccountingEvent end(int id) {
+        return AccountingEvent.end(id, OWNER, 2000L, 5, 5, 1.0);
+    }
+
+    private static AccountingEventWriter writer(FakeDB db,
+                                                AccountingJournal journal,
+                                                int flushBatchSize) {
+        // long interval: only a full batch, flush or shutdown writes
+        return new AccountingEventWriter(db, null, journal, new Lager(),
+                                         60000, flushBatchSize, 100);
+    }
+
+    @Test
+    public void testBatchingAndShutdown() throws Exception {
+        final FakeDB db = new FakeDB();
+        final AccountingEventWriter writer = writer(db, null, 3);
+
+        // not started: shutdown writes everything queued
+        for (int i = 1; i <= 7; i++) {
+            writer.submit(Collections.singletonList(create("uuid-" + i, i)));
+        }
+        assertEquals(writer.getQueued(), 7);
+        assertEquals(db.batches.size(), 0);
+
+        writer.shutdown();
+        assertEquals(writer.getQueued(), 0);
+        assertEquals(db.batches, Arrays.asList(3, 3, 1));
+
+        // after shutdown events are written right away
+        writer.submit(Arrays.asList(end(1), end(2)));
+        assertEquals(db.ended, Arrays.asList(1, 2));
+    }
+
+    @Test
+    public void testFlush() throws Exception {
+        final FakeDB db = new FakeDB();
+        final AccountingEventWriter writer = writer(db, null, 100);
+        writer.start();
+        try {
+            writer.submit(Collections.singletonList(create("uuid-1", 1)));
+            writer.submit(Arrays.asList(create("uuid-2", 2), end(1)));
+
+            // well before the interval passes
+            writer.flush();
+            assertEquals(db.rows.size(), 2);
+            assertEquals(db.ended, Arrays.asList(1));
+            assertEquals(writer.getQueued(), 0);
+        } finally {
+            writer.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailedWriteRetried() throws Exception {
+        final FakeDB db = new FakeDB();
+        final AccountingEventWriter writer = writer(db, null, 100);
+        writer.start();
+        try {
+            db.failing = true;
+            writer.submit(Arrays.asList(create("uuid-1", 1), end(1)));
+            writer.flush();
+            assertEquals(db.rows.size(), 0);
+            assertEquals(writer.getFailed(), 2);
+
+            // tried again, in order, before anything newer
+            db.failing = false;
+            writer.submit(Collections.singletonList(create("uuid-2", 2)));
+            writer.flush();
+            assertEquals(writer.getFailed(), 0);
+            assertEquals(db.order, Arrays.asList("uuid-1", "end-1", "uuid-2"));
+            assertEquals(db.reserved, 0);
+        } finally {
+            writer.shutdown();
+        }
+    }
+
+    @Test
+    public void testGiveUp() throws Exception {
+        final FakeDB db = new FakeDB();
+        db.reserved = 60;
+        db.failing = true;
+        final AccountingEventWriter writer = writer(db, null, 100);
+        writer.start();
+        try {
+            writer.submit(Collections.singletonList(create("uuid-1", 1)));
+            for (int i = 0; i < 20 && db.attempts < AccountingEventWriter.MAX_ATTEMPTS; i++) {
+                writer.flush();
+            }
+            assertEquals(db.attempts, AccountingEventWriter.MAX_ATTEMPTS);
+            assertEquals(writer.getFailed(), 0);
+
+            // the owner is not charged for a row that was never written
+            assertEquals(db.reserved, 0);
+        } finally {
+            writer.shutdown();
+        }
+    }
+
+    @Test
+    public void testReplayAfterFailedWrite() throws Exception {
+        final File file = File.createTempFile("accounting-journal", ".dat");
+        file.deleteOnExit();
+
+        AccountingJournal journal = new AccountingJournal(file.getPath(), false);
+        journal.open();
+        final FakeDB down = new FakeDB();
+        down.failing = true;
+        final AccountingEventWriter first = writer(down, journal, 100);
+        first.submit(Arrays.asList(create("uuid-1", 1), create("uuid-2", 2)));
+        first.shutdown();
+        assertEquals(first.getFailed(), 2);
+        journal.close();
+        assertTrue(file.length() > 0);
+
+        // next startup
+        journal = new AccountingJournal(file.getPath(), false);
+        final List<AccountingEvent> unwritten = journal.open();
+        assertEquals(unwritten.size(), 2);
+
+        final FakeDB db = new FakeDB();
+        final AccountingEventWriter second = writer(db, journal, 100);
+        second.replay(unwritten);
+        assertEquals(db.order, Arrays.asList("uuid-1", "uuid-2"));
+        assertEquals(db.reserved, 120);
+        assertEquals(second.getFailed(), 0);
+
+        // everything written, nothing left to replay
+        assertEquals(file.length(), 0);
+        journal.close();
+    }
+
+    @Test
+    public void testPartialFailureCheckpoint() throws Exception {
+        final File file = File.createTempFile("accounting-journal", ".dat");
+        file.deleteOnExit();
+
+        AccountingJournal journal = new AccountingJournal(file.getPath(), false);
+        journal.open();
+        final FakeDB db = new FakeDB();
+        db.failUuid = "uuid-2";
+        final AccountingEventWriter writer = writer(db, journal, 100);
+        writer.submit(Arrays.asList(create("uuid-1", 1),
+                                    create("uuid-2", 2),
+                                    create("uuid-3", 3)));
+        writer.shutdown();
+        journal.close();
+        assertEquals(db.order, Arrays.asList("uuid-1", "uuid-3"));
+
+        // the checkpoint stops short of the failed event
+        journal = new AccountingJournal(file.getPath(), false);
+        final List<AccountingEvent> unwritten = journal.open();
+        journal.close();
+        assertEquals(unwritten.size(), 2);
+        assertEquals(unwritten.get(0).uuid, "uuid-2");
+        assertEquals(unwritten.get(1).uuid, "uuid-3");
+    }
+
+    private static class FakeDB extends DBAccountingPersistence {
+
+        final List<Integer> batches = new ArrayList<Integer>();
+        final List<String> order = new ArrayList<String>();
+        final Set<String> rows = new HashSet<String>();
+        final Set<Integer> active = new HashSet<Integer>();
+        final List<Integer> ended = new ArrayList<Integer>();
+        volatile boolean failing;
+        String failUuid;
+        int attempts;
+        long reserved;
+
+        FakeDB() {
+            // never connected, every method that would is overridden
+            super(new BasicDataSource(), new Lager());
+        }
+
+        synchronized void insertCreated(List<AccountingEvent> creates)
+                throws WorkspaceDatabaseException {
+            this.attempts += 1;
+            if (this.failing) {
+                throw new WorkspaceDatabaseException("database is down");
+            }
+            for (AccountingEvent ev : creates) {
+                if (ev.uuid.equals(this.failUuid)) {
+                    throw new WorkspaceDatabaseException("bad row " + ev.uuid);
+                }
+            }
+            this.batches.add(creates.size());
+            for (AccountingEvent ev : creates) {
+                this.rows.add(ev.uuid);
+                this.active.add(ev.id);
+                this.order.add(ev.uuid);
+            }
+        }
+
+        public synchronized String end(int id, String ownerDN, long minutesElapsed)
+                throws WorkspaceDatabaseException {
+            if (this.failing || !this.active.remove(id)) {
+                throw new WorkspaceDatabaseException(
+                        "active deployment with id " + id + " not found");
+            }
+            this.ended.add(id);
+            this.order.add("end-" + id);
+            return "uuid-" + id;
+        }
+
+        synchronized boolean deploymentExists(String uuid) {
+            return this.rows.contains(uuid);
+        }
+
+        synchronized boolean activeDeploymentExists(int id) {
+            return this.active.contains(id);
+        }
+
+        synchronized void reserve(String ownerDN, long minutes) {
+            this.reserved += minutes;
+        }
+
+        synchronized void unreserve(String ownerDN, long minutes) {
+            this.reserved -= minutes;
+        }
+    }
+}
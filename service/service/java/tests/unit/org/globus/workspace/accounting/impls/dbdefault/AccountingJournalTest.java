@@ -0,0 +1,133 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace.accounting.impls.dbdefault;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+public class AccountingJournalTest {
+
+    private static File tempJournal() throws Exception {
+        final File file = File.createTempFile("accounting-journal", ".dat");
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static AccountingEvent create(String uuid, int id) {
+        return AccountingEvent.create(uuid, id, "/O=test/CN=owner", 1000L,
+                                      60, 60, 1.0, 1, 256, null);
+    }
+
+    @Test
+    public void testUncheckpointedEventsReplayed() throws Exception {
+        final File file = tempJournal();
+
+        AccountingJournal journal = new AccountingJournal(file.getPath(), false);
+        assertEquals(journal.open().size(), 0);
+        journal.append(Arrays.asList(create("a", 1), create("b", 2)));
+        journal.append(Arrays.asList(
+                AccountingEvent.end(1, "/O=test/CN=owner", 2000L, 5, 5, 1.0)));
+        journal.checkpoint(1);
+        journal.close();
+
+        journal = new AccountingJournal(file.getPath(), false);
+        final List<AccountingEvent> unapplied = journal.open();
+        assertEquals(unapplied.size(), 2);
+        assertEquals(unapplied.get(0).uuid, "b");
+        assertEquals(unapplied.get(0).seq, 2);
+        assertNull(unapplied.get(0).moreToLog);
+        assertEquals(unapplied.get(1).type, AccountingEvent.END);
+        assertEquals(unapplied.get(1).minutesElapsed, 5);
+
+        // sequence numbers continue after reopening
+        journal.append(Arrays.asList(create("c", 3)));
+        journal.close();
+        journal = new AccountingJournal(file.getPath(), false);
+        assertEquals(journal.open().get(2).seq, 4);
+        journal.close();
+    }
+
+    @Test
+    public void testFullCheckpointTruncates() throws Exception {
+        final File file = tempJournal();
+
+        final AccountingJournal journal =
+                new AccountingJournal(file.getPath(), true);
+        journal.open();
+        journal.append(Arrays.asList(create("a", 1), create("b", 2)));
+        journal.checkpoint(2);
+        assertEquals(file.length(), 0);
+        journal.close();
+    }
+
+    @Test
+    public void testPartialRecordIgnored() throws Exception {
+        final File file = tempJournal();
+
+        AccountingJournal journal = new AccountingJournal(file.getPath(), false);
+        journal.open();
+        journal.append(Arrays.asList(create("a", 1)));
+        journal.close();
+
+        // crash in the middle of the next record
+        final FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[]{AccountingEvent.CREATE, 0, 0, 0});
+        out.close();
+
+        journal = new AccountingJournal(file.getPath(), false);
+        final List<AccountingEvent> unapplied = journal.open();
+        assertEquals(unapplied.size(), 1);
+        assertEquals(unapplied.get(0).uuid, "a");
+        journal.close();
+    }
+
+    @Test
+    public void testPartialRecordTruncated() throws Exception {
+        final File file = tempJournal();
+
+        AccountingJournal journal = new AccountingJournal(file.getPath(), false);
+        journal.open();
+        journal.append(Arrays.asList(create("a", 1)));
+        journal.close();
+        final long complete = file.length();
+
+        final FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[]{AccountingEvent.CREATE, 0, 0, 0});
+        out.close();
+
+        // the torn bytes are cut off before anything new is appended
+        journal = new AccountingJournal(file.getPath(), false);
+        journal.open();
+        assertEquals(file.length(), complete);
+        journal.append(Arrays.asList(create("b", 2)));
+        journal.close();
+
+        journal = new AccountingJournal(file.getPath(), false);
+        final List<AccountingEvent> unapplied = journal.open();
+        assertEquals(unapplied.size(), 2);
+        assertEquals(unapplied.get(1).uuid, "b");
+        assertEquals(unapplied.get(1).seq, 2);
+        journal.close();
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace.accounting.impls.dbdefault;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Calendar;
+import java.util.Collections;
+
+import org.globus.workspace.Lager;
+import org.globus.workspace.accounting.ElapsedAndReservedMinutes;
+import org.globus.workspace.scheduler.defaults.NimbusDatabaseTestCase;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * The running per-owner totals must always match what the SUM queries they
+ * replaced would return.
+ */
+public class DBAccountingPersistenceTest extends NimbusDatabaseTestCase {
+
+    private static final String ALICE = "/O=test/CN=alice";
+    private static final String BOB = "/O=test/CN=bob";
+
+    private DBAccountingPersistence db;
+
+    @BeforeClass
+    public static void createAccountingTables() throws Exception {
+        executeSqlFile("./service/service/java/source/share/lib/workspace_service_derby_accounting_schema.sql");
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        final Connection c = getDataSource().getConnection();
+        try {
+            final Statement stmt = c.createStatement();
+            stmt.executeUpdate("DELETE FROM deployments");
+            stmt.close();
+        } finally {
+            c.close();
+        }
+        this.db = new DBAccountingPersistence(getDataSource(), new Lager());
+        this.db.initialize();
+    }
+
+    @Test
+    public void testCreateAndEnd() throws Exception {
+        final Calendar now = Calendar.getInstance();
+
+        this.db.add("00000000-0000-0000-0000-000000000001", 1, ALICE, 60, now, 1, 256);
+        this.db.add("00000000-0000-0000-0000-000000000002", 2, BOB, 30, now, 1, 256);
+        this.db.addAll(new String[]{"00000000-0000-0000-0000-000000000003",
+                                    "00000000-0000-0000-0000-000000000004"},
+                       new int[]{3, 4}, ALICE, 120, now, 2, 512);
+        assertMatchesTable(ALICE);
+        assertMatchesTable(BOB);
+        assertEquals(300, this.db.currentReservedMinutes(ALICE));
+
+        this.db.end(1, ALICE, 45);
+        this.db.end(3, ALICE, 10);
+        assertMatchesTable(ALICE);
+        assertMatchesTable(BOB);
+        assertEquals(120, this.db.currentReservedMinutes(ALICE));
+        assertEquals(55, this.db.totalElapsedMinutes(ALICE));
+
+        // a fresh instance builds the same totals from the table
+        final DBAccountingPersistence restarted =
+                new DBAccountingPersistence(getDataSource(), new Lager());
+        restarted.initialize();
+        assertEquals(120, restarted.currentReservedMinutes(ALICE));
+        assertEquals(55, restarted.totalElapsedMinutes(ALICE));
+        assertMatchesTable(restarted, ALICE);
+        assertMatchesTable(restarted, BOB);
+    }
+
+    @Test
+    public void testRebuild() throws Exception {
+        final Calendar now = Calendar.getInstance();
+        this.db.add("00000000-0000-0000-0000-000000000011", 11, ALICE, 60, now, 1, 256);
+        this.db.add("00000000-0000-0000-0000-000000000012", 12, BOB, 30, now, 1, 256);
+        this.db.end(12, BOB, 20);
+
+        // rows this class did not write are picked up by a rebuild
+        final Connection c = getDataSource().getConnection();
+        try {
+            final Statement stmt = c.createStatement();
+            stmt.executeUpdate("INSERT INTO deployments VALUES(" +
+                    "'00000000-0000-0000-0000-000000000013', 13, '" + BOB +
+                    "', 0, 90, 0, 15, 1, 256)");
+            stmt.close();
+        } finally {
+            c.close();
+        }
+        assertEquals(20, this.db.totalElapsedMinutes(BOB));
+
+        assertEquals(2, this.db.rebuildOwnerTotals());
+        assertMatchesTable(ALICE);
+        assertMatchesTable(BOB);
+        assertEquals(35, this.db.totalElapsedMinutes(BOB));
+
+        // reservations dropped without an elapsed time
+        assertEquals(1, this.db.forceAllInactive());
+        assertMatchesTable(ALICE);
+        assertEquals(0, this.db.currentReservedMinutes(ALICE));
+        assertEquals(0, this.db.totalElapsedMinutes(ALICE));
+    }
+
+    @Test
+    public void testPendingReservationsSurviveRebuild() throws Exception {
+        final Calendar now = Calendar.getInstance();
+        this.db.add("00000000-0000-0000-0000-000000000021", 21, ALICE, 60, now, 1, 256);
+
+        // reserved by the adapter, the writer has not inserted them yet
+        this.db.reserve(ALICE, 30);
+        this.db.reserve(BOB, 40);
+
+        // the row from before the reset goes, the pending minutes stay
+        assertEquals(1, this.db.forceAllInactive());
+        assertEquals(30, this.db.currentReservedMinutes(ALICE));
+        assertEquals(40, this.db.currentReservedMinutes(BOB));
+
+        // inserted: counted by the table, not twice after a rebuild
+        this.db.insertCreated(Collections.singletonList(
+                AccountingEvent.create("00000000-0000-0000-0000-000000000022",
+                                       22, BOB, now.getTimeInMillis(),
+                                       40, 40, 1.0, 1, 256, null)));
+        this.db.rebuildOwnerTotals();
+        assertEquals(40, this.db.currentReservedMinutes(BOB));
+        assertMatchesTable(BOB);
+
+        // given up on: back to nothing, not below
+        this.db.unreserve(ALICE, 30);
+        assertEquals(0, this.db.currentReservedMinutes(ALICE));
+        this.db.rebuildOwnerTotals();
+        assertMatchesTable(ALICE);
+    }
+
+    private void assertMatchesTable(String ownerDN) throws Exception {
+        assertMatchesTable(this.db, ownerDN);
+    }
+
+    private static void assertMatchesTable(DBAccountingPersistence db,
+                                           String ownerDN) throws Exception {
+        final ElapsedAndReservedMinutes totals =
+                db.totalElapsedAndReservedMinutesTuple(ownerDN);
+        assertEquals("reserved minutes of " + ownerDN,
+                     sum("requested_duration", ownerDN, 1), totals.getReserved());
+        assertEquals("elapsed minutes of " + ownerDN,
+                     sum("elapsed_minutes", ownerDN, 0), totals.getElapsed());
+    }
+
+    private static long sum(String column, String ownerDN, int active)
+            throws Exception {
+        final Connection c = getDataSource().getConnection();
+        try {
+            final PreparedStatement pstmt = c.prepareStatement(
+                    "SELECT SUM(" + column + ") FROM deployments " +
+                    "WHERE creator_dn=? AND active=?");
+            pstmt.setString(1, ownerDN);
+            pstmt.setInt(2, active);
+            final ResultSet rs = pstmt.executeQuery();
+            rs.next();
+            final long sum = rs.getLong(1);
+            rs.close();
+            pstmt.close();
+            return sum;
+        } finally {
+            c.close();
+        }
+    }
+}
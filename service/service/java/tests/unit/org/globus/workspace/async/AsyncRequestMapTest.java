@@ -0,0 +1,222 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace.async;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.List;
+
+import org.globus.workspace.Lager;
+import org.globus.workspace.persistence.DBLoader;
+import org.globus.workspace.persistence.DataConvert;
+import org.globus.workspace.persistence.PersistenceAdapterImpl;
+import org.globus.workspace.persistence.WorkspaceDatabaseException;
+import org.globus.workspace.scheduler.defaults.NimbusDatabaseTestCase;
+import org.globus.workspace.service.binding.vm.VirtualMachine;
+import org.nimbustools.api._repr._Caller;
+import org.nimbustools.api.repr.vm.NIC;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The in-memory indexes must match what is persisted, also when a write
+ * fails.
+ */
+public class AsyncRequestMapTest extends NimbusDatabaseTestCase {
+
+    private static final String NIC =
+            "FakeName;FakeAssociation;FAKEMAC;NetMode;IPmethod;192.168.1.42;" +
+            "192.168.1.1;192.168.1.2;subnetmask;dns;hostname;null;null;null;null";
+
+    private FailingPersistence persistence;
+
+    @Before
+    public void setUp() throws Exception {
+        final Connection c = getDataSource().getConnection();
+        try {
+            final Statement stmt = c.createStatement();
+            stmt.executeUpdate("DELETE FROM async_requests_allocated_vms");
+            stmt.executeUpdate("DELETE FROM async_requests_finished_vms");
+            stmt.executeUpdate("DELETE FROM async_requests_to_be_preempted");
+            stmt.executeUpdate("DELETE FROM async_requests_vm_file_copy");
+            stmt.executeUpdate("DELETE FROM async_requests_vm_partitions");
+            stmt.executeUpdate("DELETE FROM async_requests_vm_deployment");
+            stmt.executeUpdate("DELETE FROM async_requests_vms");
+            stmt.executeUpdate("DELETE FROM async_requests");
+            stmt.close();
+        } finally {
+            c.close();
+        }
+        this.persistence = new FailingPersistence();
+    }
+
+    @Test
+    public void testIndexes() throws Exception {
+
+        final AsyncRequestMap map = new AsyncRequestMap(this.persistence);
+
+        final AsyncRequest low = newRequest("low", true, 1.0, 10, 11);
+        final AsyncRequest high = newRequest("high", true, 3.0, 20);
+        final AsyncRequest backfill = newRequest("backfill", false, -1.0, 30);
+        map.addOrReplace(low);
+        map.addOrReplace(high);
+        map.addOrReplace(backfill);
+
+        assertEquals("[low, high, backfill]", ids(map.getAll()));
+        assertEquals("[low, high, backfill]",
+                     ids(map.getByStatus(AsyncRequestStatus.OPEN)));
+        assertEquals("[]", ids(map.getByStatus(AsyncRequestStatus.ACTIVE)));
+        assertEquals("[low, high]", ids(map.getByBidRange(0.0, false, null, false)));
+        assertEquals("[low]", ids(map.getByBidRange(0.0, false, 3.0, false)));
+        assertEquals("[high]", ids(map.getByBidRange(1.0, false, 3.0, true)));
+        assertEquals(2, map.getAliveSpotBids().getRequestCount());
+        assertEquals(3, map.getAliveSpotBids().getNeededInstances());
+
+        // mutated and handed back, indexes follow
+        low.addAllocatedVM(10);
+        low.setStatus(AsyncRequestStatus.ACTIVE);
+        map.addOrReplace(low);
+        high.setStatus(AsyncRequestStatus.CLOSED);
+        map.addOrReplace(high);
+
+        assertEquals("[low]", ids(map.getByStatus(AsyncRequestStatus.ACTIVE)));
+        assertEquals("[backfill]", ids(map.getByStatus(AsyncRequestStatus.OPEN)));
+        assertSame(low, map.getByVM(10));
+        assertSame(low, map.getByAllocatedVM(10));
+        assertNull(map.getByAllocatedVM(11));
+        assertNull(map.getByVM(20));
+        assertEquals(1, map.getAliveSpotBids().getRequestCount());
+        assertEquals(0, map.getAliveSpotBids().getNeededInstancesAbove(1.0));
+
+        // everything was written through, a new map sees the same
+        final AsyncRequestMap reloaded = new AsyncRequestMap(this.persistence);
+        assertEquals(3, reloaded.getAll().size());
+        assertEquals("[low]", ids(reloaded.getByStatus(AsyncRequestStatus.ACTIVE)));
+        assertEquals("[high]", ids(reloaded.getByStatus(AsyncRequestStatus.CLOSED)));
+        assertEquals("low", reloaded.getByAllocatedVM(10).getId());
+        assertEquals(1, reloaded.getAliveSpotBids().getRequestCount());
+    }
+
+    @Test
+    public void testFailedWrite() throws Exception {
+
+        final AsyncRequestMap map = new AsyncRequestMap(this.persistence);
+        final AsyncRequest first = newRequest("first", true, 2.0, 10);
+        map.addOrReplace(first);
+
+        this.persistence.failWrites = true;
+
+        // a new request that was not written is not in memory either
+        map.addOrReplace(newRequest("second", true, 5.0, 20));
+        assertEquals("[first]", ids(map.getAll()));
+        assertNull(map.getByID("second"));
+        assertEquals("[first]", ids(map.getByBidRange(0.0, false, null, false)));
+        assertEquals(1, map.getAliveSpotBids().getRequestCount());
+
+        // a change that was not written is reverted to what was persisted
+        first.addAllocatedVM(10);
+        first.setStatus(AsyncRequestStatus.ACTIVE);
+        map.addOrReplace(first);
+
+        final AsyncRequest current = map.getByID("first");
+        assertEquals(AsyncRequestStatus.OPEN, current.getStatus());
+        assertEquals(0, current.getAllocatedVMs().length);
+        assertEquals("[first]", ids(map.getByStatus(AsyncRequestStatus.OPEN)));
+        assertEquals("[]", ids(map.getByStatus(AsyncRequestStatus.ACTIVE)));
+        assertNull(map.getByVM(10));
+
+        // memory and a restart agree
+        this.persistence.failWrites = false;
+        final AsyncRequestMap reloaded = new AsyncRequestMap(this.persistence);
+        assertEquals(ids(map.getAll()), ids(reloaded.getAll()));
+        assertEquals(AsyncRequestStatus.OPEN,
+                     reloaded.getByID("first").getStatus());
+
+        // and the next write goes through again
+        current.addAllocatedVM(10);
+        current.setStatus(AsyncRequestStatus.ACTIVE);
+        map.addOrReplace(current);
+        assertSame(current, map.getByAllocatedVM(10));
+        assertEquals("[first]", ids(map.getByStatus(AsyncRequestStatus.ACTIVE)));
+    }
+
+
+    // -------------------------------------------------------------------------
+    // HELPERS
+    // -------------------------------------------------------------------------
+
+    private static AsyncRequest newRequest(String id, boolean spot,
+                                           double maxBid, int... vmids)
+            throws Exception {
+
+        final VirtualMachine[] bindings = new VirtualMachine[vmids.length];
+        for (int i = 0; i < vmids.length; i++) {
+            bindings[i] = new VirtualMachine();
+            bindings[i].setID(vmids[i]);
+            bindings[i].setName("vm-" + vmids[i]);
+            bindings[i].setNetwork(NIC);
+        }
+
+        final _Caller caller = getReprFactory()._newCaller();
+        caller.setIdentity("/CN=test");
+
+        final NIC[] nics =
+                new DataConvert(getReprFactory()).getNICs(bindings[0]);
+        final Calendar creationTime = Calendar.getInstance();
+
+        return new AsyncRequest(id, spot, maxBid, false, caller, "group",
+                                bindings, null, nics, null, creationTime);
+    }
+
+    private static String ids(Collection<AsyncRequest> requests) {
+        final List<String> ids = new ArrayList<String>(requests.size());
+        for (AsyncRequest request : requests) {
+            ids.add(request.getId());
+        }
+        return ids.toString();
+    }
+
+    private static class FailingPersistence extends PersistenceAdapterImpl {
+
+        boolean failWrites;
+
+        FailingPersistence() throws Exception {
+            super(getDataSource(), new Lager(), new Loaded(), getReprFactory());
+        }
+
+        public void addAsyncRequest(AsyncRequest asyncRequest)
+                throws WorkspaceDatabaseException {
+            if (this.failWrites) {
+                throw new WorkspaceDatabaseException("write failed");
+            }
+            super.addAsyncRequest(asyncRequest);
+        }
+    }
+
+    private static class Loaded implements DBLoader {
+        public boolean isLoaded() {
+            return true;
+        }
+    }
+}
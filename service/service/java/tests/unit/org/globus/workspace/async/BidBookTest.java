@@ -0,0 +1,155 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace.async;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.globus.workspace.service.binding.vm.VirtualMachine;
+import org.junit.Test;
+
+public class BidBookTest {
+
+    @Test
+    public void testOrdering() {
+
+        final BidBook book = new BidBook();
+        book.add(3.0, 1);
+        book.add(1.5, 2);
+        book.add(4.25, 5);
+        book.add(0.5, 1);
+
+        assertEquals("[0.5, 1.5, 3.0, 4.25]", book.getBids(null).toString());
+        assertEquals("[1.5, 3.0, 4.25]", book.getBids(1.5).toString());
+        assertEquals("[3.0, 4.25]", book.getBids(2.0).toString());
+        assertEquals("[]", book.getBids(5.0).toString());
+        assertEquals(Double.valueOf(4.25), book.getBids(null).last());
+
+        assertEquals(4, book.getRequestCount());
+        assertEquals(9, book.getNeededInstances());
+        assertEquals(2, book.getRequestCountAbove(1.5));
+        assertEquals(6, book.getNeededInstancesAbove(1.5));
+        assertEquals(4, book.getRequestCountAbove(0.0));
+        assertEquals(0, book.getNeededInstancesAbove(4.25));
+    }
+
+    @Test
+    public void testTies() {
+
+        final BidBook book = new BidBook();
+        book.add(2.0, 3);
+        book.add(1.0, 1);
+        // a different Double instance with the same value is the same level
+        book.add(new Double(2.0), 4);
+
+        assertEquals("[1.0, 2.0]", book.getBids(null).toString());
+        assertEquals(2, book.getRequestCountAt(2.0));
+        assertEquals(7, book.getNeededInstancesAt(new Double(2.0)));
+        assertEquals(1, book.getRequestCountAt(1.0));
+        assertEquals(0, book.getRequestCountAt(1.5));
+        assertEquals(0, book.getNeededInstancesAt(1.5));
+
+        // above is strictly above, ties at the bid are not counted
+        assertEquals(0, book.getRequestCountAbove(2.0));
+        assertEquals(2, book.getRequestCountAbove(1.0));
+        assertEquals(7, book.getNeededInstancesAbove(1.0));
+    }
+
+    @Test
+    public void testRemoval() {
+
+        final BidBook book = new BidBook();
+        book.add(2.0, 3);
+        book.add(2.0, 4);
+        book.add(1.0, 1);
+
+        // one of two requests at a level leaves the level in place
+        book.remove(2.0, 3);
+        assertEquals("[1.0, 2.0]", book.getBids(null).toString());
+        assertEquals(1, book.getRequestCountAt(2.0));
+        assertEquals(4, book.getNeededInstancesAt(2.0));
+        assertEquals(2, book.getRequestCount());
+        assertEquals(5, book.getNeededInstances());
+
+        // the last one removes it
+        book.remove(2.0, 4);
+        assertEquals("[1.0]", book.getBids(null).toString());
+        assertEquals(0, book.getRequestCountAbove(1.0));
+
+        book.remove(1.0, 1);
+        assertTrue(book.isEmpty());
+        assertEquals(0, book.getRequestCount());
+        assertEquals(0, book.getNeededInstances());
+
+        try {
+            book.remove(1.0, 1);
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCopyIsIndependent() {
+
+        final BidBook book = new BidBook();
+        book.add(2.0, 3);
+        final BidBook copy = new BidBook(book);
+        copy.add(2.0, 1);
+        copy.add(5.0, 1);
+        book.remove(2.0, 3);
+
+        assertTrue(book.isEmpty());
+        assertEquals("[2.0, 5.0]", copy.getBids(null).toString());
+        assertEquals(2, copy.getRequestCountAt(2.0));
+        assertEquals(4, copy.getNeededInstancesAt(2.0));
+    }
+
+    @Test
+    public void testFromRequests() {
+
+        final List<AsyncRequest> requests = new LinkedList<AsyncRequest>();
+        requests.add(new AsyncRequest("a", 2.0, getBindings(3)));
+        requests.add(new AsyncRequest("b", 1.0, getBindings(1)));
+        requests.add(new AsyncRequest("c", 2.0, getBindings(2)));
+
+        final BidBook book = BidBook.fromRequests(requests);
+        assertEquals(3, book.getRequestCount());
+        assertEquals(6, book.getNeededInstances());
+        assertEquals(5, book.getNeededInstancesAt(2.0));
+
+        // same as booking them one at a time, in any order
+        final BidBook byHand = new BidBook();
+        final List<AsyncRequest> reversed = new ArrayList<AsyncRequest>(requests);
+        Collections.reverse(reversed);
+        for (AsyncRequest request : reversed) {
+            byHand.add(request.getMaxBid(), request.getNeededInstances());
+        }
+        assertEquals(book.toString(), byHand.toString());
+        assertEquals(book.getBids(null), byHand.getBids(null));
+    }
+
+    private static VirtualMachine[] getBindings(int number) {
+        return new VirtualMachine[number];
+    }
+}
@@ -0,0 +1,565 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace.creation.defaults;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Calendar;
+
+import javax.security.auth.Subject;
+
+import net.sf.ehcache.CacheManager;
+import org.globus.workspace.DefaultLockManager;
+import org.globus.workspace.Lager;
+import org.globus.workspace.WorkspaceConstants;
+import org.globus.workspace.WorkspaceException;
+import org.globus.workspace.network.AssociationAdapter;
+import org.globus.workspace.persistence.DBLoader;
+import org.globus.workspace.persistence.DataConvert;
+import org.globus.workspace.persistence.PersistenceAdapter;
+import org.globus.workspace.persistence.PersistenceAdapterImpl;
+import org.globus.workspace.persistence.WorkspaceDatabaseException;
+import org.globus.workspace.persistence.impls.VMPersistence;
+import org.globus.workspace.scheduler.Reservation;
+import org.globus.workspace.scheduler.Scheduler;
+import org.globus.workspace.scheduler.TimerManagerImpl;
+import org.globus.workspace.scheduler.defaults.NimbusDatabaseTestCase;
+import org.globus.workspace.service.CoschedResource;
+import org.globus.workspace.service.GroupResource;
+import org.globus.workspace.service.InstanceResource;
+import org.globus.workspace.service.binding.Authorize;
+import org.globus.workspace.service.binding.BindNetwork;
+import org.globus.workspace.service.binding.BindingAdapter;
+import org.globus.workspace.service.binding.GlobalPolicies;
+import org.globus.workspace.service.binding.defaults.DefaultGlobalPolicies;
+import org.globus.workspace.service.binding.vm.FileCopyNeed;
+import org.globus.workspace.service.binding.vm.VirtualMachine;
+import org.globus.workspace.service.binding.vm.VirtualMachineDeployment;
+import org.globus.workspace.service.impls.CoschedHomeImpl;
+import org.globus.workspace.service.impls.GroupHomeImpl;
+import org.globus.workspace.service.impls.InstanceResourceImpl;
+import org.globus.workspace.service.impls.WorkspaceHomeImpl;
+import org.nimbustools.api._repr.ctx._Context;
+import org.nimbustools.api.repr.CreateRequest;
+import org.nimbustools.api.repr.ctx.Context;
+import org.nimbustools.api.repr.vm.NIC;
+import org.nimbustools.api.services.rm.BasicLegality;
+import org.nimbustools.api.services.rm.CreationException;
+import org.nimbustools.api.services.rm.ManageException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A batch of new instances that fails part way is backed out: nothing is
+ * left in the instance cache or in the database.
+ */
+public class CreationBackoutTest extends NimbusDatabaseTestCase {
+
+    private static final int[] IDS = {11, 12, 13};
+
+    private CacheManager cacheManager;
+    private FailingPersistence persistence;
+    private TestHome home;
+    private TestCreationManager creation;
+
+    @Before
+    public void setUp() throws Exception {
+        final Connection c = getDataSource().getConnection();
+        try {
+            final Statement stmt = c.createStatement();
+            stmt.executeUpdate("DELETE FROM file_copy");
+            stmt.executeUpdate("DELETE FROM vm_partitions");
+            stmt.executeUpdate("DELETE FROM vm_deployment");
+            stmt.executeUpdate("DELETE FROM vms");
+            stmt.executeUpdate("DELETE FROM resources");
+            stmt.close();
+        } finally {
+            c.close();
+        }
+
+        this.cacheManager = new CacheManager();
+        this.cacheManager.addCache("instanceCache");
+        this.cacheManager.addCache("groupCache");
+        this.cacheManager.addCache("coschedCache");
+
+        final DataConvert dataConvert = new DataConvert(getReprFactory());
+        final DefaultLockManager lockManager = new DefaultLockManager();
+        final GlobalPolicies globals = new DefaultGlobalPolicies();
+        final Lager lager = new Lager();
+
+        this.persistence = new FailingPersistence();
+        this.home = new TestHome(this.persistence, lockManager,
+                                 this.cacheManager, dataConvert, lager,
+                                 globals);
+        this.creation = new TestCreationManager(
+                lockManager,
+                new Legal(),
+                new Binding(),
+                new Networks(),
+                new Authorized(),
+                new IdleScheduler(),
+                globals,
+                this.home,
+                new TestGroupHome(this.persistence, lockManager,
+                                  this.cacheManager, this.home, lager),
+                new TestCoschedHome(this.persistence, lockManager,
+                                    this.cacheManager, this.home, lager),
+                this.persistence,
+                dataConvert,
+                lager);
+    }
+
+    @After
+    public void tearDown() {
+        this.cacheManager.shutdown();
+    }
+
+    @Test
+    public void testCreated() throws Exception {
+
+        final InstanceResource[] created = this.create(null);
+
+        assertEquals(IDS.length, created.length);
+        assertEquals(IDS.length, this.home.cachedCount());
+        assertEquals(IDS.length, countRows("resources"));
+        assertEquals(IDS.length, countRows("vms"));
+        for (int id : IDS) {
+            assertTrue(this.persistence.isActiveWorkspaceID(id));
+        }
+    }
+
+    @Test
+    public void testContextFailureLeavesNothing() throws Exception {
+
+        // fails after the batch was stored
+        this.creation.failContextAt = 1;
+        try {
+            this.create(this.newContext());
+            fail("expected CreationException");
+        } catch (CreationException e) {
+            // expected
+        }
+
+        this.assertNothingLeft();
+    }
+
+    @Test
+    public void testFailedWriteLeavesNothing() throws Exception {
+
+        this.persistence.failWrites = true;
+        try {
+            this.create(this.newContext());
+            fail("expected CreationException");
+        } catch (CreationException e) {
+            // expected
+        }
+
+        this.assertNothingLeft();
+
+        // the same ids are free to be used again
+        this.persistence.failWrites = false;
+        this.create(null);
+        assertEquals(IDS.length, this.home.cachedCount());
+        assertEquals(IDS.length, countRows("resources"));
+    }
+
+    @Test
+    public void testPopulateFailureLeavesNothing() throws Exception {
+
+        final VirtualMachine[] bindings = newBindings();
+        bindings[2].setDeployment(null);
+        try {
+            this.creation.create2(new Reservation(IDS.clone()), bindings,
+                                  "/CN=test", null, null, null, null,
+                                  true, 1.0);
+            fail("expected CreationException");
+        } catch (CreationException e) {
+            // expected
+        }
+
+        this.assertNothingLeft();
+    }
+
+
+    // -------------------------------------------------------------------------
+    // HELPERS
+    // -------------------------------------------------------------------------
+
+    private InstanceResource[] create(Context context) throws Exception {
+        // spot instances, the async manager is not involved
+        return this.creation.create2(new Reservation(IDS.clone()),
+                                     newBindings(), "/CN=test", context,
+                                     null, null, null, true, 1.0);
+    }
+
+    private void assertNothingLeft() throws Exception {
+        assertEquals(0, this.home.cachedCount());
+        assertEquals(0, countRows("resources"));
+        assertEquals(0, countRows("vms"));
+        assertEquals(0, countRows("vm_deployment"));
+        for (int id : IDS) {
+            assertFalse(this.persistence.isActiveWorkspaceID(id));
+        }
+    }
+
+    private Context newContext() {
+        final _Context context = getReprFactory()._newContext();
+        context.setBootstrapPath("/var/nimbus-metadata-server-url");
+        context.setBootstrapText("bootstrap");
+        return context;
+    }
+
+    private static VirtualMachine[] newBindings() {
+        final VirtualMachine[] bindings = new VirtualMachine[IDS.length];
+        for (int i = 0; i < IDS.length; i++) {
+            final VirtualMachine vm = new VirtualMachine();
+            vm.setID(IDS[i]);
+            vm.setName("vm-" + IDS[i]);
+            vm.setNetwork("public;eth0;" + IDS[i]);
+            vm.setVmm("Xen");
+            vm.setVmmVersion("3");
+
+            final VirtualMachineDeployment dep = new VirtualMachineDeployment();
+            dep.setMinDuration(60);
+            dep.setRequestedState(WorkspaceConstants.STATE_STARTED);
+            dep.setRequestedShutdown(
+                    WorkspaceConstants.DEFAULT_SHUTDOWN_NORMAL);
+            dep.setIndividualPhysicalMemory(256);
+            dep.setIndividualCPUCount(1);
+            vm.setDeployment(dep);
+
+            bindings[i] = vm;
+        }
+        return bindings;
+    }
+
+    private static int countRows(String table) throws Exception {
+        final Connection c = getDataSource().getConnection();
+        try {
+            final Statement stmt = c.createStatement();
+            final ResultSet rs = stmt.executeQuery(
+                    "SELECT COUNT(*) FROM " + table);
+            rs.next();
+            final int count = rs.getInt(1);
+            rs.close();
+            stmt.close();
+            return count;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static class TestCreationManager extends CreationManagerImpl {
+
+        int failContextAt = -1;
+        private int contexts;
+
+        TestCreationManager(DefaultLockManager lockManager,
+                            BasicLegality legals,
+                            BindingAdapter binding,
+                            AssociationAdapter networks,
+                            Authorize authorize,
+                            Scheduler scheduler,
+                            GlobalPolicies globals,
+                            TestHome home,
+                            GroupHomeImpl groupHome,
+                            CoschedHomeImpl coschedHome,
+                            PersistenceAdapter persistence,
+                            DataConvert dataConvert,
+                            Lager lager) {
+            super(lockManager, legals, binding, networks, authorize,
+                  scheduler, getReprFactory(), globals, home, groupHome,
+                  coschedHome, persistence, dataConvert,
+                  new TimerManagerImpl(), lager, new Networking(),
+                  new IdempotentCreationManagerImpl(persistence));
+        }
+
+        protected void addContext(InstanceResource resource,
+                                  VirtualMachine vm,
+                                  Context context) {
+            if (this.contexts++ == this.failContextAt) {
+                throw new IllegalStateException("context failed");
+            }
+            super.addContext(resource, vm, context);
+        }
+    }
+
+    private static class FailingPersistence extends PersistenceAdapterImpl {
+
+        boolean failWrites;
+
+        FailingPersistence() throws Exception {
+            super(getDataSource(), new Lager(), new Loaded(), getReprFactory());
+        }
+
+        public void addAll(InstanceResource[] resources)
+                throws WorkspaceDatabaseException {
+            if (this.failWrites) {
+                throw new WorkspaceDatabaseException("write failed");
+            }
+            super.addAll(resources);
+        }
+    }
+
+    private static class TestHome extends WorkspaceHomeImpl {
+
+        private final GlobalPolicies globals;
+
+        TestHome(PersistenceAdapter persistence,
+                 DefaultLockManager lockManager,
+                 CacheManager cacheManager,
+                 DataConvert dataConvert,
+                 Lager lager,
+                 GlobalPolicies globals) {
+            super(persistence, lockManager, cacheManager, dataConvert, lager);
+            this.globals = globals;
+        }
+
+        protected InstanceResource newEmptyResource() {
+            return new TestResource(this.persistence, this.globals,
+                                    this.dataConvert, this.lager);
+        }
+
+        int cachedCount() {
+            return this.cache.getSize();
+        }
+    }
+
+    private static class TestResource extends InstanceResourceImpl
+                                      implements VMPersistence {
+
+        TestResource(PersistenceAdapter persistence,
+                     GlobalPolicies globals,
+                     DataConvert dataConvert,
+                     Lager lager) {
+            super(persistence, new Binding(), globals, dataConvert, lager,
+                  new Networking());
+        }
+
+        public void setWorkspace(VirtualMachine vm) {
+            this.vm = vm;
+        }
+
+        public int getState() {
+            return this.state;
+        }
+
+        public Throwable getStateThrowable() {
+            return this.throwableForState;
+        }
+
+        public int getTargetState() {
+            return this.targetState;
+        }
+
+        public void setInitialState(int state, Throwable throwable) {
+            this.state = state;
+            this.throwableForState = throwable;
+        }
+
+        public void setInitialTargetState(int state) {
+            this.targetState = state;
+        }
+
+        public void setState(int state, Throwable throwable) {
+            this.state = state;
+            this.throwableForState = throwable;
+        }
+
+        public void setTargetState(int state) {
+            this.targetState = state;
+        }
+
+        // nothing was started yet, destroying is immediate
+        public void setTargetStateUnderLockEvaluate(int state) {
+            this.targetState = state;
+            if (state == WorkspaceConstants.STATE_DESTROYING) {
+                this.state = WorkspaceConstants.STATE_DESTROY_SUCCEEDED;
+                this.do_remove();
+            }
+        }
+
+        public void activate() {
+        }
+
+        public void activateOverride(int state) {
+        }
+
+        public boolean isZombie() {
+            return false;
+        }
+    }
+
+    private static class TestGroupHome extends GroupHomeImpl {
+
+        TestGroupHome(PersistenceAdapter persistence,
+                      DefaultLockManager lockManager,
+                      CacheManager cacheManager,
+                      TestHome home,
+                      Lager lager) {
+            super(persistence, lockManager, cacheManager, home, lager);
+        }
+
+        protected GroupResource newEmptyResource() {
+            return null;
+        }
+    }
+
+    private static class TestCoschedHome extends CoschedHomeImpl {
+
+        TestCoschedHome(PersistenceAdapter persistence,
+                        DefaultLockManager lockManager,
+                        CacheManager cacheManager,
+                        TestHome home,
+                        Lager lager) {
+            super(persistence, lockManager, cacheManager, home, lager);
+        }
+
+        protected CoschedResource newEmptyResource() {
+            return null;
+        }
+    }
+
+    private static class Legal implements BasicLegality {
+        public void checkCreateRequest(CreateRequest req) {
+        }
+    }
+
+    private static class Authorized implements Authorize {
+        public void authz(VirtualMachine[] bindings,
+                          String callerID,
+                          Subject peerSubject,
+                          double chargeRatio) {
+        }
+    }
+
+    private static class Binding implements BindingAdapter {
+
+        public VirtualMachine[] processRequest(CreateRequest req) {
+            return null;
+        }
+
+        public void backOutAllocations(VirtualMachine vm) {
+        }
+
+        public void backOutAllocations(VirtualMachine[] vms) {
+        }
+
+        public FileCopyNeed newFileCopyNeed(String srcContent,
+                                            String dstPath)
+                throws WorkspaceException {
+            try {
+                return new FileCopyNeed(srcContent, dstPath);
+            } catch (Exception e) {
+                throw new WorkspaceException(e.getMessage(), e);
+            }
+        }
+    }
+
+    private static class Networking implements BindNetwork {
+
+        public void consume(VirtualMachine[] vm, NIC[] nics) {
+        }
+
+        public void neededAllocations(VirtualMachine vm, NIC[] nics) {
+        }
+
+        public void indexAddresses(VirtualMachine[] vms) {
+        }
+
+        public void backOutIPAllocations(VirtualMachine vm) {
+        }
+
+        public void backOutIPAllocations(VirtualMachine[] vms) {
+        }
+    }
+
+    private static class Networks implements AssociationAdapter {
+
+        public String[] getAssociationNames() {
+            return new String[0];
+        }
+
+        public Object[] getNextEntry(String name, int vmid) {
+            return null;
+        }
+
+        public void retireEntry(String name, String ipAddress,
+                                int trackingID) {
+        }
+
+        public String newMAC() {
+            return null;
+        }
+    }
+
+    private static class IdleScheduler implements Scheduler {
+
+        public Reservation schedule(int memory, int cores, int duration,
+                                    String[] neededAssociations,
+                                    String resourcePool, int numNodes,
+                                    String groupid, String coschedid,
+                                    boolean preemptable, String creatorDN) {
+            return null;
+        }
+
+        public void proceedCoschedule(String coschedid) {
+        }
+
+        public void recover(int recovered) {
+        }
+
+        public void slotReserved(int vmid, Calendar start, Calendar stop,
+                                 String hostname) {
+        }
+
+        public void cleanup(int vmid) {
+        }
+
+        public void removeScheduling(int vmid) {
+        }
+
+        public void removeScheduling(Reservation reservation, int memory,
+                                     int cores, int duration,
+                                     boolean preemptible) {
+        }
+
+        public String getVMMReport() {
+            return null;
+        }
+
+        public void stateNotification(int vmid, int state)
+                throws ManageException {
+        }
+
+        public void stateNotification(int[] vmids, int state) {
+        }
+    }
+
+    private static class Loaded implements DBLoader {
+        public boolean isLoaded() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace.network;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.nimbustools.api.defaults.repr.vm.DefaultNIC;
+import org.nimbustools.api.repr.vm.NIC;
+import org.testng.annotations.Test;
+
+public class InstanceIPIndexTest {
+
+    private static NIC[] nics(String... ips) {
+        final NIC[] nics = new NIC[ips.length];
+        for (int i = 0; i < ips.length; i++) {
+            final DefaultNIC nic = new DefaultNIC();
+            nic.setIpAddress(ips[i]);
+            nics[i] = nic;
+        }
+        return nics;
+    }
+
+    @Test
+    public void testAddFind() {
+        final InstanceIPIndex index = new InstanceIPIndex();
+        index.add(1, nics("10.0.0.1", "192.168.0.1"));
+        index.add(2, nics("10.0.0.2"));
+        // static addresses may be shared
+        index.add(3, nics("10.0.0.2", null));
+
+        assertEquals(Arrays.toString(index.find("10.0.0.1")), "[1]");
+        assertEquals(Arrays.toString(index.find("192.168.0.1")), "[1]");
+        assertEquals(Arrays.toString(index.find("10.0.0.2")), "[2, 3]");
+        assertEquals(index.find("10.0.0.3").length, 0);
+        assertEquals(index.find(null).length, 0);
+        assertEquals(index.size(), 3);
+    }
+
+    @Test
+    public void testRemoveAndReplace() {
+        final InstanceIPIndex index = new InstanceIPIndex();
+        index.add(1, nics("10.0.0.1"));
+        index.add(2, nics("10.0.0.1"));
+
+        assertTrue(index.remove(1));
+        assertFalse(index.remove(1));
+        assertEquals(Arrays.toString(index.find("10.0.0.1")), "[2]");
+
+        index.add(2, nics("10.0.0.5"));
+        assertEquals(index.find("10.0.0.1").length, 0);
+        assertEquals(Arrays.toString(index.find("10.0.0.5")), "[2]");
+
+        index.add(2, null);
+        assertEquals(index.find("10.0.0.5").length, 0);
+        assertEquals(index.size(), 0);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace.network.defaults;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.globus.workspace.network.Association;
+import org.globus.workspace.network.AssociationEntry;
+import org.testng.annotations.Test;
+
+public class AssociationPoolTest {
+
+    private static AssociationPool pool(int size, int... inUse) {
+        final List<AssociationEntry> entries = new ArrayList<AssociationEntry>();
+        for (int i = 0; i < size; i++) {
+            entries.add(new AssociationEntry("10.0.0." + (i + 1), null,
+                    "host" + (i + 1), null, null, null));
+        }
+        for (int i : inUse) {
+            entries.get(i).setInUse(true);
+        }
+        final Association assoc = new Association("none");
+        assoc.setEntries(entries);
+        return new AssociationPool("public", assoc);
+    }
+
+    @Test
+    public void testLeaseInOrder() {
+        final AssociationPool pool = pool(4, 1);
+        assertEquals(pool.getDns(), "null");
+        assertEquals(pool.size(), 4);
+        assertEquals(pool.getNumFree(), 3);
+
+        assertEquals(pool.lease().getIpAddress(), "10.0.0.1");
+        assertEquals(pool.lease().getIpAddress(), "10.0.0.3");
+        final AssociationEntry last = pool.lease();
+        assertEquals(last.getIpAddress(), "10.0.0.4");
+        assertTrue(last.isInUse());
+        assertEquals(pool.getNumFree(), 0);
+        assertNull(pool.lease());
+    }
+
+    @Test
+    public void testRelease() {
+        final AssociationPool pool = pool(3);
+        pool.lease();
+        pool.lease();
+        pool.lease();
+
+        final AssociationEntry entry = pool.release(" 10.0.0.2 ");
+        assertEquals(entry.getHostname(), "host2");
+        assertFalse(entry.isInUse());
+        assertEquals(pool.getNumFree(), 1);
+
+        // releasing twice does not count the slot twice
+        pool.release("10.0.0.2");
+        assertEquals(pool.getNumFree(), 1);
+
+        assertNull(pool.release("10.0.0.9"));
+        assertEquals(pool.lease().getIpAddress(), "10.0.0.2");
+        assertNull(pool.lease());
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace.network.defaults;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Allocates MACs with many already leased, comparing the previous
+ * List-based uniqueness test (kept here as "legacy") against MacSet.
+ *
+ * Not a test, run by hand:
+ *   java org.globus.workspace.network.defaults.MacAllocationBenchmark [leased] [picks]
+ */
+public class MacAllocationBenchmark {
+
+    private static final Random random = new Random(42);
+
+    public static void main(String[] args) throws Exception {
+
+        final int leased = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        final int picks = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        final String[] prefixes = {"A2:AA:BB:", "A2:AA:BB:CC:"};
+        for (String prefix : prefixes) {
+
+            final List<String> legacy = new ArrayList<String>(leased + picks);
+            final MacSet set = new MacSet();
+            for (int i = 0; i < leased; i++) {
+                final String mac = MacUtil.pickNew(set, prefix);
+                legacy.add(mac);
+            }
+
+            System.out.println("Prefix \"" + prefix + "\", " + leased +
+                               " MACs leased, " + picks + " new picks");
+
+            long start = System.nanoTime();
+            for (int i = 0; i < picks; i++) {
+                legacyPick(legacy, prefix);
+            }
+            report("legacy list", start, picks);
+
+            start = System.nanoTime();
+            for (int i = 0; i < picks; i++) {
+                MacUtil.pickNew(set, prefix);
+            }
+            report("hashed set", start, picks);
+        }
+    }
+
+    private static void report(String name, long start, int picks) {
+        final double us = (System.nanoTime() - start) / 1000.0 / picks;
+        System.out.println(String.format("  %-16s %12.3f us/pick", name, us));
+    }
+
+    // -------------------------------------------------------------------------
+    // LEGACY (random component, linear uniqueness test)
+    // -------------------------------------------------------------------------
+
+    private static String legacyPick(List<String> macs, String prefix) {
+        while (true) {
+            String attempt = prefix;
+            while (attempt.length() < 17) {
+                final int L = attempt.length();
+                if (L == 2 || L == 5 || L == 8 || L == 11 || L == 14) {
+                    attempt += ":";
+                }
+                attempt += MacUtil.MAC_ARRAY[random.nextInt(16)];
+            }
+            boolean unique = true;
+            for (String mac : macs) {
+                if (attempt.equals(mac)) {
+                    unique = false;
+                    break;
+                }
+            }
+            if (unique) {
+                macs.add(attempt);
+                return attempt;
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace.network.defaults;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.nimbustools.api.services.rm.ResourceRequestDeniedException;
+import org.testng.annotations.Test;
+
+public class MacSetTest {
+
+    @Test
+    public void testParse() {
+        assertEquals(MacSet.parse("00:00:00:00:00:0A"), 10L);
+        assertEquals(MacSet.parse("ab:cd:ef:01:23:45"), 0xABCDEF012345L);
+        assertEquals(MacSet.parse("AB:CD"), -1L);
+        assertEquals(MacSet.parse("AB:CD:EF:01:23:4G"), -1L);
+        assertEquals(MacSet.parse(null), -1L);
+    }
+
+    @Test
+    public void testSerialSkipsTaken() throws Exception {
+        final MacSet macs = new MacSet(Arrays.asList(
+                "A2:AA:BB:CC:DD:00", "A2:AA:BB:CC:DD:02", "bogus"));
+        assertEquals(macs.size(), 2);
+
+        assertEquals(MacUtil.pickNew(macs, "A2:AA:BB:CC:DD:"), "A2:AA:BB:CC:DD:01");
+        assertEquals(MacUtil.pickNew(macs, "A2:AA:BB:CC:DD:"), "A2:AA:BB:CC:DD:03");
+        assertTrue(macs.contains("A2:AA:BB:CC:DD:03"));
+        assertFalse(macs.add("A2:AA:BB:CC:DD:03"));
+
+        // a partial octet prefix
+        assertEquals(MacUtil.pickNew(macs, "A2:AA:BB:CC:E"), "A2:AA:BB:CC:E0:00");
+    }
+
+    @Test
+    public void testExhausted() throws Exception {
+        final MacSet macs = new MacSet();
+        macs.add("A2:AA:BB:CC:DD:E5");
+        final Set<String> picked = new HashSet<String>();
+        for (int i = 0; i < 15; i++) {
+            final String mac = MacUtil.pickNew(macs, "A2:AA:BB:CC:DD:E");
+            assertTrue(picked.add(mac), "duplicate " + mac);
+        }
+        assertFalse(picked.contains("A2:AA:BB:CC:DD:E5"));
+        try {
+            MacUtil.pickNew(macs, "A2:AA:BB:CC:DD:E");
+            fail("range is full");
+        } catch (ResourceRequestDeniedException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRandomUnique() throws Exception {
+        final MacSet macs = new MacSet();
+        final Set<String> picked = new HashSet<String>();
+        for (int i = 0; i < 20000; i++) {
+            final String mac = MacUtil.pickNew(macs, "A2:AA:BB:");
+            assertEquals(mac.length(), 17);
+            assertTrue(mac.startsWith("A2:AA:BB:"));
+            assertTrue(MacUtil.isValidMac(mac, false));
+            assertTrue(picked.add(mac), "duplicate " + mac);
+        }
+        assertEquals(macs.size(), 20000);
+    }
+}
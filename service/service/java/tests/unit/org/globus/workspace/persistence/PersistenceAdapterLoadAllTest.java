@@ -0,0 +1,412 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+
+import org.globus.workspace.Lager;
+import org.globus.workspace.WorkspaceConstants;
+import org.globus.workspace.WorkspaceException;
+import org.globus.workspace.persistence.impls.VMPersistence;
+import org.globus.workspace.scheduler.defaults.NimbusDatabaseTestCase;
+import org.globus.workspace.service.InstanceResource;
+import org.globus.workspace.service.binding.BindNetwork;
+import org.globus.workspace.service.binding.BindingAdapter;
+import org.globus.workspace.service.binding.defaults.DefaultGlobalPolicies;
+import org.globus.workspace.service.binding.vm.FileCopyNeed;
+import org.globus.workspace.service.binding.vm.VirtualMachine;
+import org.globus.workspace.service.binding.vm.VirtualMachineDeployment;
+import org.globus.workspace.service.binding.vm.VirtualMachinePartition;
+import org.globus.workspace.service.impls.InstanceResourceImpl;
+import org.nimbustools.api.repr.CreateRequest;
+import org.nimbustools.api.repr.vm.NIC;
+import org.nimbustools.api.services.rm.DoesNotExistException;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * loadAll() must populate resources exactly like one load() per id does,
+ * across chunk boundaries and with ids that do not exist.
+ */
+public class PersistenceAdapterLoadAllTest extends NimbusDatabaseTestCase {
+
+    private static final int CHUNK = PersistenceAdapterConstants.LOAD_ALL_CHUNK;
+
+    private PersistenceAdapterImpl persistence;
+
+    @Before
+    public void setUp() throws Exception {
+        final Connection c = getDataSource().getConnection();
+        try {
+            final Statement stmt = c.createStatement();
+            stmt.executeUpdate("DELETE FROM file_copy");
+            stmt.executeUpdate("DELETE FROM vm_partitions");
+            stmt.executeUpdate("DELETE FROM vm_deployment");
+            stmt.executeUpdate("DELETE FROM vms");
+            stmt.executeUpdate("DELETE FROM resources");
+            stmt.close();
+        } finally {
+            c.close();
+        }
+        this.persistence = new PersistenceAdapterImpl(
+                getDataSource(), new Lager(), new Loaded(), getReprFactory());
+    }
+
+    @Test
+    public void testMatchesLoad() throws Exception {
+
+        // more than two chunks, every third id missing
+        final List<Integer> idList = new ArrayList<Integer>();
+        for (int id = 1; id <= 2 * CHUNK + 10; id++) {
+            if (id % 3 != 0) {
+                this.persistence.add(this.newResource(id));
+            }
+            idList.add(id);
+        }
+        idList.add(5000);
+        idList.add(-1);
+
+        // not in id order, so chunks mix present and missing ids
+        final int[] ids = new int[idList.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = idList.get((i * 11) % ids.length);
+        }
+        final int[] sorted = ids.clone();
+        Arrays.sort(sorted);
+        assertEquals("ids are a permutation", idList.size(),
+                     countDistinct(sorted));
+
+        final InstanceResource[] resources = new InstanceResource[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            resources[i] = new TestResource();
+        }
+        final boolean[] found = this.persistence.loadAll(ids, resources);
+        assertEquals(ids.length, found.length);
+
+        int foundCount = 0;
+        for (int i = 0; i < ids.length; i++) {
+            final TestResource single = new TestResource();
+            boolean exists = true;
+            try {
+                this.persistence.load(ids[i], single);
+            } catch (DoesNotExistException e) {
+                exists = false;
+            }
+            assertEquals("found[] for id " + ids[i], exists, found[i]);
+            if (exists) {
+                foundCount++;
+                assertEquals(describe(single), describe(resources[i]));
+            }
+        }
+        assertEquals(2 * CHUNK + 10 - (2 * CHUNK + 10) / 3, foundCount);
+    }
+
+    @Test
+    public void testExactChunk() throws Exception {
+        final int[] ids = new int[CHUNK];
+        for (int i = 0; i < CHUNK; i++) {
+            ids[i] = 100 + i;
+            this.persistence.add(this.newResource(ids[i]));
+        }
+        final InstanceResource[] resources = new InstanceResource[CHUNK];
+        for (int i = 0; i < CHUNK; i++) {
+            resources[i] = new TestResource();
+        }
+        final boolean[] found = this.persistence.loadAll(ids, resources);
+        for (int i = 0; i < CHUNK; i++) {
+            assertTrue(found[i]);
+            final TestResource single = new TestResource();
+            this.persistence.load(ids[i], single);
+            assertEquals(describe(single), describe(resources[i]));
+        }
+    }
+
+    @Test
+    public void testNoneFound() throws Exception {
+        final int[] ids = {7, 8, 9};
+        final InstanceResource[] resources = {
+                new TestResource(), new TestResource(), new TestResource()};
+        final boolean[] found = this.persistence.loadAll(ids, resources);
+        for (int i = 0; i < ids.length; i++) {
+            assertFalse(found[i]);
+        }
+        assertEquals(0, this.persistence.loadAll(
+                new int[0], new InstanceResource[0]).length);
+    }
+
+    @Test
+    public void testDuplicateIds() throws Exception {
+        try {
+            this.persistence.loadAll(new int[]{1, 1}, new InstanceResource[]{
+                    new TestResource(), new TestResource()});
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+
+    // -------------------------------------------------------------------------
+    // HELPERS
+    // -------------------------------------------------------------------------
+
+    private TestResource newResource(int id) throws Exception {
+        final TestResource resource = new TestResource();
+        resource.setID(id);
+        resource.setName("vm-" + id);
+        resource.setCreatorID("/O=test/CN=owner" + (id % 4));
+        resource.setInitialState(
+                WorkspaceConstants.STATE_FIRST_LEGAL + id % 5, null);
+        resource.setInitialTargetState(WorkspaceConstants.STATE_STARTED);
+        resource.setInitialOpsEnabled(id % 2 == 0);
+        resource.setGroupId(id % 2 == 0 ? "group-" + id / 10 : null);
+        resource.setGroupSize(id % 2 == 0 ? 10 : 1);
+        resource.setLaunchIndex(id % 10);
+        resource.setClientToken(id % 5 == 0 ? "token-" + id : null);
+        resource.setChargeRatio(0.5);
+        final Calendar term = Calendar.getInstance();
+        term.setTimeInMillis(1000000L * id);
+        resource.setTerminationTime(term);
+
+        final VirtualMachine vm = new VirtualMachine();
+        vm.setID(id);
+        vm.setName("vm-" + id);
+        vm.setNetwork("public;eth0;" + id);
+        vm.setNode("node" + id % 3);
+        vm.setVmm("Xen");
+        vm.setVmmVersion("3");
+        vm.setResourcePool(id % 2 == 0 ? "pool" : null);
+
+        final VirtualMachineDeployment dep = new VirtualMachineDeployment();
+        dep.setMinDuration(60 * id);
+        dep.setRequestedState(WorkspaceConstants.STATE_STARTED);
+        dep.setRequestedShutdown(WorkspaceConstants.DEFAULT_SHUTDOWN_NORMAL);
+        dep.setIndividualPhysicalMemory(256);
+        dep.setIndividualCPUCount(1 + id % 2);
+        vm.setDeployment(dep);
+
+        // some VMs have no partitions and no file copies
+        final int numParts = id % 4;
+        final VirtualMachinePartition[] parts =
+                new VirtualMachinePartition[numParts];
+        for (int p = 0; p < numParts; p++) {
+            parts[p] = new VirtualMachinePartition();
+            parts[p].setImage("file:///images/" + id + "-" + p);
+            parts[p].setImagemount("sda" + (p + 1));
+            parts[p].setRootdisk(p == 0);
+            parts[p].setReadwrite(true);
+        }
+        vm.setPartitions(parts);
+        for (int n = 0; n < id % 3; n++) {
+            vm.addFileCopyNeed(new FileCopyNeed(
+                    "src-" + id + "-" + n, "/dst/" + n, n == 0));
+        }
+
+        resource.setWorkspace(vm);
+        return resource;
+    }
+
+    private static String describe(InstanceResource resource) {
+        final StringBuffer buf = new StringBuffer();
+        buf.append(resource.getID()).append(' ')
+           .append(resource.getName()).append(' ')
+           .append(resource.getCreatorID()).append(' ')
+           .append(resource.getState()).append(' ')
+           .append(resource.getTargetState()).append(' ')
+           .append(resource.isOpsEnabled()).append(' ')
+           .append(resource.getGroupId()).append(' ')
+           .append(resource.getGroupSize()).append(' ')
+           .append(resource.getLaunchIndex()).append(' ')
+           .append(resource.getClientToken()).append(' ')
+           .append(resource.getChargeRatio()).append(' ')
+           .append(millis(resource.getTerminationTime())).append(' ')
+           .append(millis(resource.getStartTime())).append('\n');
+
+        final VirtualMachine vm = resource.getVM();
+        buf.append(vm.getID()).append(' ')
+           .append(vm.getName()).append(' ')
+           .append(vm.getNetwork()).append(' ')
+           .append(vm.getNode()).append(' ')
+           .append(vm.getVmm()).append(' ')
+           .append(vm.getResourcePool()).append('\n');
+
+        final VirtualMachineDeployment dep = vm.getDeployment();
+        buf.append(dep.getMinDuration()).append(' ')
+           .append(dep.getRequestedState()).append(' ')
+           .append(dep.getRequestedShutdown()).append(' ')
+           .append(dep.getIndividualPhysicalMemory()).append(' ')
+           .append(dep.getIndividualCPUCount()).append('\n');
+
+        // row order within one vm is not part of the contract
+        final List<String> parts = new ArrayList<String>();
+        if (vm.getPartitions() != null) {
+            for (VirtualMachinePartition part : vm.getPartitions()) {
+                parts.add(part.toString());
+            }
+        }
+        Collections.sort(parts);
+        buf.append(parts).append('\n');
+
+        final List<String> needs = new ArrayList<String>();
+        if (vm.getFileCopyNeeds() != null) {
+            for (FileCopyNeed need : vm.getFileCopyNeeds()) {
+                needs.add(need.sourcePath + ">" + need.destPath +
+                          ":" + need.onImage());
+            }
+        }
+        Collections.sort(needs);
+        buf.append(needs);
+        return buf.toString();
+    }
+
+    private static Long millis(Calendar cal) {
+        return cal == null ? null : cal.getTimeInMillis();
+    }
+
+    private static int countDistinct(int[] sorted) {
+        int count = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private class TestResource extends InstanceResourceImpl
+                               implements VMPersistence {
+
+        TestResource() {
+            super(PersistenceAdapterLoadAllTest.this.persistence,
+                  new Binding(),
+                  new DefaultGlobalPolicies(),
+                  new DataConvert(getReprFactory()),
+                  new Lager(),
+                  new Networking());
+        }
+
+        public void setWorkspace(VirtualMachine vm) {
+            this.vm = vm;
+        }
+
+        public int getState() {
+            return this.state;
+        }
+
+        public Throwable getStateThrowable() {
+            return this.throwableForState;
+        }
+
+        public int getTargetState() {
+            return this.targetState;
+        }
+
+        public void setInitialState(int state, Throwable throwable) {
+            this.state = state;
+            this.throwableForState = throwable;
+        }
+
+        public void setInitialTargetState(int state) {
+            this.targetState = state;
+        }
+
+        public void setState(int state, Throwable throwable) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void setTargetState(int state) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void setTargetStateUnderLockEvaluate(int state) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void activate() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void activateOverride(int state) {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean isZombie() {
+            return false;
+        }
+    }
+
+    private static class Binding implements BindingAdapter {
+
+        public VirtualMachine[] processRequest(CreateRequest req) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void backOutAllocations(VirtualMachine vm) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void backOutAllocations(VirtualMachine[] vms) {
+            throw new UnsupportedOperationException();
+        }
+
+        public FileCopyNeed newFileCopyNeed(String srcContent,
+                                            String dstPath)
+                throws WorkspaceException {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class Networking implements BindNetwork {
+
+        public void consume(VirtualMachine[] vm, NIC[] nics) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void neededAllocations(VirtualMachine vm, NIC[] nics) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void indexAddresses(VirtualMachine[] vms) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void backOutIPAllocations(VirtualMachine vm) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void backOutIPAllocations(VirtualMachine[] vms) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class Loaded implements DBLoader {
+        public boolean isLoaded() {
+            return true;
+        }
+    }
+}
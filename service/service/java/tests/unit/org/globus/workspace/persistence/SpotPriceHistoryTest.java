@@ -0,0 +1,296 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace.persistence;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+import org.globus.workspace.Lager;
+import org.globus.workspace.scheduler.defaults.NimbusDatabaseTestCase;
+import org.nimbustools.api.repr.SpotPriceEntry;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Spot price history compaction (raw changes to minute buckets to hour
+ * buckets to nothing) and the bounded and paged history queries.
+ */
+public class SpotPriceHistoryTest extends NimbusDatabaseTestCase {
+
+    private static final long MINUTE = PersistenceAdapterImpl.SPOT_PRICE_MINUTE;
+    private static final long HOUR = PersistenceAdapterImpl.SPOT_PRICE_HOUR;
+    private static final long DAY = 24 * HOUR;
+
+    // hour aligned
+    private static final long NOW = 15000 * DAY;
+
+    // default retention: raw a day, minute buckets a week, hour buckets a year
+    private static final long MINUTE_BUCKET = NOW - 2 * DAY;
+    private static final long HOUR_BUCKET = NOW - 8 * DAY;
+
+    private PersistenceAdapterImpl persistence;
+
+    @Before
+    public void setUp() throws Exception {
+        final Connection c = getDataSource().getConnection();
+        try {
+            final Statement stmt = c.createStatement();
+            stmt.executeUpdate("DELETE FROM spot_prices");
+            stmt.executeUpdate("DELETE FROM spot_price_rollups");
+            stmt.close();
+        } finally {
+            c.close();
+        }
+        this.persistence = new PersistenceAdapterImpl(
+                getDataSource(), new Lager(), new Loaded(), getReprFactory());
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+
+        insertRaw(NOW - 400 * DAY, 9.0);
+        insertRaw(HOUR_BUCKET + 5 * MINUTE, 4.0);
+        insertRaw(HOUR_BUCKET + 25 * MINUTE, 5.0);
+        insertRaw(MINUTE_BUCKET, 1.0);
+        insertRaw(MINUTE_BUCKET + 30000, 3.0);
+        insertRaw(MINUTE_BUCKET + 50000, 2.0);
+        insertRaw(NOW - HOUR, 6.0);
+        insertRaw(NOW - 10 * MINUTE, 7.0);
+
+        assertEquals(Double.valueOf(7.0), this.persistence.getLastSpotPrice());
+        this.persistence.compactSpotPriceHistory(NOW);
+
+        assertEquals(NOW - HOUR + ":6.0, " + (NOW - 10 * MINUTE) + ":7.0",
+                     selectRaw());
+        assertEquals(HOUR + "@" + HOUR_BUCKET + ":4.0/5.0/4.0/5.0x2, " +
+                     MINUTE + "@" + MINUTE_BUCKET + ":1.0/3.0/1.0/2.0x3",
+                     selectRollups());
+
+        // a bucket is reported at its last change with its closing price
+        assertEquals((HOUR_BUCKET + 25 * MINUTE) + ":5.0, " +
+                     (MINUTE_BUCKET + 50000) + ":2.0, " +
+                     (NOW - HOUR) + ":6.0, " + (NOW - 10 * MINUTE) + ":7.0",
+                     describe(this.persistence.getSpotPriceHistory(null, null)));
+
+        // a late change for a bucket that already exists is merged into it
+        insertRaw(MINUTE_BUCKET + 55000, 0.5);
+        this.persistence.compactSpotPriceHistory(NOW + MINUTE);
+        assertEquals(HOUR + "@" + HOUR_BUCKET + ":4.0/5.0/4.0/5.0x2, " +
+                     MINUTE + "@" + MINUTE_BUCKET + ":1.0/3.0/0.5/0.5x4",
+                     selectRollups());
+        assertEquals(2, countRaw());
+
+        // a week later the minute bucket becomes an hour bucket
+        this.persistence.compactSpotPriceHistory(NOW + 6 * DAY);
+        assertEquals(HOUR + "@" + HOUR_BUCKET + ":4.0/5.0/4.0/5.0x2, " +
+                     HOUR + "@" + MINUTE_BUCKET + ":1.0/3.0/0.5/0.5x4, " +
+                     MINUTE + "@" + (NOW - HOUR) + ":6.0/6.0/6.0/6.0x1",
+                     selectRollups());
+
+        // the newest change is never rolled up
+        assertEquals((NOW - 10 * MINUTE) + ":7.0", selectRaw());
+        assertEquals(Double.valueOf(7.0), this.persistence.getLastSpotPrice());
+
+        // and hour buckets are dropped after a year
+        this.persistence.compactSpotPriceHistory(HOUR_BUCKET + 366 * DAY);
+        assertEquals(HOUR + "@" + MINUTE_BUCKET + ":1.0/3.0/0.5/0.5x4, " +
+                     HOUR + "@" + (NOW - HOUR) + ":6.0/6.0/6.0/6.0x1",
+                     selectRollups());
+    }
+
+    @Test
+    public void testPaging() throws Exception {
+
+        insertRaw(HOUR_BUCKET + 5 * MINUTE, 4.0);
+        insertRaw(MINUTE_BUCKET + 10000, 2.0);
+        insertRaw(NOW - HOUR, 6.0);
+        insertRaw(NOW - 10 * MINUTE, 7.0);
+        this.persistence.getLastSpotPrice();
+        this.persistence.compactSpotPriceHistory(NOW);
+
+        final String hour = (HOUR_BUCKET + 5 * MINUTE) + ":4.0";
+        final String minute = (MINUTE_BUCKET + 10000) + ":2.0";
+        final String raw1 = (NOW - HOUR) + ":6.0";
+        final String raw2 = (NOW - 10 * MINUTE) + ":7.0";
+
+        // oldest first, across hour buckets, minute buckets and raw changes
+        assertEquals(hour + ", " + minute, page(null, 0, 2));
+        assertEquals(minute + ", " + raw1, page(null, 1, 2));
+        assertEquals(raw1 + ", " + raw2, page(null, 2, 10));
+        assertEquals(raw2, page(null, 3, 5));
+        assertEquals("", page(null, 4, 1));
+        assertEquals("", page(null, 0, 0));
+        assertEquals(minute + ", " + raw1 + ", " + raw2,
+                     page(NOW - 3 * DAY, 0, 10));
+
+        // pages put together are the whole history
+        final StringBuffer all = new StringBuffer();
+        for (int offset = 0; offset < 4; offset++) {
+            if (offset > 0) {
+                all.append(", ");
+            }
+            all.append(page(null, offset, 1));
+        }
+        assertEquals(describe(this.persistence.getSpotPriceHistory(null, null)),
+                     all.toString());
+
+        // the unpaged query returns the newest entries, oldest first
+        this.persistence.setSpotPriceMaxEntries(3);
+        assertEquals(minute + ", " + raw1 + ", " + raw2,
+                     describe(this.persistence.getSpotPriceHistory(null, null)));
+        this.persistence.setSpotPriceMaxEntries(1);
+        assertEquals(raw2,
+                     describe(this.persistence.getSpotPriceHistory(null, null)));
+    }
+
+
+    @Test
+    public void testCompactedEntry() throws Exception {
+
+        // the price was 2.0 before the bucket and 3.0 after it
+        insertRaw(MINUTE_BUCKET - 3 * MINUTE, 2.0);
+        insertRaw(MINUTE_BUCKET + 10000, 5.0);
+        insertRaw(MINUTE_BUCKET + 40000, 3.0);
+        insertRaw(NOW - 10 * MINUTE, 7.0);
+        this.persistence.getLastSpotPrice();
+        this.persistence.compactSpotPriceHistory(NOW);
+
+        final List<SpotPriceEntry> history =
+                this.persistence.getSpotPriceHistory(null, null);
+        assertEquals(3, history.size());
+        final SpotPriceEntry compacted = history.get(1);
+        assertEquals(MINUTE_BUCKET + 40000,
+                     compacted.getTimeStamp().getTimeInMillis());
+        assertEquals(3.0, compacted.getSpotPrice(), 0.0);
+
+        // at the bucket start the previous bucket's price still applied
+        assertEquals((MINUTE_BUCKET - 3 * MINUTE) + ":2.0",
+                     describe(history.subList(0, 1)));
+
+        // the close time follows the bucket into an hour bucket, and a
+        // range query goes by it
+        this.persistence.compactSpotPriceHistory(NOW + 7 * DAY);
+        assertEquals(HOUR + "@" + (MINUTE_BUCKET - HOUR) + ":2.0/2.0/2.0/2.0x1, " +
+                     HOUR + "@" + MINUTE_BUCKET + ":5.0/5.0/3.0/3.0x2",
+                     selectRollups());
+        assertEquals((MINUTE_BUCKET + 40000) + ":3.0",
+                     page(MINUTE_BUCKET + 30000, 0, 1));
+    }
+
+
+    // -------------------------------------------------------------------------
+    // HELPERS
+    // -------------------------------------------------------------------------
+
+    private String page(Long from, int offset, int limit) throws Exception {
+        Calendar start = null;
+        if (from != null) {
+            start = Calendar.getInstance();
+            start.setTimeInMillis(from);
+        }
+        return describe(this.persistence.getSpotPriceHistory(
+                start, null, offset, limit));
+    }
+
+    private static String describe(List<SpotPriceEntry> entries) {
+        final List<String> list = new ArrayList<String>(entries.size());
+        for (SpotPriceEntry entry : entries) {
+            list.add(entry.getTimeStamp().getTimeInMillis() + ":" +
+                     entry.getSpotPrice());
+        }
+        return join(list);
+    }
+
+    private static void insertRaw(long time, double price) throws Exception {
+        final Connection c = getDataSource().getConnection();
+        try {
+            final PreparedStatement pstmt =
+                    c.prepareStatement("INSERT INTO spot_prices VALUES(?,?)");
+            pstmt.setLong(1, time);
+            pstmt.setDouble(2, price);
+            pstmt.executeUpdate();
+            pstmt.close();
+        } finally {
+            c.close();
+        }
+    }
+
+    private static int countRaw() throws Exception {
+        return select("SELECT tstamp, price FROM spot_prices").size();
+    }
+
+    private static String selectRaw() throws Exception {
+        return join(select(
+                "SELECT tstamp, price FROM spot_prices ORDER BY tstamp"));
+    }
+
+    private static String selectRollups() throws Exception {
+        return join(select(
+                "SELECT resolution, bucket, open_price, high_price, " +
+                "low_price, close_price, samples FROM spot_price_rollups " +
+                "ORDER BY bucket, resolution"));
+    }
+
+    private static List<String> select(String sql) throws Exception {
+        final List<String> rows = new ArrayList<String>();
+        final Connection c = getDataSource().getConnection();
+        try {
+            final Statement stmt = c.createStatement();
+            final ResultSet rs = stmt.executeQuery(sql);
+            final int columns = rs.getMetaData().getColumnCount();
+            while (rs.next()) {
+                if (columns == 2) {
+                    rows.add(rs.getLong(1) + ":" + rs.getDouble(2));
+                } else {
+                    rows.add(rs.getLong(1) + "@" + rs.getLong(2) + ":" +
+                             rs.getDouble(3) + "/" + rs.getDouble(4) + "/" +
+                             rs.getDouble(5) + "/" + rs.getDouble(6) + "x" +
+                             rs.getInt(7));
+                }
+            }
+            rs.close();
+            stmt.close();
+        } finally {
+            c.close();
+        }
+        return rows;
+    }
+
+    private static String join(List<String> parts) {
+        final StringBuffer buf = new StringBuffer();
+        for (String part : parts) {
+            if (buf.length() > 0) {
+                buf.append(", ");
+            }
+            buf.append(part);
+        }
+        return buf.toString();
+    }
+
+    private static class Loaded implements DBLoader {
+        public boolean isLoaded() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace.persistence;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import org.testng.annotations.Test;
+
+public class SpotPriceRingTest {
+
+    private static String range(SpotPriceRing ring, long from, long to, int max) {
+        final long[] times = new long[max];
+        final double[] prices = new double[max];
+        final int n = ring.copyRange(from, to, times, prices);
+        final StringBuffer buf = new StringBuffer();
+        for (int i = 0; i < n; i++) {
+            if (i > 0) {
+                buf.append(' ');
+            }
+            buf.append(times[i]).append('=').append(prices[i]);
+        }
+        return buf.toString();
+    }
+
+    @Test
+    public void testEmpty() {
+        final SpotPriceRing ring = new SpotPriceRing(3);
+        assertEquals(ring.size(), 0);
+        assertEquals(ring.getOldest(), Long.MAX_VALUE);
+        assertNull(ring.getNewestPrice());
+        assertEquals(range(ring, 0, 100, 3), "");
+    }
+
+    @Test
+    public void testWrap() {
+        final SpotPriceRing ring = new SpotPriceRing(3);
+        for (int i = 1; i <= 5; i++) {
+            ring.add(i * 10, i);
+        }
+        assertEquals(ring.size(), 3);
+        assertEquals(ring.getOldest(), 30L);
+        assertEquals(ring.getNewestPrice(), 5.0);
+        assertEquals(range(ring, 0, 100, 3), "30=3.0 40=4.0 50=5.0");
+    }
+
+    @Test
+    public void testRangeKeepsNewest() {
+        final SpotPriceRing ring = new SpotPriceRing(10);
+        for (int i = 1; i <= 6; i++) {
+            ring.add(i * 10, i);
+        }
+        assertEquals(range(ring, 20, 50, 10), "20=2.0 30=3.0 40=4.0 50=5.0");
+        // only room for two, the newest two in range
+        assertEquals(range(ring, 20, 50, 2), "40=4.0 50=5.0");
+        assertEquals(range(ring, 61, 100, 10), "");
+    }
+
+    @Test
+    public void testDropBefore() {
+        final SpotPriceRing ring = new SpotPriceRing(4);
+        ring.add(10, 1);
+        ring.add(20, 2);
+        ring.add(30, 3);
+        ring.dropBefore(25);
+        assertEquals(ring.getOldest(), 30L);
+        // the newest change is always kept
+        ring.dropBefore(100);
+        assertEquals(ring.size(), 1);
+        assertEquals(ring.getNewestPrice(), 3.0);
+    }
+}
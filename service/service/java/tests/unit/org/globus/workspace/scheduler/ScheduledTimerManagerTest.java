@@ -0,0 +1,191 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace.scheduler;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import commonj.timers.Timer;
+import commonj.timers.TimerListener;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class ScheduledTimerManagerTest {
+
+    private ScheduledTimerManager manager;
+
+    private static class SlowListener implements TimerListener {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        public void timerExpired(Timer timer) {
+            this.started.countDown();
+            try {
+                this.release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class CountingListener implements TimerListener {
+        final AtomicInteger count = new AtomicInteger();
+        final CountDownLatch fired;
+        CountingListener(int expected) {
+            this.fired = new CountDownLatch(expected);
+        }
+        public void timerExpired(Timer timer) {
+            this.count.incrementAndGet();
+            this.fired.countDown();
+        }
+    }
+
+    private static class ConcurrentCountingListener extends CountingListener
+                                                    implements ConcurrentTimerListener {
+        ConcurrentCountingListener(int expected) {
+            super(expected);
+        }
+    }
+
+    private static class NamedListener implements TimerListener {
+        final String name;
+        final List<String> ran;
+        NamedListener(String name, List<String> ran) {
+            this.name = name;
+            this.ran = ran;
+        }
+        public void timerExpired(Timer timer) {
+            this.ran.add(this.name);
+        }
+    }
+
+    @BeforeMethod
+    public void setup() {
+        this.manager = new ScheduledTimerManager();
+        this.manager.setPoolSize(2);
+        this.manager.setOverrunMillis(50);
+    }
+
+    @AfterMethod
+    public void teardown() {
+        this.manager.stop();
+    }
+
+    @Test
+    public void testSlowListenerDoesNotBlockOthers() throws Exception {
+        final SlowListener slow = new SlowListener();
+        this.manager.schedule(slow, 0);
+        assertTrue(slow.started.await(10, TimeUnit.SECONDS));
+
+        final CountingListener quick = new ConcurrentCountingListener(3);
+        final Timer timer = this.manager.scheduleAtFixedRate(quick, 0, 10);
+        assertTrue(quick.fired.await(10, TimeUnit.SECONDS));
+
+        assertTrue(timer.cancel());
+        final int countAtCancel = quick.count.get();
+        Thread.sleep(50);
+        assertTrue(quick.count.get() <= countAtCancel + 1);
+
+        slow.release.countDown();
+        Thread.sleep(100);
+
+        final ScheduledTimerManager.ListenerStats slowStats =
+                this.manager.getListenerStats().get(SlowListener.class.getName());
+        assertEquals(slowStats.getRuns(), 1);
+        assertEquals(slowStats.getOverruns(), 1);
+        assertEquals(this.manager.getActiveTimers(), 0);
+    }
+
+    @Test
+    public void testPlainListenersRunInTurn() throws Exception {
+        final SlowListener slow = new SlowListener();
+        this.manager.schedule(slow, 0);
+        assertTrue(slow.started.await(10, TimeUnit.SECONDS));
+
+        final List<String> ran =
+                Collections.synchronizedList(new ArrayList<String>());
+        final CountingListener last = new CountingListener(1);
+        this.manager.schedule(new NamedListener("first", ran), 0);
+        this.manager.schedule(new NamedListener("second", ran), 0);
+        this.manager.schedule(last, 0);
+
+        // a concurrent listener runs while the plain ones wait their turn
+        final CountingListener concurrent = new ConcurrentCountingListener(1);
+        this.manager.schedule(concurrent, 0);
+        assertTrue(concurrent.fired.await(10, TimeUnit.SECONDS));
+        assertEquals(ran.size(), 0);
+        assertEquals(last.count.get(), 0);
+
+        slow.release.countDown();
+        assertTrue(last.fired.await(10, TimeUnit.SECONDS));
+        assertEquals(ran.toString(), "[first, second]");
+    }
+
+    @Test
+    public void testCancelBeforeRun() throws Exception {
+        final CountingListener listener = new CountingListener(1);
+        final Timer timer = this.manager.schedule(listener, 100);
+        assertEquals(this.manager.getActiveTimers(), 1);
+        assertTrue(timer.cancel());
+        assertFalse(timer.cancel());
+        assertEquals(this.manager.getActiveTimers(), 0);
+        assertFalse(listener.fired.await(300, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testSuspendResume() throws Exception {
+        final CountingListener listener = new CountingListener(1);
+        this.manager.suspend();
+        this.manager.schedule(listener, 0);
+        assertFalse(listener.fired.await(100, TimeUnit.MILLISECONDS));
+        this.manager.resume();
+        assertTrue(listener.fired.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testFailureCounted() throws Exception {
+        final CountDownLatch fired = new CountDownLatch(1);
+        this.manager.schedule(new TimerListener() {
+            public void timerExpired(Timer timer) {
+                fired.countDown();
+                throw new RuntimeException("expected");
+            }
+        }, 0);
+        assertTrue(fired.await(10, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        long failures = 0;
+        for (ScheduledTimerManager.ListenerStats stats :
+                this.manager.getListenerStats().values()) {
+            failures += stats.getFailures();
+        }
+        assertEquals(failures, 1);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testScheduleAfterStop() {
+        this.manager.stop();
+        this.manager.schedule(new CountingListener(1), 0);
+    }
+}
@@ -32,12 +32,15 @@ import javax.sql.DataSource;
 import org.apache.derby.jdbc.EmbeddedDataSource;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
+import org.nimbustools.api.repr.ReprFactory;
+import org.springframework.context.support.FileSystemXmlApplicationContext;
 
 public class NimbusDatabaseTestCase {
 
     private static File derbyDir;
     private static DataSource dataSource;
     private static DataSource shutdownDataSource;
+    private static ReprFactory reprFactory;
 
     @BeforeClass
     public static void createDatabase() throws Exception {
@@ -47,18 +50,23 @@ public class NimbusDatabaseTestCase {
 
         // create database and initialize it
         dataSource = getCreateDataSource(dbDir);
-        createNimbusDB();
+        executeSqlFile("./service/service/java/source/share/lib/workspace_service_derby_schema.sql");
 
         // create a data source for shutting down later
         shutdownDataSource = getShutdownDataSource(dbDir);
     }
 
-    private static void createNimbusDB() throws SQLException, IOException {
+    /**
+     * Runs the statements in a schema file against the test database, for
+     * subclasses that need one of the other schemas too.
+     * @param path path of the .sql file, relative to the top of the source tree
+     */
+    protected static void executeSqlFile(String path) throws SQLException, IOException {
 
         Connection connection = dataSource.getConnection();
         
         
-        BufferedReader d = new BufferedReader(new FileReader("./service/service/java/source/share/lib/workspace_service_derby_schema.sql"));
+        BufferedReader d = new BufferedReader(new FileReader(path));
 
         String thisLine, sqlQuery;
         sqlQuery = "";
@@ -228,4 +236,19 @@ public class NimbusDatabaseTestCase {
         return dataSource;
     }
 
+    /**
+     * Gets the representation object factory, configured the same way the
+     * service configures it.
+     * @return the factory, created on first use
+     */
+    public static synchronized ReprFactory getReprFactory() {
+        if (reprFactory == null) {
+            final FileSystemXmlApplicationContext context =
+                    new FileSystemXmlApplicationContext(
+                            "./service/service/java/source/etc/workspace-service/other/main.repr.xml");
+            reprFactory = (ReprFactory) context.getBean("nimbus-repr.ReprFactory");
+        }
+        return reprFactory;
+    }
+
 }
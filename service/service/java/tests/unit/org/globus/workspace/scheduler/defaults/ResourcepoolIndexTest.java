@@ -0,0 +1,106 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace.scheduler.defaults;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+public class ResourcepoolIndexTest {
+
+    private ResourcepoolIndex getIndex() {
+        final List<ResourcepoolEntry> entries = new ArrayList<ResourcepoolEntry>();
+        entries.add(new ResourcepoolEntry("pool1", "vmm1", 4096, 1024, 0, "public,private", true));
+        entries.add(new ResourcepoolEntry("pool1", "vmm2", 4096, 2048, 0, "public", true));
+        entries.add(new ResourcepoolEntry("pool1", "vmm3", 4096, 2048, 0, "*", true));
+        entries.add(new ResourcepoolEntry("pool2", "vmm4", 8192, 8192, 0, "private", true));
+        entries.add(new ResourcepoolEntry("pool2", "vmm5", 16384, 16384, 0, "*", false));
+        return new ResourcepoolIndex(entries);
+    }
+
+    private static List<String> hostnames(List<ResourcepoolEntry> entries) {
+        final List<String> hostnames = new ArrayList<String>();
+        for (ResourcepoolEntry entry : entries) {
+            hostnames.add(entry.getHostname());
+        }
+        return hostnames;
+    }
+
+    @Test
+    public void testGreedy() {
+        final ResourcepoolIndex index = getIndex();
+        assertEquals(hostnames(index.getBestEntries(512, null, null, true)).toString(),
+                     "[vmm1]");
+        assertEquals(hostnames(index.getBestEntries(1536, null, null, true)).toString(),
+                     "[vmm2, vmm3]");
+        assertEquals(hostnames(index.getBestEntries(512, new String[]{"private"}, "pool1", true)).toString(),
+                     "[vmm1]");
+    }
+
+    @Test
+    public void testRoundRobin() {
+        final ResourcepoolIndex index = getIndex();
+        // vmm5 is inactive
+        assertEquals(hostnames(index.getBestEntries(512, null, null, false)).toString(),
+                     "[vmm4]");
+        assertEquals(hostnames(index.getBestEntries(512, null, "pool1", false)).toString(),
+                     "[vmm3, vmm2]");
+        assertEquals(hostnames(index.getBestEntries(512, new String[]{"public"}, "pool2", false)).size(),
+                     0);
+    }
+
+    @Test
+    public void testUpdateMemory() {
+        final ResourcepoolIndex index = getIndex();
+        index.updateMemory("vmm2", 512, 1536);
+        assertEquals(index.get("vmm2").getMemCurrent(), 512);
+        assertEquals(index.get("vmm2").getMemPreemptable(), 1536);
+        assertEquals(hostnames(index.getBestEntries(256, null, "pool1", true)).toString(),
+                     "[vmm2]");
+        assertEquals(hostnames(index.getBestEntries(256, null, "pool1", false)).toString(),
+                     "[vmm3]");
+
+        // handed out entries are copies
+        index.get("vmm3").setMemCurrent(0);
+        assertEquals(index.get("vmm3").getMemCurrent(), 2048);
+    }
+
+    @Test
+    public void testFeasibility() {
+        final ResourcepoolIndex index = getIndex();
+        assertFalse(index.isInfeasibleRequest(8192));
+        assertTrue(index.isInfeasibleRequest(8193));
+        assertTrue(index.hasAvailableEntry(2048, "pool1"));
+        assertFalse(index.hasAvailableEntry(4096, "pool1"));
+
+        assertTrue(index.remove("vmm4"));
+        assertTrue(index.isInfeasibleRequest(8192));
+        assertFalse(index.hasPool("pool2") && index.hasAvailableEntry(1, "pool2"));
+        assertNull(index.get("vmm4"));
+
+        index.add(new ResourcepoolEntry("pool3", "vmm6", 2048, 2048, 0, null, true));
+        assertTrue(index.hasPool("pool3"));
+        assertEquals(index.getBestEntries(1024, new String[]{"public"}, "pool3", true).size(), 0);
+        assertEquals(index.getBestEntries(1024, null, "pool3", true).size(), 1);
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace.scheduler.defaults;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.globus.workspace.Lager;
+import org.globus.workspace.persistence.DBLoader;
+import org.globus.workspace.persistence.PersistenceAdapterImpl;
+import org.globus.workspace.persistence.WorkspaceDatabaseException;
+import org.nimbustools.api.services.rm.NotEnoughMemoryException;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Group placement reserves memory for every VM or for none of them, in the
+ * index and in the database.
+ */
+public class ResourcepoolPlacementTest extends NimbusDatabaseTestCase {
+
+    private FailingPersistence persistence;
+    private ResourcepoolIndex index;
+    private Lager lager;
+
+    @Before
+    public void setUp() throws Exception {
+        final Connection c = getDataSource().getConnection();
+        try {
+            final Statement stmt = c.createStatement();
+            stmt.executeUpdate("DELETE FROM resourcepool_entries");
+            stmt.close();
+        } finally {
+            c.close();
+        }
+
+        this.persistence = new FailingPersistence();
+        this.persistence.addResourcepoolEntry(
+                new ResourcepoolEntry("pool1", "vmm1", 4096, 1536, 0, "*", true));
+        this.persistence.addResourcepoolEntry(
+                new ResourcepoolEntry("pool1", "vmm2", 4096, 1024, 0, "*", true));
+        this.index = new ResourcepoolIndex(
+                this.persistence.currentResourcepoolEntries());
+
+        this.lager = new Lager();
+        this.lager.eventLog = true;
+    }
+
+    @Test
+    public void testPlaced() throws Exception {
+
+        final ResourcepoolUtil.Placement placement = place(
+                new NodeRequest(new int[]{1, 2}, 512, 1, 60, null, null, null, null),
+                new NodeRequest(new int[]{3}, 1024, 1, 60, null, null, null, null));
+
+        assertEquals(0, placement.getUnplacedMemory());
+        assertEquals(2, placement.getHostnames(0).length);
+        assertEquals(1, placement.getHostnames(1).length);
+
+        // greedy: the fullest VMM that fits is used first
+        assertEquals("vmm1=512/1024, vmm2=0/1024", describeIndex());
+        assertEquals(describeIndex(), describeTable());
+    }
+
+    @Test
+    public void testPartialFitReservesNothing() throws Exception {
+
+        // the first two fit, the third does not fit anywhere
+        try {
+            place(new NodeRequest(new int[]{1, 2, 3}, 1024, 1, 60,
+                                  null, null, null, null));
+            fail("expected NotEnoughMemoryException");
+        } catch (NotEnoughMemoryException e) {
+            // expected
+        }
+
+        assertEquals("vmm1=1536/0, vmm2=1024/0", describeIndex());
+        assertEquals(describeIndex(), describeTable());
+
+        // the same, split over two requests
+        try {
+            place(new NodeRequest(new int[]{1}, 1024, 1, 60, null, null, null, null),
+                  new NodeRequest(new int[]{2, 3}, 1024, 1, 60, null, null, null, null));
+            fail("expected NotEnoughMemoryException");
+        } catch (NotEnoughMemoryException e) {
+            // expected
+        }
+
+        assertEquals("vmm1=1536/0, vmm2=1024/0", describeIndex());
+        assertEquals(describeIndex(), describeTable());
+    }
+
+    @Test
+    public void testFailedWriteReservesNothing() throws Exception {
+
+        this.persistence.failWrites = true;
+        try {
+            place(new NodeRequest(new int[]{1, 2}, 512, 1, 60, null, null, null, null));
+            fail("expected WorkspaceDatabaseException");
+        } catch (WorkspaceDatabaseException e) {
+            // expected
+        }
+
+        assertEquals("vmm1=1536/0, vmm2=1024/0", describeIndex());
+        assertEquals(describeIndex(), describeTable());
+
+        // and the index is usable afterwards
+        this.persistence.failWrites = false;
+        place(new NodeRequest(new int[]{1, 2}, 512, 1, 60, null, null, null, null));
+        assertEquals(describeIndex(), describeTable());
+    }
+
+
+    // -------------------------------------------------------------------------
+    // HELPERS
+    // -------------------------------------------------------------------------
+
+    private ResourcepoolUtil.Placement place(NodeRequest... requests)
+            throws Exception {
+        final ResourcepoolUtil.Placement placement =
+                new ResourcepoolUtil.Placement(requests);
+        ResourcepoolUtil.getResourcePoolEntries(placement, this.persistence,
+                                                this.index, this.lager,
+                                                true, true);
+        return placement;
+    }
+
+    private String describeIndex() {
+        final List<ResourcepoolEntry> entries = new ArrayList<ResourcepoolEntry>();
+        entries.add(this.index.get("vmm1"));
+        entries.add(this.index.get("vmm2"));
+        return describe(entries);
+    }
+
+    private String describeTable() throws Exception {
+        final List<ResourcepoolEntry> entries = new ArrayList<ResourcepoolEntry>();
+        entries.add(this.persistence.getResourcepoolEntry("vmm1"));
+        entries.add(this.persistence.getResourcepoolEntry("vmm2"));
+        return describe(entries);
+    }
+
+    // hostname=free/preemptible
+    private static String describe(List<ResourcepoolEntry> entries) {
+        final StringBuffer buf = new StringBuffer();
+        for (ResourcepoolEntry entry : entries) {
+            if (buf.length() > 0) {
+                buf.append(", ");
+            }
+            buf.append(entry.getHostname()).append('=')
+               .append(entry.getMemCurrent()).append('/')
+               .append(entry.getMemPreemptable());
+        }
+        return buf.toString();
+    }
+
+    private static class FailingPersistence extends PersistenceAdapterImpl {
+
+        boolean failWrites;
+
+        FailingPersistence() throws Exception {
+            super(getDataSource(), new Lager(), new Loaded(), getReprFactory());
+        }
+
+        public void updateResourcepoolEntriesAvailableMemory(
+                                        List<ResourcepoolEntry> entries)
+                throws WorkspaceDatabaseException {
+            if (this.failWrites) {
+                throw new WorkspaceDatabaseException("write failed");
+            }
+            super.updateResourcepoolEntriesAvailableMemory(entries);
+        }
+    }
+
+    private static class Loaded implements DBLoader {
+        public boolean isLoaded() {
+            return true;
+        }
+    }
+}
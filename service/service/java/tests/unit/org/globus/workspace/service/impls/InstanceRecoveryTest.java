@@ -0,0 +1,369 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace.service.impls;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.emory.mathcs.backport.java.util.concurrent.ExecutorService;
+import org.globus.workspace.Lager;
+import org.globus.workspace.WorkspaceException;
+import org.globus.workspace.persistence.DBLoader;
+import org.globus.workspace.persistence.DataConvert;
+import org.globus.workspace.persistence.PersistenceAdapter;
+import org.globus.workspace.persistence.PersistenceAdapterImpl;
+import org.globus.workspace.scheduler.defaults.NimbusDatabaseTestCase;
+import org.globus.workspace.service.InstanceResource;
+import org.globus.workspace.service.Sweepable;
+import org.globus.workspace.service.WorkspaceHome;
+import org.globus.workspace.service.binding.BindNetwork;
+import org.globus.workspace.service.binding.BindingAdapter;
+import org.globus.workspace.service.binding.defaults.DefaultGlobalPolicies;
+import org.globus.workspace.service.binding.vm.FileCopyNeed;
+import org.globus.workspace.service.binding.vm.VirtualMachine;
+import org.nimbustools.api.repr.CreateRequest;
+import org.nimbustools.api.repr.vm.NIC;
+import org.nimbustools.api.services.rm.ManageException;
+import org.junit.Before;
+import org.junit.Test;
+
+public class InstanceRecoveryTest extends NimbusDatabaseTestCase {
+
+    private PersistenceAdapter persistence;
+
+    @Before
+    public void setUp() throws Exception {
+        this.persistence = new PersistenceAdapterImpl(
+                getDataSource(), new Lager(), new Loaded(), getReprFactory());
+    }
+
+    @Test
+    public void testRecoversInBoundedBatches() throws Exception {
+        final FakeHome home = new FakeHome(this.persistence);
+        final Set<Integer> seen =
+                Collections.synchronizedSet(new HashSet<Integer>());
+
+        final InstanceRecovery recovery =
+                new InstanceRecovery(home, ids(1000), 3, 64, new Lager()) {
+                    protected void recovered(InstanceResource resource) {
+                        assertTrue(seen.add(resource.getID()));
+                    }
+                };
+
+        final int recovered = recovery.recover();
+
+        // 142 of 1..1000 are divisible by 7
+        assertEquals(858, recovered);
+        assertEquals(858, seen.size());
+        assertEquals(858, recovery.getRecovered());
+        assertEquals(1000, recovery.getProcessed());
+        assertEquals(16, home.calls.get());
+        assertTrue(home.maxInFlight.get() <= 3);
+        assertTrue(recovery.isDone());
+        assertTrue(recovery.getProgressReport().startsWith(
+                "1000 of 1000 instances checked, 858 recovered"));
+    }
+
+    @Test
+    public void testNothingToRecover() throws Exception {
+        final FakeHome home = new FakeHome(this.persistence);
+        final InstanceRecovery recovery =
+                new InstanceRecovery(home, new int[0], 3, 64, new Lager());
+        assertEquals(0, recovery.recover());
+        assertTrue(recovery.isDone());
+        assertEquals(0, home.calls.get());
+    }
+
+    @Test
+    public void testFailureReportedAfterOtherBatches() throws Exception {
+        final FakeHome home = new FakeHome(this.persistence);
+        home.failOn = 100;
+        final InstanceRecovery recovery =
+                new InstanceRecovery(home, ids(500), 2, 50, new Lager());
+        try {
+            recovery.recover();
+            fail("expected the batch problem to be reported");
+        } catch (ManageException e) {
+            assertTrue(e.getMessage().indexOf("db problem at 100") >= 0);
+        }
+
+        // the other nine batches still ran
+        assertEquals(10, home.calls.get());
+        assertEquals(450, recovery.getProcessed());
+        assertTrue(recovery.await(0));
+    }
+
+
+    // -------------------------------------------------------------------------
+    // HELPERS
+    // -------------------------------------------------------------------------
+
+    private static int[] ids(int n) {
+        final int[] ids = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = i + 1;
+        }
+        return ids;
+    }
+
+    /**
+     * Home whose find(int[]) returns every ID not divisible by 7, as if
+     * those were terminated during recovery.
+     */
+    private static class FakeHome implements WorkspaceHome {
+
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        volatile int failOn = -1;
+
+        private final PersistenceAdapter persistence;
+
+        FakeHome(PersistenceAdapter persistence) {
+            this.persistence = persistence;
+        }
+
+        public InstanceResource[] find(int[] ids) throws ManageException {
+            this.calls.incrementAndGet();
+            final int now = this.inFlight.incrementAndGet();
+            int max;
+            while (now > (max = this.maxInFlight.get())) {
+                this.maxInFlight.compareAndSet(max, now);
+            }
+            try {
+                Thread.sleep(5);
+                final List<InstanceResource> found = new ArrayList<InstanceResource>();
+                for (int id : ids) {
+                    if (id == this.failOn) {
+                        throw new ManageException("db problem at " + id);
+                    }
+                    if (id % 7 != 0) {
+                        final TestResource resource =
+                                new TestResource(this.persistence);
+                        resource.setID(id);
+                        found.add(resource);
+                    }
+                }
+                return found.toArray(new InstanceResource[found.size()]);
+            } catch (InterruptedException e) {
+                throw new ManageException(e.getMessage(), e);
+            } finally {
+                this.inFlight.decrementAndGet();
+            }
+        }
+
+        public InstanceResource newInstance(int id) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void discardNewInstance(int id) {
+            throw new UnsupportedOperationException();
+        }
+
+        public InstanceResource find(int id) {
+            throw new UnsupportedOperationException();
+        }
+
+        public InstanceResource find(String id) {
+            throw new UnsupportedOperationException();
+        }
+
+        public InstanceResource[] findByCaller(String callerID) {
+            throw new UnsupportedOperationException();
+        }
+
+        public InstanceResource[] findByIP(String ip) {
+            throw new UnsupportedOperationException();
+        }
+
+        public InstanceResource[] findAll() {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean isActiveWorkspaceID(int id) {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean isActiveWorkspaceID(String id) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Sweepable[] currentSweeps() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void cleanup(String id) {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean destroy(int id) {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean destroy(String id) {
+            throw new UnsupportedOperationException();
+        }
+
+        public String destroyMultiple(int[] workspaces, String sourceStr) {
+            throw new UnsupportedOperationException();
+        }
+
+        public String destroyMultiple(int[] workspaces, String sourceStr,
+                                      boolean block) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void recover_initialize() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void shutdownImmediately() {
+            throw new UnsupportedOperationException();
+        }
+
+        public ExecutorService getSharedExecutor() {
+            throw new UnsupportedOperationException();
+        }
+
+        public int convertID(String id) {
+            throw new UnsupportedOperationException();
+        }
+
+        public String convertID(int id) {
+            throw new UnsupportedOperationException();
+        }
+
+        public String getVMMReport() {
+            throw new UnsupportedOperationException();
+        }
+
+        public String[] getResourcePools() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class TestResource extends InstanceResourceImpl {
+
+        TestResource(PersistenceAdapter persistence) {
+            super(persistence, new Binding(), new DefaultGlobalPolicies(),
+                  new DataConvert(getReprFactory()), new Lager(),
+                  new Networking());
+        }
+
+        public int getState() {
+            return this.state;
+        }
+
+        public Throwable getStateThrowable() {
+            return this.throwableForState;
+        }
+
+        public int getTargetState() {
+            return this.targetState;
+        }
+
+        public void setInitialState(int state, Throwable throwable) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void setInitialTargetState(int state) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void setState(int state, Throwable throwable) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void setTargetState(int state) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void setTargetStateUnderLockEvaluate(int state) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void activate() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void activateOverride(int state) {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean isZombie() {
+            return false;
+        }
+    }
+
+    private static class Binding implements BindingAdapter {
+
+        public VirtualMachine[] processRequest(CreateRequest req) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void backOutAllocations(VirtualMachine vm) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void backOutAllocations(VirtualMachine[] vms) {
+            throw new UnsupportedOperationException();
+        }
+
+        public FileCopyNeed newFileCopyNeed(String srcContent,
+                                            String dstPath)
+                throws WorkspaceException {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class Networking implements BindNetwork {
+
+        public void consume(VirtualMachine[] vm, NIC[] nics) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void neededAllocations(VirtualMachine vm, NIC[] nics) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void indexAddresses(VirtualMachine[] vms) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void backOutIPAllocations(VirtualMachine vm) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void backOutIPAllocations(VirtualMachine[] vms) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class Loaded implements DBLoader {
+        public boolean isLoaded() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace.service.impls.async;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+public class RequestDispatchTest {
+
+    private static class Recording implements WorkspaceRequest {
+
+        final String name;
+        final List<String> order;
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release;
+        final CountDownLatch done;
+
+        Recording(String name, List<String> order,
+                  CountDownLatch release, CountDownLatch done) {
+            this.name = name;
+            this.order = order;
+            this.release = release;
+            this.done = done;
+        }
+
+        public void execute() {
+            this.started.countDown();
+            try {
+                if (this.release != null) {
+                    this.release.await();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            this.order.add(this.name);
+            this.done.countDown();
+        }
+
+        public void setRequestContext(WorkspaceRequestContext requestContext) {
+        }
+    }
+
+    // RequestDispatch is JVM wide, everything is exercised in one test
+    @Test
+    public void testPriorityCapacityAndVmmLimit() throws Exception {
+
+        // 2 threads, 2 waiting per lane, 1 running per VMM
+        RequestDispatch.setOptions(2, 2, 2, 1);
+
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> order2 = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(10);
+
+        final Recording blocker1 = new Recording("blocker1", order, release, done);
+        final Recording blocker2 = new Recording("blocker2", order, release, done);
+        RequestDispatch.addRequest(blocker1, 1, RequestDispatch.PRIORITY_NORMAL, "vmm1");
+        RequestDispatch.addRequest(blocker2, 2, RequestDispatch.PRIORITY_NORMAL, "vmm2");
+        assertTrue(blocker1.started.await(10, TimeUnit.SECONDS));
+        assertTrue(blocker2.started.await(10, TimeUnit.SECONDS));
+
+        RequestDispatch.addRequest(new Recording("lowA", order, null, done), 3,
+                                   RequestDispatch.PRIORITY_LOW, "vmm1");
+        RequestDispatch.addRequest(new Recording("lowB", order, null, done), 4,
+                                   RequestDispatch.PRIORITY_LOW, "vmm1");
+        assertEquals(RequestDispatch.getQueueDepth(RequestDispatch.PRIORITY_LOW), 2);
+
+        // lane is full but vmm1 is busy: waits instead of running right here
+        RequestDispatch.addRequest(new Recording("lowC", order, null, done), 5,
+                                   RequestDispatch.PRIORITY_LOW, "vmm1");
+        assertEquals(RequestDispatch.getRejectedCount(RequestDispatch.PRIORITY_LOW), 1);
+        assertEquals(RequestDispatch.getQueueDepth(RequestDispatch.PRIORITY_LOW), 2);
+        assertTrue(order.isEmpty());
+
+        // lane is full and vmm3 is free: runs right here
+        RequestDispatch.addRequest(new Recording("lowD", order, null, done), 7,
+                                   RequestDispatch.PRIORITY_LOW, "vmm3");
+        assertEquals(RequestDispatch.getRejectedCount(RequestDispatch.PRIORITY_LOW), 2);
+        assertEquals(order.toString(), "[lowD]");
+
+        // lane is full and vmm2 is busy: two wait, as many as a lane holds,
+        // the next one runs right here over the VMM limit
+        RequestDispatch.addRequest(new Recording("lowE", order2, null, done), 8,
+                                   RequestDispatch.PRIORITY_LOW, "vmm2");
+        RequestDispatch.addRequest(new Recording("lowF", order2, null, done), 9,
+                                   RequestDispatch.PRIORITY_LOW, "vmm2");
+        assertTrue(order2.isEmpty());
+        RequestDispatch.addRequest(new Recording("lowG", order2, null, done), 10,
+                                   RequestDispatch.PRIORITY_LOW, "vmm2");
+        assertEquals(order2.toString(), "[lowG]");
+        assertEquals(RequestDispatch.getRejectedCount(RequestDispatch.PRIORITY_LOW), 5);
+        assertEquals(RequestDispatch.getQueueDepth(RequestDispatch.PRIORITY_LOW), 2);
+
+        // queued after the propagates but goes first once vmm1 frees up
+        RequestDispatch.addRequest(new Recording("highA", order, null, done), 6,
+                                   RequestDispatch.PRIORITY_HIGH, "vmm1");
+        assertEquals(RequestDispatch.getQueueDepth(RequestDispatch.PRIORITY_HIGH), 1);
+
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        order.remove("blocker2");
+        assertEquals(order.toString(), "[lowD, blocker1, highA, lowA, lowB, lowC]");
+        // lowG's slot was over the limit and not handed on
+        assertEquals(order2.toString(), "[lowG, lowE, lowF]");
+        assertEquals(RequestDispatch.getQueueDepth(RequestDispatch.PRIORITY_LOW), 0);
+        assertEquals(RequestDispatch.getQueueDepth(RequestDispatch.PRIORITY_HIGH), 0);
+
+        RequestDispatch.stop();
+        assertTrue(RequestDispatch.isStopped());
+        assertEquals(RequestDispatch.getCompletedCount(RequestDispatch.PRIORITY_LOW), 7);
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace.service.impls.site;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import commonj.timers.Timer;
+import commonj.timers.TimerListener;
+import org.globus.workspace.Lager;
+import org.globus.workspace.scheduler.TimerManagerImpl;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class NotificationPollTest {
+
+    private File file;
+    private final List<Long> delays = new ArrayList<Long>();
+
+    private class RecordingPoll extends NotificationPoll {
+
+        final List<String> seen = new ArrayList<String>();
+        final List<Integer> decreases = new ArrayList<Integer>();
+        long cursor = -1;
+        int pending = 100;
+
+        RecordingPoll(NotificationPollCallback call) throws Exception {
+            super(new RecordingTimers(), new Lager(), 2000,
+                  file.getAbsolutePath(), 0, call, "test");
+        }
+
+        protected boolean oneNotification(String name, String state,
+                                          int code, String message) {
+            this.seen.add(name + "/" + state + "/" + code + "/" + message);
+            return true;
+        }
+    }
+
+    // records the delay of every poll scheduled, nothing is run
+    private class RecordingTimers extends TimerManagerImpl {
+        public Timer schedule(TimerListener listener, long delay) {
+            delays.add(delay);
+            return null;
+        }
+    }
+
+    @BeforeMethod
+    public void setup() throws IOException {
+        this.file = File.createTempFile("notifications", ".txt");
+        this.delays.clear();
+    }
+
+    @AfterMethod
+    public void teardown() {
+        this.file.delete();
+    }
+
+    private void append(String text, boolean truncate) throws IOException {
+        final FileOutputStream out = new FileOutputStream(this.file, !truncate);
+        try {
+            out.write(text.getBytes("ISO-8859-1"));
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void testTail() throws Exception {
+
+        final RecordingPoll[] holder = new RecordingPoll[1];
+        final RecordingPoll poll = new RecordingPoll(new NotificationPollCallback() {
+            public int numPendingNotifications() {
+                return holder[0].pending;
+            }
+            public void decreaseNumPending(int n) {
+                holder[0].decreases.add(n);
+                holder[0].pending -= n;
+            }
+            public void cursorPosition(long pos) {
+                holder[0].cursor = pos;
+            }
+        });
+        holder[0] = poll;
+
+        // nothing there yet
+        poll.timerExpired(null);
+        assertEquals(poll.seen.size(), 0);
+
+        append("workspace-1::start::0<eon>\n" +
+               "workspace-2::propagate::1::Some::error::]eol[::message<eon>\n" +
+               "workspace-3::sta", true);
+        poll.timerExpired(null);
+        assertEquals(poll.seen, Arrays.asList(
+                "workspace-1/start/0/null",
+                "workspace-2/propagate/1/Some error \nmessage"));
+        assertEquals(poll.decreases, Arrays.asList(2));
+        assertEquals(poll.pending, 98);
+        final long afterTwo = poll.cursor;
+        assertEquals(afterTwo, 87);
+
+        // half written line was left for next time, which comes right away
+        assertEquals(this.delays.get(this.delays.size() - 1).longValue(), 0);
+
+        append("rt::0<eon>\n", false);
+        poll.timerExpired(null);
+        assertEquals(poll.seen.get(2), "workspace-3/start/0/null");
+        assertEquals(poll.cursor, this.file.length());
+
+        // file did not grow: nothing is read, back to the normal delay
+        poll.timerExpired(null);
+        assertEquals(poll.seen.size(), 3);
+        assertEquals(this.delays.get(this.delays.size() - 1).longValue(), 2000);
+
+        // new, shorter file
+        append("workspace-4::start::0<eon>\n", true);
+        poll.timerExpired(null);
+        assertEquals(poll.seen.get(3), "workspace-4/start/0/null");
+        assertEquals(poll.cursor, this.file.length());
+    }
+
+    @Test
+    public void testLongLines() throws Exception {
+
+        final StringBuilder sb = new StringBuilder();
+        final StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 30000; i++) {
+            sb.append("::w").append(i);
+            expected.append(i == 0 ? "" : " ").append("w").append(i);
+        }
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 5; i++) {
+            text.append("workspace-").append(i).append("::start::1")
+                .append(sb).append("<eon>\n");
+        }
+        append(text.toString(), true);
+
+        final RecordingPoll poll = new RecordingPoll(new NotificationPollCallback() {
+            public int numPendingNotifications() {
+                return 1;
+            }
+            public void decreaseNumPending(int n) {
+            }
+            public void cursorPosition(long pos) {
+            }
+        });
+        poll.timerExpired(null);
+        assertEquals(poll.seen.size(), 5);
+        assertEquals(poll.seen.get(4), "workspace-4/start/1/" + expected);
+    }
+
+    @Test
+    public void testSplitTokens() throws Exception {
+        final String[] lines = {"", "::", "a", "a::b", "a::::b", "a:::b",
+                                "::a::", "a::b::c::::", " a :: b "};
+        for (String line : lines) {
+            assertEquals(NotificationPoll.splitTokens(line),
+                         line.split("::"), "'" + line + "'");
+        }
+    }
+
+    @Test
+    public void testInvalidLines() throws Exception {
+
+        append("a::b::notanumber<eon>\n" +
+               "only::two<eon>\n" +
+               "<eon>\n" +
+               "workspace-5::start::0<eon>\n", true);
+
+        final List<Integer> decreases = new ArrayList<Integer>();
+        final RecordingPoll poll = new RecordingPoll(new NotificationPollCallback() {
+            public int numPendingNotifications() {
+                return 1;
+            }
+            public void decreaseNumPending(int n) {
+                decreases.add(n);
+            }
+            public void cursorPosition(long pos) {
+            }
+        });
+        poll.timerExpired(null);
+
+        // skipped, but read past
+        assertEquals(poll.seen, Arrays.asList("workspace-5/start/0/null"));
+        assertEquals(decreases, Arrays.asList(1));
+        poll.timerExpired(null);
+        assertEquals(poll.seen.size(), 1);
+    }
+}
@@ -0,0 +1,176 @@
+package org.globus.workspace.spotinstances;
+
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.Random;
+
+import org.globus.workspace.async.AsyncRequest;
+import org.globus.workspace.async.AsyncRequestFilter;
+import org.globus.workspace.async.BidBook;
+import org.globus.workspace.async.pricingmodel.MaximizeProfitPricingModel;
+import org.globus.workspace.async.pricingmodel.MaximizeUtilizationPricingModel;
+import org.globus.workspace.service.binding.vm.VirtualMachine;
+
+/**
+ * Reprices with 10k open spot requests, comparing the previous
+ * per-candidate filtering (kept here as "legacy") against the BidBook
+ * based pricing models.
+ *
+ * Not a test, run by hand:
+ *   java org.globus.workspace.spotinstances.PricingModelBenchmark [requests] [rounds]
+ */
+public class PricingModelBenchmark {
+
+    private static final Double MIN_PRICE = 0.1;
+
+    public static void main(String[] args) {
+
+        final int numRequests = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        final int reserved = numRequests;
+
+        final LinkedList<AsyncRequest> requests = getRequests(numRequests, new Random(42));
+
+        final MaximizeProfitPricingModel profit = new MaximizeProfitPricingModel();
+        profit.setMinPrice(MIN_PRICE);
+        final MaximizeUtilizationPricingModel utilization = new MaximizeUtilizationPricingModel();
+        utilization.setMinPrice(MIN_PRICE);
+
+        // the book is maintained incrementally by AsyncRequestMap, building
+        // it here is not part of a repricing
+        final BidBook book = BidBook.fromRequests(requests);
+
+        System.out.println("Repricing with " + numRequests + " open requests, " +
+                           book.getBids(null).size() + " distinct bids, " +
+                           reserved + " reserved instances");
+
+        Double legacyPrice = null;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            legacyPrice = legacyMaximizeProfit(reserved, requests);
+        }
+        report("MaximizeProfit, legacy filtering", start, rounds, legacyPrice);
+
+        Double price = null;
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            price = profit.getNextPrice(reserved, book, null);
+        }
+        report("MaximizeProfit, bid book", start, rounds, price);
+
+        legacyPrice = null;
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            legacyPrice = legacyMaximizeUtilization(reserved, requests);
+        }
+        report("MaximizeUtilization, legacy sort", start, rounds, legacyPrice);
+
+        price = null;
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            price = utilization.getNextPrice(reserved, book, null);
+        }
+        report("MaximizeUtilization, bid book", start, rounds, price);
+    }
+
+    private static void report(String name, long start, int rounds, Double price) {
+        final double ms = (System.nanoTime() - start) / 1000000.0 / rounds;
+        System.out.println(String.format("%-36s %12.3f ms/reprice  price=%s", name, ms, price));
+    }
+
+    private static LinkedList<AsyncRequest> getRequests(int numRequests, Random random) {
+        final LinkedList<AsyncRequest> requests = new LinkedList<AsyncRequest>();
+        for (int i = 0; i < numRequests; i++) {
+            // cents, so many requests share a bid like they do in practice
+            final Double bid = MIN_PRICE + random.nextInt(500) / 100.0;
+            final AsyncRequest request = new AsyncRequest("r" + i, true, bid, false,
+                    null, null, new VirtualMachine[1 + random.nextInt(4)],
+                    null, null, null, Calendar.getInstance());
+            requests.add(request);
+        }
+        return requests;
+    }
+
+
+    // -----------------------------------------------------------------------------------------
+    // LEGACY IMPLEMENTATIONS (as they were before the bid book)
+    // -----------------------------------------------------------------------------------------
+
+    private static Double legacyMaximizeProfit(Integer totalReservedResources,
+                                               Collection<AsyncRequest> requests) {
+
+        final LinkedList<Double> priceCandidates = legacyPriceCandidates(requests);
+
+        Double highestProfitPrice = -1.0;
+        Double highestProfit = -1.0;
+
+        for (Double priceCandidate : priceCandidates) {
+            Collection<AsyncRequest> priorityOffers =
+                    AsyncRequestFilter.getRequestsAbovePrice(priceCandidate, requests);
+            Collection<AsyncRequest> limitOffers =
+                    AsyncRequestFilter.getRequestsEqualPrice(priceCandidate, requests);
+
+            Double demand = 0.0;
+            for (AsyncRequest request : priorityOffers) {
+                demand += request.getNeededInstances();
+            }
+
+            final Double profit;
+            if (!priorityOffers.isEmpty() && demand / totalReservedResources >= 1.0) {
+                profit = -1.0;
+            } else {
+                Double total = 0.0;
+                for (AsyncRequest request : priorityOffers) {
+                    total += request.getNeededInstances() * priceCandidate;
+                }
+                for (AsyncRequest request : limitOffers) {
+                    total += request.getNeededInstances() * priceCandidate;
+                }
+                profit = total;
+            }
+
+            if (profit > highestProfit) {
+                highestProfit = profit;
+                highestProfitPrice = priceCandidate;
+            }
+        }
+        return highestProfitPrice;
+    }
+
+    private static Double legacyMaximizeUtilization(Integer totalReservedResources,
+                                                    Collection<AsyncRequest> requests) {
+
+        final LinkedList<AsyncRequest> reverseOrderedRequests =
+                new LinkedList<AsyncRequest>(requests);
+        Collections.sort(reverseOrderedRequests, Collections.reverseOrder());
+
+        Double nextPrice = MIN_PRICE;
+        Integer availableResources = totalReservedResources;
+        for (AsyncRequest request : reverseOrderedRequests) {
+            if (request.getMaxBid() >= MIN_PRICE) {
+                nextPrice = request.getMaxBid();
+                availableResources -= request.getNeededInstances();
+                if (availableResources <= 0) {
+                    break;
+                }
+            }
+        }
+        if (availableResources > 0) {
+            nextPrice = MIN_PRICE;
+        }
+        return nextPrice;
+    }
+
+    private static LinkedList<Double> legacyPriceCandidates(Collection<AsyncRequest> requests) {
+        final LinkedList<Double> priceCandidates = new LinkedList<Double>();
+        for (AsyncRequest request : requests) {
+            if (request.getMaxBid() >= MIN_PRICE) {
+                priceCandidates.add(request.getMaxBid());
+            }
+        }
+        Collections.sort(priceCandidates);
+        return priceCandidates;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 1999-2010 University of Chicago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.globus.workspace.xen;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.globus.workspace.ReturnException;
+import org.globus.workspace.WorkspaceException;
+import org.globus.workspace.cmdutils.CommandTransport;
+import org.globus.workspace.cmdutils.ForkTransport;
+import org.testng.annotations.Test;
+
+public class VMMCommandSchedulerTest {
+
+    @Test
+    public void testLimitAndCoalesce() throws Exception {
+
+        VMMCommandScheduler.setMaxPerHost(1);
+
+        final int numCalls = 4;
+        final ExecutorService executor = Executors.newFixedThreadPool(numCalls);
+        final CountDownLatch go = new CountDownLatch(1);
+        try {
+            final List<Future<String>> results = new ArrayList<Future<String>>();
+            for (int i = 0; i < numCalls; i++) {
+                // two distinct commands for vmm1, each asked for twice
+                final String[] cmd = {"sleep", i % 2 == 0 ? "0.3" : "0.31"};
+                results.add(executor.submit(new Callable<String>() {
+                    public String call() throws Exception {
+                        go.await();
+                        return VMMCommandScheduler.runCommand(
+                                "vmm1", cmd, false, false, 1);
+                    }
+                }));
+            }
+
+            final long start = System.currentTimeMillis();
+            go.countDown();
+            for (Future<String> result : results) {
+                result.get();
+            }
+            final long elapsed = System.currentTimeMillis() - start;
+
+            // the two distinct commands ran one after the other
+            assertTrue(elapsed >= 600, "elapsed " + elapsed);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        final long[] histogram = VMMCommandScheduler.getLatencyHistogram("vmm1");
+        long commands = 0;
+        for (long count : histogram) {
+            commands += count;
+        }
+        assertEquals(commands + VMMCommandScheduler.getCoalescedCount("vmm1"), numCalls);
+        assertTrue(VMMCommandScheduler.getCoalescedCount("vmm1") >= 1);
+        assertEquals(histogram[0], commands);
+        assertEquals(VMMCommandScheduler.getQueueLength("vmm1"), 0);
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        try {
+            VMMCommandScheduler.runCommand("vmm2", new String[]{"false"}, false, false, 2);
+            throw new AssertionError("expected a ReturnException");
+        } catch (ReturnException e) {
+            assertEquals(e.retval, 1);
+        }
+        assertEquals(VMMCommandScheduler.getInFlight("vmm2"), 0);
+    }
+
+    @Test
+    public void testTransport() throws Exception {
+
+        final FakeTransport fake = new FakeTransport();
+        VMMCommandScheduler.setTransport(fake);
+        try {
+            final String out = VMMCommandScheduler.runCommand(
+                    "vmm3", new String[]{"ssh", "vmm3", "true"}, false, false, 3);
+            assertEquals(out, "ran on vmm3");
+            assertEquals(fake.nodes.size(), 1);
+            assertEquals(fake.nodes.get(0), "vmm3");
+            assertEquals(fake.commands.get(0)[2], "true");
+
+            try {
+                VMMCommandScheduler.runCommand(
+                        "vmm3", new String[]{"fail"}, false, false, 3);
+                throw new AssertionError("expected a ReturnException");
+            } catch (ReturnException e) {
+                assertEquals(e.retval, 2);
+                assertEquals(e.stderr, "failed on vmm3");
+            }
+            assertEquals(fake.nodes.size(), 2);
+            assertEquals(VMMCommandScheduler.getInFlight("vmm3"), 0);
+
+            // commands without a node do not go through the transport
+            VMMCommandScheduler.runCommand(
+                    null, new String[]{"true"}, false, false, 3);
+            assertEquals(fake.nodes.size(), 2);
+        } finally {
+            VMMCommandScheduler.setTransport(new ForkTransport());
+        }
+        assertTrue(fake.shutdown);
+    }
+
+    private static class FakeTransport implements CommandTransport {
+
+        final List<String> nodes = new ArrayList<String>();
+        final List<String[]> commands = new ArrayList<String[]>();
+        volatile boolean shutdown;
+
+        public synchronized String run(String node,
+                                       String[] cmd,
+                                       boolean eventLog,
+                                       boolean traceLog,
+                                       int trackingID)
+                throws WorkspaceException, ReturnException {
+            this.nodes.add(node);
+            this.commands.add(cmd);
+            if (cmd[0].equals("fail")) {
+                throw new ReturnException(2, "failed on " + node);
+            }
+            return "ran on " + node;
+        }
+
+        public void shutdown() {
+            this.shutdown = true;
+        }
+    }
+}